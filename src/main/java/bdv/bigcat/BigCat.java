@@ -1,16 +1,20 @@
 package bdv.bigcat;
 
-import java.awt.Cursor;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 import javax.swing.JOptionPane;
 import javax.swing.WindowConstants;
 
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.util.TriggerBehaviourBindings;
 
@@ -31,29 +35,40 @@ import bdv.bigcat.control.MergeController;
 import bdv.bigcat.control.NeuronIdsToFileController;
 import bdv.bigcat.control.SelectionController;
 import bdv.bigcat.control.TranslateZController;
+import bdv.bigcat.control.UndoController;
+import bdv.bigcat.journal.EditJournal;
+import bdv.bigcat.journal.EditJournalReplay;
 import bdv.bigcat.label.PairLabelMultiSetLongIdPicker;
 import bdv.bigcat.ui.ARGBConvertedLabelPairSource;
 import bdv.bigcat.ui.Util;
+import bdv.bigcat.undo.UndoStack;
 import bdv.bigcat.util.DirtyInterval;
+import bdv.img.AbstractCachedSetupImageLoader;
 import bdv.img.SetCache;
+import bdv.img.SparseLabelCanvas;
 import bdv.img.h5.AbstractH5SetupImageLoader;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
 import bdv.img.h5.H5UnsignedByteSetupImageLoader;
 import bdv.img.h5.H5Utils;
+import bdv.img.n5.N5LabelMultisetSetupImageLoader;
+import bdv.img.n5.N5UnsignedByteSetupImageLoader;
+import bdv.img.n5.N5Utils;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
 import bdv.labels.labelset.VolatileLabelMultisetType;
 import bdv.util.LocalIdService;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
-import net.imglib2.img.cell.CellImg;
-import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.RandomAccessiblePair;
@@ -72,6 +87,30 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 		@Parameter( names = { "--outfile", "-o" }, description = "Output file path" )
 		public String outFile;
 
+		@Parameter( names = { "--n5" }, description = "N5 container path, if set, raw, label, and canvas datasets are read from (and the canvas is saved to) this container instead of the HDF5 files, with label scale levels in group <label>-scales if it exists" )
+		public String n5 = null;
+
+		@Parameter( names = { "--canvas-budget" }, description = "memory budget for painted canvas cells in MB, least recently used cells beyond it are spilled to the scratch directory, 0 for no limit" )
+		public long canvasBudget = 0;
+
+		@Parameter( names = { "--scratch" }, description = "scratch directory for spilled canvas cells, a new temporary directory if not set" )
+		public String scratch = null;
+
+		@Parameter( names = { "--journal" }, description = "edit journal directory, edits since the last save are replayed from it on start, <outfile>.journal if not set, none to disable" )
+		public String journal = null;
+
+		@Parameter( names = { "--undo-budget" }, description = "memory budget for undo in MB, the oldest edits beyond it cannot be undone" )
+		public long undoBudget = 256;
+
+		@Parameter( names = { "--fill-max-pixels" }, description = "fills that fill more pixels are canceled and rolled back, 0 for no limit" )
+		public long fillMaxPixels = 0;
+
+		@Parameter( names = { "--fill-max-seconds" }, description = "fills that take longer are canceled and rolled back, 0 for no limit" )
+		public long fillMaxSeconds = 0;
+
+		@Parameter( names = { "--fill-level" }, description = "label scale level that fills classify first to look at full resolution labels only at segment boundaries, 0 to fill at full resolution only" )
+		public int fillLevel = 0;
+
 		@Override
 		public void init()
 		{
@@ -79,6 +118,9 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 
 			if ( outFile == null )
 				outFile = inFile;
+
+			if ( journal == null )
+				journal = outFile + ".journal";
 		}
 	}
 
@@ -86,10 +128,9 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	final protected long[] maxRawDimensions = new long[ 3 ];
 
 	/**
-	 * canvas that gets modified by brush TODO this has to change into a virtual
-	 * container with temporary storage
+	 * canvas that gets modified by brush, stores only painted cells
 	 */
-	protected CellImg< LongType, ? > canvas = null;
+	protected SparseLabelCanvas canvas = null;
 
 	/** interval in which pixels were modified */
 	final protected DirtyInterval dirtyLabelsInterval = new DirtyInterval();
@@ -99,6 +140,13 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 
 	protected AnnotationsController annotationsController;
 
+	/**
+	 * journal of edits since the last save, {@code null} if disabled
+	 */
+	protected EditJournal journal = null;
+
+	protected UndoStack undoStack = null;
+
 	/**
 	 * Writes max(a,b) into a
 	 *
@@ -135,7 +183,8 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	 * <li>Load raw and canvas,</li>
 	 * <li>setup IdService,</li>
 	 * <li>setup assignments,</li>
-	 * <li>load labels and create label+canvas compositions.</li>
+	 * <li>load labels and create label+canvas compositions,</li>
+	 * <li>replay and open the edit journal.</li>
 	 * </ol>
 	 *
 	 * @param params
@@ -150,6 +199,7 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 		initAssignments( params );
 		initLabels( params );
 		initMaxId( params );
+		initJournal( params );
 	}
 
 	/**
@@ -161,6 +211,12 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	@Override
 	protected void initRaw( final P params ) throws IOException
 	{
+		if ( params.n5 != null )
+		{
+			initN5Raw( params );
+			return;
+		}
+
 		System.out.println( "Opening raw from " + params.inFile );
 		/* Open writable because HDF5 forces this file to be read only forEVER!!! otherwise */
 		final IHDF5Reader reader = HDF5Factory.open( params.inFile );
@@ -179,6 +235,30 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	}
 
 
+	/**
+	 * Load raw data from the N5 container, find maximum raw dimensions
+	 *
+	 * @param params
+	 * @throws IOException
+	 */
+	protected void initN5Raw( final P params ) throws IOException
+	{
+		System.out.println( "Opening raw from N5 " + params.n5 );
+		final N5Reader n5 = new N5FSReader( params.n5 );
+
+		/* raw pixels */
+		Arrays.fill( maxRawDimensions, 0 );
+		for ( final String raw : params.raws )
+			if ( n5.datasetExists( raw ) )
+			{
+				final N5UnsignedByteSetupImageLoader rawLoader = new N5UnsignedByteSetupImageLoader( n5, raw, setupId++, cache );
+				raws.add( rawLoader );
+				max( maxRawDimensions, Intervals.dimensionsAsLongArray( rawLoader.getVolatileImage( 0, 0 ) ) );
+			}
+			else
+				System.out.println( "no raw dataset '" + raw + "' found" );
+	}
+
 	/**
 	 * Load or initialize canvas
 	 *
@@ -187,12 +267,18 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	 */
 	protected void initCanvas( final P params ) throws IOException
 	{
+		if ( params.n5 != null )
+		{
+			initN5Canvas( params );
+			return;
+		}
+
 		System.out.println( "Opening canvas from " + params.inFile );
 		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFile );
 
 		/* canvas (to which the brush paints) */
 		if ( reader.exists( params.canvas ) )
-			canvas = H5Utils.loadUnsignedLong( reader, params.canvas, cellDimensions );
+			canvas = H5Utils.loadLabelCanvas( reader, params.canvas, cellDimensions );
 		else
 		{
 			final long[] canvasDimensions;
@@ -201,12 +287,74 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 			else
 				canvasDimensions = maxRawDimensions;
 
-			canvas = new CellImgFactory< LongType >( cellDimensions ).create( canvasDimensions, new LongType() );
-			for ( final LongType t : canvas )
-				t.set( Label.TRANSPARENT );
+			canvas = new SparseLabelCanvas( canvasDimensions, cellDimensions );
 		}
 
 		reader.close();
+
+		initCanvasMemoryBudget( params );
+		initDirtyCells();
+	}
+
+	/**
+	 * Load or initialize canvas from the N5 container. The canvas cells are
+	 * the blocks of the canvas dataset if it exists.
+	 *
+	 * @param params
+	 * @throws IOException
+	 */
+	protected void initN5Canvas( final P params ) throws IOException
+	{
+		System.out.println( "Opening canvas from N5 " + params.n5 );
+		final N5Reader n5 = new N5FSReader( params.n5 );
+
+		/* canvas (to which the brush paints) */
+		if ( n5.datasetExists( params.canvas ) )
+			canvas = N5Utils.loadLabelCanvas( n5, params.canvas );
+		else
+		{
+			final long[] canvasDimensions;
+			if ( params.labels.size() > 0 )
+				canvasDimensions = n5.getDatasetAttributes( params.labels.get( 0 ) ).getDimensions();
+			else
+				canvasDimensions = maxRawDimensions;
+
+			canvas = new SparseLabelCanvas( canvasDimensions, cellDimensions );
+		}
+
+		initCanvasMemoryBudget( params );
+		initDirtyCells();
+	}
+
+	/**
+	 * Track modified canvas cells for incremental saving.
+	 */
+	protected void initDirtyCells()
+	{
+		dirtyLabelsInterval.setCellGrid( Intervals.dimensionsAsLongArray( canvas ), canvas.getCellDimensions() );
+	}
+
+	/**
+	 * Limit the memory used by painted canvas cells if a budget was set.
+	 *
+	 * @param params
+	 * @throws IOException
+	 */
+	protected void initCanvasMemoryBudget( final P params ) throws IOException
+	{
+		if ( params.canvasBudget <= 0 )
+			return;
+
+		final File scratch;
+		if ( params.scratch == null )
+		{
+			scratch = Files.createTempDirectory( "bigcat-canvas" ).toFile();
+			scratch.deleteOnExit();
+		}
+		else
+			scratch = new File( params.scratch );
+		System.out.println( "Spilling canvas cells beyond " + params.canvasBudget + "MB to " + scratch );
+		canvas.setMemoryBudget( params.canvasBudget << 20, scratch );
 	}
 
 	/**
@@ -218,6 +366,33 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	@Override
 	protected void initLabels( final P params ) throws IOException
 	{
+		initListDataFactory( params );
+
+		if ( params.n5 != null )
+		{
+			System.out.println( "Opening labels from N5 " + params.n5 );
+			final N5Reader n5 = new N5FSReader( params.n5 );
+			for ( final String label : params.labels )
+				if ( n5.datasetExists( label ) )
+				{
+					final String scaleGroup = label + "-scales";
+					addLabels(
+							new N5LabelMultisetSetupImageLoader(
+									n5,
+									label,
+									n5.exists( scaleGroup ) ? scaleGroup : null,
+									setupId++,
+									N5Utils.readResolution( n5, label ),
+									N5Utils.readOffset( n5, label ),
+									cache,
+									listDataFactory,
+									varintEncodeScaleLevels ) );
+				}
+				else
+					System.out.println( "no label dataset '" + label + "' found" );
+			return;
+		}
+
 		System.out.println( "Opening labels from " + params.inFileLabels );
 		/* Open writable because HDF5 forces this file to be read only forEVER!!! otherwise */
 		final IHDF5Reader reader = HDF5Factory.open( params.inFileLabels );
@@ -258,10 +433,13 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 
 		if ( nextIdObject == null )
 		{
-			for ( final H5LabelMultisetSetupImageLoader labelLoader : labels )
+			for ( final AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray > labelLoader : labels )
 				maxId = maxId( labelLoader, maxId );
 
-			if ( reader.exists( params.canvas ) )
+			final boolean canvasExists = params.n5 == null
+					? reader.exists( params.canvas )
+					: new N5FSReader( params.n5 ).datasetExists( params.canvas );
+			if ( canvasExists )
 				maxId = maxId( canvas, maxId );
 		}
 		else
@@ -272,6 +450,30 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 		reader.close();
 	}
 
+	/**
+	 * Replay the edits in the journal that were not saved, and open the
+	 * journal for new edits.
+	 *
+	 * Depends on {@link #canvas}, {@link #dirtyLabelsInterval},
+	 * {@link #assignment}, and {@link #idService} being initialized.
+	 *
+	 * @param params
+	 * @throws IOException
+	 */
+	protected void initJournal( final P params ) throws IOException
+	{
+		if ( params.journal.equals( "none" ) )
+			return;
+
+		final File directory = new File( params.journal );
+		final long numEdits = new EditJournalReplay( canvas, dirtyLabelsInterval, assignment ).replay( directory, idService );
+		if ( numEdits > 0 )
+			System.out.println( "Replayed " + numEdits + " unsaved edits from " + directory );
+
+		journal = new EditJournal( directory, canvas.getCellDimensions(), 100 );
+		assignment.setJournal( journal );
+	}
+
 	/**
 	 * Create tool.
 	 *
@@ -282,7 +484,7 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 	 * {@link #canvas} being initialized.
 	 *
 	 * Modifies {@link #bdv}, {@link #convertedLabelCanvasPairs},
-	 * {@link #persistenceController},
+	 * {@link #persistenceController}, {@link #undoStack},
 	 *
 	 * @param params
 	 * @throws Exception
@@ -293,12 +495,12 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 		/* composites */
 		final ArrayList< Composite< ARGBType, ARGBType > > composites = new ArrayList<>();
 		final ArrayList< SetCache > cacheLoaders = new ArrayList<>();
-		for ( final H5UnsignedByteSetupImageLoader loader : raws )
+		for ( final AbstractCachedSetupImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray > loader : raws )
 		{
 			composites.add( new CompositeCopy< ARGBType >() );
 			cacheLoaders.add( loader );
 		}
-		for ( final H5LabelMultisetSetupImageLoader loader : labels )
+		for ( final AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray > loader : labels )
 		{
 			composites.add( new ARGBCompositeAlphaYCbCr() );
 			cacheLoaders.add( loader );
@@ -325,6 +527,10 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 
 		if ( labels.size() > 0 )
 		{
+			undoStack = new UndoStack( canvas, dirtyLabelsInterval, params.undoBudget << 20 );
+			undoStack.setJournal( journal );
+			assignment.setUndoStack( undoStack );
+
 			/* TODO fix ID picker to pick from the top most label canvas pair */
 			idPicker = new PairLabelMultiSetLongIdPicker(
 					bdv.getViewer(),
@@ -369,6 +575,8 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 					selectionController,
 					cellDimensions,
 					config );
+			brushController.setJournal( journal );
+			brushController.setUndoStack( undoStack );
 
 			/* TODO fix to deal with more than one label set */
 			persistenceController = new LabelPersistenceController(
@@ -389,6 +597,11 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 					params.completeSegments,
 					config,
 					bdv.getViewerFrame().getKeybindings() );
+			if ( params.n5 != null )
+				persistenceController.setN5( new N5FSWriter( params.n5 ) );
+			if ( params.assignmentFile != null )
+				persistenceController.setAssignmentFile( new File( params.assignmentFile ) );
+			persistenceController.setJournal( journal );
 
 			/* TODO fix to deal with more than one label set */
 			final LabelFillController fillController = new LabelFillController(
@@ -402,6 +615,20 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 					new DiamondShape( 1 ),
 					idPicker,
 					config );
+			fillController.setJournal( journal );
+			fillController.setUndoStack( undoStack );
+			brushController.setPaintListener( fillController::painted );
+			fillController.setFillBudget(
+					params.fillMaxPixels > 0 ? params.fillMaxPixels : Long.MAX_VALUE,
+					params.fillMaxSeconds > 0 ? params.fillMaxSeconds * 1000 : Long.MAX_VALUE );
+			final double[][] labelResolutions = labels.get( 0 ).getMipmapResolutions();
+			if ( params.fillLevel > 0 && params.fillLevel < labelResolutions.length )
+			{
+				final int[] factors = new int[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+					factors[ d ] = ( int ) Math.round( labelResolutions[ params.fillLevel ][ d ] / labelResolutions[ 0 ][ d ] );
+				fillController.setCoarseLabels( labels.get( 0 ).getImage( 0, params.fillLevel ), factors );
+			}
 
 			/* splitter (and more) */
 			/* TODO fix to deal with more than one label set */
@@ -420,6 +647,14 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 					bdv.getViewerFrame().getKeybindings(),
 					bindings,
 					"shift T" );
+			dpi.setJournal( journal );
+			dpi.setUndoStack( undoStack );
+
+			new UndoController(
+					bdv.getViewer(),
+					undoStack,
+					config,
+					bdv.getViewerFrame().getKeybindings() );
 
 			final ConfirmSegmentController confirmSegment = new ConfirmSegmentController(
 					bdv.getViewer(),
@@ -473,6 +708,8 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 					{
 						bdv.getViewerFrame().getViewerPanel().stop();
 						bdv.getViewerFrame().setVisible( false );
+						/* finish saves that are still being written */
+						persistenceController.waitForBackgroundSaves();
 						// TODO really shouldn't kill the whole jvm in case some
 						// other process (e.g. fiji eventually) calls bigcat
 						System.exit( 0 );
@@ -542,8 +779,26 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 						labelDataset,
 						setupId++,
 						cellDimensions,
-						cache );
+						cache,
+						listDataFactory,
+						varintEncodeScaleLevels );
 
+		addLabels( labelLoader );
+	}
+
+	/**
+	 * Creates a label canvas pair and the converted pair for a label loader
+	 * and adds them to the respective lists.
+	 *
+	 * Depends on {@link #canvas} and {@link #colorStream} being initialized.
+	 *
+	 * Modifies {@link #labels}, {@link #setupId},
+	 * {@link #convertedLabelCanvasPairs}.
+	 *
+	 * @param labelLoader
+	 */
+	protected void addLabels( final AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray > labelLoader )
+	{
 		/* pair labels */
 		final RandomAccessiblePair< VolatileLabelMultisetType, LongType > labelCanvasPair =
 				new RandomAccessiblePair<>(
@@ -584,12 +839,28 @@ public class BigCat< P extends BigCat.Parameters > extends BigCatViewer< P >
 
 		if ( save )
 		{
-			bdv.getViewerFrame().setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-			annotationsController.saveAnnotations();
-			persistenceController.saveNextId();
-			persistenceController.saveFragmentSegmentAssignment();
-			persistenceController.saveCompleteSegmentsAssignment();
-			persistenceController.savePaintedLabels();
+			final Runnable compactJournal = persistenceController.snapshotJournal();
+			persistenceController.saveInBackground(
+					"Saved annotations, assignments, and painted labels.",
+					annotationsController.snapshotAnnotations(),
+					persistenceController.snapshotNextId(),
+					persistenceController.snapshotFragmentSegmentAssignment(),
+					persistenceController.snapshotCompleteSegmentsAssignment(),
+					persistenceController.snapshotPaintedLabels(),
+					compactJournal );
+		}
+		else if ( reallyClose && journal != null )
+		{
+			/* discarded edits must not be replayed */
+			try
+			{
+				journal.close();
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+			journal.compact( Long.MAX_VALUE );
 		}
 		return reallyClose;
 	}
@@ -31,19 +31,23 @@ import bdv.bigcat.control.SelectionController;
 import bdv.bigcat.control.TranslateZController;
 import bdv.bigcat.label.PairLabelMultiSetLongIdPicker;
 import bdv.bigcat.ui.Util;
+import bdv.img.AbstractCachedSetupImageLoader;
 import bdv.img.SetCache;
-import bdv.img.h5.H5LabelMultisetSetupImageLoader;
-import bdv.img.h5.H5UnsignedByteSetupImageLoader;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.labels.labelset.VolatileLabelMultisetType;
 import bdv.util.LocalIdService;
 import bdv.util.RemoteIdService;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
 import net.imglib2.util.Pair;
 import net.imglib2.view.RandomAccessiblePair;
 import net.imglib2.view.Views;
@@ -101,12 +105,12 @@ public class BigCatRemoteClient extends BigCat< BigCatRemoteClient.Parameters >
 		/* composites */
 		final ArrayList< Composite< ARGBType, ARGBType > > composites = new ArrayList< >();
 		final ArrayList< SetCache > cacheLoaders = new ArrayList<>();
-		for ( final H5UnsignedByteSetupImageLoader loader : raws )
+		for ( final AbstractCachedSetupImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray > loader : raws )
 		{
 			composites.add( new CompositeCopy< ARGBType >() );
 			cacheLoaders.add( loader );
 		}
-		for ( final H5LabelMultisetSetupImageLoader loader : labels )
+		for ( final AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray > loader : labels )
 		{
 			composites.add( new ARGBCompositeAlphaYCbCr() );
 			cacheLoaders.add( loader );
@@ -25,28 +25,39 @@ import bdv.bigcat.control.TranslateZController;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.LabelMultiSetIdPicker;
 import bdv.bigcat.label.SegmentAssignment;
+import bdv.bigcat.label.SegmentSortedLut;
 import bdv.bigcat.ui.ARGBConvertedLabelsSource;
 import bdv.bigcat.ui.AbstractARGBConvertedLabelsSource;
 import bdv.bigcat.ui.ModalGoldenAngleSaturatedARGBStream;
 import bdv.bigcat.ui.Util;
+import bdv.img.AbstractCachedSetupImageLoader;
 import bdv.img.SetCache;
+import bdv.img.SparseLabelCanvas;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.img.h5.H5LabelMultisetSetupImageLoader;
 import bdv.img.h5.H5UnsignedByteSetupImageLoader;
 import bdv.img.h5.H5Utils;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
-import bdv.labels.labelset.Multiset;
+import bdv.labels.labelset.LongMappedAccess;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.MappedAccessData;
+import bdv.labels.labelset.OffHeapLongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.labels.labelset.VolatileLabelMultisetType;
 import bdv.util.IdService;
 import bdv.util.LocalIdService;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
 import net.imglib2.view.Views;
 
 public class BigCatViewer< P extends BigCatViewer.Parameters >
@@ -68,9 +79,18 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 		@Parameter( names = { "--assignment", "-a" }, description = "fragment segment assignment table" )
 		public String assignment = "/fragment_segment_lut";
 
+		@Parameter( names = { "--assignment-file" }, description = "fragment segment assignment in the binary segment sorted format, loaded instead of the assignment table if it exists" )
+		public String assignmentFile = null;
+
 		@Parameter( names = { "--complete", "-f" }, description = "complete segments" )
 		public String completeSegments = "/complete_segments";
 
+		@Parameter( names = { "--off-heap-labels" }, description = "store the label lists of loaded blocks off the Java heap" )
+		public boolean offHeapLabels = false;
+
+		@Parameter( names = { "--varint-scale-levels" }, description = "store the label lists of downsampled levels in compact varint encoding, 2-4x smaller at some cpu cost on access" )
+		public boolean varintScaleLevels = false;
+
 		public void init()
 		{
 			if ( inFileLabels == null )
@@ -88,7 +108,7 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 	protected IdService idService;
 
 	/** raw pixels (image data) */
-	final protected ArrayList< H5UnsignedByteSetupImageLoader > raws = new ArrayList<>();
+	final protected ArrayList< AbstractCachedSetupImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray > > raws = new ArrayList<>();
 
 	/** fragment to segment assignment */
 	protected FragmentSegmentAssignment assignment;
@@ -100,7 +120,13 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 	protected ModalGoldenAngleSaturatedARGBStream colorStream;
 
 	/** loaded segments */
-	final protected ArrayList< H5LabelMultisetSetupImageLoader > labels = new ArrayList<>();
+	final protected ArrayList< AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray > > labels = new ArrayList<>();
+
+	/** storage of the label lists of loaded blocks */
+	protected MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory = LongMappedAccessData.factory;
+
+	/** store the label lists of downsampled levels in varint encoding */
+	protected boolean varintEncodeScaleLevels = false;
 
 	/** compositions of labels and canvas that are displayed */
 	final protected ArrayList< AbstractARGBConvertedLabelsSource > convertedLabels = new ArrayList<>();
@@ -198,7 +224,7 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 
 		if ( nextIdObject == null )
 		{
-			for ( final H5LabelMultisetSetupImageLoader labelLoader : labels )
+			for ( final AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray > labelLoader : labels )
 				maxId = maxId( labelLoader, maxId );
 		}
 		else
@@ -211,16 +237,27 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 	 * Initialize assignments.
 	 *
 	 * @param params
+	 * @throws IOException
 	 */
-	protected void initAssignments( final P params )
+	protected void initAssignments( final P params ) throws IOException
 	{
 		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFile );
 
 		/* fragment segment assignment */
 		assignment = new FragmentSegmentAssignment( idService );
-		final TLongLongHashMap lut = H5Utils.loadLongLongLut( reader, params.assignment, 1024 );
-		if ( lut != null )
-			assignment.initLut( lut );
+		if ( params.assignmentFile != null && new File( params.assignmentFile ).exists() )
+		{
+			try ( final SegmentSortedLut.Reader lutReader = new SegmentSortedLut.Reader( new File( params.assignmentFile ) ) )
+			{
+				assignment.initLut( lutReader );
+			}
+		}
+		else
+		{
+			final TLongLongHashMap lut = H5Utils.loadLongLongLut( reader, params.assignment, 1024 );
+			if ( lut != null )
+				assignment.initLut( lut );
+		}
 
 		/* complete fragments */
 		completeSegments = new SegmentAssignment();
@@ -234,6 +271,18 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 		reader.close();
 	}
 
+	/**
+	 * Select the storage of the label lists of loaded blocks, and whether
+	 * the lists of downsampled levels are varint encoded.
+	 *
+	 * @param params
+	 */
+	protected void initListDataFactory( final P params )
+	{
+		listDataFactory = params.offHeapLabels ? OffHeapLongMappedAccessData.factory : LongMappedAccessData.factory;
+		varintEncodeScaleLevels = params.varintScaleLevels;
+	}
+
 	/**
 	 * Load labels and create label+canvas compositions.
 	 *
@@ -242,6 +291,8 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 	 */
 	protected void initLabels( final P params ) throws IOException
 	{
+		initListDataFactory( params );
+
 		System.out.println( "Opening labels from " + params.inFileLabels );
 		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFileLabels );
 
@@ -273,12 +324,12 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 		/* composites */
 		final ArrayList< Composite< ARGBType, ARGBType > > composites = new ArrayList<>();
 		final ArrayList< SetCache > cacheLoaders = new ArrayList<>();
-		for ( final H5UnsignedByteSetupImageLoader loader : raws )
+		for ( final AbstractCachedSetupImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray > loader : raws )
 		{
 			composites.add( new CompositeCopy< ARGBType >() );
 			cacheLoaders.add( loader );
 		}
-		for ( final H5LabelMultisetSetupImageLoader loader : labels )
+		for ( final AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray > loader : labels )
 		{
 			composites.add( new ARGBCompositeAlphaYCbCr() );
 			cacheLoaders.add( loader );
@@ -392,7 +443,9 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 						labelDataset,
 						setupId++,
 						cellDimensions,
-						cache );
+						cache,
+						listDataFactory,
+						varintEncodeScaleLevels );
 
 		/* converted labels */
 		final ARGBConvertedLabelsSource convertedLabelsSource =
@@ -438,14 +491,35 @@ public class BigCatViewer< P extends BigCatViewer.Parameters >
 	}
 
 	final static protected long maxId(
-			final H5LabelMultisetSetupImageLoader labelLoader,
+			final AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray > labelLoader,
 			long maxId ) throws IOException
 	{
 		for ( final LabelMultisetType t : Views.iterable( labelLoader.getImage( 0 ) ) )
 		{
-			for ( final Multiset.Entry< Label > v : t.entrySet() )
+			final int n = t.numEntries();
+			for ( int i = 0; i < n; ++i )
+			{
+				final long id = t.idAt( i );
+				if ( Label.regular( id ) && IdService.greaterThan( id, maxId ) )
+					maxId = id;
+			}
+		}
+
+		return maxId;
+	}
+
+	/**
+	 * Find the max id in the painted cells of a {@link SparseLabelCanvas}
+	 * without visiting unpainted cells.
+	 */
+	final static protected long maxId(
+			final SparseLabelCanvas canvas,
+			long maxId )
+	{
+		for ( final long cellIndex : canvas.getPaintedCellIndices() )
+		{
+			for ( final long id : canvas.getPaintedCellData( cellIndex ) )
 			{
-				final long id = v.getElement().id();
 				if ( Label.regular( id ) && IdService.greaterThan( id, maxId ) )
 					maxId = id;
 			}
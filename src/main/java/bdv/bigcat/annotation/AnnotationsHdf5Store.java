@@ -223,7 +223,11 @@ public class AnnotationsHdf5Store implements AnnotationsStore {
 	@Override
 	public void write(final Annotations annotations) {
 
-		final IHDF5Writer writer = HDF5Factory.open(filename);
+		snapshot(annotations).run();
+	}
+
+	@Override
+	public Runnable snapshot(final Annotations annotations) {
 
 		final int numAnnotations = annotations.getAnnotations().size();
 
@@ -319,6 +323,19 @@ public class AnnotationsHdf5Store implements AnnotationsStore {
 		for (final Annotation a : annotations.getAnnotations())
 			a.accept(crawler);
 
+		return () -> write(crawler.locations, crawler.ids, crawler.types, crawler.comments, crawler.commentTargets, crawler.partners);
+	}
+
+	private void write(
+			final float[][] locations,
+			final long[] ids,
+			final String[] types,
+			final String[] comments,
+			final long[] commentTargets,
+			final long[][] partners) {
+
+		final IHDF5Writer writer = HDF5Factory.open(filename);
+
 		// TODO: following calls are deprecated, but what to use instead?
 		try {
 			writer.createGroup(groupname);
@@ -343,14 +360,14 @@ public class AnnotationsHdf5Store implements AnnotationsStore {
 			writer.setFloatArrayAttribute(groupname, "offset", data);
 		}
 
-		writer.float32().writeMatrix(groupname + "/locations", crawler.locations);
-		writer.uint64().writeArray(groupname + "/ids", crawler.ids);
-		writer.string().writeArray(groupname + "/types", crawler.types);
+		writer.float32().writeMatrix(groupname + "/locations", locations);
+		writer.uint64().writeArray(groupname + "/ids", ids);
+		writer.string().writeArray(groupname + "/types", types);
 
-		writer.string().writeArray(groupname + "/comments/comments", crawler.comments);
-		writer.uint64().writeArray(groupname + "/comments/target_ids", crawler.commentTargets);
+		writer.string().writeArray(groupname + "/comments/comments", comments);
+		writer.uint64().writeArray(groupname + "/comments/target_ids", commentTargets);
 
-		writer.uint64().writeMatrix(groupname + "/presynaptic_site/partners", crawler.partners);
+		writer.uint64().writeMatrix(groupname + "/presynaptic_site/partners", partners);
 
 		// delete old datasets and groups
 		if (fileFormat == 0.0) {
@@ -5,4 +5,14 @@ public interface AnnotationsStore {
 	public Annotations read() throws Exception;
 	
 	public void write(Annotations annotations);
+
+	/**
+	 * Copy what {@link #write(Annotations)} needs from the annotations and
+	 * return a task that writes the copy, so that the annotations can be
+	 * edited while the task runs.
+	 */
+	public default Runnable snapshot(final Annotations annotations) {
+
+		return () -> write(annotations);
+	}
 }
@@ -16,7 +16,12 @@
  */
 package bdv.bigcat.control;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,6 +51,7 @@ import com.google.gson.JsonSerializer;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.IdPicker;
+import bdv.bigcat.label.SegmentSortedLut;
 import bdv.labels.labelset.Label;
 import bdv.viewer.ViewerPanel;
 import gnu.trove.map.hash.TLongLongHashMap;
@@ -53,6 +59,26 @@ import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
 
 /**
+ * Sends merge and separate actions to an agglomeration solver and keeps the
+ * fragment segment assignment in sync with the solver's lookup table.
+ *
+ * <p>
+ * The solver sends binary messages, big endian, that start with a type byte:
+ * <pre>
+ * LUT_DELTA: long fromVersion, long toVersion, int n, { long fragmentId, long segmentId }[ n ]
+ * LUT_FULL:  long version, the lookup table in the {@link SegmentSortedLut} format
+ * </pre>
+ * A delta assigns the fragments whose segment changed from one version of
+ * the lookup table to another. A delta that does not start at the version
+ * of the client makes the client request the full lookup table with
+ * {@code {"type":"resync","data":{"version":<version>}}}, and deltas are
+ * ignored until it arrived.  The request is repeated if the full lookup
+ * table did not arrive within {@link #RESYNC_TIMEOUT} milliseconds. The
+ * client requests the full lookup table when it connects. JSON
+ * {@code fragment-segment-lut} messages are still understood as unversioned
+ * full lookup tables.  Full lookup tables are journaled by the
+ * {@link FragmentSegmentAssignment} like deltas.
+ *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  * @author Jan Funke &lt;jfunke@iri.upc.edu&gt;
  */
@@ -65,6 +91,32 @@ public class AgglomerationClientController
 	final protected Socket socket;
 	final protected SocketListener socketListener;
 
+	static final byte LUT_DELTA = 1;
+
+	static final byte LUT_FULL = 2;
+
+	/**
+	 * version of the solver's lookup table that the assignment is in sync
+	 * with, -1 if none, accessed by the socket listener only
+	 */
+	protected long lutVersion = -1;
+
+	/**
+	 * milliseconds after which an unanswered request of the full lookup
+	 * table is repeated
+	 */
+	static public int RESYNC_TIMEOUT = 5000;
+
+	/**
+	 * whether the full lookup table was requested and has not arrived yet
+	 */
+	protected volatile boolean resyncRequested = false;
+
+	/**
+	 * when the full lookup table was requested last
+	 */
+	protected long resyncRequestTime = 0;
+
 	// for behavioUrs
 	private final BehaviourMap behaviourMap = new BehaviourMap();
 	private final InputTriggerMap inputTriggerMap = new InputTriggerMap();
@@ -126,6 +178,19 @@ public class AgglomerationClientController
 		public String getType() { return "merge-and-separate"; }
 	}
 
+	static private class Resync implements Action
+	{
+		final public long version;
+
+		public Resync( final long version )
+		{
+			this.version = version;
+		}
+
+		@Override
+		public String getType() { return "resync"; }
+	}
+
 	static private class ActionSerializer implements JsonSerializer< Action >
 	{
 		@Override
@@ -161,13 +226,10 @@ public class AgglomerationClientController
 
 	protected class SocketListener extends Thread
 	{
-		final void handleMessage( final String json )
+		final void handleJsonMessage( final String json )
 		{
 			final FragmentSegmentLutMessage lutMsg = gson.fromJson( json, FragmentSegmentLutMessage.class );
 
-			System.out.println( "Message received" );
-			System.out.println( gson.toJson( lutMsg ) );
-
 			final TLongLongHashMap lut = new TLongLongHashMap();
 			final long[] fragments = lutMsg.data.fragments;
 			final long[] segments = lutMsg.data.segments;
@@ -175,7 +237,76 @@ public class AgglomerationClientController
 			for ( int i = 0; i < n; ++i )
 				lut.put( fragments[ i ], segments[ i ] );
 
+			System.out.println( "Received lookup table with " + n + " fragments." );
+
 			assignment.initLut( lut );
+			lutVersion = -1;
+			resyncRequested = false;
+		}
+
+		final void handleDelta( final ByteBuffer buffer )
+		{
+			final long fromVersion = buffer.getLong();
+			final long toVersion = buffer.getLong();
+			final int n = buffer.getInt();
+
+			/* already included */
+			if ( lutVersion != -1 && toVersion <= lutVersion )
+				return;
+
+			if ( fromVersion != lutVersion )
+			{
+				requestResync();
+				return;
+			}
+
+			final long[] fragments = new long[ n ];
+			final long[] segments = new long[ n ];
+			for ( int i = 0; i < n; ++i )
+			{
+				fragments[ i ] = buffer.getLong();
+				segments[ i ] = buffer.getLong();
+			}
+			assignment.assign( fragments, segments );
+			lutVersion = toVersion;
+		}
+
+		final void handleFull( final byte[] message, final ByteBuffer buffer ) throws IOException
+		{
+			final long version = buffer.getLong();
+			try ( final SegmentSortedLut.Reader reader = new SegmentSortedLut.Reader(
+					Channels.newChannel( new ByteArrayInputStream( message, buffer.position(), buffer.remaining() ) ) ) )
+			{
+				assignment.initLut( reader );
+			}
+
+			System.out.println( "Received lookup table version " + version + "." );
+
+			lutVersion = version;
+			resyncRequested = false;
+		}
+
+		final void handleMessage( final byte[] message ) throws IOException
+		{
+			if ( message.length > 0 && message[ 0 ] == '{' )
+				handleJsonMessage( new String( message, StandardCharsets.UTF_8 ) );
+			else
+			{
+				final ByteBuffer buffer = ByteBuffer.wrap( message );
+				final byte type = buffer.get();
+				switch ( type )
+				{
+				case LUT_DELTA:
+					handleDelta( buffer );
+					break;
+				case LUT_FULL:
+					handleFull( message, buffer );
+					break;
+				default:
+					System.out.println( "Ignoring message of unknown type " + type + "." );
+					return;
+				}
+			}
 			viewer.requestRepaint();
 		}
 
@@ -184,9 +315,55 @@ public class AgglomerationClientController
 		{
 			while ( !isInterrupted() )
 			{
-				final String json = socket.recvStr();
-				handleMessage( json );
+				final byte[] message = socket.recv();
+
+				/* timed out, repeat an unanswered request */
+				if ( message == null )
+				{
+					if ( resyncRequested )
+						requestResync();
+					continue;
+				}
+
+				try
+				{
+					handleMessage( message );
+				}
+				catch ( final IOException | RuntimeException e )
+				{
+					e.printStackTrace();
+					requestResync();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Request the full lookup table from the solver unless it was requested
+	 * less than {@link #RESYNC_TIMEOUT} milliseconds ago.
+	 */
+	protected synchronized void requestResync()
+	{
+		final long time = System.currentTimeMillis();
+		if ( !resyncRequested || time - resyncRequestTime >= RESYNC_TIMEOUT )
+		{
+			resyncRequested = true;
+			resyncRequestTime = time;
+			send( new Resync( lutVersion ) );
+		}
+	}
+
+	protected void send( final Action action )
+	{
+		final String json = gson.toJson( action, Action.class );
+		synchronized ( socket )
+		{
+			do
+			{
+				System.out.println( "Sending to " + socket + " :" );
+				System.out.println( json );
 			}
+			while ( !socket.send( json ) );
 		}
 	}
 
@@ -234,6 +411,7 @@ public class AgglomerationClientController
 
 		/* connect */
 		socket = ctx.createSocket( ZMQ.PAIR );
+		socket.setReceiveTimeOut( RESYNC_TIMEOUT );
 		socket.connect( solverUrl );
 
 		new MergeBehaviour( "merge", "shift button1" ).register();
@@ -245,6 +423,7 @@ public class AgglomerationClientController
 
 		socketListener = new SocketListener();
 		socketListener.start();
+		requestResync();
 	}
 
 	////////////////
@@ -309,12 +488,7 @@ public class AgglomerationClientController
 
 				/* solver */
 				final Merge action = new Merge( new long[]{ oldActiveFragmentId, id } );
-				do
-				{
-					System.out.println( "Sending to " + socket + " :" );
-					System.out.println( gson.toJson( action, Action.class ) );
-				}
-				while ( !socket.send( gson.toJson( action, Action.class ) ) );
+				send( action );
 
 				/* TODO not necessary, just for the record */
 				actions.add( action );
@@ -352,12 +526,7 @@ public class AgglomerationClientController
 
 				/* solver */
 				final Separate action = new Separate( id, from );
-				do
-				{
-					System.out.println( "Sending to " + socket + " :" );
-					System.out.println( gson.toJson( action, Action.class ) );
-				}
-				while ( !socket.send( gson.toJson( action, Action.class ) ) );
+				send( action );
 
 				/* TODO not necessary, just for the record */
 				actions.add( action );
@@ -394,12 +563,7 @@ public class AgglomerationClientController
 						new MergeAndSeparate(
 								visibleInActiveSegmentIds.toArray(),
 								visibleNotInActiveSegmentIds.toArray() );
-				do
-				{
-					System.out.println( "Sending to " + socket + " :" );
-					System.out.println( gson.toJson( action, Action.class ) );
-				}
-				while ( !socket.send( gson.toJson( action, Action.class ) ) );
+				send( action );
 
 				/* TODO not necessary, just for the record */
 				actions.add( action );
@@ -189,6 +189,13 @@ public class AnnotationsController implements WindowListener, Selection.Selectio
 		store.write(annotations);
 	}
 
+	/**
+	 * @return a task that writes the annotations as they are now
+	 */
+	public Runnable snapshotAnnotations() {
+		return store.snapshot(annotations);
+	}
+
 	////////////////
 	// behavioUrs //
 	////////////////
@@ -93,7 +93,6 @@ public class ConfirmSegmentController
 				final long activeFragmentId = selectionController.getActiveFragmentId();
 				activeSegmentId = assignment.getSegment( activeFragmentId );
 				completeSegments.add( activeSegmentId );
-				colorStream.clearCache();
 			}
 			viewer.showMessage( "completed segment " + activeSegmentId );
 			viewer.requestRepaint();
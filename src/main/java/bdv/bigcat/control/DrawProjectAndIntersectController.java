@@ -34,8 +34,11 @@ import org.scijava.ui.behaviour.util.InputActionBindings;
 import org.scijava.ui.behaviour.util.TriggerBehaviourBindings;
 
 import bdv.BigDataViewer;
+import bdv.bigcat.journal.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.label.SegmentMembership;
 import bdv.bigcat.ui.AbstractSaturatedARGBStream;
+import bdv.bigcat.undo.UndoStack;
 import bdv.bigcat.util.DirtyInterval;
 import bdv.img.AccessBoxRandomAccessible;
 import bdv.labels.labelset.Label;
@@ -43,6 +46,7 @@ import bdv.labels.labelset.LabelMultisetType;
 import bdv.util.IdService;
 import bdv.viewer.ViewerPanel;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -120,6 +124,10 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 
 	private final SelectionController selectionController;
 
+	protected EditJournal journal = null;
+
+	protected UndoStack undoStack = null;
+
 	public DrawProjectAndIntersectController(
 			final BigDataViewer bdv,
 			final IdService idService,
@@ -199,6 +207,28 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 
 	}
 
+	/**
+	 * Journal the canvas cells modified by intersections.
+	 *
+	 * @param journal
+	 *            the journal, or {@code null} to not journal intersections
+	 */
+	public void setJournal( final EditJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Record intersections for undo.
+	 *
+	 * @param undoStack
+	 *            the undo stack, or {@code null} to not record intersections
+	 */
+	public void setUndoStack( final UndoStack undoStack )
+	{
+		this.undoStack = undoStack;
+	}
+
 	private void updateCM()
 	{
 		final Color c = getColor();
@@ -733,7 +763,7 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 				final long paintedLabel = paintedLabelAccess.get().get();
 				final long segmentLabel = assignment.getSegment( seedFragmentLabel );
 				final long comparison = paintedLabel == TRANSPARENT ? segmentLabel : paintedLabel;
-				final long[] fragmentsContainedInSegment = assignment.getFragments( segmentLabel );
+				final SegmentMembership segment = new SegmentMembership( assignment.getFragments( segmentLabel ) );
 
 				final Filter< Pair< Pair< LabelMultisetType, ByteType >, LongType >, Pair< Pair< LabelMultisetType, ByteType >, LongType > > filter = ( p1, p2 ) -> {
 
@@ -745,13 +775,7 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 						if ( currentPaint != TRANSPARENT )
 							return currentPaint == comparison;
 						else
-						{
-							final LabelMultisetType currentMultiSet = multiSetOverlayPairComp.getA();
-							for ( final long fragment : fragmentsContainedInSegment )
-								if ( currentMultiSet.contains( fragment ) )
-									return true;
-							return false;
-						}
+							return segment.containsAny( multiSetOverlayPairComp.getA() );
 					}
 
 					return false;
@@ -765,6 +789,8 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 									paintedLabels,
 									new LongType( Label.TRANSPARENT ) ) );
 
+				if ( undoStack != null )
+					undoStack.beginCanvasEdit();
 				FloodFill.fill( new RandomAccessiblePair<>(
 						Views.extendValue( labels, new LabelMultisetType() ),
 						interpolatedAndTransformed ),
@@ -774,8 +800,13 @@ public class DrawProjectAndIntersectController implements TransformListener< Aff
 						new LongType( selectionController.getActiveFragmentId() ),
 						new DiamondShape( 1 ),
 						filter );
+				if ( undoStack != null )
+					undoStack.endCanvasEdit();
 
-				dirtyLabelsInterval.touch( accessTrackingExtendedPaintedLabels.createAccessInterval() );
+				final Interval touched = accessTrackingExtendedPaintedLabels.createAccessInterval();
+				if ( journal != null )
+					journal.cells( paintedLabels, touched );
+				dirtyLabelsInterval.touch( touched );
 
 				final long t1 = System.currentTimeMillis();
 				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
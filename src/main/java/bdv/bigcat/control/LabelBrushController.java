@@ -1,6 +1,7 @@
 package bdv.bigcat.control;
 
 import java.awt.Cursor;
+import java.util.function.Consumer;
 
 import org.scijava.ui.behaviour.Behaviour;
 import org.scijava.ui.behaviour.BehaviourMap;
@@ -10,13 +11,16 @@ import org.scijava.ui.behaviour.InputTriggerMap;
 import org.scijava.ui.behaviour.ScrollBehaviour;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
+import bdv.bigcat.journal.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.ui.BrushOverlay;
+import bdv.bigcat.undo.UndoStack;
 import bdv.bigcat.util.DirtyInterval;
 import bdv.img.AccessBoxRandomAccessible;
 import bdv.labels.labelset.Label;
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.ViewerPanel;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
@@ -54,6 +58,16 @@ public class LabelBrushController
 
 	protected int brushRadius = 5;
 
+	protected EditJournal journal = null;
+
+	protected UndoStack undoStack = null;
+
+	/**
+	 * receives the box of each brush stroke while holding the viewer lock,
+	 * {@code null} for none
+	 */
+	protected Consumer< Interval > paintListener = null;
+
 	// for behavioUrs
 	private final BehaviourMap behaviourMap = new BehaviourMap();
 	private final InputTriggerMap inputTriggerMap = new InputTriggerMap();
@@ -108,6 +122,70 @@ public class LabelBrushController
 		new MoveBrush( "move brush", "SPACE" ).register();
 	}
 
+	/**
+	 * Journal brush strokes.
+	 *
+	 * @param journal
+	 *            the journal, or {@code null} to not journal brush strokes
+	 */
+	public void setJournal( final EditJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Record brush strokes for undo.
+	 *
+	 * @param undoStack
+	 *            the undo stack, or {@code null} to not record brush strokes
+	 */
+	public void setUndoStack( final UndoStack undoStack )
+	{
+		this.undoStack = undoStack;
+	}
+
+	/**
+	 * Report the box of each brush stroke, e.g. to a running fill.
+	 *
+	 * @param paintListener
+	 *            called while holding the viewer lock, {@code null} for none
+	 */
+	public void setPaintListener( final Consumer< Interval > paintListener )
+	{
+		this.paintListener = paintListener;
+	}
+
+	/**
+	 * Paint a disc of {@code radius} into the plane normal to {@code axis}
+	 * through {@code center}.
+	 *
+	 * @param labels
+	 * @param axis
+	 * @param center
+	 * @param radius
+	 * @param value
+	 */
+	public static void paintSphere(
+			final RandomAccessible< LongType > labels,
+			final int axis,
+			final long[] center,
+			final long radius,
+			final long value )
+	{
+		final RandomAccessible< LongType > labelSource = Views.hyperSlice( labels, axis, center[ axis ] );
+
+		final Neighborhood< LongType > sphere =
+				HyperSphereNeighborhood.< LongType >factory().create(
+						new long[]{
+								center[ axis == 0 ? 1 : 0 ],
+								center[ axis != 2 ? 2 : 1 ] },
+						radius,
+						labelSource.randomAccess() );
+
+		for ( final LongType t : sphere )
+			t.set( value );
+	}
+
 	private void setCoordinates( final int x, final int y )
 	{
 		labelLocation.setPosition( x, 0 );
@@ -172,20 +250,25 @@ public class LabelBrushController
 		{
 			final AccessBoxRandomAccessible< LongType > accessBoxExtendedLabels = new AccessBoxRandomAccessible<>( extendedLabels );
 			final int brushNormalAxis = getNormalAxis();
-			final RandomAccessible< LongType > labelSource = Views.hyperSlice( accessBoxExtendedLabels, brushNormalAxis, Math.round( coords.getDoublePosition( brushNormalAxis ) ) );
-
-			final Neighborhood< LongType > sphere =
-					HyperSphereNeighborhood.< LongType >factory().create(
-							new long[]{
-									Math.round( coords.getDoublePosition( brushNormalAxis == 0 ? 1 : 0 ) ),
-									Math.round( coords.getDoublePosition( brushNormalAxis != 2 ? 2 : 1 ) ) },
-							Math.round( brushRadius / Affine3DHelpers.extractScale( labelTransform, brushNormalAxis == 0 ? 1 : 0 ) ),
-							labelSource.randomAccess() );
+			final long[] center = new long[]{
+					Math.round( coords.getDoublePosition( 0 ) ),
+					Math.round( coords.getDoublePosition( 1 ) ),
+					Math.round( coords.getDoublePosition( 2 ) ) };
+			final long radius = Math.round( brushRadius / Affine3DHelpers.extractScale( labelTransform, brushNormalAxis == 0 ? 1 : 0 ) );
+			final long value = getValue();
+
+			synchronized ( viewer )
+			{
+				paintSphere( accessBoxExtendedLabels, brushNormalAxis, center, radius, value );
 
-			for ( final LongType t : sphere )
-				t.set( getValue() );
+				if ( journal != null )
+					journal.brush( brushNormalAxis, center, radius, value );
 
-			dirtyLabelsInterval.touch( accessBoxExtendedLabels.createAccessInterval() );
+				final Interval painted = accessBoxExtendedLabels.createAccessInterval();
+				dirtyLabelsInterval.touch( painted );
+				if ( paintListener != null )
+					paintListener.accept( painted );
+			}
 		}
 
 		protected void paint( final int x, final int y )
@@ -229,6 +312,9 @@ public class LabelBrushController
 				oY = y;
 			}
 
+			if ( undoStack != null )
+				undoStack.beginCanvasEdit();
+
 			paint( x, y );
 
 			viewer.requestRepaint();
@@ -257,6 +343,9 @@ public class LabelBrushController
 		@Override
 		public void end( final int x, final int y )
 		{
+			if ( undoStack != null )
+				undoStack.endCanvasEdit();
+
 			System.out.println( "modified box: " + Util.printInterval( dirtyLabelsInterval.getDirtyInterval() ) );
 		}
 	}
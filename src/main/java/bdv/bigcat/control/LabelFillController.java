@@ -1,6 +1,9 @@
 package bdv.bigcat.control;
 
 import java.awt.Cursor;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 import org.apache.commons.lang.math.NumberUtils;
 import org.scijava.ui.behaviour.Behaviour;
@@ -10,16 +13,21 @@ import org.scijava.ui.behaviour.InputTriggerAdder;
 import org.scijava.ui.behaviour.InputTriggerMap;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
+import bdv.bigcat.journal.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.IdPicker;
+import bdv.bigcat.label.SegmentMembership;
+import bdv.bigcat.undo.UndoStack;
 import bdv.bigcat.util.DirtyInterval;
+import bdv.bigcat.util.ScanlineFloodFill;
 import bdv.img.AccessBoxRandomAccessible;
 import bdv.img.GrowingStoreRandomAccessibleSingletonAccess;
+import bdv.img.SparseLabelCanvas;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
-import bdv.labels.labelset.Multiset;
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.ViewerPanel;
+import net.imglib2.Interval;
 import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
@@ -84,6 +92,41 @@ public class LabelFillController
 
 	private final IdPicker idPicker;
 
+	final protected ScanlineFloodFill floodFill;
+
+	/**
+	 * whether anything may have been painted into an interval of the canvas
+	 */
+	final protected Predicate< Interval > maybePainted;
+
+	/**
+	 * downsampled level of the labels for coarse to fine fills, {@code null}
+	 * to fill at full resolution only
+	 */
+	protected RandomAccessibleInterval< LabelMultisetType > coarseLabels = null;
+
+	protected int[] coarseFactors = null;
+
+	protected EditJournal journal = null;
+
+	protected UndoStack undoStack = null;
+
+	protected long maxFillPixels = Long.MAX_VALUE;
+
+	protected long maxFillMillis = Long.MAX_VALUE;
+
+	/**
+	 * the fill that is running in the background, {@code null} if none
+	 */
+	protected volatile ScanlineFloodFill.Fill runningFill = null;
+
+	/**
+	 * minimum time between repaints while a fill is running
+	 */
+	static public long REPAINT_INTERVAL_MILLIS = 100;
+
+	private final AtomicLong lastRepaint = new AtomicLong();
+
 	public BehaviourMap getBehaviourMap()
 	{
 		return behaviourMap;
@@ -119,12 +162,163 @@ public class LabelFillController
 		this.idPicker = idPicker;
 		inputAdder = config.inputTriggerAdder( inputTriggerMap, "fill" );
 
+		/* fill canvas cells as blocks */
+		floodFill = new ScanlineFloodFill(
+				labels,
+				paintedLabels,
+				paintedLabels instanceof SparseLabelCanvas
+						? ( ( SparseLabelCanvas ) paintedLabels ).getCellDimensions()
+						: new int[] { 64, 64, 64 } );
+		if ( paintedLabels instanceof SparseLabelCanvas )
+			maybePainted = ( ( SparseLabelCanvas ) paintedLabels )::isPainted;
+		else
+			maybePainted = interval -> true;
+
 		labelLocation = new RealPoint( 3 );
 
 		minLabelScale = NumberUtils.min( new double[] { Affine3DHelpers.extractScale( labelTransform, 0 ), Affine3DHelpers.extractScale( labelTransform, 1 ), Affine3DHelpers.extractScale( labelTransform, 2 ) } );
 
 		new Fill( "fill", "M button1" ).register();
 		new Fill2D( "fill 2D", "shift M button1" ).register();
+		new CancelFill( "cancel fill", "ESCAPE" ).register();
+	}
+
+	/**
+	 * Journal fills.
+	 *
+	 * @param journal
+	 *            the journal, or {@code null} to not journal fills
+	 */
+	public void setJournal( final EditJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Record fills for undo.
+	 *
+	 * @param undoStack
+	 *            the undo stack, or {@code null} to not record fills
+	 */
+	public void setUndoStack( final UndoStack undoStack )
+	{
+		this.undoStack = undoStack;
+	}
+
+	/**
+	 * Cancel and roll back fills that fill more than {@code maxPixels} pixels
+	 * or run longer than {@code maxMillis}, e.g. fills that leaked into the
+	 * background.
+	 *
+	 * @param maxPixels
+	 *            {@link Long#MAX_VALUE} for no limit
+	 * @param maxMillis
+	 *            {@link Long#MAX_VALUE} for no limit
+	 */
+	public void setFillBudget( final long maxPixels, final long maxMillis )
+	{
+		this.maxFillPixels = maxPixels;
+		this.maxFillMillis = maxMillis;
+	}
+
+	/**
+	 * Fill coarse to fine: classify the voxels of a downsampled level of the
+	 * labels first and look at the full resolution labels only at the
+	 * boundary of the filled segment. Gives the same result as filling at
+	 * full resolution only.
+	 *
+	 * @param coarseLabels
+	 *            downsampled level of the labels, {@code null} to fill at full
+	 *            resolution only
+	 * @param factors
+	 *            downsampling factors of {@code coarseLabels}
+	 */
+	public void setCoarseLabels( final RandomAccessibleInterval< LabelMultisetType > coarseLabels, final int[] factors )
+	{
+		this.coarseLabels = coarseLabels;
+		this.coarseFactors = factors;
+	}
+
+	/**
+	 * Repaint while a fill is running, at most every
+	 * {@link #REPAINT_INTERVAL_MILLIS}.
+	 */
+	private void repaintProgress( final Interval filled )
+	{
+		final long t = System.currentTimeMillis();
+		final long last = lastRepaint.get();
+		if ( t - last >= REPAINT_INTERVAL_MILLIS && lastRepaint.compareAndSet( last, t ) )
+			viewer.requestRepaint();
+	}
+
+	/**
+	 * Exclude a box that another edit painted into while a fill is running
+	 * from the rollback of that fill. Call while holding the viewer lock.
+	 */
+	public void painted( final Interval interval )
+	{
+		final ScanlineFloodFill.Fill fill = runningFill;
+		if ( fill != null )
+			fill.painted( interval );
+	}
+
+	/**
+	 * Wait for a fill that runs in the background, then, holding the viewer
+	 * lock like all other canvas edits, roll it back if it was canceled or
+	 * failed, and record it.
+	 */
+	private void finishFill( final ScanlineFloodFill.Fill fill, final Point p, final long fillId, final long t0 )
+	{
+		Interval touched;
+		String message;
+		try
+		{
+			touched = fill.await();
+			if ( fill.isOverBudget() )
+				message = "Fill stopped after " + fill.getNumFilled() + " pixels and " + ( System.currentTimeMillis() - t0 ) + " ms, rolled back.";
+			else if ( fill.isCanceled() )
+				message = "Fill canceled, rolled back.";
+			else
+				message = "Filled " + fill.getNumFilled() + " pixels.";
+		}
+		catch ( final RuntimeException e )
+		{
+			e.printStackTrace();
+			/* all block tasks stopped, the fill can be rolled back */
+			fill.cancel();
+			touched = fill.getFilledInterval();
+			message = "Fill failed, rolled back.";
+		}
+
+		synchronized ( viewer )
+		{
+			if ( fill.isCanceled() )
+				fill.rollback();
+
+			if ( touched != null )
+			{
+				/* only the cells that the fill wrote, not all cells of its box */
+				final List< Interval > filledBlocks = fill.getFilledBlocks();
+				if ( journal != null )
+				{
+					if ( fill.isCanceled() )
+						journal.cells( paintedLabels, filledBlocks );
+					else
+						journal.fill( new long[]{ p.getLongPosition( 0 ), p.getLongPosition( 1 ), p.getLongPosition( 2 ) }, fillId, paintedLabels, filledBlocks );
+				}
+				for ( final Interval block : filledBlocks )
+					dirtyLabelsInterval.touch( block );
+			}
+			if ( undoStack != null )
+				undoStack.endCanvasEdit();
+			runningFill = null;
+		}
+
+		final long t1 = System.currentTimeMillis();
+		System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
+		System.out.println( "  modified box: " + Util.printInterval( dirtyLabelsInterval.getDirtyInterval() ) );
+		viewer.showMessage( message );
+		viewer.requestRepaint();
 	}
 
 	private void setCoordinates( final int x, final int y )
@@ -173,43 +367,70 @@ public class LabelFillController
 		{
 			synchronized ( viewer )
 			{
+				if ( runningFill != null )
+				{
+					viewer.showMessage( "Still filling, press ESCAPE to cancel." );
+					return;
+				}
 				if ( idPicker.getIdAtDisplayCoordinate( x, y ) == Label.OUTSIDE )
 					return;
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
 				setCoordinates( x, y );
 				System.out.println( "Filling " + labelLocation + " with " + selectionController.getActiveFragmentId() );
 
 				final Point p = new Point( Math.round( labelLocation.getDoublePosition( 0 ) ), Math.round( labelLocation.getDoublePosition( 1 ) ), Math.round( labelLocation.getDoublePosition( 2 ) ) );
 
-				final AccessBoxRandomAccessible< LongType > accessTrackingExtendedPaintedLabels =
-						new AccessBoxRandomAccessible<>(
-							Views.extendValue(
-									paintedLabels,
-									new LongType( Label.TRANSPARENT ) ) );
-
-				final RandomAccess< LongType > paintAccess = accessTrackingExtendedPaintedLabels.randomAccess();
+				final RandomAccess< LongType > paintAccess = Views.extendValue( paintedLabels, new LongType( Label.TRANSPARENT ) ).randomAccess();
 				paintAccess.setPosition( p );
 				final long seedPaint = paintAccess.get().getIntegerLong();
 				final long seedFragmentLabel = getBiggestLabel( labels, p );
 
 				final long t0 = System.currentTimeMillis();
-				FloodFill.fill(
-						Views.extendValue( labels, new LabelMultisetType() ),
-						accessTrackingExtendedPaintedLabels,
-						p,
-						new LabelMultisetType(),
-						new LongType( selectionController.getActiveFragmentId() ),
-						new DiamondShape( 1 ),
-						new SegmentAndPaintFilter1( seedPaint, seedFragmentLabel, assignment ) );
+				final long fillId = selectionController.getActiveFragmentId();
+				if ( undoStack != null )
+					undoStack.beginCanvasEdit();
+				final SegmentAndPaintFilter1 filter = new SegmentAndPaintFilter1( seedPaint, seedFragmentLabel, assignment );
+				/* the coarse level is classified in the background */
+				final ScanlineFloodFill.Fill fill = coarseLabels == null
+						? floodFill.start(
+								p,
+								fillId,
+								filter,
+								maxFillPixels,
+								maxFillMillis,
+								LabelFillController.this::repaintProgress )
+						: floodFill.start(
+								p,
+								fillId,
+								filter,
+								maxFillPixels,
+								maxFillMillis,
+								LabelFillController.this::repaintProgress,
+								coarseLabels,
+								coarseFactors,
+								maybePainted );
+				runningFill = fill;
+
+				final Thread thread = new Thread( () -> finishFill( fill, p, fillId, t0 ), "fill" );
+				thread.setDaemon( true );
+				thread.start();
+				viewer.showMessage( "Filling, press ESCAPE to cancel." );
+			}
+		}
+	}
 
-				dirtyLabelsInterval.touch( accessTrackingExtendedPaintedLabels.createAccessInterval() );
+	private class CancelFill extends SelfRegisteringBehaviour implements ClickBehaviour
+	{
+		public CancelFill( final String name, final String... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
 
-				final long t1 = System.currentTimeMillis();
-				System.out.println( "Filling took " + ( t1 - t0 ) + " ms" );
-				System.out.println( "  modified box: " + Util.printInterval( dirtyLabelsInterval.getDirtyInterval() ) );
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
-				viewer.requestRepaint();
-			}
+		@Override
+		public void click( final int x, final int y )
+		{
+			final ScanlineFloodFill.Fill fill = runningFill;
+			if ( fill != null )
+				fill.cancel();
 		}
 	}
 
@@ -332,14 +553,21 @@ public class LabelFillController
 			final MixedTransformView< LongType > hyperSlice = Views.hyperSlice( Views.raster( transformedPaintedLabels ), 2, 0 );
 			final net.imglib2.Cursor< BitType > s = tmpFillInterval.cursor();
 			final net.imglib2.Cursor< LongType > t = Views.interval( hyperSlice, tmpFillInterval ).cursor();
+			if ( undoStack != null )
+				undoStack.beginCanvasEdit();
 			while ( s.hasNext() )
 			{
 				t.fwd();
 				if ( s.next().get() )
 					t.get().set( label );
 			}
+			if ( undoStack != null )
+				undoStack.endCanvasEdit();
 
-			dirtyLabelsInterval.touch( accessTrackingExtendedPaintedLabels.createAccessInterval() );
+			final Interval touched = accessTrackingExtendedPaintedLabels.createAccessInterval();
+			if ( journal != null )
+				journal.cells( paintedLabels, touched );
+			dirtyLabelsInterval.touch( touched );
 		}
 
 	}
@@ -348,34 +576,46 @@ public class LabelFillController
 	{
 		private final long comparison;
 
-		private final long[] fragmentsContainedInSeedSegment;
+		private final SegmentMembership seedSegment;
 
 		public SegmentAndPaintFilter1( final long seedPaint, final long seedFragmentLabel, final FragmentSegmentAssignment assignment )
 		{
 			this.comparison = seedPaint == Label.TRANSPARENT ? seedFragmentLabel : seedPaint;
-			this.fragmentsContainedInSeedSegment = assignment.getFragments( assignment.getSegment( comparison ) );
+			this.seedSegment = new SegmentMembership( assignment, comparison );
+		}
+
+		/**
+		 * @return the paint of the seed segment, the only paint other than
+		 *         {@link Label#TRANSPARENT} that is accepted
+		 */
+		public long getComparison()
+		{
+			return comparison;
+		}
+
+		public SegmentMembership getSeedSegment()
+		{
+			return seedSegment;
 		}
 
 		@Override
 		public boolean accept( final Pair< LabelMultisetType, LongType > current, final Pair< LabelMultisetType, LongType > reference )
 		{
+			return accept( current.getA(), current.getB().getIntegerLong(), reference.getB().getIntegerLong() );
+		}
 
-			final LabelMultisetType currentLabelSet = current.getA();
-			final long currentPaint = current.getB().getIntegerLong();
-
+		/**
+		 * @param currentLabelSet
+		 * @param currentPaint
+		 * @param fillPaint
+		 *            the paint that the fill writes
+		 */
+		public boolean accept( final LabelMultisetType currentLabelSet, final long currentPaint, final long fillPaint )
+		{
 			if ( currentPaint != Label.TRANSPARENT )
-				return currentPaint == comparison && currentPaint != reference.getB().getIntegerLong();
-
+				return currentPaint == comparison && currentPaint != fillPaint;
 			else
-			{
-				for ( final long fragment : this.fragmentsContainedInSeedSegment )
-				{
-					if ( currentLabelSet.contains( fragment ) )
-						return true;
-				}
-			}
-
-			return false;
+				return seedSegment.containsAny( currentLabelSet );
 		}
 	}
 
@@ -383,12 +623,12 @@ public class LabelFillController
 	{
 		private final long comparison;
 
-		private final long[] fragmentsContainedInSeedSegment;
+		private final SegmentMembership seedSegment;
 
 		public SegmentAndPaintFilter2D( final long seedPaint, final long seedFragmentLabel, final FragmentSegmentAssignment assignment )
 		{
 			this.comparison = seedPaint == Label.TRANSPARENT ? seedFragmentLabel : seedPaint;
-			this.fragmentsContainedInSeedSegment = assignment.getFragments( assignment.getSegment( comparison ) );
+			this.seedSegment = new SegmentMembership( assignment, comparison );
 			System.out.println( "Comparison=" + this.comparison );
 		}
 
@@ -414,13 +654,7 @@ public class LabelFillController
 					return currentPaint == comparison;
 
 				else if ( currentPaint != Label.OUTSIDE )
-				{
-					for ( final long fragment : this.fragmentsContainedInSeedSegment )
-					{
-						if ( currentLabelSet.contains( fragment ) )
-							return true;
-					}
-				}
+					return seedSegment.containsAny( currentLabelSet );
 			}
 
 			return false;
@@ -455,18 +689,7 @@ public class LabelFillController
 
 	public static long getBiggestLabel( final LabelMultisetType t )
 	{
-		int maxCount = Integer.MIN_VALUE;
-		long maxLabel = -1;
-		for ( final Multiset.Entry< Label > e : t.entrySet() )
-		{
-			final int c = e.getCount();
-			if ( c > maxCount )
-			{
-				maxLabel = e.getElement().id();
-				maxCount = c;
-			}
-		}
-		return maxLabel;
+		return t.argMaxId();
 	}
 
 }
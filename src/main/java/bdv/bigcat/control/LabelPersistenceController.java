@@ -3,24 +3,45 @@ package bdv.bigcat.control;
 import java.awt.Cursor;
 import java.awt.event.ActionEvent;
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.ActionMap;
 import javax.swing.InputMap;
+import javax.swing.SwingUtilities;
 
+import org.janelia.saalfeldlab.n5.N5Writer;
 import org.scijava.ui.behaviour.KeyStrokeAdder;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 import org.scijava.ui.behaviour.util.AbstractNamedAction;
 import org.scijava.ui.behaviour.util.InputActionBindings;
 
+import bdv.bigcat.journal.EditJournal;
 import bdv.bigcat.label.FragmentSegmentAssignment;
 import bdv.bigcat.label.SegmentAssignment;
+import bdv.bigcat.label.SegmentSortedLut;
 import bdv.bigcat.util.DirtyInterval;
+import bdv.bigcat.util.LabelCanvasSnapshot;
+import bdv.img.SparseLabelCanvas;
 import bdv.img.h5.H5Utils;
+import bdv.img.n5.N5Utils;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.util.IdService;
 import bdv.viewer.ViewerPanel;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import gnu.trove.map.hash.TLongLongHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
 
 /**
  * Persist fragment segment assignments, painted labels, viewer state, and
@@ -47,6 +68,40 @@ public class LabelPersistenceController
 	final protected String assignmentDataset;
 	final protected String completeSegmentsDataset;
 
+	/**
+	 * if not {@code null}, painted labels are saved to this N5 container
+	 * instead of {@link #h5Path}
+	 */
+	protected N5Writer n5 = null;
+
+	/**
+	 * if not {@code null}, the fragment segment assignment is saved to this
+	 * file in the binary segment sorted format instead of
+	 * {@link #h5Path}
+	 */
+	protected File assignmentFile = null;
+
+	/**
+	 * whether the painted labels dataset exists in {@link #h5Path}, or will
+	 * exist when the pending background saves are done
+	 */
+	protected boolean paintedLabelsDatasetExists = false;
+
+	/**
+	 * if not {@code null}, journal segments are deleted after all edits in
+	 * them have been saved
+	 */
+	protected EditJournal journal = null;
+
+	/**
+	 * writes snapshots in the background, one at a time and in order
+	 */
+	final protected ExecutorService saveExecutor = Executors.newSingleThreadExecutor( r -> {
+		final Thread thread = new Thread( r, "label persistence" );
+		thread.setDaemon( true );
+		return thread;
+	} );
+
 	// for keystroke actions
 	private final ActionMap ksActionMap = new ActionMap();
 	private final InputMap ksInputMap = new InputMap();
@@ -96,6 +151,33 @@ public class LabelPersistenceController
 		inputActionBindings.addInputMap( "persistence", ksInputMap );
 	}
 
+	/**
+	 * Save painted labels to an N5 container instead of the HDF5 file.
+	 * Assignments, complete segments, the next id, and merged labels are
+	 * still saved to the HDF5 file.
+	 *
+	 * @param n5
+	 *            N5 container, or {@code null} to save painted labels to the
+	 *            HDF5 file
+	 */
+	public void setN5( final N5Writer n5 )
+	{
+		this.n5 = n5;
+	}
+
+	/**
+	 * Save the fragment segment assignment to a file in the binary segment
+	 * sorted format instead of the HDF5 file.
+	 *
+	 * @param assignmentFile
+	 *            the file, or {@code null} to save the assignment to the
+	 *            HDF5 file
+	 */
+	public void setAssignmentFile( final File assignmentFile )
+	{
+		this.assignmentFile = assignmentFile;
+	}
+
 	private abstract class SelfRegisteringAction extends AbstractNamedAction
 	{
 		private final String[] defaultTriggers;
@@ -115,54 +197,312 @@ public class LabelPersistenceController
 
 	public void saveNextId()
 	{
-		System.out.println( "Saving next id " + h5Path + ":/next_id" );
-		H5Utils.saveUint64Attribute(
-				idService.next(),
-				h5Path,
-				"/",
-				"next_id" );
+		snapshotNextId().run();
+	}
+
+	/**
+	 * @return a task that saves the next id as it is now
+	 */
+	public Runnable snapshotNextId()
+	{
+		final long nextId = idService.next();
+		return () -> {
+			System.out.println( "Saving next id " + h5Path + ":/next_id" );
+			H5Utils.saveUint64Attribute(
+					nextId,
+					h5Path,
+					"/",
+					"next_id" );
+		};
 	}
 
 	public void saveFragmentSegmentAssignment()
 	{
-		System.out.println( "Saving fragment-segment assignments " + h5Path + ":" + assignmentDataset );
-		H5Utils.saveLongLongLut(
-				assignment.getLut(),
-				h5Path,
-				assignmentDataset,
-				1024 );
+		snapshotFragmentSegmentAssignment().run();
+	}
+
+	/**
+	 * @return a task that saves a copy of the fragment segment assignment as
+	 *         it is now
+	 */
+	public Runnable snapshotFragmentSegmentAssignment()
+	{
+		if ( assignmentFile != null )
+		{
+			final SegmentSortedLut lut = assignment.getSortedLut();
+			return () -> {
+				System.out.println( "Saving fragment-segment assignments " + assignmentFile );
+				try
+				{
+					lut.write( assignmentFile );
+				}
+				catch ( final IOException e )
+				{
+					throw new RuntimeException( e );
+				}
+			};
+		}
+
+		final TLongLongHashMap lut;
+		synchronized ( assignment )
+		{
+			lut = new TLongLongHashMap( assignment.getLut() );
+		}
+		return () -> {
+			System.out.println( "Saving fragment-segment assignments " + h5Path + ":" + assignmentDataset );
+			H5Utils.saveLongLongLut(
+					lut,
+					h5Path,
+					assignmentDataset,
+					1024 );
+		};
 	}
 
 	public void saveCompleteSegmentsAssignment()
 	{
-		System.out.println( "Saving complete segments " + h5Path + ":" + completeSegmentsDataset );
-		H5Utils.saveLongCollection(
-				completeSegments.getAssignedSegments(),
-				h5Path,
-				completeSegmentsDataset,
-				1024 );
+		snapshotCompleteSegmentsAssignment().run();
+	}
+
+	/**
+	 * @return a task that saves a copy of the complete segments as they are
+	 *         now
+	 */
+	public Runnable snapshotCompleteSegmentsAssignment()
+	{
+		final TLongHashSet segments = new TLongHashSet( completeSegments.getAssignedSegments() );
+		return () -> {
+			System.out.println( "Saving complete segments " + h5Path + ":" + completeSegmentsDataset );
+			H5Utils.saveLongCollection(
+					segments,
+					h5Path,
+					completeSegmentsDataset,
+					1024 );
+		};
 	}
 
 	public void savePaintedLabels()
 	{
-		System.out.println( "Saving painted labels into " + h5Path + ":" + paintedLabelsDataset );
+		snapshotPaintedLabels().run();
+	}
+
+	/**
+	 * Copy the modified cells of the painted labels, or all cells if the
+	 * painted labels dataset does not exist yet, and clear the modified
+	 * cells. If the returned task fails, the cells are marked modified again.
+	 *
+	 * @return a task that saves the copy
+	 */
+	public Runnable snapshotPaintedLabels()
+	{
+		if ( n5 != null )
+			return snapshotPaintedLabelsN5();
 
 		final File file = new File( h5Path );
-		H5Utils.saveUnsignedLong(
-				labelSource,
-				file,
-				paintedLabelsDataset,
-				labelsCellDimensions );
-		H5Utils.saveDoubleArrayAttribute(
-				new double[]{labelResolution[2], labelResolution[1], labelResolution[0]},
-				file,
-				paintedLabelsDataset,
-				"resolution");
-		H5Utils.saveDoubleArrayAttribute(
-				new double[]{labelOffset[2], labelOffset[1], labelOffset[0]},
-				file,
-				paintedLabelsDataset,
-				"offset");
+		if ( !paintedLabelsDatasetExists && file.exists() )
+		{
+			final IHDF5Reader reader = HDF5Factory.openForReading( file );
+			paintedLabelsDatasetExists = reader.exists( paintedLabelsDataset );
+			reader.close();
+		}
+
+		/* cells that were never saved read as 0 in a new dataset, not transparent */
+		final boolean incremental = dirtyLabelSourceInterval.tracksCells() && paintedLabelsDatasetExists;
+		final List< Interval > dirtyCells = dirtyLabelSourceInterval.clearDirtyCells();
+		final LabelCanvasSnapshot snapshot = snapshot( incremental ? dirtyCells : LabelCanvasSnapshot.cells( labelSource, labelsCellDimensions ) );
+		paintedLabelsDatasetExists = true;
+
+		return () -> {
+			System.out.println( "Saving " + snapshot.numRegions() + " cells of painted labels into " + h5Path + ":" + paintedLabelsDataset );
+			try
+			{
+				final IHDF5Writer writer = HDF5Factory.open( file );
+				try
+				{
+					if ( !incremental )
+						H5Utils.createUnsignedLong( writer, paintedLabelsDataset, labelSource, labelsCellDimensions );
+					for ( int i = 0; i < snapshot.numRegions(); ++i )
+						H5Utils.saveUnsignedLong(
+								snapshot.getRegion( i ),
+								writer,
+								paintedLabelsDataset,
+								labelsCellDimensions );
+				}
+				finally
+				{
+					writer.close();
+				}
+			}
+			catch ( final RuntimeException e )
+			{
+				if ( !incremental )
+					paintedLabelsDatasetExists = false;
+				for ( final Interval cell : dirtyCells )
+					dirtyLabelSourceInterval.touch( cell );
+				throw e;
+			}
+			H5Utils.saveDoubleArrayAttribute(
+					new double[]{labelResolution[2], labelResolution[1], labelResolution[0]},
+					file,
+					paintedLabelsDataset,
+					"resolution");
+			H5Utils.saveDoubleArrayAttribute(
+					new double[]{labelOffset[2], labelOffset[1], labelOffset[0]},
+					file,
+					paintedLabelsDataset,
+					"offset");
+		};
+	}
+
+	protected Runnable snapshotPaintedLabelsN5()
+	{
+		final boolean incremental = dirtyLabelSourceInterval.tracksCells();
+		final List< Interval > dirtyCells = dirtyLabelSourceInterval.clearDirtyCells();
+		final long[] dimensions = Intervals.dimensionsAsLongArray( labelSource );
+		final int[] blockSize;
+		try
+		{
+			blockSize = n5.datasetExists( paintedLabelsDataset )
+					? n5.getDatasetAttributes( paintedLabelsDataset ).getBlockSize()
+					: labelsCellDimensions;
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		/* copy whole blocks of the dataset */
+		final LabelCanvasSnapshot snapshot = snapshot(
+				N5Utils.intersectingBlocks(
+						dimensions,
+						blockSize,
+						incremental ? dirtyCells : Collections.singletonList( labelSource ) ) );
+
+		return () -> {
+			System.out.println( "Saving " + snapshot.numRegions() + " blocks of painted labels into N5 " + paintedLabelsDataset );
+			try
+			{
+				N5Utils.createUnsignedLong( n5, paintedLabelsDataset, dimensions, blockSize );
+				for ( int i = 0; i < snapshot.numRegions(); ++i )
+					N5Utils.saveUnsignedLong(
+							snapshot.getRegion( i ),
+							n5,
+							paintedLabelsDataset,
+							blockSize,
+							Collections.singletonList( snapshot.getRegions().get( i ) ) );
+				N5Utils.saveDoubleArrayAttribute(
+						labelResolution,
+						n5,
+						paintedLabelsDataset,
+						"resolution" );
+				N5Utils.saveDoubleArrayAttribute(
+						labelOffset,
+						n5,
+						paintedLabelsDataset,
+						"offset" );
+			}
+			catch ( final IOException e )
+			{
+				for ( final Interval cell : dirtyCells )
+					dirtyLabelSourceInterval.touch( cell );
+				throw new RuntimeException( "Saving painted labels failed.", e );
+			}
+		};
+	}
+
+	/**
+	 * Copy {@code regions} of the painted labels. Of a
+	 * {@link SparseLabelCanvas}, only regions with painted cells are copied,
+	 * so that saving all cells does not copy the whole canvas on the event
+	 * dispatch thread.
+	 */
+	protected LabelCanvasSnapshot snapshot( final List< Interval > regions )
+	{
+		if ( labelSource instanceof SparseLabelCanvas )
+			return new LabelCanvasSnapshot( labelSource, regions, ( ( SparseLabelCanvas ) labelSource )::isPainted );
+		else
+			return new LabelCanvasSnapshot( labelSource, regions );
+	}
+
+	public void setJournal( final EditJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Start a new journal segment. Must be called together with the snapshots
+	 * of all journaled state, i.e. next id, fragment-segment assignment and
+	 * painted labels.
+	 *
+	 * @return a task that deletes the journal segments with the snapshotted
+	 *         edits, to be run after the snapshots were saved
+	 */
+	public Runnable snapshotJournal()
+	{
+		if ( journal == null )
+			return () -> {};
+
+		final long lastSegment;
+		try
+		{
+			lastSegment = journal.rotate();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		return () -> journal.compact( lastSegment );
+	}
+
+	/**
+	 * Run save tasks, typically snapshots, in the background, one after the
+	 * other and after all previously started background saves. Progress is
+	 * shown in the viewer.
+	 *
+	 * @param message
+	 *            message shown when all tasks are done
+	 * @param tasks
+	 */
+	public Future< ? > saveInBackground( final String message, final Runnable... tasks )
+	{
+		return saveExecutor.submit( () -> {
+			try
+			{
+				for ( int i = 0; i < tasks.length; ++i )
+				{
+					showMessage( "Saving " + ( i + 1 ) + "/" + tasks.length + "..." );
+					tasks[ i ].run();
+				}
+				showMessage( message );
+			}
+			catch ( final RuntimeException e )
+			{
+				e.printStackTrace();
+				showMessage( "Saving failed, see log." );
+			}
+		} );
+	}
+
+	/**
+	 * Wait until all background saves are done.
+	 */
+	public void waitForBackgroundSaves()
+	{
+		try
+		{
+			saveExecutor.submit( () -> {} ).get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ExecutionException e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	protected void showMessage( final String message )
+	{
+		SwingUtilities.invokeLater( () -> viewer.showMessage( message ) );
 	}
 
 	public void saveMergedLabels()
@@ -224,12 +564,12 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
+			final Runnable snapshot;
 			synchronized ( viewer )
 			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveFragmentSegmentAssignment();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+				snapshot = snapshotFragmentSegmentAssignment();
 			}
+			saveInBackground( "Saved fragment-segment assignments.", snapshot );
 		}
 	}
 
@@ -243,15 +583,17 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
+			final Runnable[] snapshots;
 			synchronized ( viewer )
 			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveNextId();
-				saveFragmentSegmentAssignment();
-				savePaintedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+				final Runnable compactJournal = snapshotJournal();
+				snapshots = new Runnable[] {
+						snapshotNextId(),
+						snapshotFragmentSegmentAssignment(),
+						snapshotPaintedLabels(),
+						compactJournal };
 			}
-			viewer.showMessage( "Saved fragment-segment assignments and painted labels." );
+			saveInBackground( "Saved fragment-segment assignments and painted labels.", snapshots );
 		}
 	}
 
@@ -265,16 +607,18 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
+			final Runnable[] snapshots;
 			synchronized ( viewer )
 			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				saveNextId();
-				saveFragmentSegmentAssignment();
-				saveCompleteSegmentsAssignment();
-				savePaintedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+				final Runnable compactJournal = snapshotJournal();
+				snapshots = new Runnable[] {
+						snapshotNextId(),
+						snapshotFragmentSegmentAssignment(),
+						snapshotCompleteSegmentsAssignment(),
+						snapshotPaintedLabels(),
+						compactJournal };
 			}
-			viewer.showMessage( "Saved assignments and painted labels." );
+			saveInBackground( "Saved assignments and painted labels.", snapshots );
 		}
 	}
 
@@ -288,12 +632,12 @@ public class LabelPersistenceController
 		@Override
 		public void actionPerformed( final ActionEvent e )
 		{
+			final Runnable snapshot;
 			synchronized ( viewer )
 			{
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
-				savePaintedLabels();
-				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
+				snapshot = snapshotPaintedLabels();
 			}
+			saveInBackground( "Saved painted labels.", snapshot );
 		}
 	}
 
@@ -310,6 +654,7 @@ public class LabelPersistenceController
 			synchronized ( viewer )
 			{
 				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+				waitForBackgroundSaves();
 				saveMergedLabels();
 				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
 			}
@@ -329,6 +674,7 @@ public class LabelPersistenceController
 			synchronized ( viewer )
 			{
 				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.WAIT_CURSOR ) );
+				waitForBackgroundSaves();
 				saveAssignedMergedLabels();
 				viewer.setCursor( Cursor.getPredefinedCursor( Cursor.DEFAULT_CURSOR ) );
 			}
@@ -10,6 +10,7 @@ import org.scijava.ui.behaviour.InputTriggerMap;
 import org.scijava.ui.behaviour.io.InputTriggerConfig;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.label.SegmentMembership;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
 import bdv.viewer.ViewerPanel;
@@ -79,7 +80,7 @@ public class LabelRestrictToSegmentController
 
 		private final long TRANSPARENT = Label.TRANSPARENT;
 
-		private final long[] fragmentsInSegment;
+		private final SegmentMembership segment;
 
 		private final long oldPaint;
 
@@ -87,7 +88,7 @@ public class LabelRestrictToSegmentController
 
 		public WriteTransparentIfDifferentSegment( final long[] fragmentsInSegment, final long oldPaint, final long newPaint )
 		{
-			this.fragmentsInSegment = fragmentsInSegment;
+			this.segment = new SegmentMembership( fragmentsInSegment );
 			this.oldPaint = oldPaint;
 			this.newPaint = newPaint;
 		}
@@ -100,14 +101,7 @@ public class LabelRestrictToSegmentController
 			// non-transparent?
 			if ( source.getB().getIntegerLong() == oldPaint )
 			{
-				boolean isInSameSegment = false;
-				for ( final long fragment : fragmentsInSegment )
-				{
-					isInSameSegment = labelMultiset.contains( fragment );
-					if ( isInSameSegment )
-						break;
-				}
-				target.setInteger( isInSameSegment ? newPaint : TRANSPARENT );
+				target.setInteger( segment.containsAny( labelMultiset ) ? newPaint : TRANSPARENT );
 			}
 		}
 
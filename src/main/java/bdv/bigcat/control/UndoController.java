@@ -0,0 +1,108 @@
+package bdv.bigcat.control;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.ActionMap;
+import javax.swing.InputMap;
+
+import org.scijava.ui.behaviour.KeyStrokeAdder;
+import org.scijava.ui.behaviour.io.InputTriggerConfig;
+import org.scijava.ui.behaviour.util.AbstractNamedAction;
+import org.scijava.ui.behaviour.util.InputActionBindings;
+
+import bdv.bigcat.undo.UndoStack;
+import bdv.viewer.ViewerPanel;
+
+/**
+ * Undo and redo painting and assignment edits.
+ */
+public class UndoController
+{
+	final protected ViewerPanel viewer;
+	final protected UndoStack undoStack;
+
+	// for keystroke actions
+	private final ActionMap ksActionMap = new ActionMap();
+	private final InputMap ksInputMap = new InputMap();
+	private final KeyStrokeAdder ksKeyStrokeAdder;
+
+	public UndoController(
+			final ViewerPanel viewer,
+			final UndoStack undoStack,
+			final InputTriggerConfig config,
+			final InputActionBindings inputActionBindings )
+	{
+		this.viewer = viewer;
+		this.undoStack = undoStack;
+		ksKeyStrokeAdder = config.keyStrokeAdder( ksInputMap, "undo" );
+
+		new Undo( "undo", "ctrl Z" ).register();
+		new Redo( "redo", "ctrl shift Z", "ctrl Y" ).register();
+
+		inputActionBindings.addActionMap( "undo", ksActionMap );
+		inputActionBindings.addInputMap( "undo", ksInputMap );
+	}
+
+	private abstract class SelfRegisteringAction extends AbstractNamedAction
+	{
+		private final String[] defaultTriggers;
+
+		public SelfRegisteringAction( final String name, final String ... defaultTriggers )
+		{
+			super( name );
+			this.defaultTriggers = defaultTriggers;
+		}
+
+		public void register()
+		{
+			put( ksActionMap );
+			ksKeyStrokeAdder.put( name(), defaultTriggers );
+		}
+	}
+
+	private class Undo extends SelfRegisteringAction
+	{
+		public Undo( final String name, final String ... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		public void actionPerformed( final ActionEvent e )
+		{
+			final boolean undone;
+			synchronized ( viewer )
+			{
+				undone = undoStack.undo();
+			}
+			if ( undone )
+				viewer.showMessage( "Undo, " + undoStack.numUndoEdits() + " more." );
+			else
+				viewer.showMessage( undoStack.isCanvasEditInProgress() ? "Cannot undo while painting or filling." : "Nothing to undo." );
+			viewer.requestRepaint();
+		}
+	}
+
+	private class Redo extends SelfRegisteringAction
+	{
+		public Redo( final String name, final String ... defaultTriggers )
+		{
+			super( name, defaultTriggers );
+		}
+
+		@Override
+		public void actionPerformed( final ActionEvent e )
+		{
+			final boolean redone;
+			synchronized ( viewer )
+			{
+				redone = undoStack.redo();
+			}
+			if ( redone )
+				viewer.showMessage( "Redo, " + undoStack.numRedoEdits() + " more." );
+			else
+				viewer.showMessage( undoStack.isCanvasEditInProgress() ? "Cannot redo while painting or filling." : "Nothing to redo." );
+			viewer.requestRepaint();
+		}
+	}
+}
@@ -0,0 +1,611 @@
+package bdv.bigcat.journal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import bdv.img.n5.N5Utils;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Append-only binary journal of edits: brush strokes, fills and other
+ * modifications of painted label cells, and changes of the fragment segment
+ * assignment. Appending an edit only serializes it into memory, the pending
+ * edits are written and forced to disk together (group commit) every
+ * {@code commitInterval} milliseconds by a background thread.
+ *
+ * <p>
+ * The journal is a directory of numbered segment files. Each record is framed
+ * as (int length, int CRC32, payload), so that a record torn by a crash is
+ * detected and ends {@link #replay(File, Visitor) replay}. After the state
+ * has been saved, the segments that the save includes can be
+ * {@link #compact(long) deleted}: {@link #rotate()} before taking the
+ * snapshot for saving, and compact the returned segment after the save
+ * succeeded.
+ */
+public class EditJournal
+{
+	static final byte BRUSH = 1;
+
+	static final byte FILL = 2;
+
+	static final byte CELLS = 3;
+
+	static final byte MERGE_SEGMENTS = 4;
+
+	static final byte ASSIGN_FRAGMENTS = 5;
+
+	static final byte DETACH_FRAGMENT = 6;
+
+	static final byte ASSIGN = 7;
+
+	/**
+	 * Receives the edits of a journal on {@link EditJournal#replay(File, Visitor)}.
+	 */
+	public interface Visitor
+	{
+		public void brush( int axis, long[] center, long radius, long id );
+
+		/**
+		 * @param seed
+		 *            fill seed, {@code null} for other cell modifications
+		 * @param id
+		 *            fill id
+		 * @param cells
+		 *            intervals of the modified cells
+		 * @param data
+		 *            contents of the modified cells after the modification,
+		 *            flattened x fastest
+		 */
+		public void cells( long[] seed, long id, List< Interval > cells, List< long[] > data );
+
+		public void mergeSegments( long segmentId1, long segmentId2, long mergedSegmentId );
+
+		public void assignFragments( long segmentId1, long segmentId2 );
+
+		public void detachFragment( long fragmentId );
+
+		/**
+		 * @param fragments
+		 * @param segments
+		 *            segment of each fragment
+		 */
+		public void assign( long[] fragments, long[] segments );
+	}
+
+	final protected File directory;
+
+	final protected int[] cellDimensions;
+
+	/**
+	 * number of the segment that is appended to
+	 */
+	protected long segment;
+
+	protected FileChannel channel;
+
+	/**
+	 * framed records that have not been written yet, guarded by this
+	 */
+	protected ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * payload of the record being appended, guarded by this
+	 */
+	final protected ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+	final protected DataOutputStream recordOut = new DataOutputStream( record );
+
+	final protected CRC32 crc = new CRC32();
+
+	/**
+	 * guards {@link #channel} and {@link #segment}
+	 */
+	final protected Object commitLock = new Object();
+
+	final protected ScheduledExecutorService committer;
+
+	/**
+	 * Open a journal for appending. Appends to a new segment after the
+	 * existing segments of the journal.
+	 *
+	 * @param directory
+	 *            created if it does not exist
+	 * @param cellDimensions
+	 *            cell grid of modified cells, the canvas cell grid
+	 * @param commitInterval
+	 *            milliseconds between group commits
+	 */
+	public EditJournal( final File directory, final int[] cellDimensions, final long commitInterval ) throws IOException
+	{
+		this.directory = directory;
+		this.cellDimensions = cellDimensions.clone();
+		directory.mkdirs();
+		final long[] segments = listSegments( directory );
+		segment = segments.length == 0 ? 0 : segments[ segments.length - 1 ] + 1;
+		channel = openSegment( segment );
+
+		committer = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "edit journal" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		committer.scheduleWithFixedDelay( () -> {
+			try
+			{
+				commit();
+			}
+			catch ( final IOException e )
+			{
+				e.printStackTrace();
+			}
+		}, commitInterval, commitInterval, TimeUnit.MILLISECONDS );
+	}
+
+	protected FileChannel openSegment( final long segment ) throws IOException
+	{
+		return FileChannel.open(
+				segmentFile( directory, segment ).toPath(),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND );
+	}
+
+	static protected File segmentFile( final File directory, final long segment )
+	{
+		return new File( directory, String.format( "%08d.journal", segment ) );
+	}
+
+	/**
+	 * Numbers of the segments of a journal in ascending order.
+	 */
+	static public long[] listSegments( final File directory )
+	{
+		final File[] files = directory.listFiles( ( dir, name ) -> name.matches( "\\d+\\.journal" ) );
+		if ( files == null )
+			return new long[ 0 ];
+		final long[] segments = new long[ files.length ];
+		for ( int i = 0; i < files.length; ++i )
+			segments[ i ] = Long.parseLong( files[ i ].getName().substring( 0, files[ i ].getName().indexOf( '.' ) ) );
+		Arrays.sort( segments );
+		return segments;
+	}
+
+	public synchronized void brush( final int axis, final long[] center, final long radius, final long id )
+	{
+		try
+		{
+			recordOut.writeByte( BRUSH );
+			recordOut.writeByte( axis );
+			for ( final long c : center )
+				recordOut.writeLong( c );
+			recordOut.writeLong( radius );
+			recordOut.writeLong( id );
+			append();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Append a fill with the contents of the canvas cells that intersect the
+	 * interval it touched.
+	 */
+	public void fill( final long[] seed, final long id, final RandomAccessibleInterval< LongType > canvas, final Interval touched )
+	{
+		appendCells( FILL, seed, id, canvas, Collections.singletonList( touched ) );
+	}
+
+	/**
+	 * Append a fill with the contents of the canvas cells that intersect the
+	 * blocks it touched.
+	 */
+	public void fill( final long[] seed, final long id, final RandomAccessibleInterval< LongType > canvas, final Collection< ? extends Interval > touched )
+	{
+		appendCells( FILL, seed, id, canvas, touched );
+	}
+
+	/**
+	 * Append the contents of the canvas cells that intersect a modified
+	 * interval.
+	 */
+	public void cells( final RandomAccessibleInterval< LongType > canvas, final Interval touched )
+	{
+		appendCells( CELLS, null, 0, canvas, Collections.singletonList( touched ) );
+	}
+
+	/**
+	 * Append the contents of the canvas cells that intersect modified
+	 * blocks.
+	 */
+	public void cells( final RandomAccessibleInterval< LongType > canvas, final Collection< ? extends Interval > touched )
+	{
+		appendCells( CELLS, null, 0, canvas, touched );
+	}
+
+	/**
+	 * Encode the cells and append them under the same lock, so that an edit
+	 * that is appended after the cells were read is replayed after them, and
+	 * an edit appended before is replayed before them.
+	 */
+	protected void appendCells(
+			final byte type,
+			final long[] seed,
+			final long id,
+			final RandomAccessibleInterval< LongType > canvas,
+			final Collection< ? extends Interval > touched )
+	{
+		final List< Interval > cells = N5Utils.intersectingBlocks(
+				Intervals.dimensionsAsLongArray( canvas ),
+				cellDimensions,
+				touched );
+		synchronized ( this )
+		{
+			try
+			{
+				recordOut.writeByte( type );
+				if ( type == FILL )
+				{
+					for ( final long s : seed )
+						recordOut.writeLong( s );
+					recordOut.writeLong( id );
+				}
+				recordOut.writeInt( cells.size() );
+				for ( final Interval cell : cells )
+				{
+					recordOut.writeByte( cell.numDimensions() );
+					for ( int d = 0; d < cell.numDimensions(); ++d )
+					{
+						recordOut.writeLong( cell.min( d ) );
+						recordOut.writeLong( cell.max( d ) );
+					}
+					writeRuns( Views.flatIterable( Views.interval( canvas, cell ) ), recordOut );
+				}
+				append();
+			}
+			catch ( final IOException e )
+			{
+				record.reset();
+				throw new RuntimeException( e );
+			}
+		}
+	}
+
+	/**
+	 * Write run length encoded values as the number of runs followed by
+	 * (value, run length) pairs.
+	 */
+	static protected void writeRuns( final Iterable< LongType > values, final DataOutputStream out ) throws IOException
+	{
+		final ByteArrayOutputStream runs = new ByteArrayOutputStream();
+		final DataOutputStream runsOut = new DataOutputStream( runs );
+		int numRuns = 0;
+		long value = 0;
+		int length = 0;
+		for ( final LongType t : values )
+		{
+			final long v = t.get();
+			if ( length > 0 && v == value )
+				++length;
+			else
+			{
+				if ( length > 0 )
+				{
+					runsOut.writeLong( value );
+					runsOut.writeInt( length );
+					++numRuns;
+				}
+				value = v;
+				length = 1;
+			}
+		}
+		if ( length > 0 )
+		{
+			runsOut.writeLong( value );
+			runsOut.writeInt( length );
+			++numRuns;
+		}
+		out.writeInt( numRuns );
+		runs.writeTo( out );
+	}
+
+	public synchronized void mergeSegments( final long segmentId1, final long segmentId2, final long mergedSegmentId )
+	{
+		try
+		{
+			recordOut.writeByte( MERGE_SEGMENTS );
+			recordOut.writeLong( segmentId1 );
+			recordOut.writeLong( segmentId2 );
+			recordOut.writeLong( mergedSegmentId );
+			append();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	public synchronized void assignFragments( final long segmentId1, final long segmentId2 )
+	{
+		try
+		{
+			recordOut.writeByte( ASSIGN_FRAGMENTS );
+			recordOut.writeLong( segmentId1 );
+			recordOut.writeLong( segmentId2 );
+			append();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	public synchronized void detachFragment( final long fragmentId )
+	{
+		try
+		{
+			recordOut.writeByte( DETACH_FRAGMENT );
+			recordOut.writeLong( fragmentId );
+			append();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	public synchronized void assign( final long[] fragments, final long[] segments )
+	{
+		try
+		{
+			recordOut.writeByte( ASSIGN );
+			recordOut.writeInt( fragments.length );
+			for ( int i = 0; i < fragments.length; ++i )
+			{
+				recordOut.writeLong( fragments[ i ] );
+				recordOut.writeLong( segments[ i ] );
+			}
+			append();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Frame the current record and add it to the pending records.
+	 */
+	protected void append() throws IOException
+	{
+		recordOut.flush();
+		crc.reset();
+		crc.update( record.toByteArray() );
+		final DataOutputStream pendingOut = new DataOutputStream( pending );
+		pendingOut.writeInt( record.size() );
+		pendingOut.writeInt( ( int ) crc.getValue() );
+		record.writeTo( pendingOut );
+		pendingOut.flush();
+		record.reset();
+	}
+
+	/**
+	 * Write all pending records and force them to disk.
+	 */
+	public void commit() throws IOException
+	{
+		synchronized ( commitLock )
+		{
+			final ByteArrayOutputStream records;
+			synchronized ( this )
+			{
+				if ( pending.size() == 0 )
+					return;
+				records = pending;
+				pending = new ByteArrayOutputStream();
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap( records.toByteArray() );
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+			channel.force( false );
+		}
+	}
+
+	/**
+	 * Commit and continue in a new segment.
+	 *
+	 * @return the number of the last segment that contains all edits
+	 *         appended so far
+	 */
+	public long rotate() throws IOException
+	{
+		synchronized ( commitLock )
+		{
+			commit();
+			channel.close();
+			final long last = segment++;
+			channel = openSegment( segment );
+			return last;
+		}
+	}
+
+	/**
+	 * Delete all segments up to and including {@code lastSegment}, after the
+	 * edits in them have been saved.
+	 */
+	public void compact( final long lastSegment )
+	{
+		for ( final long s : listSegments( directory ) )
+			if ( s <= lastSegment )
+				segmentFile( directory, s ).delete();
+	}
+
+	/**
+	 * Commit and close the journal.
+	 */
+	public void close() throws IOException
+	{
+		committer.shutdown();
+		synchronized ( commitLock )
+		{
+			commit();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Replay all segments of a journal in order. A torn or corrupt record
+	 * ends the replay of its segment.
+	 *
+	 * @return the number of replayed records
+	 */
+	static public long replay( final File directory, final Visitor visitor ) throws IOException
+	{
+		long numRecords = 0;
+		for ( final long segment : listSegments( directory ) )
+		{
+			final File file = segmentFile( directory, segment );
+			final long fileLength = file.length();
+			try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+			{
+				final CRC32 crc = new CRC32();
+				long position = 0;
+				while ( true )
+				{
+					final byte[] payload;
+					try
+					{
+						final int length = in.readInt();
+						final int checksum = in.readInt();
+						position += 8;
+						if ( length < 0 || length > fileLength - position )
+						{
+							System.out.println( "Torn record in " + file + ", skipping the rest of the segment." );
+							break;
+						}
+						position += length;
+						payload = new byte[ length ];
+						in.readFully( payload );
+						crc.reset();
+						crc.update( payload );
+						if ( ( int ) crc.getValue() != checksum )
+						{
+							System.out.println( "Corrupt record in " + file + ", skipping the rest of the segment." );
+							break;
+						}
+					}
+					catch ( final EOFException e )
+					{
+						break;
+					}
+					replayRecord( new DataInputStream( new ByteArrayInputStream( payload ) ), visitor );
+					++numRecords;
+				}
+			}
+		}
+		return numRecords;
+	}
+
+	static protected void replayRecord( final DataInputStream in, final Visitor visitor ) throws IOException
+	{
+		final byte type = in.readByte();
+		switch ( type )
+		{
+		case BRUSH:
+		{
+			final int axis = in.readByte();
+			final long[] center = new long[] { in.readLong(), in.readLong(), in.readLong() };
+			visitor.brush( axis, center, in.readLong(), in.readLong() );
+			break;
+		}
+		case FILL:
+		case CELLS:
+		{
+			long[] seed = null;
+			long id = 0;
+			if ( type == FILL )
+			{
+				seed = new long[] { in.readLong(), in.readLong(), in.readLong() };
+				id = in.readLong();
+			}
+			final int numCells = in.readInt();
+			final ArrayList< Interval > cells = new ArrayList<>( numCells );
+			final ArrayList< long[] > data = new ArrayList<>( numCells );
+			for ( int i = 0; i < numCells; ++i )
+			{
+				final int n = in.readByte();
+				final long[] min = new long[ n ];
+				final long[] max = new long[ n ];
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = in.readLong();
+					max[ d ] = in.readLong();
+				}
+				final FinalInterval cell = new FinalInterval( min, max );
+				final long[] cellData = new long[ ( int ) Intervals.numElements( cell ) ];
+				final int numRuns = in.readInt();
+				for ( int r = 0, j = 0; r < numRuns; ++r )
+				{
+					final long value = in.readLong();
+					final int length = in.readInt();
+					Arrays.fill( cellData, j, j + length, value );
+					j += length;
+				}
+				cells.add( cell );
+				data.add( cellData );
+			}
+			visitor.cells( seed, id, cells, data );
+			break;
+		}
+		case MERGE_SEGMENTS:
+			visitor.mergeSegments( in.readLong(), in.readLong(), in.readLong() );
+			break;
+		case ASSIGN_FRAGMENTS:
+			visitor.assignFragments( in.readLong(), in.readLong() );
+			break;
+		case DETACH_FRAGMENT:
+			visitor.detachFragment( in.readLong() );
+			break;
+		case ASSIGN:
+		{
+			final int numFragments = in.readInt();
+			final long[] fragments = new long[ numFragments ];
+			final long[] segments = new long[ numFragments ];
+			for ( int i = 0; i < numFragments; ++i )
+			{
+				fragments[ i ] = in.readLong();
+				segments[ i ] = in.readLong();
+			}
+			visitor.assign( fragments, segments );
+			break;
+		}
+		default:
+			throw new IOException( "Unknown journal record type " + type );
+		}
+	}
+}
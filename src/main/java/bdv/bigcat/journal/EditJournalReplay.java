@@ -0,0 +1,117 @@
+package bdv.bigcat.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import bdv.bigcat.control.LabelBrushController;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.util.DirtyInterval;
+import bdv.img.AccessBoxRandomAccessible;
+import bdv.labels.labelset.Label;
+import bdv.util.IdService;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.view.Views;
+
+/**
+ * Applies the edits of an {@link EditJournal} to a painted label canvas and
+ * a fragment segment assignment. Modified canvas cells are marked dirty so
+ * that the next save includes them. Ids used by the edits are invalidated in
+ * the {@link IdService} after replay.
+ */
+public class EditJournalReplay implements EditJournal.Visitor
+{
+	final protected RandomAccessibleInterval< LongType > canvas;
+
+	final protected DirtyInterval dirtyLabelsInterval;
+
+	final protected FragmentSegmentAssignment assignment;
+
+	protected long maxId = Label.INVALID;
+
+	public EditJournalReplay(
+			final RandomAccessibleInterval< LongType > canvas,
+			final DirtyInterval dirtyLabelsInterval,
+			final FragmentSegmentAssignment assignment )
+	{
+		this.canvas = canvas;
+		this.dirtyLabelsInterval = dirtyLabelsInterval;
+		this.assignment = assignment;
+	}
+
+	/**
+	 * Replay a journal and invalidate the ids that its edits used.
+	 *
+	 * @return the number of replayed edits
+	 */
+	public long replay( final File directory, final IdService idService ) throws IOException
+	{
+		final long numRecords = EditJournal.replay( directory, this );
+		if ( maxId != Label.INVALID )
+			idService.invalidate( maxId );
+		return numRecords;
+	}
+
+	protected void useId( final long id )
+	{
+		if ( Label.regular( id ) && ( maxId == Label.INVALID || IdService.greaterThan( id, maxId ) ) )
+			maxId = id;
+	}
+
+	@Override
+	public void brush( final int axis, final long[] center, final long radius, final long id )
+	{
+		final AccessBoxRandomAccessible< LongType > accessBoxExtendedLabels =
+				new AccessBoxRandomAccessible<>(
+						Views.extendValue( canvas, new LongType( Label.TRANSPARENT ) ) );
+		LabelBrushController.paintSphere( accessBoxExtendedLabels, axis, center, radius, id );
+		dirtyLabelsInterval.touch( accessBoxExtendedLabels.createAccessInterval() );
+		useId( id );
+	}
+
+	@Override
+	public void cells( final long[] seed, final long id, final List< Interval > cells, final List< long[] > data )
+	{
+		for ( int i = 0; i < cells.size(); ++i )
+		{
+			final long[] cellData = data.get( i );
+			int j = 0;
+			for ( final LongType t : Views.flatIterable( Views.interval( canvas, cells.get( i ) ) ) )
+			{
+				final long value = cellData[ j++ ];
+				t.set( value );
+				useId( value );
+			}
+			dirtyLabelsInterval.touch( cells.get( i ) );
+		}
+	}
+
+	@Override
+	public void mergeSegments( final long segmentId1, final long segmentId2, final long mergedSegmentId )
+	{
+		assignment.mergeSegments( segmentId1, segmentId2, mergedSegmentId );
+		useId( mergedSegmentId );
+	}
+
+	@Override
+	public void assignFragments( final long segmentId1, final long segmentId2 )
+	{
+		assignment.assignFragments( segmentId1, segmentId2 );
+	}
+
+	@Override
+	public void detachFragment( final long fragmentId )
+	{
+		assignment.detachFragment( fragmentId );
+	}
+
+	@Override
+	public void assign( final long[] fragments, final long[] segments )
+	{
+		assignment.assign( fragments, segments );
+		for ( final long segmentId : segments )
+			useId( segmentId );
+	}
+}
@@ -16,7 +16,12 @@
  */
 package bdv.bigcat.label;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.StampedLock;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -33,18 +38,23 @@ import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
 
+import bdv.bigcat.journal.EditJournal;
+import bdv.bigcat.undo.UndoStack;
 import bdv.labels.labelset.Label;
 import bdv.util.IdService;
 import bdv.util.LocalIdService;
 import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TLongIntIterator;
 import gnu.trove.iterator.TLongLongIterator;
-import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongLongHashMap;
-import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
 
 /**
- *
+ * Assignment of fragments to segments, a union-find forest over the
+ * fragments, so that merges take nearly constant time independent of the
+ * size of the segments.
  *
  * @author Stephan Saalfeld <saalfelds@janelia.hhmi.org>
  */
@@ -68,7 +78,7 @@ public class FragmentSegmentAssignment
 		public JsonElement serialize( final FragmentSegmentAssignment src, final Type typeOfSrc, final JsonSerializationContext context )
 		{
 			final JsonObject jsonLut = new JsonObject();
-			final TLongLongIterator lutIterator = src.lut.iterator();
+			final TLongLongIterator lutIterator = src.getLut().iterator();
 			while ( lutIterator.hasNext() )
 			{
 				lutIterator.advance();
@@ -103,7 +113,7 @@ public class FragmentSegmentAssignment
 		{
 			final JsonArray fragments = new JsonArray();
 			final JsonArray segments = new JsonArray();
-			final TLongLongIterator lutIterator = src.lut.iterator();
+			final TLongLongIterator lutIterator = src.getLut().iterator();
 			while ( lutIterator.hasNext() )
 			{
 				lutIterator.advance();
@@ -139,13 +149,13 @@ public class FragmentSegmentAssignment
 			final Gson gson = new Gson();
 
 			final JsonObject jsonILut = new JsonObject();
-			final TLongObjectIterator< long[] > ilutIterator = src.ilut.iterator();
-			while ( ilutIterator.hasNext() )
+			for ( final long segmentId : src.getSegments() )
 			{
-				ilutIterator.advance();
-				jsonILut.add(
-						Long.toString( ilutIterator.key() ),
-						gson.toJsonTree( ilutIterator.value() ) );
+				final long[] fragments = src.getFragments( segmentId );
+				if ( fragments != null )
+					jsonILut.add(
+							Long.toString( segmentId ),
+							gson.toJsonTree( fragments ) );
 			}
 
 			final JsonObject jsonObject = new JsonObject();
@@ -288,11 +298,75 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		}
 	}
 
-	final protected TLongLongHashMap lut = new TLongLongHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT);
-	final protected TLongObjectHashMap< long[] > ilut = new TLongObjectHashMap< long[] >(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT);
+	/**
+	 * index of each fragment in the union-find forest
+	 */
+	final protected TLongIntHashMap fragmentIndices = new TLongIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, -1 );
+
+	/**
+	 * root index of each segment
+	 */
+	final protected TLongIntHashMap segmentRoots = new TLongIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, -1 );
+
+	/**
+	 * Union-find forest over indices. Each set is a segment whose id is stored
+	 * at its root. The fragments of a set form a circular doubly linked list
+	 * that starts at {@code head[ root ]}. Fragments that are detached or
+	 * reassigned get a new index, their old index stays in the forest but
+	 * leaves the list and the map of fragment indices, until the forest is
+	 * {@link #compactIfSparse() compacted}.
+	 */
+	protected int[] parent = new int[ Constants.DEFAULT_CAPACITY ];
+
+	protected byte[] rank = new byte[ Constants.DEFAULT_CAPACITY ];
+
+	protected int[] next = new int[ Constants.DEFAULT_CAPACITY ];
+
+	protected int[] previous = new int[ Constants.DEFAULT_CAPACITY ];
+
+	protected int[] head = new int[ Constants.DEFAULT_CAPACITY ];
+
+	protected long[] fragmentIds = new long[ Constants.DEFAULT_CAPACITY ];
+
+	protected long[] segmentIds = new long[ Constants.DEFAULT_CAPACITY ];
+
+	protected int size = 0;
+
+	/**
+	 * Taken for writing by edits, which also synchronize on this, so that
+	 * {@link #getSegment(long)} can read optimistically.
+	 */
+	final protected StampedLock lock = new StampedLock();
+
+	/**
+	 * number of edits that are remembered by
+	 * {@link #getChangedSegments(long, long)}
+	 */
+	static public int MAX_CHANGES = 1024;
+
+	/**
+	 * maximal number of fragments per journal record when a replaced lookup
+	 * table is journaled
+	 */
+	static public int MAX_JOURNALED_FRAGMENTS = 1 << 20;
+
+	/**
+	 * incremented by each edit
+	 */
+	protected volatile long version = 0;
+
+	/**
+	 * segments touched by the most recent edits, the last one by the edit
+	 * that created {@link #version}
+	 */
+	final protected ArrayDeque< long[] > changes = new ArrayDeque<>();
 
 	protected IdService idService;
 
+	protected EditJournal journal = null;
+
+	protected UndoStack undoStack = null;
+
 	public FragmentSegmentAssignment( final IdService idService )
 	{
 		this.idService = idService;
@@ -303,93 +377,541 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		assert fragments.length == segments.length : "segments and bodies must be of same length";
 
 		for ( int i = 0; i < fragments.length; ++i )
-			lut.put( fragments[ i ], segments[ i ] );
+			moveFragment( fragments[ i ], segments[ i ] );
 
 		this.idService = idService;
-
-		syncILut();
 	}
 
-	public TLongLongHashMap getLut()
+	/**
+	 * @return a copy of the fragment to segment lookup
+	 */
+	public synchronized TLongLongHashMap getLut()
 	{
+		final TLongLongHashMap lut = new TLongLongHashMap( fragmentIndices.size(), Constants.DEFAULT_LOAD_FACTOR, Label.TRANSPARENT, Label.TRANSPARENT );
+		final TLongIntIterator iterator = fragmentIndices.iterator();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			lut.put( iterator.key(), segmentIds[ root( iterator.value() ) ] );
+		}
 		return lut;
 	}
 
+	/**
+	 * @return the ids of all segments
+	 */
+	public synchronized long[] getSegments()
+	{
+		return segmentRoots.keys();
+	}
+
 	public void setIdService( final IdService idService )
 	{
 		this.idService = idService;
 	}
 
+	/**
+	 * Journal merges, assignments and detachments.
+	 *
+	 * @param journal
+	 *            the journal, or {@code null} to not journal edits
+	 */
+	public void setJournal( final EditJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Record merges, assignments and detachments for undo.
+	 *
+	 * @param undoStack
+	 *            the undo stack, or {@code null} to not record edits
+	 */
+	public void setUndoStack( final UndoStack undoStack )
+	{
+		this.undoStack = undoStack;
+	}
+
 	public void initLut( final TLongLongHashMap lut )
 	{
-		this.lut.clear();
-		this.ilut.clear();
-		this.lut.putAll( lut );
-		syncILut();
+		synchronized ( this )
+		{
+			final long[] previousFragments = journal == null ? null : fragmentIndices.keys();
+			final long stamp = lock.writeLock();
+			try
+			{
+				fragmentIndices.clear();
+				segmentRoots.clear();
+				size = 0;
+				final TLongLongIterator lutIterator = lut.iterator();
+				while ( lutIterator.hasNext() )
+				{
+					lutIterator.advance();
+					moveFragment( lutIterator.key(), lutIterator.value() );
+				}
+			}
+			finally
+			{
+				lock.unlockWrite( stamp );
+			}
+
+			/* everything may have changed */
+			changes.clear();
+			++version;
+
+			if ( journal != null )
+				journalLut( previousFragments );
+		}
 
 		System.out.println( "Done" );
 	}
 
 	/**
-	 * Synchronize the inverse Lookup (segment > [fragments]) with the current
-	 * forward lookup (fragment > segment)).  The current state of the inverse
-	 * lookup will be cleared.
+	 * Replace the assignment by the segments of a lookup table sorted by
+	 * segment, in one pass.  The fragments of each segment are appended to
+	 * the forest as a set of depth one with its fragment list already
+	 * linked, so that no unions are needed.
+	 *
+	 * @param reader
 	 */
-	protected void syncILut()
+	public void initLut( final SegmentSortedLut.Reader reader ) throws IOException
 	{
-		ilut.clear();
-		final TLongLongIterator lutIterator =  lut.iterator();
-		while ( lutIterator.hasNext() )
+		synchronized ( this )
 		{
-			lutIterator.advance();
-			final long fragmentId = lutIterator.key();
-			final long segmentId = lutIterator.value();
-			long[] fragments = ilut.get( segmentId );
-			if ( fragments == null )
-				fragments = new long[]{ fragmentId };
-			else
-				fragments = ArrayUtils.add( fragments, fragmentId );
-			ilut.put( segmentId, fragments);
+			final long[] previousFragments = journal == null ? null : fragmentIndices.keys();
+			final long stamp = lock.writeLock();
+			try
+			{
+				fragmentIndices.clear();
+				segmentRoots.clear();
+				size = 0;
+				if ( reader.numFragments() > 0 && reader.numFragments() <= Integer.MAX_VALUE )
+				{
+					fragmentIndices.ensureCapacity( ( int ) reader.numFragments() );
+					ensureCapacity( ( int ) reader.numFragments() );
+				}
+				if ( reader.numSegments() > 0 && reader.numSegments() <= Integer.MAX_VALUE )
+					segmentRoots.ensureCapacity( ( int ) reader.numSegments() );
+
+				while ( reader.next() )
+					addSegment( reader.segmentId(), reader.fragments(), reader.size() );
+			}
+			finally
+			{
+				lock.unlockWrite( stamp );
+			}
+
+			changes.clear();
+			++version;
+
+			if ( journal != null )
+				journalLut( previousFragments );
+		}
+	}
+
+	/**
+	 * Journal a replaced lookup table as assignments of all of its fragments,
+	 * and of the fragments that it does not contain any more to themselves,
+	 * so that replaying the journal rebuilds the replaced lookup table from
+	 * the assignment before it.  Large lookup tables are split into several
+	 * records.  Called by {@link #initLut} in the monitor of this.
+	 *
+	 * @param previousFragments
+	 *            the fragments of the assignment before it was replaced
+	 */
+	protected void journalLut( final long[] previousFragments )
+	{
+		final TLongArrayList fragments = new TLongArrayList( fragmentIndices.size() );
+		final TLongArrayList segments = new TLongArrayList( fragmentIndices.size() );
+		final TLongIntIterator iterator = fragmentIndices.iterator();
+		while ( iterator.hasNext() )
+		{
+			iterator.advance();
+			fragments.add( iterator.key() );
+			segments.add( segmentIds[ root( iterator.value() ) ] );
+		}
+		for ( final long fragmentId : previousFragments )
+		{
+			if ( !fragmentIndices.containsKey( fragmentId ) )
+			{
+				fragments.add( fragmentId );
+				segments.add( fragmentId );
+			}
+		}
+
+		for ( int offset = 0; offset < fragments.size(); offset += MAX_JOURNALED_FRAGMENTS )
+		{
+			final int length = Math.min( MAX_JOURNALED_FRAGMENTS, fragments.size() - offset );
+			journal.assign( fragments.toArray( offset, length ), segments.toArray( offset, length ) );
+		}
+	}
+
+	/**
+	 * Copy the assignment into a lookup table sorted by segment, e.g. to
+	 * write it while the assignment is edited.
+	 */
+	public synchronized SegmentSortedLut getSortedLut()
+	{
+		final long[] segments = segmentRoots.keys();
+		Arrays.sort( segments );
+		final int[] offsets = new int[ segments.length + 1 ];
+		final long[] fragments = new long[ fragmentIndices.size() ];
+		for ( int i = 0; i < segments.length; ++i )
+		{
+			int j = offsets[ i ];
+			final int first = head[ segmentRoots.get( segments[ i ] ) ];
+			if ( first != -1 )
+			{
+				int k = first;
+				do
+				{
+					fragments[ j++ ] = fragmentIds[ k ];
+					k = next[ k ];
+				}
+				while ( k != first );
+			}
+			offsets[ i + 1 ] = j;
+		}
+		return new SegmentSortedLut( segments, offsets, fragments );
+	}
+
+	/**
+	 * Add a set with a single fragment.
+	 *
+	 * @return its index
+	 */
+	protected int addFragment( final long fragmentId, final long segmentId )
+	{
+		if ( size == parent.length )
+			ensureCapacity( 2 * size );
+		final int i = size++;
+		parent[ i ] = i;
+		rank[ i ] = 0;
+		next[ i ] = i;
+		previous[ i ] = i;
+		head[ i ] = i;
+		fragmentIds[ i ] = fragmentId;
+		segmentIds[ i ] = segmentId;
+		fragmentIndices.put( fragmentId, i );
+		return i;
+	}
+
+	/**
+	 * Add the fragments of a segment.  Fragments are added as a set of depth
+	 * one with its list already linked, up to the first fragment that is
+	 * already assigned or listed twice, from where they are moved one by
+	 * one, as are the fragments of a segment that exists already.
+	 */
+	protected void addSegment( final long segmentId, final long[] fragments, final int numFragments )
+	{
+		int j = 0;
+		if ( !segmentRoots.containsKey( segmentId ) )
+		{
+			if ( size + numFragments > parent.length )
+				ensureCapacity( Math.max( size + numFragments, 2 * size ) );
+
+			final int root = size;
+			int last = root;
+			for ( ; j < numFragments; ++j )
+			{
+				final long fragmentId = fragments[ j ];
+				if ( fragmentIndices.containsKey( fragmentId ) )
+					break;
+				final int i = size++;
+				parent[ i ] = root;
+				rank[ i ] = 0;
+				previous[ i ] = last;
+				next[ last ] = i;
+				head[ i ] = i;
+				fragmentIds[ i ] = fragmentId;
+				segmentIds[ i ] = segmentId;
+				fragmentIndices.put( fragmentId, i );
+				last = i;
+			}
+			if ( size > root )
+			{
+				next[ last ] = root;
+				previous[ root ] = last;
+				if ( last != root )
+					rank[ root ] = 1;
+				segmentRoots.put( segmentId, root );
+			}
+		}
+		for ( ; j < numFragments; ++j )
+			moveFragment( fragments[ j ], segmentId );
+	}
+
+	protected void ensureCapacity( final int capacity )
+	{
+		if ( capacity > parent.length )
+		{
+			parent = Arrays.copyOf( parent, capacity );
+			rank = Arrays.copyOf( rank, capacity );
+			next = Arrays.copyOf( next, capacity );
+			previous = Arrays.copyOf( previous, capacity );
+			head = Arrays.copyOf( head, capacity );
+			fragmentIds = Arrays.copyOf( fragmentIds, capacity );
+			segmentIds = Arrays.copyOf( segmentIds, capacity );
+		}
+	}
+
+	/**
+	 * Find the root of an index, halving the path.
+	 */
+	protected int find( int i )
+	{
+		while ( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ];
+			i = parent[ i ];
+		}
+		return i;
+	}
+
+	/**
+	 * Find the root of an index without changing the forest, for readers.
+	 *
+	 * @throws IllegalStateException
+	 *             if the path is longer than the forest, which can only be
+	 *             read during a concurrent write
+	 */
+	protected int root( int i )
+	{
+		final int[] parent = this.parent;
+		for ( int steps = 0; parent[ i ] != i; ++steps )
+		{
+			if ( steps == parent.length )
+				throw new IllegalStateException( "Inconsistent forest." );
+			i = parent[ i ];
 		}
+		return i;
 	}
 
 	/**
-	 * Get the body that is assigned to a fragment id.
+	 * Unite two sets by rank and concatenate their fragment lists.
+	 *
+	 * @return the root of the united set
+	 */
+	protected int union( final int root1, final int root2, final long segmentId )
+	{
+		if ( root1 == root2 )
+			return root1;
+
+		final int root, child;
+		if ( rank[ root1 ] < rank[ root2 ] )
+		{
+			root = root2;
+			child = root1;
+		}
+		else
+		{
+			root = root1;
+			child = root2;
+			if ( rank[ root1 ] == rank[ root2 ] )
+				++rank[ root ];
+		}
+		parent[ child ] = root;
+
+		final int head1 = head[ root ];
+		final int head2 = head[ child ];
+		if ( head1 == -1 )
+			head[ root ] = head2;
+		else if ( head2 != -1 )
+		{
+			final int next1 = next[ head1 ];
+			final int next2 = next[ head2 ];
+			next[ head1 ] = next2;
+			previous[ next2 ] = head1;
+			next[ head2 ] = next1;
+			previous[ next1 ] = head2;
+		}
+		segmentIds[ root ] = segmentId;
+		return root;
+	}
+
+	/**
+	 * Remove an index from the fragment list of its set, the index stays in
+	 * the forest.
+	 *
+	 * @return whether the list is empty now
+	 */
+	protected boolean unlink( final int i )
+	{
+		final int root = find( i );
+		final boolean empty = next[ i ] == i;
+		if ( empty )
+			head[ root ] = -1;
+		else
+		{
+			next[ previous[ i ] ] = next[ i ];
+			previous[ next[ i ] ] = previous[ i ];
+			if ( head[ root ] == i )
+				head[ root ] = next[ i ];
+			next[ i ] = i;
+			previous[ i ] = i;
+		}
+		return empty;
+	}
+
+	/**
+	 * Assign a fragment to a segment, removing it from its current segment.
+	 */
+	protected void moveFragment( final long fragmentId, final long segmentId )
+	{
+		final int i = fragmentIndices.get( fragmentId );
+		if ( i != -1 )
+		{
+			final int root = find( i );
+			final long oldSegmentId = segmentIds[ root ];
+			if ( oldSegmentId == segmentId )
+				return;
+			if ( unlink( i ) )
+				segmentRoots.remove( oldSegmentId );
+		}
+
+		final int j = addFragment( fragmentId, segmentId );
+		final int root = segmentRoots.get( segmentId );
+		segmentRoots.put( segmentId, root == -1 ? j : union( root, j, segmentId ) );
+
+		compactIfSparse();
+	}
+
+	/**
+	 * Rebuild the forest from the fragment lists of the segments once the
+	 * indices left behind by moved fragments outnumber the live indices, so
+	 * that the forest does not grow with the number of edits.  Indices held
+	 * by the caller are invalid afterwards.
+	 */
+	protected void compactIfSparse()
+	{
+		final int numFragments = fragmentIndices.size();
+		if ( size < Constants.DEFAULT_CAPACITY || size <= 2 * numFragments )
+			return;
+
+		final long[] segments = segmentRoots.keys();
+		final long[][] segmentFragments = new long[ segments.length ][];
+		for ( int k = 0; k < segments.length; ++k )
+			segmentFragments[ k ] = fragmentsOfRoot( segmentRoots.get( segments[ k ] ) );
+
+		fragmentIndices.clear();
+		segmentRoots.clear();
+		size = 0;
+		for ( int k = 0; k < segments.length; ++k )
+			addSegment( segments[ k ], segmentFragments[ k ], segmentFragments[ k ].length );
+	}
+
+	protected long[] fragmentsOfRoot( final int root )
+	{
+		final int first = head[ root ];
+		if ( first == -1 )
+			return new long[ 0 ];
+		final TLongArrayList fragments = new TLongArrayList();
+		int i = first;
+		do
+		{
+			fragments.add( fragmentIds[ i ] );
+			i = next[ i ];
+		}
+		while ( i != first );
+		return fragments.toArray();
+	}
+
+	protected long readSegment( final long fragmentId )
+	{
+		final int i = fragmentIndices.get( fragmentId );
+		return i == -1 ? fragmentId : segmentIds[ root( i ) ];
+	}
+
+	/**
+	 * Get the body that is assigned to a fragment id.  Fragments that were
+	 * never assigned are their own segment.
+	 *
+	 * Reads are optimistic and do not block each other, e.g. when the
+	 * painter threads look up the colors of fragments.  Only a read that
+	 * overlaps with an edit is repeated with a read lock.
 	 *
 	 * @param id
 	 */
 	public long getSegment( final long fragmentId )
 	{
-		final long id;
-		synchronized ( this )
+		long stamp = lock.tryOptimisticRead();
+		if ( stamp != 0 )
 		{
-			final long segmentId = lut.get( fragmentId );
-			if ( segmentId == lut.getNoEntryValue() ) {
-				id = fragmentId;
-				lut.put( fragmentId, id );
-				ilut.put( id, new long[]{ fragmentId } );
+			try
+			{
+				final long segmentId = readSegment( fragmentId );
+				if ( lock.validate( stamp ) )
+					return segmentId;
+			}
+			catch ( final RuntimeException e )
+			{
+				/* read an inconsistent state during an edit */
 			}
-			else
-				id = segmentId;
 		}
-		return id;
+
+		stamp = lock.readLock();
+		try
+		{
+			return readSegment( fragmentId );
+		}
+		finally
+		{
+			lock.unlockRead( stamp );
+		}
 	}
 
 	/**
-	 * Get the segments assigned to a body.
+	 * Get the segments assigned to a body.  A segment id that was never
+	 * assigned is a segment of the fragment with the same id.
 	 *
 	 * @param id
+	 * @return the fragments, {@code null} if the segment has no fragments
 	 */
 	public long[] getFragments( final long segmentId )
 	{
 		final long[] fragments;
 		synchronized ( this )
 		{
-			fragments = ilut.get( segmentId );
+			final int root = segmentRoots.get( segmentId );
+			if ( root != -1 )
+				fragments = fragmentsOfRoot( root );
+			else if ( fragmentIndices.containsKey( segmentId ) )
+				fragments = null;
+			else
+				fragments = new long[]{ segmentId };
 		}
 		return fragments;
 	}
 
+	/**
+	 * Assign a fragment that was never assigned to its own segment, so that
+	 * edits of its segment find it.  Journaled, not recorded for undo.
+	 *
+	 * @param fragmentId
+	 */
+	protected void assignIfUnknown( final long fragmentId )
+	{
+		synchronized ( this )
+		{
+			if ( fragmentIndices.containsKey( fragmentId ) )
+				return;
+
+			final long stamp = lock.writeLock();
+			try
+			{
+				moveFragment( fragmentId, fragmentId );
+			}
+			finally
+			{
+				lock.unlockWrite( stamp );
+			}
+			changed( fragmentId );
+
+			if ( journal != null )
+				journal.assign( new long[]{ fragmentId }, new long[]{ fragmentId } );
+		}
+	}
+
 	/**
 	 * Assign all fragments of segmentId1 to segmentId2.
 	 *
@@ -401,15 +923,34 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		if ( segmentId1 == segmentId2 )
 			return;
 
+		final long[] fragments1;
 		synchronized ( this )
 		{
-			final long[] fragments1 = ilut.get( segmentId1 );
-			final long[] fragments2 = ilut.get( segmentId2 );
-			for ( final long fragmentId : fragments1 )
-				lut.put( fragmentId, segmentId2 );
-			ilut.put( segmentId2, ArrayUtils.addAll( fragments1, fragments2 ) );
-			ilut.remove( segmentId1 );
+			final int root1 = segmentRoots.get( segmentId1 );
+			if ( root1 == -1 )
+				return;
+			fragments1 = undoStack == null ? null : fragmentsOfRoot( root1 );
+			final long stamp = lock.writeLock();
+			try
+			{
+				final int root2 = segmentRoots.get( segmentId2 );
+				final int root = root2 == -1 ? root1 : union( root1, root2, segmentId2 );
+				segmentIds[ root ] = segmentId2;
+				segmentRoots.remove( segmentId1 );
+				segmentRoots.put( segmentId2, root );
+			}
+			finally
+			{
+				lock.unlockWrite( stamp );
+			}
+			changed( segmentId1, segmentId2 );
+
+			if ( journal != null )
+				journal.assignFragments( segmentId1, segmentId2 );
 		}
+
+		if ( undoStack != null )
+			undoStack.pushAssignmentEdit( this, fragments1, filled( fragments1.length, segmentId1 ), filled( fragments1.length, segmentId2 ) );
 	}
 
 	/**
@@ -423,17 +964,74 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 		if ( segmentId1 == segmentId2 )
 			return;
 
-		final long mergedSegmentId = idService.next();
+		mergeSegments( segmentId1, segmentId2, idService.next() );
+	}
+
+	/**
+	 * Merge two segments into a segment with a given id.  Segments without
+	 * fragments are ignored, so replaying a merge that is already included in
+	 * the assignment does nothing.
+	 *
+	 * @param segmentId1
+	 * @param segmentId2
+	 * @param mergedSegmentId
+	 */
+	public void mergeSegments( final long segmentId1, final long segmentId2, final long mergedSegmentId )
+	{
+		if ( segmentId1 == segmentId2 )
+			return;
+
+		final long[] fragments1, fragments2;
 		synchronized ( this )
 		{
-			final long[] fragments1 = ilut.get( segmentId1 );
-			final long[] fragments2 = ilut.get( segmentId2 );
+			final int root1 = segmentRoots.get( segmentId1 );
+			final int root2 = segmentRoots.get( segmentId2 );
+			if ( root1 == -1 && root2 == -1 )
+				return;
+			if ( undoStack == null )
+			{
+				fragments1 = null;
+				fragments2 = null;
+			}
+			else
+			{
+				fragments1 = root1 == -1 ? new long[ 0 ] : fragmentsOfRoot( root1 );
+				fragments2 = root2 == -1 ? new long[ 0 ] : fragmentsOfRoot( root2 );
+			}
+			final long stamp = lock.writeLock();
+			try
+			{
+				segmentRoots.remove( segmentId1 );
+				segmentRoots.remove( segmentId2 );
+				int root;
+				if ( root1 == -1 )
+					root = root2;
+				else if ( root2 == -1 )
+					root = root1;
+				else
+					root = union( root1, root2, mergedSegmentId );
+				final int mergedRoot = segmentRoots.get( mergedSegmentId );
+				if ( mergedRoot != -1 )
+					root = union( root, mergedRoot, mergedSegmentId );
+				segmentIds[ root ] = mergedSegmentId;
+				segmentRoots.put( mergedSegmentId, root );
+			}
+			finally
+			{
+				lock.unlockWrite( stamp );
+			}
+			changed( segmentId1, segmentId2, mergedSegmentId );
+
+			if ( journal != null )
+				journal.mergeSegments( segmentId1, segmentId2, mergedSegmentId );
+		}
+
+		if ( undoStack != null )
+		{
 			final long[] fragments = ArrayUtils.addAll( fragments1, fragments2 );
-			for ( final long fragmentId : fragments )
-				lut.put( fragmentId, mergedSegmentId );
-			ilut.put( mergedSegmentId, fragments );
-			ilut.remove( segmentId1 );
-			ilut.remove( segmentId2 );
+			final long[] segmentsBefore = filled( fragments.length, segmentId2 );
+			Arrays.fill( segmentsBefore, 0, fragments1.length, segmentId1 );
+			undoStack.pushAssignmentEdit( this, fragments, segmentsBefore, filled( fragments.length, mergedSegmentId ) );
 		}
 	}
 
@@ -445,6 +1043,8 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	 */
 	public void mergeFragmentSegments( final long fragmentId1, final long fragmentId2 )
 	{
+		assignIfUnknown( fragmentId1 );
+		assignIfUnknown( fragmentId2 );
 		final long segmentId1, segmentId2;
 		segmentId1 = getSegment( fragmentId1 );
 		segmentId2 = getSegment( fragmentId2 );
@@ -452,25 +1052,168 @@ A:					for ( final Entry< String, JsonElement > entry : ilutJsonEntrySet )
 	}
 
 	/**
-	 * Detach a segment from the body that it has been associated with
+	 * Detach a segment from the body that it has been associated with.  If
+	 * the body has the id of the detached fragment, the remaining fragments
+	 * get a new id, and the detachment is journaled and recorded for undo as
+	 * an explicit assignment of all fragments, so that replay and undo do not
+	 * depend on the id service.
 	 *
 	 * @param fragmentId
 	 */
 	public void detachFragment( final long fragmentId )
 	{
+		final long segmentId;
+		final long[] fragments, segmentsAfter;
 		synchronized ( this )
 		{
-			final long segmentId = lut.get( fragmentId );
-			final long[] fragments = ilut.get( segmentId );
-			if ( fragments != null && fragments.length > 1 )
+			final int i = fragmentIndices.get( fragmentId );
+			if ( i == -1 || next[ i ] == i )
+				return;
+
+			final int root = root( i );
+			segmentId = segmentIds[ root ];
+			final boolean renamed = segmentId == fragmentId;
+			final long remainingSegmentId;
+			if ( renamed )
+			{
+				/* the remaining fragments need a new id */
+				remainingSegmentId = idService.next();
+				fragments = fragmentsOfRoot( root );
+				segmentsAfter = filled( fragments.length, remainingSegmentId );
+				for ( int j = 0; j < fragments.length; ++j )
+					if ( fragments[ j ] == fragmentId )
+						segmentsAfter[ j ] = fragmentId;
+			}
+			else
 			{
-				final long[] newFragments = ArrayUtils.removeElement( fragments, fragmentId );
-				ilut.put( segmentId, newFragments );
+				remainingSegmentId = segmentId;
+				fragments = new long[]{ fragmentId };
+				segmentsAfter = fragments;
+			}
+
+			final long stamp = lock.writeLock();
+			try
+			{
+				if ( renamed )
+				{
+					segmentIds[ root ] = remainingSegmentId;
+					segmentRoots.remove( segmentId );
+					segmentRoots.put( remainingSegmentId, root );
+				}
 
 				final long newSegmentId = fragmentId;
-				lut.put( fragmentId, newSegmentId );
-				ilut.put( newSegmentId, new long[]{ fragmentId } );
+				moveFragment( fragmentId, newSegmentId );
+			}
+			finally
+			{
+				lock.unlockWrite( stamp );
+			}
+
+			changed( segmentId, remainingSegmentId, fragmentId );
+
+			if ( journal != null )
+			{
+				if ( renamed )
+					journal.assign( fragments, segmentsAfter );
+				else
+					journal.detachFragment( fragmentId );
 			}
 		}
+
+		if ( undoStack != null )
+			undoStack.pushAssignmentEdit( this, fragments, filled( fragments.length, segmentId ), segmentsAfter );
+	}
+
+	/**
+	 * Assign each fragment to a segment.  Used to undo and redo edits, not
+	 * recorded for undo.
+	 *
+	 * @param fragments
+	 * @param segments
+	 *            segment of each fragment
+	 */
+	public void assign( final long[] fragments, final long[] segments )
+	{
+		synchronized ( this )
+		{
+			final long[] touched = new long[ 2 * fragments.length ];
+			final long stamp = lock.writeLock();
+			try
+			{
+				for ( int i = 0; i < fragments.length; ++i )
+				{
+					touched[ 2 * i ] = readSegment( fragments[ i ] );
+					touched[ 2 * i + 1 ] = segments[ i ];
+					moveFragment( fragments[ i ], segments[ i ] );
+				}
+			}
+			finally
+			{
+				lock.unlockWrite( stamp );
+			}
+			changed( touched );
+
+			if ( journal != null )
+				journal.assign( fragments, segments );
+		}
+	}
+
+	/**
+	 * Remember the segments touched by an edit and increment the version.
+	 * Called by edits after releasing the write lock, in the monitor of this.
+	 */
+	protected void changed( final long... segmentIds )
+	{
+		changes.addLast( segmentIds );
+		if ( changes.size() > MAX_CHANGES )
+			changes.removeFirst();
+		++version;
+	}
+
+	/**
+	 * The version of the assignment, incremented by each edit.  Readers that
+	 * cache something per segment compare it to the version that they have
+	 * seen last, and evict the segments returned by
+	 * {@link #getChangedSegments(long, long)}.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Get the segments touched by the edits after {@code fromVersion} up to
+	 * and including {@code toVersion}, i.e. the segments that were merged,
+	 * assigned, detached from or created.  Fragments of all other segments
+	 * are assigned to the same segment as before.
+	 *
+	 * @param fromVersion
+	 * @param toVersion
+	 *            at most the current {@link #getVersion() version}
+	 * @return the segments, {@code null} if the edits are no longer
+	 *         remembered, then anything may have changed
+	 */
+	public synchronized long[] getChangedSegments( final long fromVersion, final long toVersion )
+	{
+		final long firstVersion = version - changes.size() + 1;
+		if ( fromVersion + 1 < firstVersion || toVersion > version )
+			return null;
+
+		final TLongHashSet segments = new TLongHashSet();
+		final Iterator< long[] > iterator = changes.descendingIterator();
+		for ( long v = version; v > fromVersion && iterator.hasNext(); --v )
+		{
+			final long[] change = iterator.next();
+			if ( v <= toVersion )
+				segments.addAll( change );
+		}
+		return segments.toArray();
+	}
+
+	static private long[] filled( final int length, final long value )
+	{
+		final long[] array = new long[ length ];
+		Arrays.fill( array, value );
+		return array;
 	}
 }
@@ -16,9 +16,8 @@
  */
 package bdv.bigcat.label;
 
-import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
-import bdv.labels.labelset.Multiset.Entry;
+import bdv.labels.labelset.LongIntConsumer;
 import bdv.viewer.ViewerPanel;
 import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.FinalInterval;
@@ -49,20 +48,7 @@ public class LabelMultiSetIdPicker implements IdPicker
 
 	final static public long getMostSignificantId( final LabelMultisetType t )
 	{
-		long fragmentId = Label.TRANSPARENT;
-		long maxCount = 0;
-		for ( final Entry< Label > entry : t.entrySet() )
-		{
-			final Label label = entry.getElement();
-			final long count = entry.getCount();
-
-			if ( count > maxCount )
-			{
-				maxCount = count;
-				fragmentId = label.id();
-			}
-		}
-		return fragmentId;
+		return t.argMaxId();
 	}
 
 	@Override
@@ -101,11 +87,9 @@ public class LabelMultiSetIdPicker implements IdPicker
 								RealViews.affine( labels, viewerTransform ), 2, 0 ),
 						new FinalInterval( w, h ) );
 
+		final LongIntConsumer addId = ( id, count ) -> visibleIds.add( id );
 		for ( final LabelMultisetType pixel : Views.iterable( screenLabels ) )
-		{
-			for ( final Entry< Label > entry : pixel.entrySet() )
-					visibleIds.add( entry.getElement().id() );
-		}
+			pixel.forEach( addId );
 
 		return visibleIds;
 	}
@@ -20,7 +20,7 @@ import bdv.bigcat.ui.GoldenAngleSaturatedARGBStream;
 import bdv.bigcat.ui.PairLabelMultisetLongARGBConverter;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
-import bdv.labels.labelset.Multiset.Entry;
+import bdv.labels.labelset.LongIntConsumer;
 import bdv.util.LocalIdService;
 import bdv.viewer.ViewerPanel;
 import gnu.trove.set.hash.TLongHashSet;
@@ -103,14 +103,13 @@ public class PairLabelMultiSetLongIdPicker implements IdPicker
 								RealViews.affine( labels, viewerTransform ), 2, 0 ),
 						new FinalInterval( w, h ) );
 
+		final LongIntConsumer addId = ( id, count ) -> visibleIds.add( id );
 		for ( final Pair< LabelMultisetType, LongType > pixel : Views.iterable( screenLabels ) )
 		{
 			final long b = pixel.getB().get();
 			if ( b == Label.TRANSPARENT )
 			{
-				final LabelMultisetType a = pixel.getA();
-				for ( final Entry< Label > entry : a.entrySet() )
-					visibleIds.add( entry.getElement().id() );
+				pixel.getA().forEach( addId );
 			}
 			else
 				visibleIds.add( b );
@@ -0,0 +1,134 @@
+package bdv.bigcat.label;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+import bdv.labels.labelset.LabelMultisetType;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Tests whether a label multiset contains any fragment of a segment.
+ *
+ * The test is chosen by size: for segments with few fragments, each fragment
+ * is looked up in the multiset. For larger segments, the ids of the multiset
+ * are looked up in a hash set of the fragments, or, if the multiset has at
+ * least as many entries as the segment has fragments, the sorted ids of the
+ * multiset and the sorted fragments are merged.
+ *
+ * Instances are immutable and can be shared between threads.
+ */
+public class SegmentMembership implements Predicate< LabelMultisetType >
+{
+	/**
+	 * segments with at most this many fragments are tested by looking up
+	 * each fragment
+	 */
+	static public int MAX_LOOKUP_FRAGMENTS = 8;
+
+	final protected long[] fragments;
+
+	/**
+	 * {@code null} for small segments
+	 */
+	final protected TLongHashSet fragmentSet;
+
+	/**
+	 * @param fragments
+	 *            fragments of the segment, {@code null} for none
+	 */
+	public SegmentMembership( final long[] fragments )
+	{
+		if ( fragments == null )
+			this.fragments = new long[ 0 ];
+		else
+		{
+			this.fragments = fragments.clone();
+			Arrays.sort( this.fragments );
+		}
+		fragmentSet = this.fragments.length > MAX_LOOKUP_FRAGMENTS ? new TLongHashSet( this.fragments ) : null;
+	}
+
+	/**
+	 * Membership in the segment that {@code fragmentId} is assigned to.
+	 *
+	 * @param assignment
+	 * @param fragmentId
+	 */
+	public SegmentMembership( final FragmentSegmentAssignment assignment, final long fragmentId )
+	{
+		this( assignment.getFragments( assignment.getSegment( fragmentId ) ) );
+	}
+
+	public int numFragments()
+	{
+		return fragments.length;
+	}
+
+	public boolean contains( final long fragmentId )
+	{
+		return fragmentSet == null ? Arrays.binarySearch( fragments, fragmentId ) >= 0 : fragmentSet.contains( fragmentId );
+	}
+
+	/**
+	 * Whether {@code labels} contains any fragment of the segment.
+	 *
+	 * @param labels
+	 */
+	public boolean containsAny( final LabelMultisetType labels )
+	{
+		if ( fragmentSet == null )
+		{
+			for ( final long fragment : fragments )
+				if ( labels.contains( fragment ) )
+					return true;
+			return false;
+		}
+
+		final int numEntries = labels.numEntries();
+		if ( numEntries < fragments.length )
+		{
+			for ( int i = 0; i < numEntries; ++i )
+				if ( fragmentSet.contains( labels.idAt( i ) ) )
+					return true;
+			return false;
+		}
+
+		/* both sorted by id */
+		for ( int i = 0, j = 0; i < numEntries && j < fragments.length; )
+		{
+			final long id = labels.idAt( i );
+			final long fragment = fragments[ j ];
+			if ( id == fragment )
+				return true;
+			else if ( id < fragment )
+				++i;
+			else
+				++j;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether all ids in {@code labels} are fragments of the segment, e.g.
+	 * whether all voxels summarized by a downsampled multiset belong to the
+	 * segment.
+	 *
+	 * @param labels
+	 */
+	public boolean containsOnly( final LabelMultisetType labels )
+	{
+		final int numEntries = labels.numEntries();
+		if ( numEntries == 0 )
+			return false;
+		for ( int i = 0; i < numEntries; ++i )
+			if ( !contains( labels.idAt( i ) ) )
+				return false;
+		return true;
+	}
+
+	@Override
+	public boolean test( final LabelMultisetType labels )
+	{
+		return containsAny( labels );
+	}
+}
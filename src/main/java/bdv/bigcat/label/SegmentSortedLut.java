@@ -0,0 +1,356 @@
+package bdv.bigcat.label;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Fragment to segment lookup table sorted by segment, and its binary
+ * format, a stream of segments that can be written incrementally and read in
+ * one pass straight into a {@link FragmentSegmentAssignment}.
+ *
+ * <p>
+ * The format is big endian
+ * <pre>
+ * int magic, long numSegments, long numFragments,
+ * { long segmentId, int numFragments, long[ numFragments ] fragmentIds }*,
+ * long segmentId, int 0
+ * </pre>
+ * with segments in ascending order. The counts in the header are used to
+ * size the tables of the reader, they are -1 if the writer did not know them
+ * in advance.  The reader fails with an {@link IOException} on counts that
+ * are negative or do not match the stream.
+ */
+public class SegmentSortedLut
+{
+	static final int MAGIC = 0x4c555431;
+
+	static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * segment ids in ascending order
+	 */
+	final protected long[] segments;
+
+	/**
+	 * the fragments of {@code segments[ i ]} are
+	 * {@code fragments[ offsets[ i ] ]} to
+	 * {@code fragments[ offsets[ i + 1 ] - 1 ]}
+	 */
+	final protected int[] offsets;
+
+	final protected long[] fragments;
+
+	public SegmentSortedLut( final long[] segments, final int[] offsets, final long[] fragments )
+	{
+		assert offsets.length == segments.length + 1 : "need one offset per segment and the end";
+
+		this.segments = segments;
+		this.offsets = offsets;
+		this.fragments = fragments;
+	}
+
+	public int numSegments()
+	{
+		return segments.length;
+	}
+
+	public int numFragments()
+	{
+		return fragments.length;
+	}
+
+	public void write( final Writer writer ) throws IOException
+	{
+		for ( int i = 0; i < segments.length; ++i )
+			writer.write( segments[ i ], fragments, offsets[ i ], offsets[ i + 1 ] - offsets[ i ] );
+	}
+
+	/**
+	 * Write into a temporary file next to {@code file} and move it over
+	 * {@code file}, so that {@code file} is never left partially written.
+	 */
+	public void write( final File file ) throws IOException
+	{
+		final File directory = file.getAbsoluteFile().getParentFile();
+		final File tmpFile = File.createTempFile( "." + file.getName() + "-", ".tmp", directory );
+		try
+		{
+			try ( final Writer writer = new Writer( tmpFile, segments.length, fragments.length ) )
+			{
+				write( writer );
+			}
+			try
+			{
+				Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+			}
+			catch ( final AtomicMoveNotSupportedException e )
+			{
+				Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+		}
+		finally
+		{
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Writes segments in ascending order.
+	 */
+	static public class Writer implements Closeable
+	{
+		final protected WritableByteChannel channel;
+
+		final protected ByteBuffer buffer = ByteBuffer.allocateDirect( BUFFER_SIZE );
+
+		protected long lastSegmentId = Long.MIN_VALUE;
+
+		protected boolean first = true;
+
+		/**
+		 * @param channel
+		 * @param numSegments
+		 *            number of segments that will be written, -1 if not known
+		 * @param numFragments
+		 *            number of fragments that will be written, -1 if not
+		 *            known
+		 */
+		public Writer( final WritableByteChannel channel, final long numSegments, final long numFragments ) throws IOException
+		{
+			this.channel = channel;
+			buffer.putInt( MAGIC );
+			buffer.putLong( numSegments );
+			buffer.putLong( numFragments );
+		}
+
+		public Writer( final File file, final long numSegments, final long numFragments ) throws IOException
+		{
+			this(
+					FileChannel.open(
+							file.toPath(),
+							StandardOpenOption.CREATE,
+							StandardOpenOption.TRUNCATE_EXISTING,
+							StandardOpenOption.WRITE ),
+					numSegments,
+					numFragments );
+		}
+
+		/**
+		 * Write a segment with {@code length} fragments from
+		 * {@code fragments[ offset ]}.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the segment is not after the last written segment
+		 *             or has no fragments
+		 */
+		public void write( final long segmentId, final long[] fragments, final int offset, final int length ) throws IOException
+		{
+			if ( !first && segmentId <= lastSegmentId )
+				throw new IllegalArgumentException( "Segment " + segmentId + " written after segment " + lastSegmentId + "." );
+			if ( length == 0 )
+				throw new IllegalArgumentException( "Segment " + segmentId + " has no fragments." );
+
+			first = false;
+			lastSegmentId = segmentId;
+			reserve( 12 );
+			buffer.putLong( segmentId );
+			buffer.putInt( length );
+			for ( int i = offset; i < offset + length; ++i )
+			{
+				reserve( 8 );
+				buffer.putLong( fragments[ i ] );
+			}
+		}
+
+		public void write( final long segmentId, final long[] fragments ) throws IOException
+		{
+			write( segmentId, fragments, 0, fragments.length );
+		}
+
+		protected void reserve( final int numBytes ) throws IOException
+		{
+			if ( buffer.remaining() < numBytes )
+				flush();
+		}
+
+		protected void flush() throws IOException
+		{
+			buffer.flip();
+			while ( buffer.hasRemaining() )
+				channel.write( buffer );
+			buffer.clear();
+		}
+
+		/**
+		 * Terminate the stream and close the channel.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			reserve( 12 );
+			buffer.putLong( 0 );
+			buffer.putInt( 0 );
+			flush();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads segments one after the other into a reused buffer.
+	 */
+	static public class Reader implements Closeable
+	{
+		final protected ReadableByteChannel channel;
+
+		final protected ByteBuffer buffer = ByteBuffer.allocateDirect( BUFFER_SIZE );
+
+		final protected long numSegments;
+
+		final protected long numFragments;
+
+		protected long segmentId;
+
+		protected long[] fragments = new long[ 1024 ];
+
+		protected int size = 0;
+
+		protected long numReadSegments = 0;
+
+		protected long numReadFragments = 0;
+
+		public Reader( final ReadableByteChannel channel ) throws IOException
+		{
+			this.channel = channel;
+			buffer.limit( 0 );
+			require( 20 );
+			if ( buffer.getInt() != MAGIC )
+				throw new IOException( "Not a segment sorted lookup table." );
+			numSegments = buffer.getLong();
+			numFragments = buffer.getLong();
+			final long remainingBytes = remainingBytes();
+			if ( numSegments < -1 || numFragments < -1 || numSegments > remainingBytes / 12 || numFragments > remainingBytes / 8 )
+				throw new IOException( "Corrupt segment sorted lookup table, header counts " + numSegments + " segments and " + numFragments + " fragments." );
+		}
+
+		public Reader( final File file ) throws IOException
+		{
+			this( FileChannel.open( file.toPath(), StandardOpenOption.READ ) );
+		}
+
+		/**
+		 * @return number of segments in the stream, -1 if not known
+		 */
+		public long numSegments()
+		{
+			return numSegments;
+		}
+
+		/**
+		 * @return number of fragments in the stream, -1 if not known
+		 */
+		public long numFragments()
+		{
+			return numFragments;
+		}
+
+		/**
+		 * Read the next segment.  The fragment buffer grows with the
+		 * fragments that were actually read, so that a corrupt size in a
+		 * stream of unknown length fails at the end of the stream instead
+		 * of allocating it.
+		 *
+		 * @return {@code false} at the end of the stream
+		 * @throws IOException
+		 *             if the size of the segment is negative, exceeds the
+		 *             remaining bytes or the fragment count of the header,
+		 *             or if the stream ends with other counts than in the
+		 *             header
+		 */
+		public boolean next() throws IOException
+		{
+			require( 12 );
+			segmentId = buffer.getLong();
+			size = buffer.getInt();
+			if ( size == 0 )
+			{
+				if ( ( numSegments != -1 && numReadSegments != numSegments ) || ( numFragments != -1 && numReadFragments != numFragments ) )
+					throw new IOException( "Corrupt segment sorted lookup table, read " + numReadSegments + " segments and " + numReadFragments + " fragments instead of " + numSegments + " and " + numFragments + "." );
+				return false;
+			}
+			if ( size < 0 || 8L * size > remainingBytes() || ( numFragments != -1 && numReadFragments + size > numFragments ) )
+				throw new IOException( "Corrupt segment sorted lookup table, segment " + segmentId + " has " + size + " fragments." );
+			for ( int i = 0; i < size; ++i )
+			{
+				if ( i == fragments.length )
+					fragments = Arrays.copyOf( fragments, ( int ) Math.min( size, 2L * fragments.length ) );
+				require( 8 );
+				fragments[ i ] = buffer.getLong();
+			}
+			++numReadSegments;
+			numReadFragments += size;
+			return true;
+		}
+
+		public long segmentId()
+		{
+			return segmentId;
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		/**
+		 * @return the fragments of the current segment in the first
+		 *         {@link #size()} elements, overwritten by {@link #next()}
+		 */
+		public long[] fragments()
+		{
+			return fragments;
+		}
+
+		/**
+		 * @return the number of bytes left in the stream, or
+		 *         {@link Long#MAX_VALUE} if the channel does not know it
+		 */
+		protected long remainingBytes() throws IOException
+		{
+			if ( channel instanceof SeekableByteChannel )
+			{
+				final SeekableByteChannel seekableChannel = ( SeekableByteChannel ) channel;
+				return seekableChannel.size() - seekableChannel.position() + buffer.remaining();
+			}
+			return Long.MAX_VALUE;
+		}
+
+		protected void require( final int numBytes ) throws IOException
+		{
+			if ( buffer.remaining() >= numBytes )
+				return;
+			buffer.compact();
+			while ( buffer.position() < numBytes )
+				if ( channel.read( buffer ) == -1 )
+					throw new EOFException( "Truncated segment sorted lookup table." );
+			buffer.flip();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+}
@@ -25,6 +25,11 @@ import gnu.trove.map.hash.TLongIntHashMap;
 /**
  * Generates and caches a stream of colors.
  *
+ * Colors are cached by segment.  Highlighting of the active fragment and
+ * segment is applied after the lookup, so that selecting does not invalidate
+ * the cache.  Edits of the {@link FragmentSegmentAssignment} evict only the
+ * segments that they touched.
+ *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
 abstract public class AbstractARGBStream implements ARGBStream
@@ -40,11 +45,17 @@ abstract public class AbstractARGBStream implements ARGBStream
 	protected long activeFragment = 0l;
 	protected long activeSegment = 0l;
 
+	/**
+	 * version of the assignment that the cache is consistent with
+	 */
+	protected volatile long assignmentVersion = 0;
+
 	final protected FragmentSegmentAssignment assignment;
 
 	public AbstractARGBStream( final FragmentSegmentAssignment assignment )
 	{
 		this.assignment = assignment;
+		assignmentVersion = assignment.getVersion();
 	}
 
 	protected TLongIntHashMap fragmentARGBCache = new TLongIntHashMap(
@@ -101,7 +112,6 @@ abstract public class AbstractARGBStream implements ARGBStream
 	{
 		activeFragment = fragmentId;
 		activeSegment = assignment.getSegment( fragmentId );
-		clearCache();
 	}
 
 
@@ -124,7 +134,6 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setActiveFragmentAlpha( final int alpha )
 	{
 		this.activeFragmentAlpha = alpha << 24;
-		clearCache();
 	}
 
 	/**
@@ -135,12 +144,64 @@ abstract public class AbstractARGBStream implements ARGBStream
 	public void setActiveSegmentAlpha( final int alpha )
 	{
 		this.activeSegmentAlpha = alpha << 24;
-		clearCache();
 	}
 
 	public void clearCache()
 	{
-		fragmentARGBCache.clear();
-		segmentARGBCache.clear();
+		synchronized ( fragmentARGBCache )
+		{
+			fragmentARGBCache.clear();
+		}
+		synchronized ( segmentARGBCache )
+		{
+			segmentARGBCache.clear();
+		}
+	}
+
+	/**
+	 * Remove the cached colors of segments, e.g. when their appearance
+	 * changed.
+	 *
+	 * @param segmentIds
+	 */
+	public void evictSegments( final long... segmentIds )
+	{
+		synchronized ( fragmentARGBCache )
+		{
+			for ( final long segmentId : segmentIds )
+				fragmentARGBCache.remove( segmentId );
+		}
+		synchronized ( segmentARGBCache )
+		{
+			for ( final long segmentId : segmentIds )
+				segmentARGBCache.remove( segmentId );
+		}
+	}
+
+	/**
+	 * Evict the segments that were touched by edits of the assignment since
+	 * the last call, or clear the cache if the assignment does not remember
+	 * them anymore, and update the active segment.  Called on each lookup,
+	 * costs a volatile read if the assignment did not change.
+	 */
+	protected void syncWithAssignment()
+	{
+		final long version = assignment.getVersion();
+		if ( version > assignmentVersion )
+		{
+			synchronized ( this )
+			{
+				if ( version > assignmentVersion )
+				{
+					final long[] segmentIds = assignment.getChangedSegments( assignmentVersion, version );
+					if ( segmentIds == null )
+						clearCache();
+					else
+						evictSegments( segmentIds );
+					activeSegment = assignment.getSegment( activeFragment );
+					assignmentVersion = version;
+				}
+			}
+		}
 	}
 }
\ No newline at end of file
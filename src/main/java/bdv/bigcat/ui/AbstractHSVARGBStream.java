@@ -38,12 +38,16 @@ abstract public class AbstractHSVARGBStream extends AbstractARGBStream
 	{
 		if ( fragmentId == Label.TRANSPARENT )
 			return 0;
+		syncWithAssignment();
 		final long segmentId = assignment.getSegment( fragmentId );
 		int argb = fragmentARGBCache.get( segmentId );
 		if ( argb == 0x00000000 )
 		{
 			argb = id2argb( seed + segmentId );
-			fragmentARGBCache.put( segmentId, argb );
+			synchronized ( fragmentARGBCache )
+			{
+				fragmentARGBCache.put( segmentId, argb );
+			}
 		}
 		if ( activeFragment == fragmentId )
 			argb = argb & 0x00ffffff | activeFragmentAlpha;
@@ -42,6 +42,7 @@ abstract public class AbstractSaturatedARGBStream extends AbstractARGBStream
 	@Override
 	public int argb( final long fragmentId )
 	{
+		syncWithAssignment();
 		final long segmentId = assignment.getSegment( fragmentId );
 		int argb = fragmentARGBCache.get( segmentId );
 		if ( argb == 0x00000000 )
@@ -28,6 +28,9 @@ import bdv.bigcat.label.SegmentAssignment;
  * angle, making them reasonably distinct.  Changing the seed of the stream
  * makes a new sequence.
  *
+ * The visibility modes are applied after the color lookup, so that changing
+ * the mode does not invalidate the cache.
+ *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
 public class ModalGoldenAngleSaturatedARGBStream extends GoldenAngleSaturatedARGBStream implements Wheel
@@ -55,7 +58,6 @@ public class ModalGoldenAngleSaturatedARGBStream extends GoldenAngleSaturatedARG
 		++mode;
 		if ( mode == 3 )
 			mode = 0;
-		clearCache();
 	}
 
 	@Override
@@ -64,14 +66,12 @@ public class ModalGoldenAngleSaturatedARGBStream extends GoldenAngleSaturatedARG
 		--mode;
 		if ( mode == -1 )
 			mode = 2;
-		clearCache();
 	}
 
 	@Override
 	public void setMode( final int value )
 	{
 		mode = value % 3;
-		clearCache();
 	}
 
 	@Override
@@ -83,48 +83,40 @@ public class ModalGoldenAngleSaturatedARGBStream extends GoldenAngleSaturatedARG
 	@Override
 	public int argb( final long fragmentId )
 	{
-		int argb = fragmentARGBCache.get( fragmentId );
+		syncWithAssignment();
+		final long segmentId = assignment.getSegment( fragmentId );
+
+		int argb = segmentARGBCache.get( segmentId );
 
 		if ( argb == 0x00000000 )
 		{
-			final long segmentId = assignment.getSegment( fragmentId );
+			double x = getDouble( seed + segmentId );
+			x *= 6.0;
+			final int k = ( int )x;
+			final int l = k + 1;
+			final double u = x - k;
+			final double v = 1.0 - u;
 
-			argb = segmentARGBCache.get( segmentId );
+			final int r = interpolate( rs, k, l, u, v );
+			final int g = interpolate( gs, k, l, u, v );
+			final int b = interpolate( bs, k, l, u, v );
 
-			if ( argb == 0x00000000 )
-			{
-				double x = getDouble( seed + segmentId );
-				x *= 6.0;
-				final int k = ( int )x;
-				final int l = k + 1;
-				final double u = x - k;
-				final double v = 1.0 - u;
-
-				final int r = interpolate( rs, k, l, u, v );
-				final int g = interpolate( gs, k, l, u, v );
-				final int b = interpolate( bs, k, l, u, v );
-
-				argb = argb( r, g, b, alpha );
-
-				if ( ( mode == SELECTED_ONLY && segmentId != activeSegment ) || ( mode == HIDE_COMPLETE && completeSegments.contains( segmentId ) ) )
-					argb = argb & 0x00ffffff;
-				else if ( activeSegment == segmentId )
-					argb = argb & 0x00ffffff | activeSegmentAlpha;
-
-				synchronized ( segmentARGBCache )
-				{
-					segmentARGBCache.put( segmentId, argb );
-				}
-			}
-			if ( activeFragment == fragmentId && ( argb & 0xff000000 ) != 0 )
-				argb = argb & 0x00ffffff | activeFragmentAlpha;
+			argb = argb( r, g, b, alpha );
 
-			synchronized ( fragmentARGBCache )
+			synchronized ( segmentARGBCache )
 			{
-				fragmentARGBCache.put( fragmentId, argb );
+				segmentARGBCache.put( segmentId, argb );
 			}
 		}
 
-		return argb;
+		final int m = mode;
+		if ( ( m == SELECTED_ONLY && segmentId != activeSegment ) || ( m == HIDE_COMPLETE && completeSegments.contains( segmentId ) ) )
+			return argb & 0x00ffffff;
+		else if ( activeFragment == fragmentId )
+			return argb & 0x00ffffff | activeFragmentAlpha;
+		else if ( activeSegment == segmentId )
+			return argb & 0x00ffffff | activeSegmentAlpha;
+		else
+			return argb;
 	}
 }
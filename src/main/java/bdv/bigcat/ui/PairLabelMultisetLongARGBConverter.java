@@ -18,7 +18,6 @@ package bdv.bigcat.ui;
 
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultisetType;
-import bdv.labels.labelset.Multiset.Entry;
 import net.imglib2.converter.Converter;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.LongType;
@@ -47,11 +46,12 @@ public class PairLabelMultisetLongARGBConverter
 		double b = 0;
 		double alphaCountSize = 0;
 
-		for ( final Entry< Label > entry : input.entrySet() )
+		final int n = input.numEntries();
+		for ( int i = 0; i < n; ++i )
 		{
-			final int argb = argbStream.argb( entry.getElement().id() );
+			final int argb = argbStream.argb( input.idAt( i ) );
 			final double alpha = ARGBType.alpha( argb );
-			final double alphaCount = alpha * iFF * entry.getCount();
+			final double alphaCount = alpha * iFF * input.countAt( i );
 			a += alphaCount * alpha;
 			r += alphaCount * ARGBType.red( argb );
 			g += alphaCount * ARGBType.green( argb );
@@ -17,7 +17,7 @@
 package bdv.bigcat.ui;
 
 import bdv.labels.labelset.Label;
-import bdv.labels.labelset.Multiset.Entry;
+import bdv.labels.labelset.LabelMultisetType;
 import bdv.labels.labelset.VolatileLabelMultisetType;
 import net.imglib2.converter.Converter;
 import net.imglib2.type.numeric.ARGBType;
@@ -48,11 +48,13 @@ public class PairVolatileLabelMultisetLongARGBConverter
 		double b = 0;
 		double alphaCountSize = 0;
 
-		for ( final Entry< Label > entry : input.get().entrySet() )
+		final LabelMultisetType t = input.get();
+		final int n = t.numEntries();
+		for ( int i = 0; i < n; ++i )
 		{
-			final int argb = argbStream.argb( entry.getElement().id() );
+			final int argb = argbStream.argb( t.idAt( i ) );
 			final double alpha = ARGBType.alpha( argb );
-			final double alphaCount = alpha * iFF * entry.getCount();
+			final double alphaCount = alpha * iFF * t.countAt( i );
 			a += alphaCount * alpha;
 			r += alphaCount * ARGBType.red( argb );
 			g += alphaCount * ARGBType.green( argb );
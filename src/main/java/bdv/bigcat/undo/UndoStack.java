@@ -0,0 +1,305 @@
+package bdv.bigcat.undo;
+
+import java.util.ArrayDeque;
+
+import bdv.bigcat.journal.EditJournal;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.bigcat.util.DirtyInterval;
+import bdv.img.SparseLabelCanvas;
+import bdv.img.SparseLabelCanvas.CellImages;
+import net.imglib2.Interval;
+
+/**
+ * Undo and redo of canvas edits and fragment segment assignment changes.
+ *
+ * A canvas edit stores run length encoded images of only the canvas cells
+ * that it modified, recorded by the {@link SparseLabelCanvas} between
+ * {@link #beginCanvasEdit()} and {@link #endCanvasEdit()}. Undo swaps the
+ * images with the current cells, so the same images serve for redo. An
+ * assignment edit stores the segments of the fragments that it reassigned
+ * before and after.
+ *
+ * The oldest edits are dropped when the edits use more than the memory
+ * budget, the most recent edit is always kept.
+ */
+public class UndoStack
+{
+	abstract static protected class Edit
+	{
+		abstract protected long getBytes();
+
+		abstract protected void undo();
+
+		abstract protected void redo();
+	}
+
+	protected class CanvasEdit extends Edit
+	{
+		protected CellImages images;
+
+		protected CanvasEdit( final CellImages images )
+		{
+			this.images = images;
+		}
+
+		@Override
+		protected long getBytes()
+		{
+			return images.getBytes();
+		}
+
+		protected void swap()
+		{
+			images = canvas.swapCells( images );
+			for ( int i = 0; i < images.numCells(); ++i )
+			{
+				final Interval cell = canvas.getCellInterval( images.getCellIndex( i ) );
+				dirtyLabelsInterval.touch( cell );
+				if ( journal != null )
+					journal.cells( canvas, cell );
+			}
+		}
+
+		@Override
+		protected void undo()
+		{
+			swap();
+		}
+
+		@Override
+		protected void redo()
+		{
+			swap();
+		}
+	}
+
+	static protected class AssignmentEdit extends Edit
+	{
+		final protected FragmentSegmentAssignment assignment;
+
+		final protected long[] fragments;
+
+		final protected long[] segmentsBefore;
+
+		final protected long[] segmentsAfter;
+
+		protected AssignmentEdit(
+				final FragmentSegmentAssignment assignment,
+				final long[] fragments,
+				final long[] segmentsBefore,
+				final long[] segmentsAfter )
+		{
+			this.assignment = assignment;
+			this.fragments = fragments;
+			this.segmentsBefore = segmentsBefore;
+			this.segmentsAfter = segmentsAfter;
+		}
+
+		@Override
+		protected long getBytes()
+		{
+			return 24L * fragments.length;
+		}
+
+		@Override
+		protected void undo()
+		{
+			assignment.assign( fragments, segmentsBefore );
+		}
+
+		@Override
+		protected void redo()
+		{
+			assignment.assign( fragments, segmentsAfter );
+		}
+	}
+
+	final protected SparseLabelCanvas canvas;
+
+	final protected DirtyInterval dirtyLabelsInterval;
+
+	protected EditJournal journal = null;
+
+	protected long maxBytes;
+
+	/**
+	 * bytes used by all edits, guarded by this
+	 */
+	protected long bytes = 0;
+
+	/**
+	 * most recent first, guarded by this
+	 */
+	final protected ArrayDeque< Edit > undoEdits = new ArrayDeque<>();
+
+	/**
+	 * next to redo first, guarded by this
+	 */
+	final protected ArrayDeque< Edit > redoEdits = new ArrayDeque<>();
+
+	/**
+	 * number of canvas edits in progress, they are recorded as one edit,
+	 * guarded by this
+	 */
+	protected int canvasEditDepth = 0;
+
+	/**
+	 * @param canvas
+	 * @param dirtyLabelsInterval
+	 *            touched by undo and redo of canvas edits
+	 * @param maxBytes
+	 *            memory budget
+	 */
+	public UndoStack(
+			final SparseLabelCanvas canvas,
+			final DirtyInterval dirtyLabelsInterval,
+			final long maxBytes )
+	{
+		this.canvas = canvas;
+		this.dirtyLabelsInterval = dirtyLabelsInterval;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Journal undo and redo.
+	 *
+	 * @param journal
+	 *            the journal, or {@code null} to not journal undo and redo
+	 */
+	public void setJournal( final EditJournal journal )
+	{
+		this.journal = journal;
+	}
+
+	public synchronized void setMemoryBudget( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		evictIfOverBudget();
+	}
+
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public synchronized int numUndoEdits()
+	{
+		return undoEdits.size();
+	}
+
+	public synchronized int numRedoEdits()
+	{
+		return redoEdits.size();
+	}
+
+	/**
+	 * Start recording a canvas edit, e.g. a brush stroke or a fill. Canvas
+	 * edits that begin while another canvas edit is in progress, e.g. brush
+	 * strokes during a fill that runs in the background, are recorded as part
+	 * of that edit.
+	 */
+	public synchronized void beginCanvasEdit()
+	{
+		if ( canvasEditDepth++ == 0 )
+			canvas.startRecording();
+	}
+
+	/**
+	 * End recording a canvas edit. The recorded edit is pushed when the
+	 * outermost canvas edit ends.
+	 */
+	public synchronized void endCanvasEdit()
+	{
+		if ( canvasEditDepth == 0 || --canvasEditDepth > 0 )
+			return;
+		final CellImages images = canvas.stopRecording();
+		if ( images.numCells() > 0 )
+			push( new CanvasEdit( images ) );
+	}
+
+	/**
+	 * Record a reassignment of fragments.
+	 *
+	 * @param assignment
+	 * @param fragments
+	 * @param segmentsBefore
+	 *            segment of each fragment before the edit
+	 * @param segmentsAfter
+	 *            segment of each fragment after the edit
+	 */
+	public synchronized void pushAssignmentEdit(
+			final FragmentSegmentAssignment assignment,
+			final long[] fragments,
+			final long[] segmentsBefore,
+			final long[] segmentsAfter )
+	{
+		if ( fragments.length > 0 )
+			push( new AssignmentEdit( assignment, fragments, segmentsBefore, segmentsAfter ) );
+	}
+
+	protected void push( final Edit edit )
+	{
+		for ( final Edit redoEdit : redoEdits )
+			bytes -= redoEdit.getBytes();
+		redoEdits.clear();
+
+		undoEdits.push( edit );
+		bytes += edit.getBytes();
+		evictIfOverBudget();
+	}
+
+	protected void evictIfOverBudget()
+	{
+		while ( bytes > maxBytes && redoEdits.size() > 0 )
+			bytes -= redoEdits.removeLast().getBytes();
+		while ( bytes > maxBytes && undoEdits.size() > 1 )
+			bytes -= undoEdits.removeLast().getBytes();
+	}
+
+	public synchronized boolean isCanvasEditInProgress()
+	{
+		return canvasEditDepth > 0;
+	}
+
+	/**
+	 * Undo the most recent edit.
+	 *
+	 * @return false if there was nothing to undo or a canvas edit is in
+	 *         progress
+	 */
+	public synchronized boolean undo()
+	{
+		if ( canvasEditDepth > 0 )
+			return false;
+		final Edit edit = undoEdits.poll();
+		if ( edit == null )
+			return false;
+
+		bytes -= edit.getBytes();
+		edit.undo();
+		bytes += edit.getBytes();
+		redoEdits.push( edit );
+		return true;
+	}
+
+	/**
+	 * Redo the most recently undone edit.
+	 *
+	 * @return false if there was nothing to redo or a canvas edit is in
+	 *         progress
+	 */
+	public synchronized boolean redo()
+	{
+		if ( canvasEditDepth > 0 )
+			return false;
+		final Edit edit = redoEdits.poll();
+		if ( edit == null )
+			return false;
+
+		bytes -= edit.getBytes();
+		edit.redo();
+		bytes += edit.getBytes();
+		undoEdits.push( edit );
+		return true;
+	}
+}
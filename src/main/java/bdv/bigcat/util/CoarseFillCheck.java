@@ -0,0 +1,142 @@
+package bdv.bigcat.util;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import bdv.bigcat.control.LabelFillController;
+import bdv.bigcat.control.LabelFillController.SegmentAndPaintFilter1;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.n5.N5LabelMultisetSetupImageLoader;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.util.LocalIdService;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Checks that coarse to fine fills with a {@link CoarseFillMask} fill the
+ * same voxels as fills at full resolution only, from random seeds in a crop of
+ * a label dataset with scale levels, e.g. the sample dataset converted to N5
+ * with its scale group {@code <label>-scales}.
+ *
+ * Usage: {@code CoarseFillCheck <n5> <label dataset> [level] [seeds]}
+ */
+public class CoarseFillCheck
+{
+	static final long[] cropDimensions = { 512, 512, 64 };
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final N5Reader n5 = new N5FSReader( args[ 0 ] );
+		final String label = args[ 1 ];
+		final int level = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 1;
+		final int numSeeds = args.length > 3 ? Integer.parseInt( args[ 3 ] ) : 20;
+
+		final N5LabelMultisetSetupImageLoader loader = new N5LabelMultisetSetupImageLoader(
+				n5,
+				label,
+				label + "-scales",
+				0,
+				new VolatileGlobalCellCache( level + 1, 12 ) );
+		final RandomAccessibleInterval< LabelMultisetType > labels = loader.getImage( 0, 0 );
+		final RandomAccessibleInterval< LabelMultisetType > coarseLabels = loader.getImage( 0, level );
+		final double[][] resolutions = loader.getMipmapResolutions();
+		final int[] factors = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			factors[ d ] = ( int ) Math.round( resolutions[ level ][ d ] / resolutions[ 0 ][ d ] );
+
+		final long[] cropMin = new long[ 3 ];
+		final long[] cropMax = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			cropMin[ d ] = Math.max( 0, labels.dimension( d ) / 2 - cropDimensions[ d ] / 2 );
+			cropMax[ d ] = Math.min( labels.max( d ), cropMin[ d ] + cropDimensions[ d ] - 1 );
+		}
+		final Interval crop = new FinalInterval( cropMin, cropMax );
+
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( new LocalIdService() );
+		final Random rnd = new Random( 0 );
+		int numDifferent = 0;
+		for ( int i = 0; i < numSeeds; ++i )
+		{
+			final Point seed = new Point( 3 );
+			for ( int d = 0; d < 3; ++d )
+				seed.setPosition( cropMin[ d ] + ( long ) ( rnd.nextDouble() * crop.dimension( d ) ), d );
+
+			final SegmentAndPaintFilter1 filter = new SegmentAndPaintFilter1(
+					Label.TRANSPARENT,
+					LabelFillController.getBiggestLabel( labels, seed ),
+					assignment );
+
+			final RandomAccessibleInterval< LongType > reference = createCanvas( crop );
+			final RandomAccessibleInterval< LongType > result = createCanvas( crop );
+			final int[] blockSize = { 64, 64, 64 };
+
+			long t = System.currentTimeMillis();
+			new ScanlineFloodFill( labels, reference, blockSize ).fill( seed, 1, filter );
+			final long referenceTime = System.currentTimeMillis() - t;
+
+			t = System.currentTimeMillis();
+			final ScanlineFloodFill floodFill = new ScanlineFloodFill( labels, result, blockSize );
+			final CoarseFillMask mask = floodFill.createMask( coarseLabels, factors, seed, filter, interval -> false );
+			floodFill.start( seed, 1, filter, Long.MAX_VALUE, Long.MAX_VALUE, null, mask ).await();
+			final long resultTime = System.currentTimeMillis() - t;
+
+			final long numFilled = count( reference );
+			final boolean equal = equal( reference, result );
+			if ( !equal )
+				++numDifferent;
+			System.out.println( String.format(
+					"seed %s: %d voxels, full resolution %d ms, coarse to fine %d ms (%d interior, %d boundary), results %s",
+					seed,
+					numFilled,
+					referenceTime,
+					resultTime,
+					mask.numInterior(),
+					mask.numBoundary(),
+					equal ? "equal" : "DIFFERENT" ) );
+		}
+		System.out.println( numDifferent == 0 ? "all results equal" : numDifferent + " results DIFFERENT" );
+		System.exit( numDifferent == 0 ? 0 : 1 );
+	}
+
+	private static RandomAccessibleInterval< LongType > createCanvas( final Interval interval )
+	{
+		final RandomAccessibleInterval< LongType > canvas = Views.translate(
+				ArrayImgs.longs( Intervals.dimensionsAsLongArray( interval ) ),
+				Intervals.minAsLongArray( interval ) );
+		for ( final LongType t : Views.iterable( canvas ) )
+			t.set( Label.TRANSPARENT );
+		return canvas;
+	}
+
+	private static long count( final RandomAccessibleInterval< LongType > canvas )
+	{
+		long count = 0;
+		for ( final LongType t : Views.iterable( canvas ) )
+			if ( t.get() != Label.TRANSPARENT )
+				++count;
+		return count;
+	}
+
+	private static boolean equal( final RandomAccessibleInterval< LongType > a, final RandomAccessibleInterval< LongType > b )
+	{
+		final Cursor< LongType > ca = Views.flatIterable( a ).cursor();
+		final Cursor< LongType > cb = Views.flatIterable( b ).cursor();
+		while ( ca.hasNext() )
+			if ( ca.next().get() != cb.next().get() )
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,256 @@
+package bdv.bigcat.util;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+import bdv.bigcat.label.SegmentMembership;
+import bdv.labels.labelset.LabelMultisetType;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongByteHashMap;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Classifies the voxels of a downsampled level of the labels for a fill of a
+ * segment, so that the fill needs to look at the full resolution labels only
+ * at the boundary of the segment.
+ *
+ * Each voxel of the downsampled level summarizes a box of full resolution
+ * voxels. It is
+ * <ul>
+ * <li>{@link #INTERIOR} if it contains only fragments of the segment and
+ * nothing was painted into its box, so that the fill accepts all full
+ * resolution voxels of the box that are not yet filled,</li>
+ * <li>{@link #EXCLUDED} if it contains no fragment of the segment and nothing
+ * was painted into its box, or if it is not connected to the seed through
+ * voxels that are not excluded, so that the fill accepts no full resolution
+ * voxel of the box,</li>
+ * <li>{@link #BOUNDARY} otherwise.</li>
+ * </ul>
+ * Full resolution neighbors are in the same or in neighboring boxes, so the
+ * full resolution fill never leaves the connected component of the seed's
+ * box, and filling with the mask gives the same result as filling without.
+ */
+public class CoarseFillMask
+{
+	static public final byte EXCLUDED = 0;
+
+	static public final byte BOUNDARY = 1;
+
+	static public final byte INTERIOR = 2;
+
+	static public int STOP_CHECK_INTERVAL = 4096;
+
+	final protected int[] factors;
+
+	/**
+	 * downsampled voxels that cover {@code bounds}, may extend past the
+	 * downsampled level
+	 */
+	final protected long[] coarseDimensions;
+
+	/**
+	 * classes of the visited downsampled voxels by index, missing voxels are
+	 * {@link #EXCLUDED}
+	 */
+	final protected TLongByteHashMap classes = new TLongByteHashMap( 1024, 0.5f, -1, EXCLUDED );
+
+	protected int numInterior = 0;
+
+	protected int numBoundary = 0;
+
+	/**
+	 * whether all voxels connected to the seed were classified
+	 */
+	protected boolean complete = true;
+
+	/**
+	 * @param coarseLabels
+	 *            a downsampled level of the labels, voxel {@code c} summarizes
+	 *            the full resolution voxels from {@code c * factors} to
+	 *            {@code ( c + 1 ) * factors - 1}
+	 * @param factors
+	 *            downsampling factors
+	 * @param bounds
+	 *            full resolution interval of the fill, starting at 0 or later
+	 * @param seed
+	 *            full resolution seed
+	 * @param segment
+	 *            the segment that is filled
+	 * @param maybePainted
+	 *            whether anything may have been painted into a full
+	 *            resolution interval
+	 */
+	public CoarseFillMask(
+			final RandomAccessibleInterval< LabelMultisetType > coarseLabels,
+			final int[] factors,
+			final Interval bounds,
+			final Localizable seed,
+			final SegmentMembership segment,
+			final Predicate< Interval > maybePainted )
+	{
+		this( coarseLabels, factors, bounds, seed, segment, maybePainted, () -> false );
+	}
+
+	/**
+	 * Classify like
+	 * {@link #CoarseFillMask(RandomAccessibleInterval, int[], Interval, Localizable, SegmentMembership, Predicate)}
+	 * until {@code stop} is true, after which the mask is not
+	 * {@link #isComplete() complete} and must not be used.
+	 *
+	 * @param stop
+	 *            asked every {@link #STOP_CHECK_INTERVAL} voxels whether to
+	 *            stop, e.g. because the fill was canceled
+	 */
+	public CoarseFillMask(
+			final RandomAccessibleInterval< LabelMultisetType > coarseLabels,
+			final int[] factors,
+			final Interval bounds,
+			final Localizable seed,
+			final SegmentMembership segment,
+			final Predicate< Interval > maybePainted,
+			final BooleanSupplier stop )
+	{
+		this.factors = factors;
+		final int n = bounds.numDimensions();
+		coarseDimensions = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			coarseDimensions[ d ] = bounds.max( d ) / factors[ d ] + 1;
+
+		final RandomAccess< LabelMultisetType > access = coarseLabels.randomAccess();
+		final long[] position = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		/* the seed is filled unconditionally */
+		for ( int d = 0; d < n; ++d )
+			position[ d ] = seed.getLongPosition( d ) / factors[ d ];
+		final TLongArrayList queue = new TLongArrayList();
+		final long seedIndex = IntervalIndexer.positionToIndex( position, coarseDimensions );
+		classes.put( seedIndex, BOUNDARY );
+		++numBoundary;
+		queue.add( seedIndex );
+
+		for ( int i = 0; i < queue.size(); ++i )
+		{
+			if ( i % STOP_CHECK_INTERVAL == 0 && stop.getAsBoolean() )
+			{
+				complete = false;
+				break;
+			}
+			IntervalIndexer.indexToPosition( queue.getQuick( i ), coarseDimensions, position );
+			for ( int d = 0; d < n; ++d )
+			{
+				for ( int dir = -1; dir <= 1; dir += 2 )
+				{
+					position[ d ] += dir;
+					if ( position[ d ] >= bounds.min( d ) / factors[ d ] && position[ d ] < coarseDimensions[ d ] )
+					{
+						final long index = IntervalIndexer.positionToIndex( position, coarseDimensions );
+						if ( !classes.containsKey( index ) )
+						{
+							for ( int k = 0; k < n; ++k )
+							{
+								min[ k ] = position[ k ] * factors[ k ];
+								max[ k ] = min[ k ] + factors[ k ] - 1;
+							}
+							final byte c;
+							if ( !contains( coarseLabels, position ) )
+								/* full resolution voxels past the downsampled level */
+								c = BOUNDARY;
+							else
+							{
+								access.setPosition( position );
+								final LabelMultisetType labels = access.get();
+								if ( maybePainted.test( new FinalInterval( min, max ) ) )
+									c = BOUNDARY;
+								else if ( !segment.containsAny( labels ) )
+									c = EXCLUDED;
+								else if ( segment.containsOnly( labels ) )
+									c = INTERIOR;
+								else
+									c = BOUNDARY;
+							}
+							classes.put( index, c );
+							if ( c == INTERIOR )
+								++numInterior;
+							else if ( c == BOUNDARY )
+								++numBoundary;
+							if ( c != EXCLUDED )
+								queue.add( index );
+						}
+					}
+					position[ d ] -= dir;
+				}
+			}
+		}
+	}
+
+	static private boolean contains( final Interval interval, final long[] position )
+	{
+		for ( int d = 0; d < position.length; ++d )
+			if ( position[ d ] < interval.min( d ) || position[ d ] > interval.max( d ) )
+				return false;
+		return true;
+	}
+
+	public int numInterior()
+	{
+		return numInterior;
+	}
+
+	public int numBoundary()
+	{
+		return numBoundary;
+	}
+
+	/**
+	 * @return whether the classification finished, a mask that was stopped
+	 *         excludes voxels that it did not visit
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Create an access that remembers the last looked up downsampled voxel.
+	 * Not thread safe, create one per thread.
+	 */
+	public Access access()
+	{
+		return new Access();
+	}
+
+	public class Access
+	{
+		final long[] coarsePosition = new long[ coarseDimensions.length ];
+
+		long lastIndex = -1;
+
+		byte lastClass;
+
+		/**
+		 * @param position
+		 *            full resolution position within the bounds of the fill
+		 * @return the class of the downsampled voxel that contains
+		 *         {@code position}
+		 */
+		public byte get( final Localizable position )
+		{
+			for ( int d = 0; d < coarsePosition.length; ++d )
+				coarsePosition[ d ] = position.getLongPosition( d ) / factors[ d ];
+			final long index = IntervalIndexer.positionToIndex( coarsePosition, coarseDimensions );
+			if ( index != lastIndex )
+			{
+				lastIndex = index;
+				lastClass = classes.get( index );
+			}
+			return lastClass;
+		}
+	}
+}
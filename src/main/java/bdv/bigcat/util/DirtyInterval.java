@@ -16,12 +16,19 @@
  */
 package bdv.bigcat.util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.util.Intervals;
 
 /**
- * Tracks the interval that
+ * Tracks the interval that has been modified. If a cell grid is set, also
+ * tracks which cells of the grid have been modified, so that saving can be
+ * limited to those cells.
  *
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
@@ -29,20 +36,149 @@ public class DirtyInterval
 {
 	protected FinalInterval dirtyInterval = null;
 
-	public void touch( final Interval interval )
+	/**
+	 * dimensions of the tracked cell grid's image, {@code null} if cells are
+	 * not tracked
+	 */
+	protected long[] dimensions = null;
+
+	protected int[] cellDimensions = null;
+
+	protected long[] gridDimensions = null;
+
+	/**
+	 * dirty cells by flat cell index, x fastest, long so that grids with
+	 * more than 2^31 cells are tracked
+	 */
+	final protected TLongHashSet dirtyCells = new TLongHashSet();
+
+	/**
+	 * Track modified cells of a cell grid. Clears the dirty cells.
+	 *
+	 * @param dimensions
+	 *            dimensions of the image
+	 * @param cellDimensions
+	 */
+	public synchronized void setCellGrid( final long[] dimensions, final int[] cellDimensions )
+	{
+		this.dimensions = dimensions.clone();
+		this.cellDimensions = cellDimensions.clone();
+		gridDimensions = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] - 1 ) / cellDimensions[ d ] + 1;
+		dirtyCells.clear();
+	}
+
+	/**
+	 * Whether modified cells are tracked.
+	 */
+	public synchronized boolean tracksCells()
+	{
+		return dimensions != null;
+	}
+
+	public synchronized void touch( final Interval interval )
 	{
 		if ( dirtyInterval == null )
 			dirtyInterval = new FinalInterval( interval );
 		else
 			dirtyInterval = Intervals.union( dirtyInterval, interval );
+
+		if ( dimensions != null )
+			touchCells( interval );
+	}
+
+	/**
+	 * Mark all cells that intersect {@code interval} dirty.
+	 */
+	protected void touchCells( final Interval interval )
+	{
+		final int n = dimensions.length;
+		final long[] gridMin = new long[ n ];
+		final long[] gridMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			final long min = Math.max( 0, interval.min( d ) );
+			final long max = Math.min( dimensions[ d ] - 1, interval.max( d ) );
+			if ( min > max )
+				return;
+			gridMin[ d ] = min / cellDimensions[ d ];
+			gridMax[ d ] = max / cellDimensions[ d ];
+		}
+
+		final long[] gridPosition = gridMin.clone();
+		for ( int d = 0; d < n; )
+		{
+			dirtyCells.add( cellIndex( gridPosition ) );
+
+			for ( d = 0; d < n; ++d )
+			{
+				if ( ++gridPosition[ d ] <= gridMax[ d ] )
+					break;
+				else
+					gridPosition[ d ] = gridMin[ d ];
+			}
+		}
+	}
+
+	protected long cellIndex( final long[] gridPosition )
+	{
+		long index = 0;
+		for ( int d = gridPosition.length - 1; d >= 0; --d )
+			index = index * gridDimensions[ d ] + gridPosition[ d ];
+		return index;
+	}
+
+	/**
+	 * Number of dirty cells.
+	 */
+	public synchronized int numDirtyCells()
+	{
+		return dirtyCells.size();
+	}
+
+	/**
+	 * Get the intervals of all dirty cells, cropped to the image, and clear
+	 * them. Cells that are modified while they are being saved are marked
+	 * dirty again. If saving fails, the cells should be
+	 * {@link #touch(Interval) touched} again.
+	 *
+	 * @return the cell intervals, empty if cells are not tracked
+	 */
+	public synchronized List< Interval > clearDirtyCells()
+	{
+		final ArrayList< Interval > cells = new ArrayList<>();
+		if ( dimensions == null )
+			return cells;
+
+		final int n = dimensions.length;
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		final long[] indices = dirtyCells.toArray();
+		Arrays.sort( indices );
+		for ( final long i : indices )
+		{
+			long index = i;
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = ( index % gridDimensions[ d ] ) * cellDimensions[ d ];
+				max[ d ] = Math.min( dimensions[ d ] - 1, min[ d ] + cellDimensions[ d ] - 1 );
+				index /= gridDimensions[ d ];
+			}
+			cells.add( new FinalInterval( min, max ) );
+		}
+		dirtyCells.clear();
+
+		return cells;
 	}
 
-	public void clear()
+	public synchronized void clear()
 	{
 		dirtyInterval = null;
+		dirtyCells.clear();
 	}
 
-	public FinalInterval getDirtyInterval()
+	public synchronized FinalInterval getDirtyInterval()
 	{
 		return dirtyInterval;
 	}
@@ -0,0 +1,137 @@
+package bdv.bigcat.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import bdv.labels.labelset.Label;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A copy of a set of regions of a painted label canvas, taken so that the
+ * regions can be written while painting continues. Regions that contain only
+ * {@link Label#TRANSPARENT} are not stored.
+ */
+public class LabelCanvasSnapshot
+{
+	final protected List< Interval > regions;
+
+	/**
+	 * copied data of each region, {@code null} if transparent
+	 */
+	final protected List< long[] > data;
+
+	/**
+	 * Copy {@code regions} of {@code source}.
+	 *
+	 * @param source
+	 * @param regions
+	 */
+	public LabelCanvasSnapshot( final RandomAccessibleInterval< LongType > source, final List< Interval > regions )
+	{
+		this( source, regions, region -> true );
+	}
+
+	/**
+	 * Copy those {@code regions} of {@code source} that may have been
+	 * painted, the others are stored as transparent without looking at them,
+	 * e.g. {@link bdv.img.SparseLabelCanvas#isPainted(Interval)}.
+	 *
+	 * @param source
+	 * @param regions
+	 * @param painted
+	 */
+	public LabelCanvasSnapshot(
+			final RandomAccessibleInterval< LongType > source,
+			final List< Interval > regions,
+			final Predicate< Interval > painted )
+	{
+		this.regions = new ArrayList<>( regions );
+		data = new ArrayList<>( regions.size() );
+		for ( final Interval region : regions )
+		{
+			if ( !painted.test( region ) )
+			{
+				data.add( null );
+				continue;
+			}
+			final long[] regionData = new long[ ( int ) Intervals.numElements( region ) ];
+			int i = 0;
+			boolean transparent = true;
+			for ( final LongType t : Views.flatIterable( Views.interval( source, region ) ) )
+			{
+				final long id = t.get();
+				transparent &= id == Label.TRANSPARENT;
+				regionData[ i++ ] = id;
+			}
+			data.add( transparent ? null : regionData );
+		}
+	}
+
+	public int numRegions()
+	{
+		return regions.size();
+	}
+
+	public List< Interval > getRegions()
+	{
+		return regions;
+	}
+
+	/**
+	 * Get the copy of a region, in the coordinates of the source.
+	 *
+	 * @param i
+	 */
+	public RandomAccessibleInterval< LongType > getRegion( final int i )
+	{
+		final Interval region = regions.get( i );
+		long[] regionData = data.get( i );
+		if ( regionData == null )
+		{
+			regionData = new long[ ( int ) Intervals.numElements( region ) ];
+			Arrays.fill( regionData, Label.TRANSPARENT );
+		}
+		return Views.translate(
+				ArrayImgs.longs( regionData, Intervals.dimensionsAsLongArray( region ) ),
+				Intervals.minAsLongArray( region ) );
+	}
+
+	/**
+	 * All cells of a cell grid over {@code interval}, cropped to
+	 * {@code interval}.
+	 *
+	 * @param interval
+	 * @param cellDimensions
+	 */
+	static public List< Interval > cells( final Interval interval, final int[] cellDimensions )
+	{
+		final int n = interval.numDimensions();
+		final ArrayList< Interval > cells = new ArrayList<>();
+		final long[] min = Intervals.minAsLongArray( interval );
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; )
+		{
+			for ( int i = 0; i < n; ++i )
+				max[ i ] = Math.min( interval.max( i ), min[ i ] + cellDimensions[ i ] - 1 );
+			cells.add( new FinalInterval( min, max ) );
+
+			for ( d = 0; d < n; ++d )
+			{
+				min[ d ] += cellDimensions[ d ];
+				if ( min[ d ] <= interval.max( d ) )
+					break;
+				else
+					min[ d ] = interval.min( d );
+			}
+		}
+		return cells;
+	}
+}
@@ -0,0 +1,851 @@
+package bdv.bigcat.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import bdv.bigcat.control.LabelFillController.SegmentAndPaintFilter1;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetType;
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Flood fill of painted labels with the semantics of
+ * {@link net.imglib2.algorithm.fill.FloodFill} with a
+ * {@link net.imglib2.algorithm.neighborhood.DiamondShape} of radius 1 and a
+ * {@link SegmentAndPaintFilter1}: the seed is always filled, and a neighbor
+ * of a filled pixel is filled if the filter accepts it.
+ *
+ * The fill works on blocks, typically the cells of the painted labels canvas.
+ * Each block has a frontier of seeds that neighboring blocks pushed into it.
+ * A block is filled by at most one task at a time, scanline runs along the
+ * first dimension within the block, so that tasks for different blocks do
+ * not write into the same cell. Tasks run in a work-stealing
+ * {@link ForkJoinPool}.
+ *
+ * A fill can be started in the background with a budget of filled pixels and
+ * time, reports the boxes filled by each block task, and can be canceled. The
+ * blocks remember which pixels they filled, so that a canceled fill can be
+ * rolled back. Boxes that other edits painted while the fill was running are
+ * not rolled back.
+ *
+ * With a {@link CoarseFillMask}, the labels are only looked at in the boxes
+ * that a downsampled level of the labels classifies as the boundary of the
+ * filled segment.
+ */
+public class ScanlineFloodFill
+{
+	final protected RandomAccessibleInterval< LabelMultisetType > labels;
+
+	final protected RandomAccessibleInterval< LongType > canvas;
+
+	final protected int[] blockSize;
+
+	final protected ExecutorService pool;
+
+	/**
+	 * @param labels
+	 * @param canvas
+	 *            painted labels
+	 * @param blockSize
+	 *            block size, typically the cell size of the canvas
+	 * @param pool
+	 *            executes the block tasks, should be a {@link ForkJoinPool}
+	 *            for work-stealing
+	 */
+	public ScanlineFloodFill(
+			final RandomAccessibleInterval< LabelMultisetType > labels,
+			final RandomAccessibleInterval< LongType > canvas,
+			final int[] blockSize,
+			final ExecutorService pool )
+	{
+		this.labels = labels;
+		this.canvas = canvas;
+		this.blockSize = blockSize;
+		this.pool = pool;
+	}
+
+	public ScanlineFloodFill(
+			final RandomAccessibleInterval< LabelMultisetType > labels,
+			final RandomAccessibleInterval< LongType > canvas,
+			final int[] blockSize )
+	{
+		this( labels, canvas, blockSize, ForkJoinPool.commonPool() );
+	}
+
+	/**
+	 * Fill from {@code seed} with {@code fillId}.
+	 *
+	 * @param seed
+	 * @param fillId
+	 * @param filter
+	 * @return the bounding box of the filled pixels, {@code null} if nothing
+	 *         was filled
+	 */
+	public Interval fill( final Localizable seed, final long fillId, final SegmentAndPaintFilter1 filter )
+	{
+		return start( seed, fillId, filter, Long.MAX_VALUE, Long.MAX_VALUE, null ).await();
+	}
+
+	/**
+	 * Start filling from {@code seed} with {@code fillId} in the background.
+	 * The fill is canceled when it filled more than {@code maxFilled} pixels or
+	 * ran longer than {@code maxMillis}.
+	 *
+	 * @param seed
+	 * @param fillId
+	 * @param filter
+	 * @param maxFilled
+	 *            budget of filled pixels, {@link Long#MAX_VALUE} for no limit
+	 * @param maxMillis
+	 *            budget of time, {@link Long#MAX_VALUE} for no limit
+	 * @param progress
+	 *            receives the bounding box of the pixels filled by each block
+	 *            task, called from the block tasks, {@code null} for none
+	 * @return the running fill
+	 */
+	public Fill start(
+			final Localizable seed,
+			final long fillId,
+			final SegmentAndPaintFilter1 filter,
+			final long maxFilled,
+			final long maxMillis,
+			final Consumer< Interval > progress )
+	{
+		return start( seed, fillId, filter, maxFilled, maxMillis, progress, null );
+	}
+
+	/**
+	 * Start filling like
+	 * {@link #start(Localizable, long, SegmentAndPaintFilter1, long, long, Consumer)},
+	 * looking at the labels only where {@code mask} does not classify the
+	 * voxels as interior or excluded.
+	 *
+	 * @param mask
+	 *            classification of a downsampled level for this fill, see
+	 *            {@link #createMask(RandomAccessibleInterval, int[], Localizable, SegmentAndPaintFilter1, Predicate)},
+	 *            {@code null} for none
+	 */
+	public Fill start(
+			final Localizable seed,
+			final long fillId,
+			final SegmentAndPaintFilter1 filter,
+			final long maxFilled,
+			final long maxMillis,
+			final Consumer< Interval > progress,
+			final CoarseFillMask mask )
+	{
+		final Fill fill = new Fill( Intervals.intersect( labels, canvas ), fillId, filter, maxFilled, maxMillis, progress, mask );
+		fill.start( seed );
+		return fill;
+	}
+
+	/**
+	 * Start filling like
+	 * {@link #start(Localizable, long, SegmentAndPaintFilter1, long, long, Consumer, CoarseFillMask)}
+	 * with a mask of {@code coarseLabels} for this fill, see
+	 * {@link #createMask(RandomAccessibleInterval, int[], Localizable, SegmentAndPaintFilter1, Predicate)}.
+	 * The mask is created in the background within the budget of time of the
+	 * fill, and stops when the fill is canceled.
+	 *
+	 * @param coarseLabels
+	 * @param factors
+	 *            downsampling factors of {@code coarseLabels}
+	 * @param maybePainted
+	 *            whether anything may have been painted into an interval of
+	 *            the canvas
+	 */
+	public Fill start(
+			final Localizable seed,
+			final long fillId,
+			final SegmentAndPaintFilter1 filter,
+			final long maxFilled,
+			final long maxMillis,
+			final Consumer< Interval > progress,
+			final RandomAccessibleInterval< LabelMultisetType > coarseLabels,
+			final int[] factors,
+			final Predicate< Interval > maybePainted )
+	{
+		final Fill fill = new Fill( Intervals.intersect( labels, canvas ), fillId, filter, maxFilled, maxMillis, progress, null );
+		final Point seedPoint = new Point( seed );
+		synchronized ( fill )
+		{
+			/* keep the fill pending while the mask is created */
+			++fill.pending;
+		}
+		pool.execute( () -> {
+			try
+			{
+				final CoarseFillMask mask = new CoarseFillMask( coarseLabels, factors, fill.bounds, seedPoint, filter.getSeedSegment(), maybePainted, fill::isStopped );
+				if ( mask.isComplete() )
+				{
+					fill.mask = mask;
+					fill.start( seedPoint );
+				}
+			}
+			catch ( final Throwable t )
+			{
+				fill.failure = t;
+			}
+			finally
+			{
+				fill.done();
+			}
+		} );
+		return fill;
+	}
+
+	/**
+	 * Classify a downsampled level of the labels for a fill from
+	 * {@code seed}.
+	 *
+	 * @param coarseLabels
+	 * @param factors
+	 *            downsampling factors of {@code coarseLabels}
+	 * @param seed
+	 * @param filter
+	 * @param maybePainted
+	 *            whether anything may have been painted into an interval of
+	 *            the canvas
+	 */
+	public CoarseFillMask createMask(
+			final RandomAccessibleInterval< LabelMultisetType > coarseLabels,
+			final int[] factors,
+			final Localizable seed,
+			final SegmentAndPaintFilter1 filter,
+			final Predicate< Interval > maybePainted )
+	{
+		return new CoarseFillMask( coarseLabels, factors, Intervals.intersect( labels, canvas ), seed, filter.getSeedSegment(), maybePainted );
+	}
+
+	/**
+	 * A block and the seeds pushed into it by other blocks.
+	 */
+	static protected class Block
+	{
+		final long[] min;
+
+		final long[] max;
+
+		/**
+		 * seed positions, flattened, guarded by this
+		 */
+		TLongArrayList frontier = new TLongArrayList();
+
+		/**
+		 * whether a task for this block is scheduled or running, guarded by
+		 * this
+		 */
+		boolean scheduled = false;
+
+		/**
+		 * pixels filled by this fill, by index in the block, written only by
+		 * the task of this block
+		 */
+		final BitSet filled = new BitSet();
+
+		/**
+		 * filled pixels that were transparent before, all others had the
+		 * paint of the seed segment
+		 */
+		final BitSet filledTransparent = new BitSet();
+
+		Block( final long[] min, final long[] max )
+		{
+			this.min = min;
+			this.max = max;
+		}
+
+		int index( final long[] position )
+		{
+			int index = 0;
+			for ( int d = min.length - 1; d >= 0; --d )
+				index = index * ( int ) ( max[ d ] - min[ d ] + 1 ) + ( int ) ( position[ d ] - min[ d ] );
+			return index;
+		}
+
+		void localize( int index, final long[] position )
+		{
+			for ( int d = 0; d < min.length; ++d )
+			{
+				final int size = ( int ) ( max[ d ] - min[ d ] + 1 );
+				position[ d ] = min[ d ] + index % size;
+				index /= size;
+			}
+		}
+	}
+
+	/**
+	 * State of one fill.
+	 */
+	public class Fill
+	{
+		final Interval bounds;
+
+		final int n;
+
+		final long fillId;
+
+		final SegmentAndPaintFilter1 filter;
+
+		final long maxFilled;
+
+		final long deadline;
+
+		final Consumer< Interval > progress;
+
+		/**
+		 * written before the first block task is scheduled
+		 */
+		CoarseFillMask mask;
+
+		final AtomicLong numFilled = new AtomicLong();
+
+		volatile boolean canceled = false;
+
+		volatile boolean overBudget = false;
+
+		/**
+		 * the seed and its paint before the fill
+		 */
+		long[] seedPosition = null;
+
+		long seedPaint;
+
+		final long[] numBlocks;
+
+		final ConcurrentHashMap< Long, Block > blocks = new ConcurrentHashMap<>();
+
+		/**
+		 * number of scheduled or running block tasks, guarded by this
+		 */
+		int pending = 0;
+
+		/**
+		 * bounding box of the filled pixels, guarded by this
+		 */
+		long[] filledMin = null;
+
+		long[] filledMax = null;
+
+		volatile Throwable failure = null;
+
+		/**
+		 * boxes painted by other edits while the fill was running, guarded by
+		 * itself
+		 */
+		final ArrayList< Interval > paintedByOthers = new ArrayList<>();
+
+		Fill(
+				final Interval bounds,
+				final long fillId,
+				final SegmentAndPaintFilter1 filter,
+				final long maxFilled,
+				final long maxMillis,
+				final Consumer< Interval > progress,
+				final CoarseFillMask mask )
+		{
+			this.bounds = bounds;
+			this.fillId = fillId;
+			this.filter = filter;
+			this.maxFilled = maxFilled;
+			this.deadline = maxMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + maxMillis;
+			this.progress = progress;
+			this.mask = mask;
+			n = bounds.numDimensions();
+			numBlocks = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				numBlocks[ d ] = ( canvas.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		void start( final Localizable seed )
+		{
+			final long[] position = new long[ n ];
+			seed.localize( position );
+			if ( Intervals.isEmpty( bounds ) || !Intervals.contains( bounds, seed ) )
+				return;
+
+			/* the seed is filled unconditionally */
+			final RandomAccess< LongType > canvasAccess = canvas.randomAccess();
+			canvasAccess.setPosition( position );
+			seedPaint = canvasAccess.get().get();
+			seedPosition = position.clone();
+			canvasAccess.get().set( fillId );
+			numFilled.incrementAndGet();
+			include( position, position );
+
+			synchronized ( this )
+			{
+				/* keep the fill pending until all neighbors are pushed */
+				++pending;
+			}
+			for ( int d = 0; d < n; ++d )
+			{
+				for ( int dir = -1; dir <= 1; dir += 2 )
+				{
+					position[ d ] += dir;
+					if ( position[ d ] >= bounds.min( d ) && position[ d ] <= bounds.max( d ) )
+						push( position );
+					position[ d ] -= dir;
+				}
+			}
+			done();
+		}
+
+		/**
+		 * Wait until the fill is finished or, after it was canceled, until all
+		 * block tasks stopped.
+		 *
+		 * @return the bounding box of the filled pixels, {@code null} if
+		 *         nothing was filled
+		 */
+		public Interval await()
+		{
+			synchronized ( this )
+			{
+				while ( pending > 0 )
+				{
+					try
+					{
+						wait();
+					}
+					catch ( final InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+						throw new RuntimeException( "Interrupted while filling.", e );
+					}
+				}
+				if ( failure != null )
+					throw new RuntimeException( "Filling failed.", failure );
+
+				return getFilledInterval();
+			}
+		}
+
+		/**
+		 * @return the bounding box of the pixels filled so far, {@code null}
+		 *         if nothing was filled
+		 */
+		public synchronized Interval getFilledInterval()
+		{
+			return filledMin == null ? null : new FinalInterval( filledMin, filledMax );
+		}
+
+		/**
+		 * Blocks are aligned with the cells of the canvas if the block size
+		 * is the cell size, so that these are the cells that need to be
+		 * saved or journaled, instead of all cells in the bounding box.
+		 *
+		 * @return the boxes of the blocks in which this fill filled pixels,
+		 *         clipped to the bounds of the fill, call after
+		 *         {@link #await()}
+		 */
+		public List< Interval > getFilledBlocks()
+		{
+			final ArrayList< Interval > filledBlocks = new ArrayList<>();
+			final Block seedBlock = seedPosition == null ? null : block( seedPosition );
+			for ( final Block block : blocks.values() )
+				if ( block == seedBlock || !block.filled.isEmpty() )
+					filledBlocks.add( new FinalInterval( block.min, block.max ) );
+			return filledBlocks;
+		}
+
+		/**
+		 * Stop filling. Block tasks stop after their current scanline run.
+		 */
+		public void cancel()
+		{
+			canceled = true;
+		}
+
+		/**
+		 * @return whether the fill was canceled or ran over its budget
+		 */
+		public boolean isCanceled()
+		{
+			return canceled;
+		}
+
+		public boolean isOverBudget()
+		{
+			return overBudget;
+		}
+
+		public long getNumFilled()
+		{
+			return numFilled.get();
+		}
+
+		/**
+		 * @return the mask of this fill, {@code null} if it has none or if
+		 *         the fill was canceled while the mask was created
+		 */
+		public CoarseFillMask getMask()
+		{
+			return mask;
+		}
+
+		/**
+		 * Cancel the fill if it ran out of time.
+		 *
+		 * @return whether the fill was canceled
+		 */
+		boolean isStopped()
+		{
+			if ( deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline )
+			{
+				overBudget = true;
+				canceled = true;
+			}
+			return canceled;
+		}
+
+		/**
+		 * Exclude a box that another edit painted into from
+		 * {@link #rollback()}, so that paint with the fill id is not mistaken
+		 * for filled pixels. Call before the other edit releases the canvas.
+		 */
+		public void painted( final Interval interval )
+		{
+			synchronized ( paintedByOthers )
+			{
+				paintedByOthers.add( new FinalInterval( interval ) );
+			}
+		}
+
+		/**
+		 * Restore the pixels that this fill filled and that still have the
+		 * fill id, except for those in boxes that other edits
+		 * {@link #painted(Interval) painted}. Call after {@link #await()}.
+		 */
+		public void rollback()
+		{
+			boolean seedPainted = false;
+			synchronized ( paintedByOthers )
+			{
+				for ( final Interval interval : paintedByOthers )
+				{
+					final Interval intersection = Intervals.intersect( interval, bounds );
+					if ( Intervals.isEmpty( intersection ) )
+						continue;
+					if ( seedPosition != null && Intervals.contains( intersection, new Point( seedPosition ) ) )
+						seedPainted = true;
+					final long[] min = Intervals.minAsLongArray( intersection );
+					final long[] max = Intervals.maxAsLongArray( intersection );
+					final long[] position = min.clone();
+					for ( int d = 0; d < n; )
+					{
+						final Block block = blocks.get( blockIndex( position ) );
+						if ( block != null )
+							block.filled.clear( block.index( position ) );
+						for ( d = 0; d < n; ++d )
+						{
+							if ( ++position[ d ] <= max[ d ] )
+								break;
+							else
+								position[ d ] = min[ d ];
+						}
+					}
+				}
+			}
+
+			blocks.forEachValue( 1, block -> {
+				final RandomAccess< LongType > canvasAccess = canvas.randomAccess();
+				final long[] position = new long[ n ];
+				for ( int i = block.filled.nextSetBit( 0 ); i >= 0; i = block.filled.nextSetBit( i + 1 ) )
+				{
+					block.localize( i, position );
+					canvasAccess.setPosition( position );
+					final LongType paint = canvasAccess.get();
+					if ( paint.get() == fillId )
+						paint.set( block.filledTransparent.get( i ) ? Label.TRANSPARENT : filter.getComparison() );
+				}
+			} );
+
+			if ( seedPosition != null && !seedPainted )
+			{
+				final RandomAccess< LongType > canvasAccess = canvas.randomAccess();
+				canvasAccess.setPosition( seedPosition );
+				if ( canvasAccess.get().get() == fillId )
+					canvasAccess.get().set( seedPaint );
+			}
+		}
+
+		/**
+		 * Count filled pixels and cancel the fill if it ran over its budget.
+		 */
+		void spend( final long numPixels )
+		{
+			if ( numFilled.addAndGet( numPixels ) > maxFilled || ( deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline ) )
+			{
+				overBudget = true;
+				canceled = true;
+			}
+		}
+
+		long blockIndex( final long[] position )
+		{
+			long index = 0;
+			for ( int d = n - 1; d >= 0; --d )
+				index = index * numBlocks[ d ] + ( position[ d ] - canvas.min( d ) ) / blockSize[ d ];
+			return index;
+		}
+
+		Block block( final long[] position )
+		{
+			return blocks.computeIfAbsent( blockIndex( position ), k -> {
+				final long[] min = new long[ n ];
+				final long[] max = new long[ n ];
+				for ( int d = 0; d < n; ++d )
+				{
+					/* aligned with the canvas cells */
+					final long offset = canvas.min( d );
+					min[ d ] = Math.max( ( position[ d ] - offset ) / blockSize[ d ] * blockSize[ d ] + offset, bounds.min( d ) );
+					max[ d ] = Math.min( ( position[ d ] - offset ) / blockSize[ d ] * blockSize[ d ] + offset + blockSize[ d ] - 1, bounds.max( d ) );
+				}
+				return new Block( min, max );
+			} );
+		}
+
+		/**
+		 * Push a seed into the frontier of its block and schedule the block.
+		 */
+		void push( final long[] position )
+		{
+			final Block block = block( position );
+			final boolean schedule;
+			synchronized ( block )
+			{
+				block.frontier.add( position );
+				schedule = !block.scheduled;
+				block.scheduled = true;
+			}
+			if ( schedule )
+			{
+				synchronized ( this )
+				{
+					++pending;
+				}
+				pool.execute( () -> fillBlock( block ) );
+			}
+		}
+
+		synchronized void done()
+		{
+			if ( --pending == 0 )
+				notifyAll();
+		}
+
+		synchronized void include( final long[] min, final long[] max )
+		{
+			if ( filledMin == null )
+			{
+				filledMin = min.clone();
+				filledMax = max.clone();
+			}
+			else
+			{
+				for ( int d = 0; d < n; ++d )
+				{
+					filledMin[ d ] = Math.min( filledMin[ d ], min[ d ] );
+					filledMax[ d ] = Math.max( filledMax[ d ], max[ d ] );
+				}
+			}
+		}
+
+		boolean accept(
+				final RandomAccess< LabelMultisetType > labelsAccess,
+				final RandomAccess< LongType > canvasAccess,
+				final CoarseFillMask.Access maskAccess )
+		{
+			if ( maskAccess != null )
+			{
+				final byte c = maskAccess.get( canvasAccess );
+				if ( c == CoarseFillMask.EXCLUDED )
+					return false;
+				if ( c == CoarseFillMask.INTERIOR )
+					return canvasAccess.get().get() == Label.TRANSPARENT;
+			}
+			return filter.accept( labelsAccess.get(), canvasAccess.get().get(), fillId );
+		}
+
+		/**
+		 * Fill the seeds in the frontier of a block until it is empty.
+		 */
+		void fillBlock( final Block block )
+		{
+			try
+			{
+				final RandomAccess< LabelMultisetType > labelsAccess = labels.randomAccess();
+				final RandomAccess< LongType > canvasAccess = canvas.randomAccess();
+				final long[] filledMin = block.max.clone();
+				final long[] filledMax = block.min.clone();
+				boolean filled = false;
+				final TLongArrayList seeds = new TLongArrayList();
+				final long[] position = new long[ n ];
+				final long[] neighbor = new long[ n ];
+				final CoarseFillMask.Access maskAccess = mask == null ? null : mask.access();
+
+				while ( failure == null && !canceled )
+				{
+					synchronized ( block )
+					{
+						if ( block.frontier.isEmpty() )
+						{
+							block.scheduled = false;
+							break;
+						}
+						seeds.addAll( block.frontier );
+						block.frontier.clear();
+					}
+
+					while ( !seeds.isEmpty() && !canceled )
+					{
+						final int last = seeds.size() - n;
+						for ( int d = 0; d < n; ++d )
+							position[ d ] = seeds.getQuick( last + d );
+						seeds.remove( last, n );
+
+						labelsAccess.setPosition( position );
+						canvasAccess.setPosition( position );
+						if ( !accept( labelsAccess, canvasAccess, maskAccess ) )
+							continue;
+
+						/* scanline run along dimension 0 */
+						long x0 = position[ 0 ];
+						while ( x0 > block.min[ 0 ] )
+						{
+							labelsAccess.setPosition( x0 - 1, 0 );
+							canvasAccess.setPosition( x0 - 1, 0 );
+							if ( !accept( labelsAccess, canvasAccess, maskAccess ) )
+								break;
+							--x0;
+						}
+						long x1 = position[ 0 ];
+						while ( x1 < block.max[ 0 ] )
+						{
+							labelsAccess.setPosition( x1 + 1, 0 );
+							canvasAccess.setPosition( x1 + 1, 0 );
+							if ( !accept( labelsAccess, canvasAccess, maskAccess ) )
+								break;
+							++x1;
+						}
+						final int i0 = block.index( position ) - ( int ) ( position[ 0 ] - x0 );
+						for ( long x = x0; x <= x1; ++x )
+						{
+							canvasAccess.setPosition( x, 0 );
+							final LongType paint = canvasAccess.get();
+							final int i = i0 + ( int ) ( x - x0 );
+							block.filled.set( i );
+							if ( paint.get() == Label.TRANSPARENT )
+								block.filledTransparent.set( i );
+							paint.set( fillId );
+						}
+						spend( x1 - x0 + 1 );
+
+						filled = true;
+						filledMin[ 0 ] = Math.min( filledMin[ 0 ], x0 );
+						filledMax[ 0 ] = Math.max( filledMax[ 0 ], x1 );
+						for ( int d = 1; d < n; ++d )
+						{
+							filledMin[ d ] = Math.min( filledMin[ d ], position[ d ] );
+							filledMax[ d ] = Math.max( filledMax[ d ], position[ d ] );
+						}
+
+						/* ends of the run that touch the neighboring blocks */
+						System.arraycopy( position, 0, neighbor, 0, n );
+						if ( x0 == block.min[ 0 ] && x0 > bounds.min( 0 ) )
+						{
+							neighbor[ 0 ] = x0 - 1;
+							push( neighbor );
+						}
+						if ( x1 == block.max[ 0 ] && x1 < bounds.max( 0 ) )
+						{
+							neighbor[ 0 ] = x1 + 1;
+							push( neighbor );
+						}
+
+						/* rows next to the run */
+						for ( int d = 1; d < n; ++d )
+						{
+							for ( int dir = -1; dir <= 1; dir += 2 )
+							{
+								System.arraycopy( position, 0, neighbor, 0, n );
+								neighbor[ d ] += dir;
+								if ( neighbor[ d ] < bounds.min( d ) || neighbor[ d ] > bounds.max( d ) )
+									continue;
+
+								if ( neighbor[ d ] < block.min[ d ] || neighbor[ d ] > block.max[ d ] )
+								{
+									/* the neighboring block checks the seeds */
+									for ( long x = x0; x <= x1; ++x )
+									{
+										neighbor[ 0 ] = x;
+										push( neighbor );
+									}
+								}
+								else
+								{
+									/* one seed per accepted span */
+									neighbor[ 0 ] = x0;
+									labelsAccess.setPosition( neighbor );
+									canvasAccess.setPosition( neighbor );
+									boolean inSpan = false;
+									for ( long x = x0; x <= x1; ++x )
+									{
+										labelsAccess.setPosition( x, 0 );
+										canvasAccess.setPosition( x, 0 );
+										if ( accept( labelsAccess, canvasAccess, maskAccess ) )
+										{
+											if ( !inSpan )
+											{
+												neighbor[ 0 ] = x;
+												seeds.add( neighbor );
+												inSpan = true;
+											}
+										}
+										else
+											inSpan = false;
+									}
+								}
+							}
+						}
+					}
+				}
+
+				if ( filled )
+				{
+					include( filledMin, filledMax );
+					if ( progress != null )
+						progress.accept( new FinalInterval( filledMin, filledMax ) );
+				}
+			}
+			catch ( final Throwable t )
+			{
+				failure = t;
+				synchronized ( block )
+				{
+					block.scheduled = false;
+				}
+			}
+			finally
+			{
+				done();
+			}
+		}
+	}
+}
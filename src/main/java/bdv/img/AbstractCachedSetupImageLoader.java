@@ -0,0 +1,83 @@
+package bdv.img;
+
+import java.io.IOException;
+
+import bdv.AbstractCachedViewerSetupImgLoader;
+import bdv.ViewerImgLoader;
+import bdv.ViewerSetupImgLoader;
+import bdv.cache.CacheControl;
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.VolatileGlobalCellCache;
+import net.imglib2.Volatile;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+
+/**
+ * {@link ViewerSetupImgLoader} for a single setup whose mipmap levels are
+ * loaded into a {@link VolatileGlobalCellCache}, with an offset of the finest
+ * level in world coordinates. This is independent of the storage backend
+ * (HDF5 or N5) that the {@link CacheArrayLoader} reads from.
+ */
+abstract public class AbstractCachedSetupImageLoader< T extends NativeType< T >, V extends Volatile< T > & NativeType< V >, A extends VolatileAccess >
+		extends AbstractCachedViewerSetupImgLoader< T, V, A >
+		implements ViewerImgLoader, SetCache
+{
+	final protected double[] offset;
+
+	public AbstractCachedSetupImageLoader(
+			final int setupId,
+			final long[][] dimensions,
+			final int[][] cellDimensions,
+			final double[][] resolutions,
+			final double[] offset,
+			final T type,
+			final V vType,
+			final CacheArrayLoader< A > loader,
+			final VolatileGlobalCellCache cache ) throws IOException
+	{
+		super(
+				setupId,
+				dimensions,
+				cellDimensions,
+				resolutions,
+				type,
+				vType,
+				loader,
+				cache );
+		this.offset = offset;
+		/* offset mipmap transforms */
+		final double[] resolution = resolutions[ 0 ];
+		for ( int i = 0; i < this.resolutions.length; ++i )
+		{
+			final AffineTransform3D mipmapTransform = mipmapTransforms[ i ];
+			final double[] scaledResolution = this.resolutions[ i ];
+			mipmapTransform.set(offset[0] / scaledResolution[0] * resolution[0], 0, 3);
+			mipmapTransform.set(offset[1] / scaledResolution[1] * resolution[1], 1, 3);
+			mipmapTransform.set(offset[2] / scaledResolution[2] * resolution[2], 2, 3);
+		}
+	}
+
+	@Override
+	public void setCache( final VolatileGlobalCellCache cache )
+	{
+		this.cache = cache;
+	}
+
+	@Override
+	public AbstractCachedSetupImageLoader< T, V, A > getSetupImgLoader( final int setupId )
+	{
+		return this;
+	}
+
+	@Override
+	public CacheControl getCacheControl()
+	{
+		return cache;
+	}
+
+	public double[] getOffset()
+	{
+		return offset;
+	}
+}
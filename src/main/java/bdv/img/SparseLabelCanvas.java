@@ -0,0 +1,834 @@
+package bdv.img;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.labels.labelset.Label;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.basictypeaccess.LongAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * A canvas of painted labels that stores only cells that have been painted
+ * into. Unpainted cells read as {@link Label#TRANSPARENT} without any storage.
+ * The first write of a value other than {@link Label#TRANSPARENT} into an
+ * unpainted cell allocates its storage (copy on write), so painting touches
+ * memory proportional to the painted volume, not the canvas volume.
+ *
+ * <p>
+ * With a {@link #setMemoryBudget(long, File) memory budget}, the least
+ * recently used painted cells beyond the budget are spilled to files in a
+ * scratch directory by a background thread and reloaded transparently on
+ * access. A spilled cell is only written again if it was modified since it
+ * was last written.
+ *
+ * <p>
+ * Reading and painting from several threads is safe. A
+ * {@link net.imglib2.RandomAccess} that is positioned in an unpainted cell may
+ * keep reading {@link Label#TRANSPARENT} while another
+ * {@link net.imglib2.RandomAccess} paints into that cell, until it moves to
+ * another cell.
+ *
+ * <p>
+ * While {@link #startRecording() recording}, the first write into each cell
+ * keeps a compressed copy of the cell as it was before, so that edits can be
+ * undone by {@link #swapCells(CellImages) swapping} the recorded cells back
+ * in.
+ */
+public class SparseLabelCanvas extends LazyCellImg< LongType, SparseLabelCanvas.CellAccess >
+{
+	private final CellStore store;
+
+	private final int[] cellDimensions;
+
+	public SparseLabelCanvas( final long[] dimensions, final int[] cellDimensions )
+	{
+		this( new CellStore( new CellGrid( dimensions, cellDimensions ) ), cellDimensions.clone() );
+	}
+
+	private SparseLabelCanvas( final CellStore store, final int[] cellDimensions )
+	{
+		super( store.grid, new Fraction(), store::getCell );
+		this.store = store;
+		this.cellDimensions = cellDimensions;
+		setLinkedType( new LongType( this ) );
+	}
+
+	public int[] getCellDimensions()
+	{
+		return cellDimensions.clone();
+	}
+
+	/**
+	 * Limit the memory used by painted cells to {@code maxBytes}. Least
+	 * recently used cells beyond the budget are spilled to a new directory in
+	 * {@code scratchDirectory}, which is created if it does not exist. The
+	 * spill directory and its files are deleted when the JVM exits.
+	 *
+	 * <p>
+	 * Spilling happens in the background, so the resident cells may exceed
+	 * the budget until the spill thread catches up.
+	 *
+	 * @param maxBytes
+	 *            memory budget, {@link Long#MAX_VALUE} for no limit
+	 * @param scratchDirectory
+	 * @throws IOException
+	 *             if the spill directory could not be created
+	 */
+	public void setMemoryBudget( final long maxBytes, final File scratchDirectory ) throws IOException
+	{
+		store.initSpilling( scratchDirectory );
+		store.maxBytes = maxBytes;
+		store.evictIfOverBudget();
+	}
+
+	/**
+	 * Wait until all spills that have been started are done.
+	 */
+	void awaitSpills() throws InterruptedException
+	{
+		store.awaitSpills();
+	}
+
+	/**
+	 * Number of spill files written.
+	 */
+	long getNumSpillWrites()
+	{
+		return store.numSpillWrites.get();
+	}
+
+	/**
+	 * Number of cells that have been painted into, resident or spilled.
+	 */
+	public int numPaintedCells()
+	{
+		return store.entries.size();
+	}
+
+	/**
+	 * Bytes used by painted cells that are held in memory.
+	 */
+	public long getResidentBytes()
+	{
+		return store.residentBytes.get();
+	}
+
+	/**
+	 * Whether the cell with index {@code cellIndex} has been painted into.
+	 */
+	public boolean isPainted( final long cellIndex )
+	{
+		return store.entries.containsKey( cellIndex );
+	}
+
+	/**
+	 * Whether any cell that intersects {@code interval} has been painted into.
+	 */
+	public boolean isPainted( final Interval interval )
+	{
+		final int n = numDimensions();
+		final long[] gridDimensions = store.grid.getGridDimensions();
+		final long[] cellMin = new long[ n ];
+		final long[] cellMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			cellMin[ d ] = Math.max( interval.min( d ), 0 ) / cellDimensions[ d ];
+			cellMax[ d ] = Math.min( interval.max( d ), dimension( d ) - 1 ) / cellDimensions[ d ];
+			if ( cellMin[ d ] > cellMax[ d ] )
+				return false;
+		}
+		final long[] cellPosition = cellMin.clone();
+		while ( true )
+		{
+			if ( isPainted( IntervalIndexer.positionToIndex( cellPosition, gridDimensions ) ) )
+				return true;
+			int d = 0;
+			for ( ; d < n && cellPosition[ d ] == cellMax[ d ]; ++d )
+				cellPosition[ d ] = cellMin[ d ];
+			if ( d == n )
+				return false;
+			++cellPosition[ d ];
+		}
+	}
+
+	/**
+	 * Indices of all cells that have been painted into, in ascending order.
+	 */
+	public long[] getPaintedCellIndices()
+	{
+		final long[] indices = new long[ store.entries.size() ];
+		int i = 0;
+		for ( final Long index : store.entries.keySet() )
+		{
+			if ( i == indices.length )
+				break;
+			indices[ i++ ] = index;
+		}
+		final long[] sorted = i == indices.length ? indices : Arrays.copyOf( indices, i );
+		Arrays.sort( sorted );
+		return sorted;
+	}
+
+	/**
+	 * Get the data of a painted cell, flattened x fastest over the cell's
+	 * dimensions. Reloads the cell if it was spilled.
+	 *
+	 * @return the data, or {@code null} if the cell has not been painted into.
+	 */
+	public long[] getPaintedCellData( final long cellIndex )
+	{
+		final Entry entry = store.entries.get( cellIndex );
+		if ( entry == null )
+			return null;
+		final long[] data = entry.data;
+		return data == null ? store.load( entry ) : data;
+	}
+
+	/**
+	 * The interval of the cell with index {@code cellIndex}.
+	 */
+	public Interval getCellInterval( final long cellIndex )
+	{
+		final int n = store.grid.numDimensions();
+		final long[] cellMin = new long[ n ];
+		final int[] cellDims = new int[ n ];
+		store.grid.getCellDimensions( cellIndex, cellMin, cellDims );
+		final long[] cellMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			cellMax[ d ] = cellMin[ d ] + cellDims[ d ] - 1;
+		return new FinalInterval( cellMin, cellMax );
+	}
+
+	/**
+	 * Start recording the cells that are painted into.
+	 */
+	public void startRecording()
+	{
+		store.recording = new Recording( ++store.recordings );
+	}
+
+	/**
+	 * Stop recording.
+	 *
+	 * @return the images of the cells that were painted into since
+	 *         {@link #startRecording()}, as they were before, without the
+	 *         cells that were painted back to how they were before
+	 */
+	public CellImages stopRecording()
+	{
+		final Recording recording = store.recording;
+		store.recording = null;
+		if ( recording == null )
+			return new CellImages( new long[ 0 ], new byte[ 0 ][] );
+		synchronized ( recording )
+		{
+			final ArrayList< Long > indices = new ArrayList<>();
+			final ArrayList< byte[] > images = new ArrayList<>();
+			for ( final Map.Entry< Long, byte[] > image : recording.images.entrySet() )
+			{
+				if ( isUnchanged( image.getValue(), getPaintedCellData( image.getKey() ) ) )
+					continue;
+				indices.add( image.getKey() );
+				images.add( image.getValue() );
+			}
+			final long[] indexArray = new long[ indices.size() ];
+			for ( int i = 0; i < indexArray.length; ++i )
+				indexArray[ i ] = indices.get( i );
+			return new CellImages( indexArray, images.toArray( new byte[ indexArray.length ][] ) );
+		}
+	}
+
+	private static boolean isUnchanged( final byte[] image, final long[] current )
+	{
+		if ( current == null )
+			return image == null;
+		if ( image == null )
+		{
+			for ( final long value : current )
+				if ( value != Label.TRANSPARENT )
+					return false;
+			return true;
+		}
+		return Arrays.equals( image, encodeRuns( current ) );
+	}
+
+	/**
+	 * Replace cells with {@code images} and return the images of the same
+	 * cells as they were before. Swapping the returned images undoes the
+	 * swap.
+	 *
+	 * @param images
+	 * @return the replaced images
+	 */
+	public CellImages swapCells( final CellImages images )
+	{
+		final byte[][] replaced = new byte[ images.indices.length ][];
+		for ( int i = 0; i < images.indices.length; ++i )
+		{
+			final long index = images.indices[ i ];
+			final long[] current = getPaintedCellData( index );
+			replaced[ i ] = current == null ? null : encodeRuns( current );
+
+			final byte[] image = images.images[ i ];
+			if ( image == null && current == null )
+				continue;
+
+			final Entry entry = store.allocate( index );
+			final long[] data = new long[ entry.size ];
+			if ( image == null )
+				Arrays.fill( data, Label.TRANSPARENT );
+			else
+				decodeRuns( image, data );
+			final CellAccess access = entry.cell.getData();
+			for ( int j = 0; j < data.length; ++j )
+				access.setValue( j, data[ j ] );
+		}
+		return new CellImages( images.indices, replaced );
+	}
+
+	/**
+	 * Run length encoded images of a set of cells.
+	 */
+	public static final class CellImages
+	{
+		private final long[] indices;
+
+		/**
+		 * {@code null} for unpainted cells
+		 */
+		private final byte[][] images;
+
+		private CellImages( final long[] indices, final byte[][] images )
+		{
+			this.indices = indices;
+			this.images = images;
+		}
+
+		public int numCells()
+		{
+			return indices.length;
+		}
+
+		public long getCellIndex( final int i )
+		{
+			return indices[ i ];
+		}
+
+		/**
+		 * Approximate memory used by the images.
+		 */
+		public long getBytes()
+		{
+			long bytes = 8L * indices.length;
+			for ( final byte[] image : images )
+				if ( image != null )
+					bytes += image.length;
+			return bytes;
+		}
+	}
+
+	/**
+	 * Images of cells before the first write since recording started.
+	 */
+	private static final class Recording
+	{
+		final int id;
+
+		final LinkedHashMap< Long, byte[] > images = new LinkedHashMap<>();
+
+		Recording( final int id )
+		{
+			this.id = id;
+		}
+
+		synchronized void record( final Entry entry, final long[] data )
+		{
+			if ( entry.recording == id )
+				return;
+			images.put( entry.index, data == null ? null : encodeRuns( data ) );
+			entry.recording = id;
+		}
+	}
+
+	/**
+	 * A painted cell. {@link #data} is {@code null} while the cell is
+	 * spilled.
+	 */
+	private static final class Entry
+	{
+		final long index;
+
+		final int size;
+
+		final Cell< CellAccess > cell;
+
+		volatile long[] data;
+
+		/**
+		 * modified since last written to {@link #file}
+		 */
+		volatile boolean modified = true;
+
+		/**
+		 * accessed since last considered for eviction, a second chance for
+		 * accesses that do not go through {@link CellStore#touch(Entry)}
+		 */
+		boolean referenced = true;
+
+		/**
+		 * spill file, {@code null} if never spilled, guarded by this
+		 */
+		File file = null;
+
+		/**
+		 * id of the last {@link Recording} that recorded this cell
+		 */
+		volatile int recording = 0;
+
+		Entry( final CellStore store, final long index )
+		{
+			final int n = store.grid.numDimensions();
+			final long[] cellMin = new long[ n ];
+			final int[] cellDims = new int[ n ];
+			store.grid.getCellDimensions( index, cellMin, cellDims );
+			int size = 1;
+			for ( final int s : cellDims )
+				size *= s;
+
+			this.index = index;
+			this.size = size;
+			data = new long[ size ];
+			Arrays.fill( data, Label.TRANSPARENT );
+			cell = new Cell<>( cellDims, cellMin, new CellAccess( store, index, this ) );
+		}
+	}
+
+	/**
+	 * Painted cells, memory accounting, and spilling.
+	 */
+	private static final class CellStore
+	{
+		final CellGrid grid;
+
+		/**
+		 * Painted cells by cell index.
+		 */
+		final ConcurrentHashMap< Long, Entry > entries = new ConcurrentHashMap<>();
+
+		final AtomicLong residentBytes = new AtomicLong();
+
+		/**
+		 * bytes of resident cells that are queued for spilling
+		 */
+		final AtomicLong spillingBytes = new AtomicLong();
+
+		final AtomicLong numSpillWrites = new AtomicLong();
+
+		volatile long maxBytes = Long.MAX_VALUE;
+
+		/**
+		 * Resident cells that are not queued for spilling, least recently
+		 * used first, maintained only with a budget, guarded by itself.
+		 */
+		final LinkedHashMap< Long, Entry > lru = new LinkedHashMap<>( 16, 0.75f, true );
+
+		/**
+		 * directory of the spill files of this canvas, {@code null} until
+		 * spilling is initialized
+		 */
+		volatile File spillDirectory = null;
+
+		ExecutorService spiller = null;
+
+		volatile Recording recording = null;
+
+		int recordings = 0;
+
+		CellStore( final CellGrid grid )
+		{
+			this.grid = grid;
+		}
+
+		Cell< CellAccess > getCell( final long index )
+		{
+			final Entry entry = entries.get( index );
+			if ( entry != null )
+			{
+				touch( entry );
+				return entry.cell;
+			}
+
+			final int n = grid.numDimensions();
+			final long[] cellMin = new long[ n ];
+			final int[] cellDims = new int[ n ];
+			grid.getCellDimensions( index, cellMin, cellDims );
+			return new Cell<>( cellDims, cellMin, new CellAccess( this, index, null ) );
+		}
+
+		/**
+		 * Register a cell as painted, or get the entry of a concurrently
+		 * painted instance of the same cell.
+		 */
+		Entry allocate( final long index )
+		{
+			final boolean[] created = new boolean[ 1 ];
+			final Entry entry = entries.computeIfAbsent( index, k -> {
+				created[ 0 ] = true;
+				return new Entry( this, index );
+			} );
+			if ( created[ 0 ] )
+			{
+				final Recording recording = this.recording;
+				if ( recording != null )
+					recording.record( entry, null );
+				residentBytes.addAndGet( 8L * entry.size );
+				touch( entry );
+				evictIfOverBudget();
+			}
+			return entry;
+		}
+
+		/**
+		 * Create the spill directory in {@code scratchDirectory}, the spill
+		 * thread, and a shutdown hook that deletes the spill files.
+		 */
+		synchronized void initSpilling( final File scratchDirectory ) throws IOException
+		{
+			if ( spillDirectory != null )
+				return;
+
+			scratchDirectory.mkdirs();
+			final File directory = Files.createTempDirectory( scratchDirectory.toPath(), "canvas-" ).toFile();
+			spiller = Executors.newSingleThreadExecutor( r -> {
+				final Thread thread = new Thread( r, "canvas spill" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+			Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+				spiller.shutdownNow();
+				final File[] files = directory.listFiles();
+				if ( files != null )
+					for ( final File file : files )
+						file.delete();
+				directory.delete();
+			} ) );
+
+			synchronized ( lru )
+			{
+				for ( final Entry entry : entries.values() )
+					if ( entry.data != null )
+						lru.put( entry.index, entry );
+			}
+			spillDirectory = directory;
+		}
+
+		/**
+		 * Mark a resident cell as most recently used.
+		 */
+		void touch( final Entry entry )
+		{
+			if ( spillDirectory == null )
+				return;
+			synchronized ( lru )
+			{
+				if ( entry.data != null )
+					lru.put( entry.index, entry );
+			}
+		}
+
+		/**
+		 * Reload a spilled cell.
+		 */
+		long[] load( final Entry entry )
+		{
+			long[] data;
+			synchronized ( entry )
+			{
+				data = entry.data;
+				if ( data != null )
+					return data;
+
+				data = new long[ entry.size ];
+				try ( final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( entry.file ) ) ) )
+				{
+					readRuns( in, data );
+				}
+				catch ( final IOException e )
+				{
+					throw new RuntimeException( "Could not reload canvas cell " + entry.index + " from " + entry.file, e );
+				}
+				entry.data = data;
+				residentBytes.addAndGet( 8L * entry.size );
+				touch( entry );
+			}
+			evictIfOverBudget();
+			return data;
+		}
+
+		/**
+		 * Queue least recently used cells for spilling until the resident
+		 * cells that are not queued fit into the budget. Cells that were
+		 * accessed since they were last considered get a second chance, the
+		 * most recently used cell is kept.
+		 */
+		void evictIfOverBudget()
+		{
+			if ( residentBytes.get() - spillingBytes.get() <= maxBytes )
+				return;
+
+			synchronized ( lru )
+			{
+				for ( int pass = 0; pass < 2; ++pass )
+				{
+					final Iterator< Entry > it = lru.values().iterator();
+					while ( residentBytes.get() - spillingBytes.get() > maxBytes && it.hasNext() )
+					{
+						final Entry entry = it.next();
+						if ( !it.hasNext() )
+							break;
+						if ( pass == 0 && entry.referenced )
+						{
+							entry.referenced = false;
+							continue;
+						}
+						it.remove();
+						spill( entry );
+					}
+				}
+			}
+		}
+
+		/**
+		 * Queue a cell for spilling. Check the budget again after the spill,
+		 * in case the cell was used again and kept.
+		 */
+		void spill( final Entry entry )
+		{
+			final long bytes = 8L * entry.size;
+			spillingBytes.addAndGet( bytes );
+			spiller.execute( () -> {
+				try
+				{
+					evict( entry );
+				}
+				finally
+				{
+					spillingBytes.addAndGet( -bytes );
+				}
+				evictIfOverBudget();
+			} );
+		}
+
+		void awaitSpills() throws InterruptedException
+		{
+			if ( spiller == null )
+				return;
+			try
+			{
+				do
+					spiller.submit( () -> {} ).get();
+				while ( spillingBytes.get() > 0 );
+			}
+			catch ( final ExecutionException e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+
+		/**
+		 * Write a cell to its spill file if it was modified since it was
+		 * last written, and release its data. Cells that were used again
+		 * since they were queued are kept.
+		 */
+		void evict( final Entry entry )
+		{
+			synchronized ( entry )
+			{
+				final long[] data = entry.data;
+				if ( data == null )
+					return;
+				synchronized ( lru )
+				{
+					if ( lru.containsKey( entry.index ) )
+						return;
+				}
+
+				/*
+				 * Release the data before clearing the modified flag. Writers
+				 * that see the data released repeat their write on the
+				 * reloaded data, writers that set the flag before it is
+				 * cleared are included in the spill file.
+				 */
+				entry.data = null;
+				final boolean modified = entry.modified;
+				entry.modified = false;
+				if ( modified || entry.file == null )
+				{
+					final File file = entry.file == null ? new File( spillDirectory, "cell-" + entry.index + ".bin" ) : entry.file;
+					try ( final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) ) )
+					{
+						writeRuns( out, data );
+					}
+					catch ( final IOException e )
+					{
+						e.printStackTrace();
+						entry.data = data;
+						entry.modified = true;
+						touch( entry );
+						return;
+					}
+					entry.file = file;
+					numSpillWrites.incrementAndGet();
+				}
+				residentBytes.addAndGet( -8L * entry.size );
+			}
+		}
+	}
+
+	/**
+	 * Write run length encoded values as (value, run length) pairs.
+	 */
+	private static void writeRuns( final DataOutputStream out, final long[] data ) throws IOException
+	{
+		for ( int i = 0; i < data.length; )
+		{
+			final long value = data[ i ];
+			int j = i + 1;
+			while ( j < data.length && data[ j ] == value )
+				++j;
+			out.writeLong( value );
+			out.writeInt( j - i );
+			i = j;
+		}
+	}
+
+	private static void readRuns( final DataInputStream in, final long[] data ) throws IOException
+	{
+		for ( int i = 0; i < data.length; )
+		{
+			final long value = in.readLong();
+			final int length = in.readInt();
+			Arrays.fill( data, i, i + length, value );
+			i += length;
+		}
+	}
+
+	private static byte[] encodeRuns( final long[] data )
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try ( final DataOutputStream out = new DataOutputStream( bytes ) )
+		{
+			writeRuns( out, data );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void decodeRuns( final byte[] runs, final long[] data )
+	{
+		try ( final DataInputStream in = new DataInputStream( new ByteArrayInputStream( runs ) ) )
+		{
+			readRuns( in, data );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Reads {@link Label#TRANSPARENT} until it is painted into.
+	 */
+	public static final class CellAccess implements LongAccess
+	{
+		private final CellStore store;
+
+		private final long index;
+
+		/**
+		 * {@code null} while the cell is not painted
+		 */
+		private Entry entry;
+
+		private CellAccess( final CellStore store, final long index, final Entry entry )
+		{
+			this.store = store;
+			this.index = index;
+			this.entry = entry;
+		}
+
+		@Override
+		public long getValue( final int i )
+		{
+			final Entry entry = this.entry;
+			if ( entry == null )
+				return Label.TRANSPARENT;
+			if ( !entry.referenced )
+				entry.referenced = true;
+			final long[] data = entry.data;
+			return data == null ? store.load( entry )[ i ] : data[ i ];
+		}
+
+		@Override
+		public void setValue( final int i, final long value )
+		{
+			Entry entry = this.entry;
+			if ( entry == null )
+			{
+				if ( value == Label.TRANSPARENT )
+					return;
+				entry = this.entry = store.allocate( index );
+			}
+
+			if ( !entry.referenced )
+				entry.referenced = true;
+			long[] data = entry.data;
+			if ( data == null )
+				data = store.load( entry );
+
+			final Recording recording = store.recording;
+			if ( recording != null && entry.recording != recording.id )
+				recording.record( entry, data );
+
+			data[ i ] = value;
+			entry.modified = true;
+
+			/* the cell was spilled concurrently, repeat on the reloaded data */
+			while ( entry.data != data )
+			{
+				data = store.load( entry );
+				data[ i ] = value;
+				entry.modified = true;
+			}
+		}
+	}
+}
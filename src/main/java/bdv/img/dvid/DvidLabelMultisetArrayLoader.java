@@ -32,7 +32,7 @@ public class DvidLabelMultisetArrayLoader implements CacheArrayLoader< VolatileL
 		if ( cached != null )
 			return cached;
 		else
-			return emptyArray( dimensions );
+			return theEmptyArray;
 	}
 
 	@Override
@@ -81,14 +81,4 @@ public class DvidLabelMultisetArrayLoader implements CacheArrayLoader< VolatileL
 			ByteUtils.putByte( bytes[ ++j ], listDataStorage, i );
 		return new VolatileLabelMultisetArray( data, listData, true );
 	}
-
-	private VolatileLabelMultisetArray emptyArray( final int[] dimensions )
-	{
-		int numEntities = 1;
-		for ( int i = 0; i < dimensions.length; ++i )
-			numEntities *= dimensions[ i ];
-		if ( theEmptyArray.getCurrentStorageArray().length < numEntities )
-			theEmptyArray = new VolatileLabelMultisetArray( numEntities, false );
-		return theEmptyArray;
-	}
 }
@@ -47,7 +47,10 @@ public class LabelblkMultisetVolatileArrayLoader implements CacheArrayLoader< Vo
 		return 8;
 	}
 
-	static private void readBlock(
+	/**
+	 * @return sorted distinct ids in the block.
+	 */
+	static private long[] readBlock(
 			final String urlString,
 			final int[] data,
 			final LongMappedAccessData listData ) throws IOException
@@ -100,6 +103,12 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 			data[ i ] = ( int ) nextListOffset;
 			nextListOffset += list.getSizeInBytes();
 		}
+
+		final long[] containedLabels = new long[ idAndOffsetList.size() / 2 ];
+		for ( int k = 0; k < containedLabels.length; ++k )
+			containedLabels[ k ] = idAndOffsetList.getQuick( 2 * k );
+		Arrays.sort( containedLabels );
+		return containedLabels;
 	}
 
 	private String makeUrl(
@@ -155,11 +164,12 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 //				);
 		final int[] data = new int[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
 		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final long[] containedLabels;
 
 		try
 		{
 			final String urlString = makeUrl( min, dimensions );
-			readBlock( urlString, data, listData );
+			containedLabels = readBlock( urlString, data, listData );
 		}
 		catch ( final IOException e )
 		{
@@ -171,7 +181,7 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 			return null;
 		}
 
-		return new VolatileLabelMultisetArray( data, listData, true );
+		return new VolatileLabelMultisetArray( data, listData, -1, true, false, containedLabels );
 	}
 
 	@Override
@@ -182,11 +192,7 @@ A:		for ( int i = 0, j = -1; i < data.length; ++i )
 
 	public VolatileLabelMultisetArray emptyArray( final int[] dimensions )
 	{
-		int numEntities = 1;
-		for ( int i = 0; i < dimensions.length; ++i )
-			numEntities *= dimensions[ i ];
-		if ( theEmptyArray.getCurrentStorageArray().length < numEntities )
-			theEmptyArray = new VolatileLabelMultisetArray( numEntities, false );
+		// constant block without per-pixel storage, fits any dimensions
 		return theEmptyArray;
 	}
 }
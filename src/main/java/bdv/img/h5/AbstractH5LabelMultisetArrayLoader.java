@@ -4,8 +4,10 @@ import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.EmptyArrayCreator;
 import bdv.labels.labelset.LongMappedAccess;
 import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.MappedAccessData;
+import bdv.labels.labelset.OffHeapLongMappedAccessData;
+import bdv.labels.labelset.VarintLabelMultisetEntryList;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
-import ch.systemsx.cisd.hdf5.IHDF5IntReader;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 
 /**
@@ -18,19 +20,50 @@ abstract public class AbstractH5LabelMultisetArrayLoader implements CacheArrayLo
 {
 	protected VolatileLabelMultisetArray theEmptyArray;
 
-	protected final IHDF5IntReader scaleReader;
+	/**
+	 * reads the downsampled levels, {@code null} if there are none
+	 */
+	protected final H5LabelMultisetScaleLevelReader scaleLevelReader;
 
 	final protected String dataset;
 
+	/**
+	 * Creates the storage for the label multiset lists of loaded blocks.
+	 */
+	protected MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory = LongMappedAccessData.factory;
+
 	public AbstractH5LabelMultisetArrayLoader(
 			final IHDF5Reader scaleReader,
 			final String dataset )
 	{
 		theEmptyArray = new VolatileLabelMultisetArray( 1, false );
-		this.scaleReader = ( scaleReader == null ) ? null : scaleReader.uint32();
+		this.scaleLevelReader = ( scaleReader == null ) ? null : new H5LabelMultisetScaleLevelReader( scaleReader );
 		this.dataset = dataset;
 	}
 
+	/**
+	 * Set whether to store the lists of downsampled levels in compact
+	 * {@link VarintLabelMultisetEntryList varint encoding}. This trades some
+	 * cpu time on access for a 2-4x smaller memory footprint.
+	 */
+	public void setVarintEncodeScaleLevels( final boolean varintEncodeScaleLevels )
+	{
+		if ( scaleLevelReader != null )
+			scaleLevelReader.setVarintEncode( varintEncodeScaleLevels );
+	}
+
+	/**
+	 * Set the factory that creates the storage for the label multiset lists
+	 * of loaded blocks, e.g. {@link OffHeapLongMappedAccessData#factory} to
+	 * keep them outside of the java heap.
+	 */
+	public void setListDataFactory( final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory )
+	{
+		this.listDataFactory = listDataFactory;
+		if ( scaleLevelReader != null )
+			scaleLevelReader.setListDataFactory( listDataFactory );
+	}
+
 	abstract protected VolatileLabelMultisetArray loadArrayLevel0(
 			final int[] dimensions,
 			final long[] min ) throws InterruptedException;
@@ -45,17 +78,8 @@ abstract public class AbstractH5LabelMultisetArrayLoader implements CacheArrayLo
 	{
 		if ( level == 0 )
 			return loadArrayLevel0( dimensions, min );
-
-		final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
-		final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
-
-		final int[] offsets = scaleReader.readMDArray( dataPath ).getAsFlatArray();
-		final int[] lists = scaleReader.readArray( listsPath );
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( lists.length * 4 );
-		final LongMappedAccess access = listData.createAccess();
-		for ( int i = 0; i < lists.length; ++i )
-			access.putInt( lists[ i ], i * 4 );
-		return new VolatileLabelMultisetArray( offsets, listData, 0, true );
+		else
+			return scaleLevelReader.read( level, dimensions, min );
 	}
 
 	@Override
@@ -2,17 +2,13 @@ package bdv.img.h5;
 
 import java.io.IOException;
 
-import bdv.AbstractCachedViewerSetupImgLoader;
-import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
-import bdv.cache.CacheControl;
-import bdv.img.SetCache;
+import bdv.img.AbstractCachedSetupImageLoader;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.VolatileGlobalCellCache;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import net.imglib2.Volatile;
 import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
-import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 
 /**
@@ -23,12 +19,8 @@ import net.imglib2.type.NativeType;
  * @author Stephan Saalfeld &lt;saalfelds@janelia.hhmi.org&gt;
  */
 abstract public class AbstractH5SetupImageLoader< T extends NativeType< T >, V extends Volatile< T > & NativeType< V >, A extends VolatileAccess >
-		extends AbstractCachedViewerSetupImgLoader< T, V, A >
-		implements ViewerImgLoader, SetCache
+		extends AbstractCachedSetupImageLoader< T, V, A >
 {
-
-	final protected double[] offset;
-
 	final static public long[] readDimension( final IHDF5Reader reader, final String dataset )
 	{
 		final long[] h5dim = reader.object().getDimensions( dataset );
@@ -80,20 +72,11 @@ abstract public class AbstractH5SetupImageLoader< T extends NativeType< T >, V e
 				new long[][] { readDimension( reader, dataset ) },
 				new int[][] { blockDimension },
 				new double[][] { resolution },
+				offset,
 				type,
 				vType,
 				loader,
 				cache );
-		this.offset = offset;
-		/* offset mipmap transforms */
-		for ( int i = 0; i < resolutions.length; ++i )
-		{
-			final AffineTransform3D mipmapTransform = mipmapTransforms[ i ];
-			final double[] scaledResolution = resolutions[ i ];
-			mipmapTransform.set(offset[0] / scaledResolution[0] * resolution[0], 0, 3);
-			mipmapTransform.set(offset[1] / scaledResolution[1] * resolution[1], 1, 3);
-			mipmapTransform.set(offset[2] / scaledResolution[2] * resolution[2], 2, 3);
-		}
 	}
 
 	public AbstractH5SetupImageLoader(
@@ -119,26 +102,9 @@ abstract public class AbstractH5SetupImageLoader< T extends NativeType< T >, V e
 				cache );
 	}
 
-	@Override
-	public void setCache( final VolatileGlobalCellCache cache )
-	{
-		this.cache = cache;
-	}
-
 	@Override
 	public AbstractH5SetupImageLoader< T, V, A > getSetupImgLoader( final int setupId )
 	{
 		return this;
 	}
-
-	@Override
-	public CacheControl getCacheControl()
-	{
-		return cache;
-	}
-
-	public double[] getOffset()
-	{
-		return offset;
-	}
 }
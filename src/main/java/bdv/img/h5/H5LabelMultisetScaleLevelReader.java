@@ -0,0 +1,178 @@
+package bdv.img.h5;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import bdv.labels.labelset.DownscaleToHdf5;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LongMappedAccess;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.MappedAccessData;
+import bdv.labels.labelset.OffHeapLongMappedAccessData;
+import bdv.labels.labelset.VarintLabelMultisetEntryList;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import ch.systemsx.cisd.hdf5.IHDF5IntReader;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imglib2.util.Intervals;
+
+/**
+ * Reads blocks of the downsampled levels of a label multiset pyramid as
+ * written by {@link DownscaleToHdf5}, in either of its storage layouts.  Used
+ * by the {@link AbstractH5LabelMultisetArrayLoader}s for all levels but 0,
+ * and on its own by tools that only read downsampled levels.
+ */
+public class H5LabelMultisetScaleLevelReader
+{
+	protected final IHDF5Reader reader;
+
+	protected final IHDF5IntReader uint32Reader;
+
+	/**
+	 * Storage layout of each scale level, determined when the first block of
+	 * the level is loaded.
+	 */
+	private final ConcurrentHashMap< Integer, ScaleLevelLayout > scaleLevelLayouts = new ConcurrentHashMap<>();
+
+	/**
+	 * Creates the storage for the label multiset lists of loaded blocks.
+	 */
+	protected MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory = LongMappedAccessData.factory;
+
+	/**
+	 * Whether to store the lists in compact
+	 * {@link VarintLabelMultisetEntryList varint encoding}.
+	 */
+	protected boolean varintEncode = false;
+
+	public H5LabelMultisetScaleLevelReader( final IHDF5Reader reader )
+	{
+		this.reader = reader;
+		this.uint32Reader = reader.uint32();
+	}
+
+	/**
+	 * Set whether to store the lists in compact
+	 * {@link VarintLabelMultisetEntryList varint encoding}.
+	 */
+	public void setVarintEncode( final boolean varintEncode )
+	{
+		this.varintEncode = varintEncode;
+	}
+
+	/**
+	 * Set the factory that creates the storage for the label multiset lists
+	 * of loaded blocks, e.g. {@link OffHeapLongMappedAccessData#factory} to
+	 * keep them outside of the java heap.
+	 */
+	public void setListDataFactory( final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory )
+	{
+		this.listDataFactory = listDataFactory;
+	}
+
+	/**
+	 * Read the block with minimum {@code min} of a downsampled level.
+	 *
+	 * @param level
+	 *            the level, &gt; 0
+	 * @param dimensions
+	 *            dimensions of the block
+	 * @param min
+	 *            minimum of the block
+	 */
+	public VolatileLabelMultisetArray read( final int level, final int[] dimensions, final long[] min )
+	{
+		final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+		final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+		final ScaleLevelLayout layout = getScaleLevelLayout( level, listsPath );
+
+		final int[] offsets;
+		final LongMappedAccessData listData;
+		if ( layout.chunked )
+		{
+			final int blockIndex = DownscaleToHdf5.chunkedBlockIndex( layout.blockGridDimensions, layout.blockSize, min );
+			final long listsOffset = layout.index[ 2 * blockIndex ];
+			final long listsLength = layout.index[ 2 * blockIndex + 1 ];
+			if ( listsOffset < 0 || listsLength < 0 || listsLength > Integer.MAX_VALUE )
+				throw new IllegalStateException( "Corrupt block index of level " + level + ", block " + blockIndex + " has lists at " + listsOffset + " of length " + listsLength + "." );
+			/*
+			 * block was not written, it is background, not a pending block
+			 * that the cache should ask for again
+			 */
+			if ( listsLength == 0 )
+				return VolatileLabelMultisetArray.createConstant( Label.BACKGROUND, listDataFactory );
+			offsets = uint32Reader.readMDArrayBlockWithOffset(
+					DownscaleToHdf5.chunkedOffsetsPath( level ),
+					new int[] { dimensions[ 2 ], dimensions[ 1 ], dimensions[ 0 ] },
+					new long[] { min[ 2 ], min[ 1 ], min[ 0 ] } ).getAsFlatArray();
+			listData = LongMappedAccessData.fromPackedLongs(
+					reader.int64().readArrayBlockWithOffset( DownscaleToHdf5.chunkedListsPath( level ), ( int ) listsLength, listsOffset ),
+					listDataFactory );
+		}
+		else
+		{
+			offsets = uint32Reader.readMDArray( dataPath ).getAsFlatArray();
+			listData = layout.packedLongLists
+					? LongMappedAccessData.fromPackedLongs( reader.int64().readArray( listsPath ), listDataFactory )
+					: LongMappedAccessData.fromPackedInts( uint32Reader.readArray( listsPath ), listDataFactory );
+		}
+		final VolatileLabelMultisetArray array = VolatileLabelMultisetArray.isUniform( offsets )
+				? VolatileLabelMultisetArray.createConstant( listData, offsets[ 0 ], listData.size(), true, false, null )
+				: new VolatileLabelMultisetArray( offsets, listData, listData.size(), true );
+		return varintEncode ? VarintLabelMultisetEntryList.encode( array, listDataFactory ) : array;
+	}
+
+	private ScaleLevelLayout getScaleLevelLayout( final int level, final String listsPath )
+	{
+		ScaleLevelLayout layout = scaleLevelLayouts.get( level );
+		if ( layout == null )
+		{
+			layout = new ScaleLevelLayout( reader, level, listsPath );
+			scaleLevelLayouts.put( level, layout );
+		}
+		return layout;
+	}
+
+	/**
+	 * How the blocks of a scale level are stored: either as separate
+	 * {@code lists} and {@code data} datasets per block, with lists as packed
+	 * {@code int64}s or (in older files) {@code uint32}s, or in the chunked
+	 * layout written by {@link DownscaleToHdf5.H5ChunkedBlockWriter}.
+	 */
+	private static class ScaleLevelLayout
+	{
+		final boolean chunked;
+
+		final boolean packedLongLists;
+
+		/**
+		 * chunked layout: (offset, length) of each block in the lists
+		 * dataset, in {@code int64}s.
+		 */
+		final long[] index;
+
+		final long[] blockGridDimensions;
+
+		final long[] blockSize;
+
+		ScaleLevelLayout( final IHDF5Reader reader, final int level, final String listsPath )
+		{
+			chunked = reader.exists( DownscaleToHdf5.chunkedIndexPath( level ) );
+			if ( chunked )
+			{
+				packedLongLists = true;
+				index = reader.int64().readArray( DownscaleToHdf5.chunkedIndexPath( level ) );
+				final long[] dimensions = reader.uint64().readArray( String.format( "l%02d/dimensions", level ) );
+				blockSize = reader.uint64().readArray( String.format( "l%02d/blocksize", level ) );
+				blockGridDimensions = DownscaleToHdf5.chunkedGridDimensions( dimensions, blockSize );
+				if ( index.length != 2 * Intervals.numElements( blockGridDimensions ) )
+					throw new IllegalStateException( "Block index of level " + level + " has " + index.length / 2 + " blocks instead of " + Intervals.numElements( blockGridDimensions ) + "." );
+			}
+			else
+			{
+				packedLongLists = reader.object().getDataSetInformation( listsPath ).getTypeInformation().getElementSize() == 8;
+				index = null;
+				blockGridDimensions = null;
+				blockSize = null;
+			}
+		}
+	}
+}
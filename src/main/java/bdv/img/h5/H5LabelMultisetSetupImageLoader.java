@@ -2,19 +2,18 @@ package bdv.img.h5;
 
 import java.io.IOException;
 
-import bdv.AbstractCachedViewerSetupImgLoader;
-import bdv.ViewerImgLoader;
 import bdv.ViewerSetupImgLoader;
-import bdv.cache.CacheControl;
-import bdv.img.SetCache;
+import bdv.img.AbstractCachedSetupImageLoader;
 import bdv.img.cache.CacheArrayLoader;
 import bdv.img.cache.VolatileGlobalCellCache;
 import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.LongMappedAccess;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.MappedAccessData;
 import bdv.labels.labelset.VolatileLabelMultisetArray;
 import bdv.labels.labelset.VolatileLabelMultisetType;
 import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
 import ch.systemsx.cisd.hdf5.IHDF5Reader;
-import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.util.Util;
 
 /**
@@ -24,27 +23,32 @@ import net.imglib2.util.Util;
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
 public class H5LabelMultisetSetupImageLoader
-		extends AbstractCachedViewerSetupImgLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray >
-		implements ViewerImgLoader, SetCache
+		extends AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray >
 {
 	static private CacheArrayLoader< VolatileLabelMultisetArray > typedLoader(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
-			final String dataset )
+			final String dataset,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory,
+			final boolean varintEncodeScaleLevels )
 	{
 		final HDF5DataSetInformation typeInfo = reader.object().getDataSetInformation( dataset );
 		final Class< ? > cls = typeInfo.getTypeInformation().tryGetJavaType();
 //		System.out.println( typeInfo.getTypeInformation().tryGetJavaType().toString() );
+		final AbstractH5LabelMultisetArrayLoader loader;
 		if ( float.class == cls )
-			return new H5FloatLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			loader = new H5FloatLabelMultisetArrayLoader( reader, scaleReader, dataset );
 		else if ( short.class == cls )
-			return new H5ShortLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			loader = new H5ShortLabelMultisetArrayLoader( reader, scaleReader, dataset );
 		else if ( int.class == cls )
-			return new H5IntLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			loader = new H5IntLabelMultisetArrayLoader( reader, scaleReader, dataset );
 		else if ( long.class == cls )
-			return new H5LongLabelMultisetArrayLoader( reader, scaleReader, dataset );
+			loader = new H5LongLabelMultisetArrayLoader( reader, scaleReader, dataset );
 		else
 			return null;
+		loader.setListDataFactory( listDataFactory );
+		loader.setVarintEncodeScaleLevels( varintEncodeScaleLevels );
+		return loader;
 	}
 
 	static private long[][] readDimensions(
@@ -143,8 +147,6 @@ public class H5LabelMultisetSetupImageLoader
 		return new double[] { h5res[ 2 ], h5res[ 1 ], h5res[ 0 ] };
 	}
 
-	private final double[] offset;
-
 	public H5LabelMultisetSetupImageLoader(
 			final IHDF5Reader reader,
 			final IHDF5Reader scaleReader,
@@ -153,27 +155,20 @@ public class H5LabelMultisetSetupImageLoader
 			final int[] cellDimension,
 			final double[] resolution,
 			final double[] offset,
-			final VolatileGlobalCellCache cache ) throws IOException
+			final VolatileGlobalCellCache cache,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory,
+			final boolean varintEncodeScaleLevels ) throws IOException
 	{
 
 		super( setupId,
 				readDimensions( reader, scaleReader, dataset ),
 				readCellDimensions( reader, scaleReader, dataset, cellDimension ),
 				readResolutions( reader, scaleReader, dataset, resolution ),
+				offset,
 				new LabelMultisetType(),
 				new VolatileLabelMultisetType(),
-				typedLoader( reader, scaleReader, dataset ),
+				typedLoader( reader, scaleReader, dataset, listDataFactory, varintEncodeScaleLevels ),
 				cache );
-		this.offset = offset;
-		/* offset mipmap transforms */
-		for ( int i = 0; i < resolutions.length; ++i )
-		{
-			final AffineTransform3D mipmapTransform = mipmapTransforms[ i ];
-			final double[] scaledResolution = resolutions[ i ];
-			mipmapTransform.set(offset[0] / scaledResolution[0] * resolution[0], 0, 3);
-			mipmapTransform.set(offset[1] / scaledResolution[1] * resolution[1], 1, 3);
-			mipmapTransform.set(offset[2] / scaledResolution[2] * resolution[2], 2, 3);
-		}
 	}
 
 	public H5LabelMultisetSetupImageLoader(
@@ -182,31 +177,65 @@ public class H5LabelMultisetSetupImageLoader
 			final String dataset,
 			final int setupId,
 			final int[] cellDimension,
-			final VolatileGlobalCellCache cache ) throws IOException
+			final double[] resolution,
+			final double[] offset,
+			final VolatileGlobalCellCache cache,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory ) throws IOException
 	{
-		this( reader, scaleReader, dataset, setupId, cellDimension, readResolution( reader, dataset ), readOffset( reader, dataset ), cache );
+		this( reader, scaleReader, dataset, setupId, cellDimension, resolution, offset, cache, listDataFactory, false );
 	}
 
-	@Override
-	public void setCache( final VolatileGlobalCellCache cache )
+	public H5LabelMultisetSetupImageLoader(
+			final IHDF5Reader reader,
+			final IHDF5Reader scaleReader,
+			final String dataset,
+			final int setupId,
+			final int[] cellDimension,
+			final double[] resolution,
+			final double[] offset,
+			final VolatileGlobalCellCache cache ) throws IOException
 	{
-		this.cache = cache;
+		this( reader, scaleReader, dataset, setupId, cellDimension, resolution, offset, cache, LongMappedAccessData.factory );
 	}
 
-	@Override
-	public ViewerSetupImgLoader< ?, ? > getSetupImgLoader( final int setupId )
+	public H5LabelMultisetSetupImageLoader(
+			final IHDF5Reader reader,
+			final IHDF5Reader scaleReader,
+			final String dataset,
+			final int setupId,
+			final int[] cellDimension,
+			final VolatileGlobalCellCache cache ) throws IOException
 	{
-		return this;
+		this( reader, scaleReader, dataset, setupId, cellDimension, readResolution( reader, dataset ), readOffset( reader, dataset ), cache );
 	}
 
-	@Override
-	public CacheControl getCacheControl()
+	public H5LabelMultisetSetupImageLoader(
+			final IHDF5Reader reader,
+			final IHDF5Reader scaleReader,
+			final String dataset,
+			final int setupId,
+			final int[] cellDimension,
+			final VolatileGlobalCellCache cache,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory ) throws IOException
 	{
-		return cache;
+		this( reader, scaleReader, dataset, setupId, cellDimension, readResolution( reader, dataset ), readOffset( reader, dataset ), cache, listDataFactory );
 	}
 
-	public double[] getOffset()
+	/**
+	 * @param varintEncodeScaleLevels
+	 *            store the lists of downsampled levels in compact varint
+	 *            encoding
+	 */
+	public H5LabelMultisetSetupImageLoader(
+			final IHDF5Reader reader,
+			final IHDF5Reader scaleReader,
+			final String dataset,
+			final int setupId,
+			final int[] cellDimension,
+			final VolatileGlobalCellCache cache,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory,
+			final boolean varintEncodeScaleLevels ) throws IOException
 	{
-		return this.offset;
+		this( reader, scaleReader, dataset, setupId, cellDimension, readResolution( reader, dataset ), readOffset( reader, dataset ), cache, listDataFactory, varintEncodeScaleLevels );
 	}
 }
@@ -62,8 +62,11 @@ public class H5ShortLabelMultisetArrayLoader extends AbstractH5LabelMultisetArra
 			data = new short[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
 		}
 
+		if ( VolatileLabelMultisetArray.isUniform( data ) )
+			return VolatileLabelMultisetArray.createConstant( data[ 0 ] & 0xffffL, listDataFactory );
+
 		final int[] offsets = new int[ dimensions[ 2 ] * dimensions[ 1 ] * dimensions[ 0 ] ];
-		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LongMappedAccessData listData = listDataFactory.createStorage( 32 );
 		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
 		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
 		int nextListOffset = 0;
@@ -95,6 +98,9 @@ A:		for ( int i = 0; i < data.length; ++i )
 		}
 //		System.out.println( listData.size() );
 
-		return new VolatileLabelMultisetArray( offsets, listData, true );
+		final long[] containedLabels = idOffsetHash.keys();
+		Arrays.sort( containedLabels );
+
+		return new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true, false, containedLabels );
 	}
 }
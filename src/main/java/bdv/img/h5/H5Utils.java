@@ -15,6 +15,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.img.SparseLabelCanvas;
 import bdv.labels.labelset.Label;
 import bdv.labels.labelset.LabelMultiset;
 import bdv.labels.labelset.LabelMultisetType;
@@ -363,6 +364,56 @@ public class H5Utils
 		return loadUnsignedLong( new File( filePath ), dataset, cellDimensions );
 	}
 
+	/**
+	 * Load an HDF5 uint64 label canvas into a {@link SparseLabelCanvas}. Only
+	 * cells that contain labels other than {@link Label#TRANSPARENT} allocate
+	 * storage.
+	 *
+	 * @param reader
+	 * @param dataset
+	 * @param cellDimensions
+	 */
+	static public SparseLabelCanvas loadLabelCanvas(
+			final IHDF5Reader reader,
+			final String dataset,
+			final int[] cellDimensions )
+	{
+		final IHDF5LongReader uint64Reader = reader.uint64();
+
+		final long[] dimensions = reorder( reader.object().getDimensions( dataset ) );
+		final int n = dimensions.length;
+
+		final SparseLabelCanvas target = new SparseLabelCanvas( dimensions, cellDimensions );
+
+		final long[] offset = new long[ n ];
+		final long[] targetCellDimensions = new long[ n ];
+		for ( int d = 0; d < n; )
+		{
+			cropCellDimensions( target, offset, cellDimensions, targetCellDimensions );
+			final RandomAccessibleInterval< LongType > targetBlock = Views.offsetInterval( target, offset, targetCellDimensions );
+			final MDLongArray targetCell = uint64Reader.readMDArrayBlockWithOffset(
+					dataset,
+					Util.long2int( reorder( targetCellDimensions ) ),
+					reorder( offset ) );
+
+			/* transparent pixels are not written, unpainted cells stay unallocated */
+			int i = 0;
+			for ( final LongType t : Views.flatIterable( targetBlock ) )
+				t.set( targetCell.get( i++ ) );
+
+			for ( d = 0; d < n; ++d )
+			{
+				offset[ d ] += cellDimensions[ d ];
+				if ( offset[ d ] < dimensions[ d ] )
+					break;
+				else
+					offset[ d ] = 0;
+			}
+		}
+
+		return target;
+	}
+
 	/**
 	 * Load an HDF5 uint16 dataset into a {@link CellImg} of
 	 * {@link UnsignedShortType}.
@@ -1192,7 +1243,7 @@ public class H5Utils
 				( input, output ) -> {
 					final long inputB = input.getB().get();
 					if ( inputB == Label.TRANSPARENT )
-						output.set( input.getA().entrySet().iterator().next().getElement().id() );
+						output.set( input.getA().idAt( 0 ) );
 					else
 						output.set( inputB );
 				};
@@ -1241,7 +1292,7 @@ public class H5Utils
 				( input, output ) -> {
 					final long inputB = input.getB().get();
 					if ( inputB == Label.TRANSPARENT )
-						output.set( assignment.getSegment( input.getA().entrySet().iterator().next().getElement().id() ) );
+						output.set( assignment.getSegment( input.getA().idAt( 0 ) ) );
 					else
 						output.set( assignment.getSegment( inputB ) );
 				};
@@ -0,0 +1,71 @@
+package bdv.img.n5;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import bdv.img.cache.CacheArrayLoader;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+
+/**
+ * {@link CacheArrayLoader} for uint8 datasets in N5 containers. Cells must be
+ * the blocks of the dataset. Unlike HDF5, N5 blocks are separate files, so
+ * the cache fetcher threads read blocks in parallel.
+ */
+public class N5ByteArrayLoader implements CacheArrayLoader< VolatileByteArray >
+{
+	final private N5Reader n5;
+
+	final private String dataset;
+
+	final private DatasetAttributes attributes;
+
+	public N5ByteArrayLoader(
+			final N5Reader n5,
+			final String dataset ) throws IOException
+	{
+		this.n5 = n5;
+		this.dataset = dataset;
+		this.attributes = n5.getDatasetAttributes( dataset );
+	}
+
+	@Override
+	public int getBytesPerElement()
+	{
+		return 1;
+	}
+
+	@Override
+	public VolatileByteArray loadArray(
+			final int timepoint,
+			final int setup,
+			final int level,
+			final int[] dimensions,
+			final long[] min ) throws InterruptedException
+	{
+		byte[] data = null;
+		try
+		{
+			final DataBlock< ? > block = n5.readBlock( dataset, attributes, N5Utils.gridPosition( min, attributes.getBlockSize() ) );
+			if ( block != null )
+				data = ( byte[] ) block.getData();
+		}
+		catch ( final IOException e )
+		{
+			System.out.println(
+					"N5 byte array loader failed loading min = " +
+					Arrays.toString( min ) +
+					", dimensions = " +
+					Arrays.toString( dimensions ) );
+		}
+
+		/* blocks that do not exist are empty */
+		if ( data == null )
+			data = new byte[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ];
+
+		return new VolatileByteArray( data, true );
+	}
+}
@@ -0,0 +1,202 @@
+package bdv.img.n5;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.EmptyArrayCreator;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LongMappedAccess;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.MappedAccessData;
+import bdv.labels.labelset.VarintLabelMultisetEntryList;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+
+/**
+ * {@link CacheArrayLoader} for label multisets from an N5 container. Level 0
+ * is an integer label dataset (uint8 to uint64, or float32 like
+ * {@link bdv.img.h5.H5FloatLabelMultisetArrayLoader}) whose blocks are the
+ * cells. Downsampled levels are read from a scale group in the layout written
+ * by {@link N5LabelMultisetBlockWriter}.
+ */
+public class N5LabelMultisetArrayLoader implements CacheArrayLoader< VolatileLabelMultisetArray >
+{
+	private final VolatileLabelMultisetArray theEmptyArray = new VolatileLabelMultisetArray( 1, false );
+
+	private final N5Reader n5;
+
+	private final String dataset;
+
+	private final String scaleGroup;
+
+	/**
+	 * attributes of the label dataset and the {@code offsets} datasets of
+	 * each scale level.
+	 */
+	private final DatasetAttributes[] offsetsAttributes;
+
+	/**
+	 * attributes of the {@code lists} datasets of each scale level, or
+	 * {@code null} at level 0.
+	 */
+	private final DatasetAttributes[] listsAttributes;
+
+	/**
+	 * Creates the storage for the label multiset lists of loaded blocks.
+	 */
+	private MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory = LongMappedAccessData.factory;
+
+	private boolean varintEncodeScaleLevels = false;
+
+	/**
+	 * @param n5
+	 * @param dataset
+	 *            the label dataset
+	 * @param scaleGroup
+	 *            group that contains the downsampled levels, or {@code null}
+	 *            if there are none.
+	 */
+	public N5LabelMultisetArrayLoader(
+			final N5Reader n5,
+			final String dataset,
+			final String scaleGroup ) throws IOException
+	{
+		this.n5 = n5;
+		this.dataset = dataset;
+		this.scaleGroup = scaleGroup;
+
+		final int numLevels = scaleGroup == null ? 1 : N5LabelMultisetBlockWriter.readNumLevels( n5, scaleGroup );
+		offsetsAttributes = new DatasetAttributes[ numLevels ];
+		listsAttributes = new DatasetAttributes[ numLevels ];
+		offsetsAttributes[ 0 ] = n5.getDatasetAttributes( dataset );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			offsetsAttributes[ level ] = n5.getDatasetAttributes( N5LabelMultisetBlockWriter.offsetsPath( scaleGroup, level ) );
+			listsAttributes[ level ] = n5.getDatasetAttributes( N5LabelMultisetBlockWriter.listsPath( scaleGroup, level ) );
+		}
+	}
+
+	/**
+	 * Set whether to store the lists of downsampled levels in compact
+	 * {@link VarintLabelMultisetEntryList varint encoding}.
+	 */
+	public void setVarintEncodeScaleLevels( final boolean varintEncodeScaleLevels )
+	{
+		this.varintEncodeScaleLevels = varintEncodeScaleLevels;
+	}
+
+	/**
+	 * Set the factory that creates the storage for the label multiset lists
+	 * of loaded blocks.
+	 */
+	public void setListDataFactory( final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory )
+	{
+		this.listDataFactory = listDataFactory;
+	}
+
+	@Override
+	public int getBytesPerElement()
+	{
+		return 4;
+	}
+
+	@Override
+	public VolatileLabelMultisetArray loadArray(
+			final int timepoint,
+			final int setup,
+			final int level,
+			final int[] dimensions,
+			final long[] min ) throws InterruptedException
+	{
+		final long[] gridPosition = N5Utils.gridPosition( min, offsetsAttributes[ level ].getBlockSize() );
+		try
+		{
+			if ( level == 0 )
+			{
+				final DataBlock< ? > block = n5.readBlock( dataset, offsetsAttributes[ 0 ], gridPosition );
+				/* blocks that do not exist are background */
+				final long[] ids = block == null
+						? new long[ dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] ]
+						: toIds( block.getData() );
+				return VolatileLabelMultisetArray.createFromIds( ids, listDataFactory );
+			}
+
+			final DataBlock< ? > offsetsBlock = n5.readBlock( N5LabelMultisetBlockWriter.offsetsPath( scaleGroup, level ), offsetsAttributes[ level ], gridPosition );
+			final DataBlock< ? > listsBlock = n5.readBlock( N5LabelMultisetBlockWriter.listsPath( scaleGroup, level ), listsAttributes[ level ], gridPosition );
+			/* like at level 0, blocks that do not exist are background */
+			if ( offsetsBlock == null || listsBlock == null )
+				return VolatileLabelMultisetArray.createConstant( Label.BACKGROUND, listDataFactory );
+
+			final int[] offsets = ( int[] ) offsetsBlock.getData();
+			final LongMappedAccessData listData = LongMappedAccessData.fromPackedLongs( ( long[] ) listsBlock.getData(), listDataFactory );
+			final VolatileLabelMultisetArray array = VolatileLabelMultisetArray.isUniform( offsets )
+					? VolatileLabelMultisetArray.createConstant( listData, offsets[ 0 ], listData.size(), true, false, null )
+					: new VolatileLabelMultisetArray( offsets, listData, listData.size(), true );
+			return varintEncodeScaleLevels ? VarintLabelMultisetEntryList.encode( array, listDataFactory ) : array;
+		}
+		catch ( final IOException e )
+		{
+			System.err.println(
+					"N5 label multiset array loader failed loading level " + level +
+					", min = " +
+					Arrays.toString( min ) +
+					", dimensions = " +
+					Arrays.toString( dimensions ) );
+			e.printStackTrace();
+			/* invalid, so that the cache tries again */
+			return theEmptyArray;
+		}
+	}
+
+	/**
+	 * Convert the data of a label block to ids the way the HDF5 loaders do.
+	 */
+	private static long[] toIds( final Object data )
+	{
+		if ( data instanceof long[] )
+			return ( long[] ) data;
+
+		final long[] ids;
+		if ( data instanceof int[] )
+		{
+			final int[] values = ( int[] ) data;
+			ids = new long[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				ids[ i ] = values[ i ] & 0xffffffffL;
+		}
+		else if ( data instanceof short[] )
+		{
+			final short[] values = ( short[] ) data;
+			ids = new long[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				ids[ i ] = values[ i ] & 0xffffL;
+		}
+		else if ( data instanceof byte[] )
+		{
+			final byte[] values = ( byte[] ) data;
+			ids = new long[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				ids[ i ] = values[ i ] & 0xffL;
+		}
+		else if ( data instanceof float[] )
+		{
+			final float[] values = ( float[] ) data;
+			ids = new long[ values.length ];
+			for ( int i = 0; i < values.length; ++i )
+				ids[ i ] = Float.floatToIntBits( values[ i ] ) & 0xffffffffL;
+		}
+		else
+			throw new IllegalArgumentException( "Unsupported label data type " + data.getClass().getSimpleName() );
+		return ids;
+	}
+
+	@Override
+	public EmptyArrayCreator< VolatileLabelMultisetArray > getEmptyArrayCreator()
+	{
+		return VolatileLabelMultisetArray.emptyArrayCreator;
+	}
+}
@@ -0,0 +1,166 @@
+package bdv.img.n5;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.IntArrayDataBlock;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import bdv.labels.labelset.DownscaleToHdf5;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Writes one downsampled level of a label multiset pyramid into a scale group
+ * of an N5 container, the N5 counterpart of
+ * {@link DownscaleToHdf5.H5ChunkedBlockWriter}. Can be used with
+ * {@link DownscaleToHdf5#writeLevelToHdf5File}. Layout of the scale group:
+ * <ul>
+ * <li>attribute {@code levels}: number of levels, including level 0.</li>
+ * <li>{@code l%02d}: group with the attributes {@code dimensions},
+ * {@code factors}, and {@code blocksize} of the level.</li>
+ * <li>{@code l%02d/offsets}: uint32 list offsets of all voxels, with the
+ * level's blocksize as block size. Offsets are relative to the start of the
+ * block's lists.</li>
+ * <li>{@code l%02d/lists}: int64 dataset over the block grid with block size
+ * 1,1,1. Each block holds the lists of the corresponding {@code offsets} block
+ * as packed longs, see {@link LongMappedAccessData#toPackedLongs(long)}; its
+ * size is the number of longs in x.</li>
+ * </ul>
+ */
+public class N5LabelMultisetBlockWriter implements DownscaleToHdf5.BlockWriter, DownscaleToHdf5.LevelInfoWriter
+{
+	public static String levelPath( final String scaleGroup, final int level )
+	{
+		return String.format( "%s/l%02d", scaleGroup, level );
+	}
+
+	public static String offsetsPath( final String scaleGroup, final int level )
+	{
+		return levelPath( scaleGroup, level ) + "/offsets";
+	}
+
+	public static String listsPath( final String scaleGroup, final int level )
+	{
+		return levelPath( scaleGroup, level ) + "/lists";
+	}
+
+	public static int readNumLevels( final N5Reader n5, final String scaleGroup ) throws IOException
+	{
+		return n5.getAttribute( scaleGroup, "levels", Integer.class );
+	}
+
+	public static long[] readDimensions( final N5Reader n5, final String scaleGroup, final int level ) throws IOException
+	{
+		return n5.getAttribute( levelPath( scaleGroup, level ), "dimensions", long[].class );
+	}
+
+	public static long[] readFactors( final N5Reader n5, final String scaleGroup, final int level ) throws IOException
+	{
+		return n5.getAttribute( levelPath( scaleGroup, level ), "factors", long[].class );
+	}
+
+	public static long[] readBlocksize( final N5Reader n5, final String scaleGroup, final int level ) throws IOException
+	{
+		return n5.getAttribute( levelPath( scaleGroup, level ), "blocksize", long[].class );
+	}
+
+	private final N5Writer n5;
+
+	private final String scaleGroup;
+
+	private final int level;
+
+	private DatasetAttributes offsetsAttributes;
+
+	private DatasetAttributes listsAttributes;
+
+	/**
+	 * @param n5
+	 * @param scaleGroup
+	 *            the scale group
+	 * @param level
+	 *            the level to write
+	 * @param numLevels
+	 *            number of levels of the pyramid, including level 0
+	 */
+	public N5LabelMultisetBlockWriter( final N5Writer n5, final String scaleGroup, final int level, final int numLevels ) throws IOException
+	{
+		this.n5 = n5;
+		this.scaleGroup = scaleGroup;
+		this.level = level;
+		n5.createGroup( scaleGroup );
+		n5.setAttribute( scaleGroup, "levels", numLevels );
+	}
+
+	/**
+	 * Creates the datasets of the level. Must be called before
+	 * {@link #writeBlock}.
+	 */
+	@Override
+	public void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
+	{
+		System.out.println( "writing level " + level );
+		System.out.println( "dimensions = " + Util.printCoordinates( dimensions ) );
+		System.out.println( "factors = " + Util.printCoordinates( factors ) );
+		System.out.println( "blocksize = " + Util.printCoordinates( blocksize ) );
+
+		final long[] gridDimensions = new long[ dimensions.length ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			gridDimensions[ d ] = ( dimensions[ d ] - 1 ) / blocksize[ d ] + 1;
+		final int[] listsBlockSize = new int[ dimensions.length ];
+		Arrays.fill( listsBlockSize, 1 );
+
+		try
+		{
+			final String levelPath = levelPath( scaleGroup, level );
+			n5.createGroup( levelPath );
+			n5.setAttribute( levelPath, "dimensions", dimensions );
+			n5.setAttribute( levelPath, "factors", factors );
+			n5.setAttribute( levelPath, "blocksize", blocksize );
+			n5.createDataset( offsetsPath( scaleGroup, level ), dimensions, Util.long2int( blocksize ), DataType.UINT32, new GzipCompression() );
+			n5.createDataset( listsPath( scaleGroup, level ), gridDimensions, listsBlockSize, DataType.INT64, new GzipCompression() );
+			offsetsAttributes = n5.getDatasetAttributes( offsetsPath( scaleGroup, level ) );
+			listsAttributes = n5.getDatasetAttributes( listsPath( scaleGroup, level ) );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	@Override
+	public void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+	{
+		final long[] lists = ( ( LongMappedAccessData ) data.getListData() ).toPackedLongs( data.getListDataUsedSizeInBytes() );
+		final int[] offsets;
+		if ( data.isConstant() )
+		{
+			offsets = new int[ ( int ) Intervals.numElements( blocksize ) ];
+			Arrays.fill( offsets, data.getListOffset( 0 ) );
+		}
+		else
+			offsets = data.getCurrentStorageArray();
+
+		final long[] gridPosition = N5Utils.gridPosition( min, offsetsAttributes.getBlockSize() );
+		final int[] listsSize = new int[ min.length ];
+		Arrays.fill( listsSize, 1 );
+		listsSize[ 0 ] = lists.length;
+		try
+		{
+			n5.writeBlock( offsetsPath( scaleGroup, level ), offsetsAttributes, new IntArrayDataBlock( Util.long2int( blocksize ), gridPosition, offsets ) );
+			n5.writeBlock( listsPath( scaleGroup, level ), listsAttributes, new LongArrayDataBlock( listsSize, gridPosition, lists ) );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+}
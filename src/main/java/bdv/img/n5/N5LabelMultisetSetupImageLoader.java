@@ -0,0 +1,153 @@
+package bdv.img.n5;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import bdv.img.AbstractCachedSetupImageLoader;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.LongMappedAccess;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.MappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.labels.labelset.VolatileLabelMultisetType;
+import net.imglib2.util.Util;
+
+/**
+ * Loads labels from an N5 container as label multisets, the N5 counterpart of
+ * {@link bdv.img.h5.H5LabelMultisetSetupImageLoader}. Level 0 is the label
+ * dataset, whose blocks are the cells. Downsampled levels are read from an
+ * optional scale group, see {@link N5LabelMultisetBlockWriter}.
+ */
+public class N5LabelMultisetSetupImageLoader
+		extends AbstractCachedSetupImageLoader< LabelMultisetType, VolatileLabelMultisetType, VolatileLabelMultisetArray >
+{
+	static private long[][] readDimensions(
+			final N5Reader n5,
+			final String dataset,
+			final String scaleGroup ) throws IOException
+	{
+		final long[] dimensions = n5.getDatasetAttributes( dataset ).getDimensions();
+		if ( scaleGroup == null )
+			return new long[][] { dimensions };
+
+		final long[][] levelDimensions = new long[ N5LabelMultisetBlockWriter.readNumLevels( n5, scaleGroup ) ][];
+		levelDimensions[ 0 ] = dimensions;
+		for ( int level = 1; level < levelDimensions.length; ++level )
+			levelDimensions[ level ] = N5LabelMultisetBlockWriter.readDimensions( n5, scaleGroup, level );
+		return levelDimensions;
+	}
+
+	static private int[][] readCellDimensions(
+			final N5Reader n5,
+			final String dataset,
+			final String scaleGroup ) throws IOException
+	{
+		final int[] blockSize = n5.getDatasetAttributes( dataset ).getBlockSize();
+		if ( scaleGroup == null )
+			return new int[][] { blockSize };
+
+		final int[][] cellDimensions = new int[ N5LabelMultisetBlockWriter.readNumLevels( n5, scaleGroup ) ][];
+		cellDimensions[ 0 ] = blockSize;
+		for ( int level = 1; level < cellDimensions.length; ++level )
+			cellDimensions[ level ] = Util.long2int( N5LabelMultisetBlockWriter.readBlocksize( n5, scaleGroup, level ) );
+		return cellDimensions;
+	}
+
+	static private double[][] readResolutions(
+			final N5Reader n5,
+			final String scaleGroup,
+			final double[] resolution ) throws IOException
+	{
+		if ( scaleGroup == null )
+			return new double[][] { resolution };
+
+		final double[][] resolutions = new double[ N5LabelMultisetBlockWriter.readNumLevels( n5, scaleGroup ) ][];
+		resolutions[ 0 ] = resolution;
+		for ( int level = 1; level < resolutions.length; ++level )
+		{
+			final long[] factors = N5LabelMultisetBlockWriter.readFactors( n5, scaleGroup, level );
+			resolutions[ level ] = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				resolutions[ level ][ d ] = resolution[ d ] * factors[ d ];
+		}
+		return resolutions;
+	}
+
+	static private N5LabelMultisetArrayLoader loader(
+			final N5Reader n5,
+			final String dataset,
+			final String scaleGroup,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory,
+			final boolean varintEncodeScaleLevels ) throws IOException
+	{
+		final N5LabelMultisetArrayLoader loader = new N5LabelMultisetArrayLoader( n5, dataset, scaleGroup );
+		loader.setListDataFactory( listDataFactory );
+		loader.setVarintEncodeScaleLevels( varintEncodeScaleLevels );
+		return loader;
+	}
+
+	/**
+	 * @param n5
+	 * @param dataset
+	 *            the label dataset
+	 * @param scaleGroup
+	 *            group that contains the downsampled levels, or {@code null}
+	 *            if there are none.
+	 * @param setupId
+	 * @param resolution
+	 * @param offset
+	 * @param cache
+	 * @param listDataFactory
+	 *            creates the storage for the label multiset lists of loaded
+	 *            blocks.
+	 * @param varintEncodeScaleLevels
+	 *            store the lists of downsampled levels in compact varint
+	 *            encoding
+	 */
+	public N5LabelMultisetSetupImageLoader(
+			final N5Reader n5,
+			final String dataset,
+			final String scaleGroup,
+			final int setupId,
+			final double[] resolution,
+			final double[] offset,
+			final VolatileGlobalCellCache cache,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory,
+			final boolean varintEncodeScaleLevels ) throws IOException
+	{
+		super( setupId,
+				readDimensions( n5, dataset, scaleGroup ),
+				readCellDimensions( n5, dataset, scaleGroup ),
+				readResolutions( n5, scaleGroup, resolution ),
+				offset,
+				new LabelMultisetType(),
+				new VolatileLabelMultisetType(),
+				loader( n5, dataset, scaleGroup, listDataFactory, varintEncodeScaleLevels ),
+				cache );
+	}
+
+	public N5LabelMultisetSetupImageLoader(
+			final N5Reader n5,
+			final String dataset,
+			final String scaleGroup,
+			final int setupId,
+			final double[] resolution,
+			final double[] offset,
+			final VolatileGlobalCellCache cache,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory ) throws IOException
+	{
+		this( n5, dataset, scaleGroup, setupId, resolution, offset, cache, listDataFactory, false );
+	}
+
+	public N5LabelMultisetSetupImageLoader(
+			final N5Reader n5,
+			final String dataset,
+			final String scaleGroup,
+			final int setupId,
+			final VolatileGlobalCellCache cache ) throws IOException
+	{
+		this( n5, dataset, scaleGroup, setupId, N5Utils.readResolution( n5, dataset ), N5Utils.readOffset( n5, dataset ), cache, LongMappedAccessData.factory );
+	}
+}
@@ -0,0 +1,62 @@
+package bdv.img.n5;
+
+import java.io.IOException;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import bdv.img.AbstractCachedSetupImageLoader;
+import bdv.img.cache.VolatileGlobalCellCache;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+
+/**
+ * Loads a uint8 dataset from an N5 container, with the optional
+ * {@code resolution} and {@code offset} attributes. Cells are the blocks of
+ * the dataset.
+ */
+public class N5UnsignedByteSetupImageLoader
+		extends AbstractCachedSetupImageLoader< UnsignedByteType, VolatileUnsignedByteType, VolatileByteArray >
+{
+	public N5UnsignedByteSetupImageLoader(
+			final N5Reader n5,
+			final String dataset,
+			final int setupId,
+			final double[] resolution,
+			final double[] offset,
+			final VolatileGlobalCellCache cache ) throws IOException
+	{
+		this( n5, dataset, n5.getDatasetAttributes( dataset ), setupId, resolution, offset, cache );
+	}
+
+	public N5UnsignedByteSetupImageLoader(
+			final N5Reader n5,
+			final String dataset,
+			final int setupId,
+			final VolatileGlobalCellCache cache ) throws IOException
+	{
+		this( n5, dataset, setupId, N5Utils.readResolution( n5, dataset ), N5Utils.readOffset( n5, dataset ), cache );
+	}
+
+	private N5UnsignedByteSetupImageLoader(
+			final N5Reader n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final int setupId,
+			final double[] resolution,
+			final double[] offset,
+			final VolatileGlobalCellCache cache ) throws IOException
+	{
+		super(
+				setupId,
+				new long[][] { attributes.getDimensions() },
+				new int[][] { attributes.getBlockSize() },
+				new double[][] { resolution },
+				offset,
+				new UnsignedByteType(),
+				new VolatileUnsignedByteType(),
+				new N5ByteArrayLoader( n5, dataset ),
+				cache );
+	}
+}
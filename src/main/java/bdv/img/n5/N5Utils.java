@@ -0,0 +1,327 @@
+package bdv.img.n5;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.LongArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import bdv.img.SparseLabelCanvas;
+import bdv.labels.labelset.Label;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Loading and saving of datasets in N5 containers, the N5 counterpart of
+ * {@link bdv.img.h5.H5Utils}. Unlike HDF5, N5 stores dimensions and
+ * attributes in x,y,z order, so nothing is reordered.
+ */
+public class N5Utils
+{
+	/**
+	 * Read the optional {@code resolution} attribute of a dataset.
+	 *
+	 * @return the resolution, or 1,1,1 if the dataset has no resolution.
+	 */
+	static public double[] readResolution( final N5Reader n5, final String dataset ) throws IOException
+	{
+		final double[] resolution = n5.getAttribute( dataset, "resolution", double[].class );
+		return resolution == null ? new double[] { 1, 1, 1 } : resolution;
+	}
+
+	/**
+	 * Read the optional {@code offset} attribute of a dataset.
+	 *
+	 * @return the offset, or 0,0,0 if the dataset has no offset.
+	 */
+	static public double[] readOffset( final N5Reader n5, final String dataset ) throws IOException
+	{
+		final double[] offset = n5.getAttribute( dataset, "offset", double[].class );
+		return offset == null ? new double[ 3 ] : offset;
+	}
+
+	/**
+	 * Grid position of the block that starts at {@code min}.
+	 */
+	static public long[] gridPosition( final long[] min, final int[] blockSize )
+	{
+		final long[] gridPosition = new long[ min.length ];
+		for ( int d = 0; d < min.length; ++d )
+			gridPosition[ d ] = min[ d ] / blockSize[ d ];
+		return gridPosition;
+	}
+
+	/**
+	 * Load an N5 uint64 or int64 label canvas into a {@link SparseLabelCanvas}
+	 * with the dataset's block size as cell dimensions. Blocks that do not
+	 * exist or contain only {@link Label#TRANSPARENT} allocate no storage.
+	 *
+	 * @param n5
+	 * @param dataset
+	 */
+	static public SparseLabelCanvas loadLabelCanvas(
+			final N5Reader n5,
+			final String dataset ) throws IOException
+	{
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final int n = dimensions.length;
+
+		final SparseLabelCanvas target = new SparseLabelCanvas( dimensions, blockSize );
+
+		final long[] offset = new long[ n ];
+		final long[] targetBlockDimensions = new long[ n ];
+		for ( int d = 0; d < n; )
+		{
+			final DataBlock< ? > block = n5.readBlock( dataset, attributes, gridPosition( offset, blockSize ) );
+			if ( block != null )
+			{
+				for ( int i = 0; i < n; ++i )
+					targetBlockDimensions[ i ] = Math.min( blockSize[ i ], dimensions[ i ] - offset[ i ] );
+				final RandomAccessibleInterval< LongType > targetBlock = Views.offsetInterval( target, offset, targetBlockDimensions );
+				final long[] data = ( long[] ) block.getData();
+				int i = 0;
+				for ( final LongType t : Views.flatIterable( targetBlock ) )
+					t.set( data[ i++ ] );
+			}
+
+			for ( d = 0; d < n; ++d )
+			{
+				offset[ d ] += blockSize[ d ];
+				if ( offset[ d ] < dimensions[ d ] )
+					break;
+				else
+					offset[ d ] = 0;
+			}
+		}
+
+		return target;
+	}
+
+	/**
+	 * Save a {@link RandomAccessibleInterval} of {@link IntegerType} into an
+	 * N5 uint64 dataset. The dataset is created with gzip compression if it
+	 * does not exist. Blocks that contain only {@link Label#TRANSPARENT} are
+	 * not written unless they already exist.
+	 *
+	 * @param source
+	 *            source, with min at 0
+	 * @param n5
+	 * @param dataset
+	 * @param blockSize
+	 *            block size of the dataset if created new
+	 */
+	static public < T extends IntegerType< T > > void saveUnsignedLong(
+			final RandomAccessibleInterval< T > source,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize ) throws IOException
+	{
+		createUnsignedLong( n5, dataset, Intervals.dimensionsAsLongArray( source ), blockSize );
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+		final long[] dimensions = attributes.getDimensions();
+		final int[] datasetBlockSize = attributes.getBlockSize();
+		final int n = dimensions.length;
+
+		final long[] offset = new long[ n ];
+		for ( int d = 0; d < n; )
+		{
+			saveUnsignedLongBlock( source, n5, dataset, attributes, offset );
+
+			for ( d = 0; d < n; ++d )
+			{
+				offset[ d ] += datasetBlockSize[ d ];
+				if ( offset[ d ] < dimensions[ d ] )
+					break;
+				else
+					offset[ d ] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Create an N5 uint64 dataset with gzip compression if it does not exist.
+	 *
+	 * @param n5
+	 * @param dataset
+	 * @param dimensions
+	 * @param blockSize
+	 */
+	static public void createUnsignedLong(
+			final N5Writer n5,
+			final String dataset,
+			final long[] dimensions,
+			final int[] blockSize ) throws IOException
+	{
+		if ( !n5.datasetExists( dataset ) )
+			n5.createDataset(
+					dataset,
+					dimensions,
+					blockSize,
+					DataType.UINT64,
+					new GzipCompression() );
+	}
+
+	/**
+	 * The blocks of a block grid that intersect any of {@code intervals}, each
+	 * block once, cropped to {@code dimensions}.
+	 *
+	 * @param dimensions
+	 * @param blockSize
+	 * @param intervals
+	 */
+	static public List< Interval > intersectingBlocks(
+			final long[] dimensions,
+			final int[] blockSize,
+			final Collection< ? extends Interval > intervals )
+	{
+		final int n = dimensions.length;
+
+		final LinkedHashMap< List< Long >, Interval > blocks = new LinkedHashMap<>();
+		final long[] gridMin = new long[ n ];
+		final long[] gridMax = new long[ n ];
+		for ( final Interval interval : intervals )
+		{
+			boolean empty = false;
+			for ( int d = 0; d < n; ++d )
+			{
+				final long min = Math.max( 0, interval.min( d ) );
+				final long max = Math.min( dimensions[ d ] - 1, interval.max( d ) );
+				empty |= min > max;
+				gridMin[ d ] = min / blockSize[ d ];
+				gridMax[ d ] = max / blockSize[ d ];
+			}
+			if ( empty )
+				continue;
+
+			final long[] gridPosition = gridMin.clone();
+			for ( int d = 0; d < n; )
+			{
+				final Long[] key = new Long[ n ];
+				for ( int i = 0; i < n; ++i )
+					key[ i ] = gridPosition[ i ];
+				blocks.computeIfAbsent( Arrays.asList( key ), k -> {
+					final long[] min = new long[ n ];
+					final long[] max = new long[ n ];
+					for ( int i = 0; i < n; ++i )
+					{
+						min[ i ] = k.get( i ) * blockSize[ i ];
+						max[ i ] = Math.min( dimensions[ i ] - 1, min[ i ] + blockSize[ i ] - 1 );
+					}
+					return new FinalInterval( min, max );
+				} );
+
+				for ( d = 0; d < n; ++d )
+				{
+					if ( ++gridPosition[ d ] <= gridMax[ d ] )
+						break;
+					else
+						gridPosition[ d ] = gridMin[ d ];
+				}
+			}
+		}
+
+		return new ArrayList<>( blocks.values() );
+	}
+
+	/**
+	 * Save the blocks of a {@link RandomAccessibleInterval} of
+	 * {@link IntegerType} that intersect any of {@code intervals} into an N5
+	 * uint64 dataset. The dataset is created with gzip compression if it does
+	 * not exist. Blocks that contain only {@link Label#TRANSPARENT} are not
+	 * written unless they already exist.
+	 *
+	 * @param source
+	 *            source, defined at least at the blocks that intersect
+	 *            {@code intervals}
+	 * @param n5
+	 * @param dataset
+	 * @param blockSize
+	 *            block size of the dataset if created new
+	 * @param intervals
+	 *            the modified intervals
+	 */
+	static public < T extends IntegerType< T > > void saveUnsignedLong(
+			final RandomAccessibleInterval< T > source,
+			final N5Writer n5,
+			final String dataset,
+			final int[] blockSize,
+			final Collection< ? extends Interval > intervals ) throws IOException
+	{
+		createUnsignedLong( n5, dataset, Intervals.dimensionsAsLongArray( source ), blockSize );
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+		for ( final Interval block : intersectingBlocks( attributes.getDimensions(), attributes.getBlockSize(), intervals ) )
+			saveUnsignedLongBlock( source, n5, dataset, attributes, Intervals.minAsLongArray( block ) );
+	}
+
+	/**
+	 * Save the block of the dataset that starts at {@code offset}.
+	 */
+	static private < T extends IntegerType< T > > void saveUnsignedLongBlock(
+			final RandomAccessibleInterval< T > source,
+			final N5Writer n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long[] offset ) throws IOException
+	{
+		final long[] dimensions = attributes.getDimensions();
+		final int[] datasetBlockSize = attributes.getBlockSize();
+		final int n = dimensions.length;
+
+		final long[] sourceBlockDimensions = new long[ n ];
+		final int[] size = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			size[ i ] = ( int ) Math.min( datasetBlockSize[ i ], dimensions[ i ] - offset[ i ] );
+			sourceBlockDimensions[ i ] = size[ i ];
+		}
+		final RandomAccessibleInterval< T > sourceBlock = Views.offsetInterval( source, offset, sourceBlockDimensions );
+		final long[] data = new long[ ( int ) Intervals.numElements( size ) ];
+		int i = 0;
+		boolean transparent = true;
+		for ( final T t : Views.flatIterable( sourceBlock ) )
+		{
+			final long id = t.getIntegerLong();
+			transparent &= id == Label.TRANSPARENT;
+			data[ i++ ] = id;
+		}
+		final long[] gridPosition = gridPosition( offset, datasetBlockSize );
+		/* an empty block is still written if it overwrites a previously saved one */
+		if ( !transparent || n5.readBlock( dataset, attributes, gridPosition ) != null )
+			n5.writeBlock( dataset, attributes, new LongArrayDataBlock( size, gridPosition, data ) );
+	}
+
+	/**
+	 * Save a double[] attribute of a dataset or group.
+	 *
+	 * @param attribute
+	 * @param n5
+	 * @param dataset
+	 * @param key
+	 */
+	static public void saveDoubleArrayAttribute(
+			final double[] attribute,
+			final N5Writer n5,
+			final String dataset,
+			final String key ) throws IOException
+	{
+		n5.setAttribute( dataset, key, attribute );
+	}
+}
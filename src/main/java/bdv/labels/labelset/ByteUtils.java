@@ -93,6 +93,93 @@ public class ByteUtils
 		UNSAFE.copyMemory( srcArray, LONG_ARRAY_OFFSET + srcOffset, dstArray, LONG_ARRAY_OFFSET + dstOffset, size );
 	}
 
+	/*
+	 * Raw accessors. {@code address} is interpreted relative to {@code base}
+	 * as by {@link Unsafe}: if {@code base} is a {@code long[]} array, then
+	 * {@code address} must include {@link #LONG_ARRAY_OFFSET}; if {@code base}
+	 * is {@code null}, then {@code address} is an absolute native memory
+	 * address.
+	 */
+
+	public static void putByteAt( final byte value, final Object base, final long address )
+	{
+		UNSAFE.putByte( base, address, value );
+	}
+
+	public static byte getByteAt( final Object base, final long address )
+	{
+		return UNSAFE.getByte( base, address );
+	}
+
+	public static void putIntAt( final int value, final Object base, final long address )
+	{
+		UNSAFE.putInt( base, address, value );
+	}
+
+	public static int getIntAt( final Object base, final long address )
+	{
+		return UNSAFE.getInt( base, address );
+	}
+
+	public static void putLongAt( final long value, final Object base, final long address )
+	{
+		UNSAFE.putLong( base, address, value );
+	}
+
+	public static long getLongAt( final Object base, final long address )
+	{
+		return UNSAFE.getLong( base, address );
+	}
+
+	public static void putFloatAt( final float value, final Object base, final long address )
+	{
+		UNSAFE.putFloat( base, address, value );
+	}
+
+	public static float getFloatAt( final Object base, final long address )
+	{
+		return UNSAFE.getFloat( base, address );
+	}
+
+	public static void putDoubleAt( final double value, final Object base, final long address )
+	{
+		UNSAFE.putDouble( base, address, value );
+	}
+
+	public static double getDoubleAt( final Object base, final long address )
+	{
+		return UNSAFE.getDouble( base, address );
+	}
+
+	public static void copyBytesAt( final Object srcBase, final long srcAddress, final Object dstBase, final long dstAddress, final long size )
+	{
+		UNSAFE.copyMemory( srcBase, srcAddress, dstBase, dstAddress, size );
+	}
+
+	/*
+	 * Native memory management, used by {@link OffHeapLongMappedAccessData}.
+	 */
+
+	static long allocateMemory( final long size )
+	{
+		return UNSAFE.allocateMemory( size );
+	}
+
+	static long reallocateMemory( final long address, final long size )
+	{
+		return UNSAFE.reallocateMemory( address, size );
+	}
+
+	static void setMemory( final long address, final long size, final byte value )
+	{
+		UNSAFE.setMemory( address, size, value );
+	}
+
+	static void freeMemory( final long address )
+	{
+		UNSAFE.freeMemory( address );
+	}
+
 	private static final Unsafe UNSAFE;
 
 	static
@@ -118,5 +205,7 @@ public class ByteUtils
 		}
 	}
 
-	private static final long LONG_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( long[].class );
+	static final long LONG_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( long[].class );
+
+	static final long INT_ARRAY_OFFSET = UNSAFE.arrayBaseOffset( int[].class );
 }
@@ -0,0 +1,116 @@
+package bdv.labels.labelset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.img.h5.H5LabelMultisetScaleLevelReader;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Util;
+
+/**
+ * Compares the separate datasets per block layout
+ * ({@link DownscaleToHdf5.H5BlockWriter}) with the chunked layout
+ * ({@link DownscaleToHdf5.H5ChunkedBlockWriter}): time to open a file and load
+ * the first block, and latency of loading random blocks.
+ */
+public class ChunkedLayoutBenchmark
+{
+	static final long[] dimensions = { 512, 512, 64 };
+
+	static final int[] factors = { 2, 2, 1 };
+
+	static final int[] blocksize = { 16, 16, 16 };
+
+	static final int numRuns = 5;
+
+	static final int numRandomBlocks = 2000;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		final ArrayList< RandomAccessibleInterval< LabelMultisetType > > imgs = new ArrayList<>();
+		imgs.add( DownscaleBenchmark.createFragments( dimensions, 12 ) );
+		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo(
+				new int[][] { { 1, 1, 1 }, factors },
+				new int[][] { blocksize, blocksize } );
+
+		final File perBlockFile = File.createTempFile( "labels-per-block", ".h5" );
+		final File chunkedFile = File.createTempFile( "labels-chunked", ".h5" );
+		perBlockFile.deleteOnExit();
+		chunkedFile.deleteOnExit();
+
+		final long[] levelDimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			levelDimensions[ d ] = dimensions[ d ] / factors[ d ];
+
+		IHDF5Writer writer = HDF5Factory.open( perBlockFile );
+		writer.uint32().write( "levels", 2 );
+		DownscaleToHdf5.writeLevelToHdf5File( imgs, mipmapInfo, 1,
+				new DownscaleToHdf5.H5BlockWriter( writer, 1 ),
+				new DownscaleToHdf5.H5LevelInfoWriter( writer, 1 ) );
+		writer.close();
+
+		writer = HDF5Factory.open( chunkedFile );
+		writer.uint32().write( "levels", 2 );
+		DownscaleToHdf5.writeLevelToHdf5File( imgs, mipmapInfo, 1,
+				new DownscaleToHdf5.H5ChunkedBlockWriter( writer, 1, levelDimensions, Util.int2long( blocksize ) ),
+				new DownscaleToHdf5.H5LevelInfoWriter( writer, 1 ) );
+		writer.close();
+
+		final long[] gridDimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			gridDimensions[ d ] = ( levelDimensions[ d ] - 1 ) / blocksize[ d ] + 1;
+		final Random random = new Random( 1 );
+		final long[][] blockMins = new long[ numRandomBlocks ][ 3 ];
+		for ( final long[] min : blockMins )
+			for ( int d = 0; d < 3; ++d )
+				min[ d ] = random.nextInt( ( int ) gridDimensions[ d ] ) * blocksize[ d ];
+
+		System.out.println( "level 1 " + Util.printCoordinates( levelDimensions ) + ", blocks " + Util.printCoordinates( blocksize ) );
+		System.out.println( "separate datasets per block (" + perBlockFile.length() / 1024 + " kB)" );
+		run( perBlockFile, blockMins );
+		System.out.println( "chunked (" + chunkedFile.length() / 1024 + " kB)" );
+		run( chunkedFile, blockMins );
+	}
+
+	private static void run( final File file, final long[][] blockMins )
+	{
+		long openTime = Long.MAX_VALUE;
+		final long[] latencies = new long[ blockMins.length ];
+		final long[] minLatencies = new long[ blockMins.length ];
+		Arrays.fill( minLatencies, Long.MAX_VALUE );
+		for ( int r = 0; r < numRuns; ++r )
+		{
+			long t = System.nanoTime();
+			final IHDF5Reader reader = HDF5Factory.openForReading( file );
+			final H5LabelMultisetScaleLevelReader scaleLevelReader = new H5LabelMultisetScaleLevelReader( reader );
+			scaleLevelReader.read( 1, blocksize, new long[ 3 ] );
+			openTime = Math.min( openTime, System.nanoTime() - t );
+
+			for ( int i = 0; i < blockMins.length; ++i )
+			{
+				t = System.nanoTime();
+				scaleLevelReader.read( 1, blocksize, blockMins[ i ] );
+				minLatencies[ i ] = Math.min( minLatencies[ i ], System.nanoTime() - t );
+			}
+			reader.close();
+		}
+
+		System.arraycopy( minLatencies, 0, latencies, 0, latencies.length );
+		Arrays.sort( latencies );
+		long sum = 0;
+		for ( final long l : latencies )
+			sum += l;
+		System.out.println( String.format( "  open + first block  %8.3f ms", openTime / 1e6 ) );
+		System.out.println( String.format( "  random block        mean %8.1f us, median %8.1f us, 99%% %8.1f us",
+				sum / 1e3 / latencies.length,
+				latencies[ latencies.length / 2 ] / 1e3,
+				latencies[ latencies.length * 99 / 100 ] / 1e3 ) );
+	}
+}
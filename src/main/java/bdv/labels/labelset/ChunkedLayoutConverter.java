@@ -0,0 +1,106 @@
+package bdv.labels.labelset;
+
+import java.util.regex.Pattern;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import bdv.img.h5.H5LabelMultisetScaleLevelReader;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.Util;
+
+/**
+ * Converts the scale levels of a label multiset pyramid written with separate
+ * datasets per block ({@link DownscaleToHdf5.H5BlockWriter}) to the chunked
+ * layout ({@link DownscaleToHdf5.H5ChunkedBlockWriter}). All other top level
+ * objects of the input file, e.g. the label dataset, are copied as they are.
+ */
+public class ChunkedLayoutConverter
+{
+	static public class Parameters
+	{
+		@Parameter( names = { "--infile", "-i" }, description = "Input file path", required = true )
+		public String inFile;
+
+		@Parameter( names = { "--outfile", "-o" }, description = "Output file path", required = true )
+		public String outFile;
+	}
+
+	private static final Pattern levelGroup = Pattern.compile( "/?l\\d\\d" );
+
+	public static void main( final String[] args )
+	{
+		final Parameters params = new Parameters();
+		new JCommander( params, args );
+
+		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFile );
+		final IHDF5Writer writer = HDF5Factory.open( params.outFile );
+		try
+		{
+			convert( reader, writer );
+		}
+		finally
+		{
+			writer.close();
+			reader.close();
+		}
+	}
+
+	/**
+	 * Copy all top level objects of {@code reader} to {@code writer},
+	 * converting scale levels to the chunked layout.
+	 */
+	public static void convert( final IHDF5Reader reader, final IHDF5Writer writer )
+	{
+		for ( final String path : reader.object().getGroupMemberPaths( "/" ) )
+			if ( !levelGroup.matcher( path ).matches() )
+				reader.object().copy( path, writer, path );
+
+		final H5LabelMultisetScaleLevelReader scaleLevelReader = new H5LabelMultisetScaleLevelReader( reader );
+
+		final int numLevels = reader.uint32().read( "levels" );
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			final long[] dimensions = reader.uint64().readArray( String.format( "l%02d/dimensions", level ) );
+			final long[] factors = reader.uint64().readArray( String.format( "l%02d/factors", level ) );
+			final long[] blocksize = reader.uint64().readArray( String.format( "l%02d/blocksize", level ) );
+			new DownscaleToHdf5.H5LevelInfoWriter( writer, level ).writeLevelInfo( dimensions, factors, blocksize );
+
+			if ( reader.exists( DownscaleToHdf5.chunkedIndexPath( level ) ) )
+			{
+				for ( final String path : new String[] {
+						DownscaleToHdf5.chunkedOffsetsPath( level ),
+						DownscaleToHdf5.chunkedListsPath( level ),
+						DownscaleToHdf5.chunkedIndexPath( level ) } )
+					reader.object().copy( path, writer, path );
+				continue;
+			}
+
+			final DownscaleToHdf5.BlockWriter blockWriter = new DownscaleToHdf5.H5ChunkedBlockWriter( writer, level, dimensions, blocksize );
+			final int n = dimensions.length;
+			final long[] maxCell = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				maxCell[ d ] = ( dimensions[ d ] - 1 ) / blocksize[ d ];
+			final LocalizingIntervalIterator i = new LocalizingIntervalIterator( new long[ n ], maxCell );
+			final long[] cellPos = new long[ n ];
+			final long[] cellMin = new long[ n ];
+			final long[] cellDim = new long[ n ];
+			while ( i.hasNext() )
+			{
+				i.fwd();
+				i.localize( cellPos );
+				for ( int d = 0; d < n; ++d )
+				{
+					cellMin[ d ] = cellPos[ d ] * blocksize[ d ];
+					cellDim[ d ] = Math.min( blocksize[ d ], dimensions[ d ] - cellMin[ d ] );
+				}
+				final VolatileLabelMultisetArray data = scaleLevelReader.read( level, Util.long2int( cellDim ), cellMin );
+				blockWriter.writeBlock( data, cellMin, cellDim );
+			}
+			blockWriter.finish();
+		}
+	}
+}
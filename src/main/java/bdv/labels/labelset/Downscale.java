@@ -1,5 +1,7 @@
 package bdv.labels.labelset;
 
+import java.util.Arrays;
+
 import gnu.trove.impl.Constants;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
@@ -7,20 +9,34 @@ import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.RectangleNeighborhoodUnsafe;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
 public class Downscale
 {
 	/**
+	 * Downscale a block of {@code input}.
+	 *
+	 * <p>
+	 * For each output pixel, the lists of all input pixels in its neighborhood
+	 * are summed up in a primitive hash accumulator, and the merged list is
+	 * written once, sorted by id. Runs of neighboring input pixels that refer
+	 * to the same list are added once, weighted by the run length. This is
+	 * linear in the number of input entries, whereas merging lists pairwise
+	 * (see {@link #downscaleMergeWith}) is quadratic in the size of the merged
+	 * list.
 	 *
 	 * @param input
 	 * @param factors
@@ -30,15 +46,106 @@ public class Downscale
 	 * @param min
 	 *            minimum coordinate of output block (in output resolution).
 	 *            Corresponding input coordinates are <em>min * factors</em>.
-	 * @param filename
 	 * @return
-	 * @throws InterruptedException
 	 */
 	public static VolatileLabelMultisetArray downscale(
 			final RandomAccessibleInterval< LabelMultisetType > input,
 			final long[] factors,
 			final long[] dimensions,
 			final long[] min )
+	{
+		final int n = input.numDimensions();
+		final int numElements = ( int ) Intervals.numElements( dimensions ); // num elements in output block
+		final int[] data = new int[ numElements ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+
+		final RandomAccess< LabelMultisetType > in = input.randomAccess();
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = list.createRef();
+		final LabelMultisetEntryListIndex lists = new LabelMultisetEntryListIndex( listData );
+		final ListAccumulator accumulator = new ListAccumulator();
+		final TLongHashSet containedLabels = new TLongHashSet();
+		int numLists = 0;
+
+		final long[] outPos = new long[ n ];
+		final long[] inMin = new long[ n ];
+		final long[] inMax = new long[ n ];
+		final int neighborhoodSize = ( int ) Intervals.numElements( factors );
+		int nextListOffset = 0;
+		for ( int o = 0; o < numElements; ++o )
+		{
+			IntervalIndexer.indexToPosition( o, dimensions, outPos );
+			for ( int d = 0; d < n; ++d )
+			{
+				inMin[ d ] = ( min[ d ] + outPos[ d ] ) * factors[ d ];
+				inMax[ d ] = inMin[ d ] + factors[ d ] - 1;
+			}
+
+			accumulator.clear();
+			in.setPosition( inMin );
+			for ( int i = 0; i < neighborhoodSize; ++i )
+			{
+				accumulator.add( in.get() );
+
+				// advance to next position in neighborhood, x fastest
+				for ( int d = 0; d < n; ++d )
+				{
+					if ( in.getLongPosition( d ) < inMax[ d ] )
+					{
+						in.fwd( d );
+						break;
+					}
+					else
+						in.setPosition( inMin[ d ], d );
+				}
+			}
+			accumulator.flush();
+
+			list.createListAt( listData, nextListOffset );
+			accumulator.writeTo( list, entry );
+
+			int offset = lists.putIfAbsent( list );
+			if ( offset == -1 )
+			{
+				offset = nextListOffset;
+				nextListOffset += list.getSizeInBytes();
+				++numLists;
+				final int size = list.size();
+				for ( int j = 0; j < size; ++j )
+					containedLabels.add( list.idAt( j ) );
+			}
+			data[ o ] = offset;
+		}
+		list.releaseRef( entry );
+
+		final long[] sortedContainedLabels = containedLabels.toArray();
+		Arrays.sort( sortedContainedLabels );
+
+		if ( numLists == 1 )
+			return VolatileLabelMultisetArray.createConstant( listData, 0, nextListOffset, true, false, sortedContainedLabels );
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true, false, sortedContainedLabels );
+	}
+
+	/**
+	 * Downscale a block of {@code input} by merging the lists of all input
+	 * pixels in the neighborhood of an output pixel one after another. This is
+	 * the reference implementation for {@link #downscale}.
+	 *
+	 * @param input
+	 * @param factors
+	 *            downsampling factors of output block relative to input.
+	 * @param dimensions
+	 *            dimensions of the output block (in output resolution)
+	 * @param min
+	 *            minimum coordinate of output block (in output resolution).
+	 *            Corresponding input coordinates are <em>min * factors</em>.
+	 * @return
+	 */
+	public static VolatileLabelMultisetArray downscaleMergeWith(
+			final RandomAccessibleInterval< LabelMultisetType > input,
+			final long[] factors,
+			final long[] dimensions,
+			final long[] min )
 	{
 		final int numElements = ( int ) Intervals.numElements( dimensions ); // num elements in output block
 		final int[] data = new int[ numElements ];
@@ -74,6 +181,105 @@ public class Downscale
 		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
 	}
 
+	/**
+	 * Sums up the entries of a sequence of label multisets. Consecutive
+	 * multisets referring to the same list are counted and added only once.
+	 */
+	final static class ListAccumulator
+	{
+		private final TLongIntHashMap counts = new TLongIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, 0, 0 );
+
+		private final LabelMultisetEntryList list = new LabelMultisetEntryList();
+
+		private final LabelMultisetEntry entry = list.createRef();
+
+		private final VarintLabelMultisetEntryList varintList = new VarintLabelMultisetEntryList();
+
+		private long[] ids = new long[ 16 ];
+
+		/**
+		 * array and list offset of the current run.
+		 */
+		private VolatileLabelMultisetArray runAccess = null;
+
+		private int runListOffset = -1;
+
+		private int runLength = 0;
+
+		public void clear()
+		{
+			counts.clear();
+			runAccess = null;
+			runLength = 0;
+		}
+
+		public void add( final LabelMultisetType ms )
+		{
+			final VolatileLabelMultisetArray access = ms.getAccess();
+			final int listOffset = access.getListOffset( ms.getIndex() );
+			if ( access == runAccess && listOffset == runListOffset )
+				++runLength;
+			else
+			{
+				flush();
+				runAccess = access;
+				runListOffset = listOffset;
+				runLength = 1;
+			}
+		}
+
+		/**
+		 * Add the current run to the counts.
+		 */
+		public void flush()
+		{
+			if ( runLength == 0 )
+				return;
+
+			if ( runAccess.isVarintEncoded() )
+			{
+				varintList.referToDataAt( runAccess.getListData(), runListOffset );
+				while ( varintList.hasNext() )
+				{
+					varintList.fwd();
+					counts.adjustOrPutValue( varintList.getId(), runLength * varintList.getCount(), runLength * varintList.getCount() );
+				}
+			}
+			else
+			{
+				list.referToDataAt( runAccess.getListData(), runListOffset );
+				final int size = list.size();
+				for ( int j = 0; j < size; ++j )
+				{
+					list.get( j, entry );
+					counts.adjustOrPutValue( entry.getId(), runLength * entry.getCount(), runLength * entry.getCount() );
+				}
+			}
+			runLength = 0;
+		}
+
+		/**
+		 * Write the accumulated entries, sorted by id, into {@code list} which
+		 * must be empty.
+		 */
+		public void writeTo( final LabelMultisetEntryList list, final LabelMultisetEntry ref )
+		{
+			final int size = counts.size();
+			if ( ids.length < size )
+				ids = new long[ Math.max( size, 2 * ids.length ) ];
+			counts.keys( ids );
+			Arrays.sort( ids, 0, size );
+
+			list.ensureCapacity( size );
+			list.setSize( size );
+			for ( int j = 0; j < size; ++j )
+			{
+				list.get( j, ref );
+				ref.setId( ids[ j ] );
+				ref.setCount( counts.get( ids[ j ] ) );
+			}
+		}
+	}
 
 	final static class LabelMultisetEntryListIndex
 	{
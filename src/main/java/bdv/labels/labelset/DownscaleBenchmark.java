@@ -0,0 +1,143 @@
+package bdv.labels.labelset;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Compares the hash accumulator kernel {@link Downscale#downscale} with the
+ * pairwise merging kernel {@link Downscale#downscaleMergeWith} for
+ * downsampling factors from 2x2x1 to 8x8x8, on a synthetic label volume with
+ * irregular fragments.
+ */
+public class DownscaleBenchmark
+{
+	static final long[] dimensions = { 256, 256, 64 };
+
+	static final long[][] factors = {
+		{ 2, 2, 1 },
+		{ 4, 4, 1 },
+		{ 4, 4, 2 },
+		{ 8, 8, 1 },
+		{ 4, 4, 4 },
+		{ 8, 8, 4 },
+		{ 8, 8, 8 }
+	};
+
+	static final int numRuns = 5;
+
+	public static void main( final String[] args )
+	{
+		final RandomAccessibleInterval< LabelMultisetType > level0 = createFragments( dimensions, 12 );
+		final RandomAccessibleInterval< LabelMultisetType > level1 = wrap( Downscale.downscale( level0, new long[] { 2, 2, 1 }, new long[] { 128, 128, 64 }, new long[ 3 ] ), new long[] { 128, 128, 64 } );
+
+		System.out.println( "single entry input lists " + Util.printCoordinates( dimensions ) );
+		run( level0 );
+
+		System.out.println( "multi entry input lists (downscaled 2x2x1) " + Util.printCoordinates( new long[] { 128, 128, 64 } ) );
+		run( level1 );
+	}
+
+	private static void run( final RandomAccessibleInterval< LabelMultisetType > input )
+	{
+		for ( final long[] f : factors )
+		{
+			final long[] outDimensions = new long[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				outDimensions[ d ] = input.dimension( d ) / f[ d ];
+			final long[] min = new long[ 3 ];
+
+			long mergeWithTime = Long.MAX_VALUE;
+			long accumulatorTime = Long.MAX_VALUE;
+			VolatileLabelMultisetArray reference = null;
+			VolatileLabelMultisetArray result = null;
+			for ( int r = 0; r < numRuns; ++r )
+			{
+				long t = System.nanoTime();
+				reference = Downscale.downscaleMergeWith( input, f, outDimensions, min );
+				mergeWithTime = Math.min( mergeWithTime, System.nanoTime() - t );
+
+				t = System.nanoTime();
+				result = Downscale.downscale( input, f, outDimensions, min );
+				accumulatorTime = Math.min( accumulatorTime, System.nanoTime() - t );
+			}
+
+			final boolean equal = equal( reference, result, outDimensions );
+			final double numVoxels = Intervals.numElements( outDimensions );
+			System.out.println( String.format(
+					"  %dx%dx%d: mergeWith %8.1f ns/voxel, accumulator %8.1f ns/voxel, speedup %5.2f, results %s",
+					f[ 0 ], f[ 1 ], f[ 2 ],
+					mergeWithTime / numVoxels,
+					accumulatorTime / numVoxels,
+					( double ) mergeWithTime / accumulatorTime,
+					equal ? "equal" : "DIFFERENT" ) );
+		}
+	}
+
+	private static boolean equal( final VolatileLabelMultisetArray a, final VolatileLabelMultisetArray b, final long[] dimensions )
+	{
+		final LabelMultisetType ta = new LabelMultisetType( a );
+		final LabelMultisetType tb = new LabelMultisetType( b );
+		for ( int i = 0; i < Intervals.numElements( dimensions ); ++i )
+		{
+			ta.updateIndex( i );
+			tb.updateIndex( i );
+			if ( !ta.valueEquals( tb ) )
+				return false;
+		}
+		return true;
+	}
+
+	static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > wrap( final VolatileLabelMultisetArray array, final long[] dimensions )
+	{
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img = new ArrayImg<>( array, dimensions, new Fraction() );
+		img.setLinkedType( new LabelMultisetType( img ) );
+		return img;
+	}
+
+	/**
+	 * Create a label volume with single entry lists. Labels are assigned on a
+	 * grid of {@code spacing}-sized boxes (a quarter of that in z) whose
+	 * boundaries are warped by sine waves, which gives irregular fragment
+	 * boundaries like in real segmentations.
+	 */
+	static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > createFragments(
+			final long[] dimensions,
+			final int spacing )
+	{
+		final int[] offsets = new int[ ( int ) Intervals.numElements( dimensions ) ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		final TLongIntHashMap idOffsetHash = new TLongIntHashMap( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1 );
+		int nextListOffset = 0;
+		int i = 0;
+		for ( int z = 0; z < dimensions[ 2 ]; ++z )
+			for ( int y = 0; y < dimensions[ 1 ]; ++y )
+				for ( int x = 0; x < dimensions[ 0 ]; ++x, ++i )
+				{
+					final long gx = ( long ) Math.floor( ( x + 4 * Math.sin( 0.3 * y + 0.7 * z ) ) / spacing );
+					final long gy = ( long ) Math.floor( ( y + 4 * Math.sin( 0.25 * x + 0.5 * z ) ) / spacing );
+					final long gz = ( long ) Math.floor( ( z + Math.sin( 0.2 * ( x + y ) ) ) * 4 / spacing );
+					final long id = 1 + ( gx + 1 ) + 1000 * ( ( gy + 1 ) + 1000 * ( gz + 1 ) );
+					final int offset = idOffsetHash.get( id );
+					if ( offset == -1 )
+					{
+						list.createListAt( listData, nextListOffset );
+						entry.setId( id );
+						list.add( entry );
+						offsets[ i ] = nextListOffset;
+						idOffsetHash.put( id, nextListOffset );
+						nextListOffset += list.getSizeInBytes();
+					}
+					else
+						offsets[ i ] = offset;
+				}
+
+		return wrap( new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ), dimensions );
+	}
+}
@@ -2,10 +2,13 @@ package bdv.labels.labelset;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
 
 import bdv.export.ExportMipmapInfo;
-import bdv.img.cache.VolatileGlobalCellCache;
-import bdv.img.h5.H5LabelMultisetSetupImageLoader;
 import ch.systemsx.cisd.base.mdarray.MDIntArray;
 import ch.systemsx.cisd.hdf5.HDF5Factory;
 import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
@@ -14,94 +17,117 @@ import ch.systemsx.cisd.hdf5.IHDF5Writer;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 public class DownscaleToHdf5
 {
-	public static void main( final String[] args ) throws IOException
+	static public class Parameters
 	{
-		final String fn = "/Users/pietzsch/workspace/data/bigcat/davi_v7_4k_refix_export.h5";
-		final String fnscaled = "/Users/pietzsch/Desktop/downscale-test.h5";
-
-		final int[][] resolutions = new int[][] {
-			{ 1, 1, 1 },
-			{ 2, 2, 1 },
-			{ 4, 4, 1 },
-			{ 8, 8, 1 },
-			{ 16, 16, 2 },
-			{ 32, 32, 3 },
-			{ 64, 64, 6 }
-		};
-		final int[][] subdivisions = new int[][] {
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-			{ 32, 32, 32 },
-		};
-		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( resolutions, subdivisions );
-		final int numLevels = resolutions.length;
+		@Parameter( names = { "--infile", "-i" }, description = "Input file path", required = true )
+		public String inFile;
+
+		@Parameter( names = { "--outfile", "-o" }, description = "Output file path", required = true )
+		public String outFile;
+
+		@Parameter( names = { "--label", "-l" }, description = "label dataset" )
+		public String label = "/bodies";
+
+		@Parameter( names = { "--cellsize", "-c" }, description = "cell dimensions for reading the label dataset, e.g. 64,64,8" )
+		public String cellDimensions = "64,64,8";
+
+		@Parameter( names = { "--resolution", "-r" }, description = "downsampling factors of each level relative to the label dataset, starting with 1,1,1, e.g. -r 1,1,1 -r 2,2,1 -r 4,4,1" )
+		public List< String > resolutions = new ArrayList<>();
+
+		@Parameter( names = { "--subdivision", "-s" }, description = "block size of each level, e.g. -s 32,32,32 -s 32,32,32 -s 32,32,32, defaults to 32,32,32 for all levels" )
+		public List< String > subdivisions = new ArrayList<>();
 
-		for ( int level = 1; level < numLevels; ++level )
+		@Parameter( names = { "--threads", "-t" }, description = "number of threads computing downscaled blocks" )
+		public int numThreads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter( names = { "--queue", "-q" }, description = "maximum number of computed blocks waiting to be written" )
+		public int queueSize = 256;
+
+		@Parameter( names = { "--maxtile", "-m" }, description = "maximum number of voxels of a tile held in memory per thread" )
+		public long maxTileSize = 1 << 24;
+
+		@Parameter( names = { "--chunked" }, description = "write each level to a single chunked offsets dataset, a lists dataset and a block index instead of separate datasets per block" )
+		public boolean chunked = false;
+
+		public void init()
 		{
-			final IHDF5Reader reader = HDF5Factory.openForReading( fn );
-			final IHDF5Writer writer = HDF5Factory.open( fnscaled );
-			final H5LabelMultisetSetupImageLoader fragments = new H5LabelMultisetSetupImageLoader(
-					reader,
-					level == 1 ? null : writer,
-					"/bodies",
-					1,
-					new int[] {64, 64, 8},
-					new VolatileGlobalCellCache( 1, 10 ) );
+			if ( resolutions.isEmpty() )
+				resolutions.addAll( Arrays.asList( "1,1,1", "2,2,1", "4,4,1", "8,8,1", "16,16,2", "32,32,3", "64,64,6" ) );
 
+			if ( subdivisions.isEmpty() )
+				for ( int i = 0; i < resolutions.size(); ++i )
+					subdivisions.add( "32,32,32" );
+		}
 
-			final ArrayList< RandomAccessibleInterval< LabelMultisetType > > imgs = new ArrayList<>();
-			for ( int i = 0; i < level; ++i )
-				imgs.add( fragments.getImage( 0, i ) );
+		public int[][] getResolutions()
+		{
+			return parse( resolutions );
+		}
 
-			writer.uint32().write( "levels", level + 1 );
-			final int l = level;
-			final BlockWriter hdfBlockWriter = new BlockWriter()
-			{
-				@Override
-				public void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
-				{
-//					System.out.println( Util.printCoordinates( min ) );
-					final LongMappedAccess access = data.getListData().createAccess();
-					final int intSize = ( int ) ( data.getListDataUsedSizeInBytes() / 4 );
-					final int[] lists = new int[ intSize ];
-					for ( int i = 0; i < intSize; ++i )
-						lists[ i ] = access.getInt( i * 4 );
-					final MDIntArray block = new MDIntArray( data.getCurrentStorageArray(), bdv.img.hdf5.Util.reorder( blocksize ) );
-
-					final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", l, min[ 2 ], min[ 1 ], min[ 0 ] );
-					final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", l, min[ 2 ], min[ 1 ], min[ 0 ] );
-					writer.uint32().writeArray( listsPath, lists, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
-					writer.uint32().writeMDArray( dataPath, block, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
-				}
-			};
-			final LevelInfoWriter hdfLevelInfoWriter = new LevelInfoWriter()
-			{
-				@Override
-				public void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
-				{
-					System.out.println( "writing level " + l );
-					System.out.println( "dimensions = " + Util.printCoordinates( dimensions ) );
-					System.out.println( "factors = " + Util.printCoordinates( factors ) );
-					System.out.println( "blocksize = " + Util.printCoordinates( blocksize ) );
-
-					final String dimensionsPath = String.format( "l%02d/dimensions", l );
-					final String factorsPath = String.format( "l%02d/factors", l );
-					final String blocksizePath = String.format( "l%02d/blocksize", l );
-					writer.uint64().writeArray( dimensionsPath, dimensions );
-					writer.uint64().writeArray( factorsPath, factors );
-					writer.uint64().writeArray( blocksizePath, blocksize );
-				}
-			};
-			writeLevelToHdf5File( imgs, mipmapInfo, level, hdfBlockWriter, hdfLevelInfoWriter );
+		public int[][] getSubdivisions()
+		{
+			return parse( subdivisions );
+		}
+
+		public int[] getCellDimensions()
+		{
+			return parse( cellDimensions );
+		}
+
+		static private int[][] parse( final List< String > strings )
+		{
+			final int[][] values = new int[ strings.size() ][];
+			for ( int i = 0; i < values.length; ++i )
+				values[ i ] = parse( strings.get( i ) );
+			return values;
+		}
+
+		static private int[] parse( final String string )
+		{
+			final String[] parts = string.split( "," );
+			final int[] values = new int[ parts.length ];
+			for ( int d = 0; d < values.length; ++d )
+				values[ d ] = Integer.parseInt( parts[ d ].trim() );
+			return values;
+		}
+	}
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		final Parameters params = new Parameters();
+		new JCommander( params, args );
+		params.init();
+
+		final int[][] resolutions = params.getResolutions();
+		final int[][] subdivisions = params.getSubdivisions();
+		if ( resolutions.length != subdivisions.length )
+			throw new IllegalArgumentException( "Number of resolutions (" + resolutions.length + ") and subdivisions (" + subdivisions.length + ") differ." );
+		final ExportMipmapInfo mipmapInfo = new ExportMipmapInfo( resolutions, subdivisions );
+
+		final IHDF5Reader reader = HDF5Factory.openForReading( params.inFile );
+		final IHDF5Writer writer = HDF5Factory.open( params.outFile );
+		try
+		{
+			final LabelMultisetPyramidBuilder builder = new LabelMultisetPyramidBuilder(
+					reader,
+					writer,
+					params.label,
+					params.getCellDimensions(),
+					mipmapInfo,
+					params.numThreads,
+					params.queueSize,
+					params.maxTileSize );
+			builder.setChunkedLayout( params.chunked );
+			builder.build();
+		}
+		finally
+		{
 			writer.close();
 			reader.close();
 		}
@@ -110,6 +136,12 @@ public class DownscaleToHdf5
 	public interface BlockWriter
 	{
 		public void writeBlock( VolatileLabelMultisetArray data, final long[] min, final long[] blocksize );
+
+		/**
+		 * Called after all blocks of the level have been written.
+		 */
+		public default void finish()
+		{}
 	}
 
 	public interface LevelInfoWriter
@@ -117,6 +149,249 @@ public class DownscaleToHdf5
 		public void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize );
 	}
 
+	/**
+	 * Writes blocks of one level to
+	 * {@code l%02d/z%05d/y%05d/x%05d/lists} and
+	 * {@code l%02d/z%05d/y%05d/x%05d/data}. Lists are written as an
+	 * {@code int64} array of the raw list bytes, see
+	 * {@link LongMappedAccessData#toPackedLongs(long)}, which can be loaded
+	 * without conversion.
+	 */
+	public static class H5BlockWriter implements BlockWriter
+	{
+		private final IHDF5Writer writer;
+
+		private final int level;
+
+		public H5BlockWriter( final IHDF5Writer writer, final int level )
+		{
+			this.writer = writer;
+			this.level = level;
+		}
+
+		@Override
+		public void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+		{
+			final long[] lists = ( ( LongMappedAccessData ) data.getListData() ).toPackedLongs( data.getListDataUsedSizeInBytes() );
+			final int[] offsets;
+			if ( data.isConstant() )
+			{
+				offsets = new int[ ( int ) Intervals.numElements( blocksize ) ];
+				Arrays.fill( offsets, data.getListOffset( 0 ) );
+			}
+			else
+				offsets = data.getCurrentStorageArray();
+			final MDIntArray block = new MDIntArray( offsets, bdv.img.hdf5.Util.reorder( blocksize ) );
+
+			final String listsPath = String.format( "l%02d/z%05d/y%05d/x%05d/lists", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+			final String dataPath = String.format( "l%02d/z%05d/y%05d/x%05d/data", level, min[ 2 ], min[ 1 ], min[ 0 ] );
+			writer.int64().writeArray( listsPath, lists, HDF5IntStorageFeatures.INT_NO_COMPRESSION_DELETE );
+			writer.uint32().writeMDArray( dataPath, block, HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
+		}
+	}
+
+	/**
+	 * Path of the offsets dataset of a level in the chunked layout, see
+	 * {@link H5ChunkedBlockWriter}.
+	 */
+	public static String chunkedOffsetsPath( final int level )
+	{
+		return String.format( "l%02d/offsets", level );
+	}
+
+	/**
+	 * Path of the lists dataset of a level in the chunked layout, see
+	 * {@link H5ChunkedBlockWriter}.
+	 */
+	public static String chunkedListsPath( final int level )
+	{
+		return String.format( "l%02d/lists", level );
+	}
+
+	/**
+	 * Path of the block index of a level in the chunked layout, see
+	 * {@link H5ChunkedBlockWriter}.
+	 */
+	public static String chunkedIndexPath( final int level )
+	{
+		return String.format( "l%02d/index", level );
+	}
+
+	/**
+	 * Maximal number of blocks of a level in the chunked layout, so that its
+	 * block index fits into a {@code long[]}.
+	 */
+	public static final int MAX_CHUNKED_BLOCKS = ( Integer.MAX_VALUE - 8 ) / 2;
+
+	/**
+	 * Dimensions of the block grid of a level in the chunked layout.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the level has more than {@link #MAX_CHUNKED_BLOCKS}
+	 *             blocks
+	 */
+	public static long[] chunkedGridDimensions( final long[] dimensions, final long[] blocksize )
+	{
+		final long[] gridDimensions = new long[ dimensions.length ];
+		long numBlocks = 1;
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			gridDimensions[ d ] = ( dimensions[ d ] - 1 ) / blocksize[ d ] + 1;
+			numBlocks *= gridDimensions[ d ];
+			if ( gridDimensions[ d ] <= 0 || numBlocks > MAX_CHUNKED_BLOCKS )
+				throw new IllegalArgumentException( "Block grid " + Util.printCoordinates( gridDimensions ) + " has more than " + MAX_CHUNKED_BLOCKS + " blocks." );
+		}
+		return gridDimensions;
+	}
+
+	/**
+	 * Index of the block with minimum {@code min} in the flattened block
+	 * grid of the chunked layout, x fastest.
+	 *
+	 * @param gridDimensions
+	 *            as returned by {@link #chunkedGridDimensions(long[], long[])}
+	 * @throws IllegalArgumentException
+	 *             if the block is outside of the grid
+	 */
+	public static int chunkedBlockIndex( final long[] gridDimensions, final long[] blocksize, final long[] min )
+	{
+		long i = 0;
+		for ( int d = gridDimensions.length - 1; d >= 0; --d )
+		{
+			final long gridPosition = min[ d ] / blocksize[ d ];
+			if ( min[ d ] < 0 || gridPosition >= gridDimensions[ d ] )
+				throw new IllegalArgumentException( "Block at " + Util.printCoordinates( min ) + " is outside of the block grid " + Util.printCoordinates( gridDimensions ) + "." );
+			i = i * gridDimensions[ d ] + gridPosition;
+		}
+		return ( int ) i;
+	}
+
+	/**
+	 * Writes all blocks of one level into three datasets, instead of two
+	 * datasets per block as {@link H5BlockWriter} does. This avoids creating
+	 * (and on loading, looking up) a large number of small datasets.
+	 * <ul>
+	 * <li>{@code l%02d/offsets}: {@code uint32} list offsets of all voxels of
+	 * the level, chunked by blocksize. Offsets are relative to the start of the
+	 * block's lists.</li>
+	 * <li>{@code l%02d/lists}: the concatenated lists of all blocks, as packed
+	 * {@code int64}s, see {@link LongMappedAccessData#toPackedLongs(long)}.</li>
+	 * <li>{@code l%02d/index}: {@code int64} pairs of (offset, length) of each
+	 * block's lists in {@code l%02d/lists}, in {@code int64}s. Blocks are
+	 * ordered by their grid position, x fastest. Blocks that were not written
+	 * have length {@code 0}.</li>
+	 * </ul>
+	 * The index is written in {@link #finish()}, so a level without index is
+	 * incomplete.
+	 */
+	public static class H5ChunkedBlockWriter implements BlockWriter
+	{
+		private final IHDF5Writer writer;
+
+		private final int level;
+
+		private final long[] blocksize;
+
+		private final long[] gridDimensions;
+
+		private final long[] index;
+
+		private long listsSize = 0;
+
+		/**
+		 * @param writer
+		 *            HDF5 writer
+		 * @param level
+		 *            the level to write
+		 * @param dimensions
+		 *            dimensions of the level
+		 * @param blocksize
+		 *            block size of the level
+		 */
+		public H5ChunkedBlockWriter( final IHDF5Writer writer, final int level, final long[] dimensions, final long[] blocksize )
+		{
+			this.writer = writer;
+			this.level = level;
+			this.blocksize = blocksize.clone();
+			gridDimensions = chunkedGridDimensions( dimensions, blocksize );
+			index = new long[ 2 * ( int ) Intervals.numElements( gridDimensions ) ];
+
+			writer.uint32().createMDArray(
+					chunkedOffsetsPath( level ),
+					bdv.img.hdf5.Util.reorder( dimensions ),
+					Util.long2int( bdv.img.hdf5.Util.reorder( blocksize ) ),
+					HDF5IntStorageFeatures.INT_AUTO_SCALING_UNSIGNED_DELETE );
+			writer.int64().createArray(
+					chunkedListsPath( level ),
+					0,
+					1 << 16,
+					HDF5IntStorageFeatures.INT_NO_COMPRESSION_DELETE );
+		}
+
+		@Override
+		public synchronized void writeBlock( final VolatileLabelMultisetArray data, final long[] min, final long[] blocksize )
+		{
+			final long[] lists = ( ( LongMappedAccessData ) data.getListData() ).toPackedLongs( data.getListDataUsedSizeInBytes() );
+			final int[] offsets;
+			if ( data.isConstant() )
+			{
+				offsets = new int[ ( int ) Intervals.numElements( blocksize ) ];
+				Arrays.fill( offsets, data.getListOffset( 0 ) );
+			}
+			else
+				offsets = data.getCurrentStorageArray();
+			final MDIntArray block = new MDIntArray( offsets, bdv.img.hdf5.Util.reorder( blocksize ) );
+
+			writer.uint32().writeMDArrayBlockWithOffset( chunkedOffsetsPath( level ), block, bdv.img.hdf5.Util.reorder( min ) );
+			writer.int64().writeArrayBlockWithOffset( chunkedListsPath( level ), lists, lists.length, listsSize );
+
+			final int i = chunkedBlockIndex( gridDimensions, this.blocksize, min );
+			index[ 2 * i ] = listsSize;
+			index[ 2 * i + 1 ] = lists.length;
+			listsSize += lists.length;
+		}
+
+		@Override
+		public synchronized void finish()
+		{
+			writer.int64().writeArray( chunkedIndexPath( level ), index, HDF5IntStorageFeatures.INT_NO_COMPRESSION_DELETE );
+		}
+	}
+
+	/**
+	 * Writes dimensions, factors, and blocksize of one level to
+	 * {@code l%02d/dimensions}, {@code l%02d/factors}, and
+	 * {@code l%02d/blocksize}.
+	 */
+	public static class H5LevelInfoWriter implements LevelInfoWriter
+	{
+		private final IHDF5Writer writer;
+
+		private final int level;
+
+		public H5LevelInfoWriter( final IHDF5Writer writer, final int level )
+		{
+			this.writer = writer;
+			this.level = level;
+		}
+
+		@Override
+		public void writeLevelInfo( final long[] dimensions, final long[] factors, final long[] blocksize )
+		{
+			System.out.println( "writing level " + level );
+			System.out.println( "dimensions = " + Util.printCoordinates( dimensions ) );
+			System.out.println( "factors = " + Util.printCoordinates( factors ) );
+			System.out.println( "blocksize = " + Util.printCoordinates( blocksize ) );
+
+			final String dimensionsPath = String.format( "l%02d/dimensions", level );
+			final String factorsPath = String.format( "l%02d/factors", level );
+			final String blocksizePath = String.format( "l%02d/blocksize", level );
+			writer.uint64().writeArray( dimensionsPath, dimensions );
+			writer.uint64().writeArray( factorsPath, factors );
+			writer.uint64().writeArray( blocksizePath, blocksize );
+		}
+	}
+
 	public static void writeLevelToHdf5File(
 			final ArrayList< RandomAccessibleInterval< LabelMultisetType > > imgs,
 			final ExportMipmapInfo mipmapInfo,
@@ -191,5 +466,6 @@ public class DownscaleToHdf5
 			final VolatileLabelMultisetArray downscaled = Downscale.downscale( extendedImg, factors, currentCellDim, currentCellMin );
 			writer.writeBlock( downscaled, currentCellMin, currentCellDim );
 		}
+		writer.finish();
 	}
 }
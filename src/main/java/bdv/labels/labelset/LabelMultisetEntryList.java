@@ -1,5 +1,10 @@
 package bdv.labels.labelset;
 
+import static bdv.labels.labelset.ByteUtils.INT_SIZE;
+import static bdv.labels.labelset.LabelMultisetEntry.COUNT_OFFSET;
+import static bdv.labels.labelset.LabelMultisetEntry.LABEL_ID_OFFSET;
+import static bdv.labels.labelset.LabelMultisetEntry.SIZE_IN_BYTES;
+
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Set;
@@ -32,12 +37,67 @@ public class LabelMultisetEntryList
 
 	protected int multisetSize()
 	{
+		final int n = size();
 		int size = 0;
-		for ( final LabelMultisetEntry e : this )
-			size += e.getCount();
+		for ( int i = 0; i < n; ++i )
+			size += countAt( i );
 		return size;
 	}
 
+	/**
+	 * Get the id of the entry at {@code index}. Unlike {@link #get(int)} this
+	 * reads directly from the underlying data and does not need a
+	 * {@link #createRef() ref}. The index is not range checked.
+	 */
+	public long idAt( final int index )
+	{
+		return access.getLong( INT_SIZE + index * SIZE_IN_BYTES + LABEL_ID_OFFSET );
+	}
+
+	/**
+	 * Get the count of the entry at {@code index}. Unlike {@link #get(int)}
+	 * this reads directly from the underlying data and does not need a
+	 * {@link #createRef() ref}. The index is not range checked.
+	 */
+	public int countAt( final int index )
+	{
+		return access.getInt( INT_SIZE + index * SIZE_IN_BYTES + COUNT_OFFSET );
+	}
+
+	/**
+	 * Pass the id and count of all entries, in order, to {@code consumer}.
+	 */
+	public void forEach( final LongIntConsumer consumer )
+	{
+		final int n = size();
+		for ( int i = 0; i < n; ++i )
+			consumer.accept( idAt( i ), countAt( i ) );
+	}
+
+	/**
+	 * Get the id with the largest count. If several ids have the largest
+	 * count, the smallest of them is returned.
+	 *
+	 * @return id with the largest count, or {@link Label#TRANSPARENT} if the
+	 *         list is empty.
+	 */
+	public long argMaxId()
+	{
+		final int n = size();
+		long maxId = Label.TRANSPARENT;
+		int maxCount = 0;
+		for ( int i = 0; i < n; ++i )
+		{
+			final int count = countAt( i );
+			if ( count > maxCount )
+			{
+				maxCount = count;
+				maxId = idAt( i );
+			}
+		}
+		return maxId;
+	}
+
 	/**
 	 * Performs a binary search for entry with
 	 * {@link LabelMultisetEntry#getId()} <tt>id</tt> in the entire list.
@@ -79,10 +139,9 @@ public class LabelMultisetEntryList
         int low = fromIndex;
         int high = toIndex - 1;
 
-        final LabelMultisetEntry ref = createRef();
         while ( low <= high ) {
             final int mid = ( low + high ) >>> 1;
-            final long midVal = get( mid, ref ).getId();
+            final long midVal = idAt( mid );
             if ( midVal < id ) {
                 low = mid + 1;
             }
@@ -90,11 +149,9 @@ public class LabelMultisetEntryList
                 high = mid - 1;
             }
             else {
-                releaseRef( ref );
                 return mid; // value found
             }
         }
-        releaseRef( ref );
         return -( low + 1 );  // value not found.
     }
 
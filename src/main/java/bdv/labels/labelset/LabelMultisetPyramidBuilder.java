@@ -0,0 +1,578 @@
+package bdv.labels.labelset;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bdv.export.ExportMipmapInfo;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.h5.H5LabelMultisetSetupImageLoader;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Builds the label multiset scale pyramid of a label dataset in parallel.
+ *
+ * <p>
+ * Levels are built in passes. A pass reads one already existing level
+ * (initially the label dataset itself) and produces one or more consecutive
+ * levels. The output volume of the coarsest level in a pass is divided into
+ * cell-aligned tiles that are processed in parallel on a {@link ForkJoinPool}.
+ * Each tile is downscaled from the source level, and then repeatedly from the
+ * in-memory result of the previous level, so the source is traversed only once
+ * per pass. Blocks are handed to a single HDF5 writer thread through a bounded
+ * queue, which bounds the memory held by blocks waiting to be written.
+ *
+ * <p>
+ * Blocks are written in the layout that {@link DownscaleToHdf5} writes and
+ * {@link H5LabelMultisetSetupImageLoader} reads, either as separate datasets
+ * per block or, see {@link #setChunkedLayout(boolean)}, in a single chunked
+ * dataset per level.
+ */
+public class LabelMultisetPyramidBuilder
+{
+	private final IHDF5Reader reader;
+
+	private final IHDF5Writer writer;
+
+	private final String dataset;
+
+	private final int[] cellDimensions;
+
+	private final int[][] resolutions;
+
+	private final int[][] subdivisions;
+
+	private final int numThreads;
+
+	private final int queueSize;
+
+	private final long maxTileSize;
+
+	/**
+	 * dimensions of each level, filled in as levels are planned.
+	 */
+	private final long[][] dimensions;
+
+	private boolean chunkedLayout = false;
+
+	/**
+	 * @param reader
+	 *            reader for the label dataset.
+	 * @param writer
+	 *            writer for the scale pyramid. May be the same file as
+	 *            {@code reader}.
+	 * @param dataset
+	 *            the label dataset.
+	 * @param cellDimensions
+	 *            cell dimensions for reading the label dataset.
+	 * @param mipmapInfo
+	 *            resolutions and block sizes of the levels to build. Level 0
+	 *            is the label dataset.
+	 * @param numThreads
+	 *            number of threads computing downscaled blocks.
+	 * @param queueSize
+	 *            maximum number of computed blocks waiting to be written.
+	 * @param maxTileSize
+	 *            maximum number of voxels in the finest level of a tile. This
+	 *            limits the number of levels built in one pass.
+	 */
+	public LabelMultisetPyramidBuilder(
+			final IHDF5Reader reader,
+			final IHDF5Writer writer,
+			final String dataset,
+			final int[] cellDimensions,
+			final ExportMipmapInfo mipmapInfo,
+			final int numThreads,
+			final int queueSize,
+			final long maxTileSize )
+	{
+		this.reader = reader;
+		this.writer = writer;
+		this.dataset = dataset;
+		this.cellDimensions = cellDimensions;
+		this.resolutions = mipmapInfo.getExportResolutions();
+		this.subdivisions = mipmapInfo.getSubdivisions();
+		this.numThreads = numThreads;
+		this.queueSize = queueSize;
+		this.maxTileSize = maxTileSize;
+		this.dimensions = new long[ resolutions.length ][];
+	}
+
+	/**
+	 * Whether to write levels with {@link DownscaleToHdf5.H5ChunkedBlockWriter}
+	 * instead of {@link DownscaleToHdf5.H5BlockWriter}. Defaults to
+	 * {@code false}.
+	 */
+	public void setChunkedLayout( final boolean chunkedLayout )
+	{
+		this.chunkedLayout = chunkedLayout;
+	}
+
+	public void build() throws IOException, InterruptedException
+	{
+		final int numLevels = resolutions.length;
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+		try
+		{
+			int level = 1;
+			while ( level < numLevels )
+			{
+				final int sourceLevel = sourceLevel( level );
+				final ArrayList< Integer > levels = new ArrayList<>();
+				levels.add( level );
+				while ( level + 1 < numLevels && sourceLevel( level + 1 ) == level && canExtendPass( levels, level + 1 ) )
+					levels.add( ++level );
+				++level;
+
+				buildPass( pool, sourceLevel, levels );
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Find the finest level whose resolution divides the resolution of
+	 * {@code level}. This is the level from which {@code level} is
+	 * downscaled.
+	 */
+	private int sourceLevel( final int level )
+	{
+		final int n = resolutions[ level ].length;
+		A: for ( int l = level - 1; l >= 0; --l )
+		{
+			for ( int d = 0; d < n; ++d )
+				if ( resolutions[ level ][ d ] % resolutions[ l ][ d ] != 0 )
+					continue A;
+			return l;
+		}
+		throw new IllegalArgumentException( "resolution of level " + level + " is not a multiple of any previous level." );
+	}
+
+	/**
+	 * Check whether {@code level} can be added to the pass building
+	 * {@code levels}. The tile sizes of all levels in the pass must be
+	 * multiples of their block sizes, and the tile of the finest level must not
+	 * exceed {@link #maxTileSize}.
+	 */
+	private boolean canExtendPass( final ArrayList< Integer > levels, final int level )
+	{
+		final int n = resolutions[ level ].length;
+		long size = 1;
+		for ( final int l : levels )
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				final long tileSize = tileSize( level, l, d );
+				if ( tileSize % subdivisions[ l ][ d ] != 0 )
+					return false;
+				if ( l == levels.get( 0 ) )
+					size *= tileSize;
+			}
+		}
+		return size <= maxTileSize;
+	}
+
+	/**
+	 * Size of a tile in dimension {@code d} at {@code level} if tiles are
+	 * aligned with the blocks of {@code coarsestLevel}.
+	 */
+	private long tileSize( final int coarsestLevel, final int level, final int d )
+	{
+		return ( long ) subdivisions[ coarsestLevel ][ d ] * resolutions[ coarsestLevel ][ d ] / resolutions[ level ][ d ];
+	}
+
+	private void buildPass(
+			final ForkJoinPool pool,
+			final int sourceLevel,
+			final ArrayList< Integer > levels ) throws IOException, InterruptedException
+	{
+		final int firstLevel = levels.get( 0 );
+		final int lastLevel = levels.get( levels.size() - 1 );
+		final int numPassLevels = levels.size();
+
+		final H5LabelMultisetSetupImageLoader loader = new H5LabelMultisetSetupImageLoader(
+				reader,
+				sourceLevel == 0 ? null : writer,
+				dataset,
+				1,
+				cellDimensions,
+				new VolatileGlobalCellCache( 1, numThreads ) );
+		final RandomAccessibleInterval< LabelMultisetType > sourceImg = loader.getImage( 0, sourceLevel );
+		final int n = sourceImg.numDimensions();
+
+		if ( dimensions[ 0 ] == null )
+			dimensions[ 0 ] = Intervals.dimensionsAsLongArray( sourceImg );
+
+		/* per level: downsampling factors relative to the previous level, dimensions, tile size */
+		final long[][] factors = new long[ numPassLevels ][ n ];
+		final long[][] tileSizes = new long[ numPassLevels ][ n ];
+		final long[] numTiles = new long[ n ];
+		writer.uint32().write( "levels", lastLevel + 1 );
+		for ( int i = 0; i < numPassLevels; ++i )
+		{
+			final int level = levels.get( i );
+			final int previousLevel = i == 0 ? sourceLevel : levels.get( i - 1 );
+			dimensions[ level ] = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				factors[ i ][ d ] = resolutions[ level ][ d ] / resolutions[ previousLevel ][ d ];
+				dimensions[ level ][ d ] = Math.max( dimensions[ previousLevel ][ d ] / factors[ i ][ d ], 1 );
+				tileSizes[ i ][ d ] = tileSize( lastLevel, level, d );
+				numTiles[ d ] = Math.max( numTiles[ d ], ( dimensions[ level ][ d ] - 1 ) / tileSizes[ i ][ d ] + 1 );
+			}
+			new DownscaleToHdf5.H5LevelInfoWriter( writer, level ).writeLevelInfo(
+					dimensions[ level ],
+					Util.int2long( resolutions[ level ] ),
+					Util.int2long( subdivisions[ level ] ) );
+		}
+
+		System.out.println( "building levels " + firstLevel + " to " + lastLevel + " from level " + sourceLevel + " in " + Intervals.numElements( numTiles ) + " tiles" );
+
+		final RandomAccessible< LabelMultisetType > extendedSourceImg = Views.extendBorder( sourceImg );
+
+		final BlockingQueue< Block > queue = new ArrayBlockingQueue<>( queueSize );
+		final WriterThread writerThread = new WriterThread( queue, levels );
+		writerThread.start();
+
+		final long numTilesTotal = Intervals.numElements( numTiles );
+		final AtomicLong numTilesDone = new AtomicLong();
+		final TileTask task = new TileTask( 0, numTilesTotal )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void processTile( final long tileIndex ) throws InterruptedException
+			{
+				final long[] tilePos = new long[ n ];
+				IntervalIndexer.indexToPosition( tileIndex, numTiles, tilePos );
+
+				RandomAccessible< LabelMultisetType > input = extendedSourceImg;
+				for ( int i = 0; i < numPassLevels; ++i )
+				{
+					final int level = levels.get( i );
+					final long[] tileMin = new long[ n ];
+					final long[] tileDims = new long[ n ];
+					final long[] inputMin = new long[ n ];
+					final long[] inputMax = new long[ n ];
+					for ( int d = 0; d < n; ++d )
+					{
+						tileMin[ d ] = tilePos[ d ] * tileSizes[ i ][ d ];
+						tileDims[ d ] = Math.min( tileSizes[ i ][ d ], dimensions[ level ][ d ] - tileMin[ d ] );
+						if ( tileDims[ d ] <= 0 )
+							return; // tile is outside this and all coarser levels
+						inputMin[ d ] = tileMin[ d ] * factors[ i ][ d ];
+						inputMax[ d ] = ( tileMin[ d ] + tileDims[ d ] ) * factors[ i ][ d ] - 1;
+					}
+
+					final VolatileLabelMultisetArray tile = Downscale.downscale(
+							Views.interval( input, new FinalInterval( inputMin, inputMax ) ),
+							factors[ i ],
+							tileDims,
+							tileMin );
+
+					splitIntoBlocks( tile, tileMin, tileDims, i, level );
+
+					if ( i + 1 < numPassLevels )
+					{
+						final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img = new ArrayImg<>( tile, tileDims, new Fraction() );
+						img.setLinkedType( new LabelMultisetType( img ) );
+						input = Views.extendBorder( Views.translate( img, tileMin ) );
+					}
+				}
+
+				final long done = numTilesDone.incrementAndGet();
+				if ( done % 1000 == 0 || done == numTilesTotal )
+					System.out.println( "  " + done + " / " + numTilesTotal + " tiles" );
+			}
+
+			private void splitIntoBlocks(
+					final VolatileLabelMultisetArray tile,
+					final long[] tileMin,
+					final long[] tileDims,
+					final int i,
+					final int level ) throws InterruptedException
+			{
+				final int[] blockSize = subdivisions[ level ];
+				final long[] numBlocks = new long[ n ];
+				for ( int d = 0; d < n; ++d )
+					numBlocks[ d ] = ( tileDims[ d ] - 1 ) / blockSize[ d ] + 1;
+
+				final long[] blockPos = new long[ n ];
+				for ( int b = 0; b < Intervals.numElements( numBlocks ); ++b )
+				{
+					IntervalIndexer.indexToPosition( b, numBlocks, blockPos );
+					final long[] localMin = new long[ n ];
+					final long[] min = new long[ n ];
+					final long[] dims = new long[ n ];
+					for ( int d = 0; d < n; ++d )
+					{
+						localMin[ d ] = blockPos[ d ] * blockSize[ d ];
+						min[ d ] = tileMin[ d ] + localMin[ d ];
+						dims[ d ] = Math.min( blockSize[ d ], tileDims[ d ] - localMin[ d ] );
+					}
+					final VolatileLabelMultisetArray data = extractBlock( tile, tileDims, localMin, dims );
+					writerThread.put( new Block( i, data, min, dims ) );
+				}
+			}
+		};
+
+		try
+		{
+			pool.invoke( task );
+		}
+		finally
+		{
+			writerThread.finish();
+			writerThread.join();
+		}
+		writerThread.rethrow();
+	}
+
+	/**
+	 * Copy the block with dimensions {@code dims} at {@code localMin} out of
+	 * {@code tile}. Only the lists referenced by the block are copied.
+	 */
+	static VolatileLabelMultisetArray extractBlock(
+			final VolatileLabelMultisetArray tile,
+			final long[] tileDims,
+			final long[] localMin,
+			final long[] dims )
+	{
+		final int n = dims.length;
+		final MappedAccessData< LongMappedAccess > tileListData = tile.getListData();
+		final int[] data = new int[ ( int ) Intervals.numElements( dims ) ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final TIntIntHashMap tileOffsetToOffset = new TIntIntHashMap(
+				Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR,
+				-1,
+				-1 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final LongMappedAccess source = tileListData.createAccess();
+		final LongMappedAccess target = listData.createAccess();
+		final long[] pos = new long[ n ];
+		int nextListOffset = 0;
+		for ( int i = 0; i < data.length; ++i )
+		{
+			IntervalIndexer.indexToPosition( i, dims, pos );
+			for ( int d = 0; d < n; ++d )
+				pos[ d ] += localMin[ d ];
+			final int tileOffset = tile.getListOffset( ( int ) IntervalIndexer.positionToIndex( pos, tileDims ) );
+
+			int offset = tileOffsetToOffset.get( tileOffset );
+			if ( offset == -1 )
+			{
+				list.referToDataAt( tileListData, tileOffset );
+				final int sizeInBytes = ( int ) list.getSizeInBytes();
+				if ( listData.size() < nextListOffset + sizeInBytes )
+					listData.resize( 2 * ( nextListOffset + sizeInBytes ) );
+				tileListData.updateAccess( source, tileOffset );
+				listData.updateAccess( target, nextListOffset );
+				target.copyFrom( source, sizeInBytes );
+				offset = nextListOffset;
+				tileOffsetToOffset.put( tileOffset, offset );
+				nextListOffset += sizeInBytes;
+			}
+			data[ i ] = offset;
+		}
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
+	}
+
+	/**
+	 * Splits a range of tile indices in halves until single tiles remain, such
+	 * that idle threads can steal work.
+	 */
+	private static abstract class TileTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final long from;
+
+		private final long to;
+
+		TileTask( final long from, final long to )
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		protected abstract void processTile( long tileIndex ) throws InterruptedException;
+
+		@Override
+		protected void compute()
+		{
+			if ( to - from == 1 )
+			{
+				try
+				{
+					processTile( from );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new RuntimeException( e );
+				}
+			}
+			else if ( to > from )
+			{
+				final long mid = ( from + to ) >>> 1;
+				final TileTask outer = this;
+				invokeAll(
+						new TileTask( from, mid )
+						{
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							protected void processTile( final long tileIndex ) throws InterruptedException
+							{
+								outer.processTile( tileIndex );
+							}
+						},
+						new TileTask( mid, to )
+						{
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							protected void processTile( final long tileIndex ) throws InterruptedException
+							{
+								outer.processTile( tileIndex );
+							}
+						} );
+			}
+		}
+	}
+
+	/**
+	 * A downscaled block waiting to be written.
+	 */
+	private static class Block
+	{
+		final int passLevelIndex;
+
+		final VolatileLabelMultisetArray data;
+
+		final long[] min;
+
+		final long[] dimensions;
+
+		Block( final int passLevelIndex, final VolatileLabelMultisetArray data, final long[] min, final long[] dimensions )
+		{
+			this.passLevelIndex = passLevelIndex;
+			this.data = data;
+			this.min = min;
+			this.dimensions = dimensions;
+		}
+	}
+
+	/**
+	 * Writes all blocks of a pass. HDF5 access is serialized anyway, so a
+	 * single thread does all writing.
+	 */
+	private class WriterThread extends Thread
+	{
+		private final Block finished = new Block( -1, null, null, null );
+
+		private final BlockingQueue< Block > queue;
+
+		private final DownscaleToHdf5.BlockWriter[] blockWriters;
+
+		private volatile Throwable failure = null;
+
+		WriterThread( final BlockingQueue< Block > queue, final ArrayList< Integer > levels )
+		{
+			super( "LabelMultisetPyramidBuilder writer" );
+			this.queue = queue;
+			blockWriters = new DownscaleToHdf5.BlockWriter[ levels.size() ];
+			for ( int i = 0; i < blockWriters.length; ++i )
+			{
+				final int level = levels.get( i );
+				blockWriters[ i ] = chunkedLayout
+						? new DownscaleToHdf5.H5ChunkedBlockWriter( writer, level, dimensions[ level ], Util.int2long( subdivisions[ level ] ) )
+						: new DownscaleToHdf5.H5BlockWriter( writer, level );
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			while ( true )
+			{
+				final Block block;
+				try
+				{
+					block = queue.take();
+				}
+				catch ( final InterruptedException e )
+				{
+					failure = e;
+					return;
+				}
+				if ( block == finished )
+				{
+					if ( failure == null )
+					{
+						try
+						{
+							for ( final DownscaleToHdf5.BlockWriter blockWriter : blockWriters )
+								blockWriter.finish();
+						}
+						catch ( final Throwable t )
+						{
+							failure = t;
+						}
+					}
+					return;
+				}
+				if ( failure == null )
+				{
+					try
+					{
+						blockWriters[ block.passLevelIndex ].writeBlock( block.data, block.min, block.dimensions );
+					}
+					catch ( final Throwable t )
+					{
+						// keep draining the queue such that producers do not block
+						failure = t;
+					}
+				}
+			}
+		}
+
+		void put( final Block block ) throws InterruptedException
+		{
+			if ( failure != null )
+				throw new RuntimeException( "writing blocks failed", failure );
+			queue.put( block );
+		}
+
+		void finish() throws InterruptedException
+		{
+			queue.put( finished );
+		}
+
+		void rethrow() throws IOException
+		{
+			if ( failure != null )
+				throw new IOException( "writing blocks failed", failure );
+		}
+	}
+}
@@ -23,6 +23,28 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 
 	private final Set< Entry< Label > > entrySet;
 
+	private final VarintLabelMultisetEntryList varintEntries;
+
+	/**
+	 * Separate cursor for {@link #varintEntrySet} iteration, such that queries
+	 * like {@link #contains(long)} during iteration do not disturb it.
+	 */
+	private final VarintLabelMultisetEntryList varintIterationEntries;
+
+	private final Set< Entry< Label > > varintEntrySet;
+
+	/**
+	 * Separate cursor for {@link #idAt(int)} and {@link #countAt(int)}, which
+	 * keeps its position as long as it refers to the same list, such that
+	 * iterating entries by index does not decode the list from the start
+	 * every time.
+	 */
+	private final VarintLabelMultisetEntryList varintIndexEntries;
+
+	private VolatileLabelMultisetArray varintIndexAccess;
+
+	private int varintIndexOffset;
+
 	// this is the constructor if you want it to read from an array
 	public LabelMultisetType( final NativeImg< ?, VolatileLabelMultisetArray > img )
 	{
@@ -90,6 +112,54 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 				return entries.size();
 			}
 		};
+		this.varintEntries = new VarintLabelMultisetEntryList();
+		this.varintIterationEntries = new VarintLabelMultisetEntryList();
+		this.varintIndexEntries = new VarintLabelMultisetEntryList();
+		this.varintEntrySet = new AbstractSet< Entry< Label > >()
+		{
+			private final RefIterator< Entry< Label > > iterator = new RefIterator< Entry< Label > >()
+			{
+				private final LabelMultisetEntry entry = new LabelMultisetEntry();
+
+				@Override
+				public boolean hasNext()
+				{
+					return varintIterationEntries.hasNext();
+				}
+
+				@Override
+				public LabelMultisetEntry next()
+				{
+					varintIterationEntries.fwd();
+					entry.setId( varintIterationEntries.getId() );
+					entry.setCount( varintIterationEntries.getCount() );
+					return entry;
+				}
+
+				@Override
+				public void release()
+				{}
+
+				@Override
+				public void reset()
+				{
+					varintIterationEntries.reset();
+				}
+			};
+
+			@Override
+			public RefIterator< Entry< Label > > iterator()
+			{
+				iterator.reset();
+				return iterator;
+			}
+
+			@Override
+			public int size()
+			{
+				return varintIterationEntries.size();
+			}
+		};
 	}
 
 	@Override
@@ -139,6 +209,11 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 	@Override
 	public int size()
 	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			return varintEntries.multisetSize();
+		}
 		access.getValue( i, entries );
 		return entries.multisetSize();
 	}
@@ -146,6 +221,11 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 	@Override
 	public boolean isEmpty()
 	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			return varintEntries.isEmpty();
+		}
 		access.getValue( i, entries );
 		return entries.isEmpty();
 	}
@@ -153,18 +233,30 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 	@Override
 	public boolean contains( final Object o )
 	{
-		access.getValue( i, entries );
-		return ( ( o instanceof Label ) && entries.binarySearch( ( ( Label ) o ).id() ) >= 0 );
+		return ( o instanceof Label ) && contains( ( ( Label ) o ).id() );
 	}
 
 	public boolean contains( final long id )
 	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			return varintEntries.contains( id );
+		}
 		access.getValue( i, entries );
 		return entries.binarySearch( id ) >= 0;
 	}
 
 	public boolean containsAll( final long[] ids )
 	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			for ( final long id : ids )
+				if ( !varintEntries.contains( id ) )
+					return false;
+			return true;
+		}
 		access.getValue( i, entries );
 		for ( final long id : ids )
 			if ( entries.binarySearch( id ) < 0 )
@@ -175,9 +267,8 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 	@Override
 	public boolean containsAll( final Collection< ? > c )
 	{
-		access.getValue( i, entries );
 		for ( final Object o : c )
-			if ( ! ( ( o instanceof Label ) && entries.binarySearch( ( ( Label ) o ).id() ) >= 0 ) )
+			if ( !contains( o ) )
 				return false;
 		return true;
 	}
@@ -185,20 +276,126 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 	@Override
 	public int count( final Object o )
 	{
-		access.getValue( i, entries );
 		if ( ! ( o instanceof Label ) )
 			return 0;
 
-		final int pos = entries.binarySearch( ( ( Label ) o ).id() );
+		final long id = ( ( Label ) o ).id();
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			return varintEntries.count( id );
+		}
+
+		access.getValue( i, entries );
+		final int pos = entries.binarySearch( id );
 		if ( pos < 0 )
 			return 0;
 
-		return entries.get( pos ).getCount();
+		return entries.countAt( pos );
+	}
+
+	// ==== primitive access, without creating Entry objects =====
+
+	/**
+	 * Number of distinct ids, i.e., the number of entries.
+	 */
+	public int numEntries()
+	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			return varintEntries.size();
+		}
+		access.getValue( i, entries );
+		return entries.size();
+	}
+
+	/**
+	 * Get the id of the entry at {@code index}. Entries are sorted by id.
+	 * Iterating entries in order is efficient for all list encodings.
+	 */
+	public long idAt( final int index )
+	{
+		if ( access.isVarintEncoded() )
+		{
+			final VarintLabelMultisetEntryList list = varintIndexEntries();
+			list.seek( index );
+			return list.getId();
+		}
+		access.getValue( i, entries );
+		return entries.idAt( index );
+	}
+
+	/**
+	 * Get the count of the entry at {@code index}. Entries are sorted by id.
+	 * Iterating entries in order is efficient for all list encodings.
+	 */
+	public int countAt( final int index )
+	{
+		if ( access.isVarintEncoded() )
+		{
+			final VarintLabelMultisetEntryList list = varintIndexEntries();
+			list.seek( index );
+			return list.getCount();
+		}
+		access.getValue( i, entries );
+		return entries.countAt( index );
+	}
+
+	/**
+	 * Pass the id and count of all entries, in order of increasing id, to
+	 * {@code consumer}.
+	 */
+	public void forEach( final LongIntConsumer consumer )
+	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			varintEntries.forEach( consumer );
+			return;
+		}
+		access.getValue( i, entries );
+		entries.forEach( consumer );
+	}
+
+	/**
+	 * Get the id with the largest count. If several ids have the largest
+	 * count, the smallest of them is returned.
+	 *
+	 * @return id with the largest count, or {@link Label#TRANSPARENT} if the
+	 *         multiset is empty.
+	 */
+	public long argMaxId()
+	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			return varintEntries.argMaxId();
+		}
+		access.getValue( i, entries );
+		return entries.argMaxId();
+	}
+
+	private VarintLabelMultisetEntryList varintIndexEntries()
+	{
+		final int offset = access.getListOffset( i );
+		if ( access != varintIndexAccess || offset != varintIndexOffset )
+		{
+			access.getValue( i, varintIndexEntries );
+			varintIndexAccess = access;
+			varintIndexOffset = offset;
+		}
+		return varintIndexEntries;
 	}
 
 	@Override
 	public Set< Entry< Label > > entrySet()
 	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintIterationEntries );
+			return varintEntrySet;
+		}
 		access.getValue( i, entries );
 		return entrySet;
 	}
@@ -206,10 +403,21 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 	@Override
 	public String toString()
 	{
+		if ( access.isVarintEncoded() )
+		{
+			access.getValue( i, varintEntries );
+			return varintEntries.toString();
+		}
 		access.getValue( i, entries );
 		return entries.toString();
 	}
 
+	// for Downscale, to read the list of the current pixel directly
+	VolatileLabelMultisetArray getAccess()
+	{
+		return access;
+	}
+
 	// for volatile type
 	boolean isValid()
 	{
@@ -227,21 +435,15 @@ public class LabelMultisetType extends AbstractNativeType< LabelMultisetType > i
 	@Override public void clear() { throw new UnsupportedOperationException(); }
 
 	@Override
-	public boolean valueEquals( LabelMultisetType other )
+	public boolean valueEquals( final LabelMultisetType other )
 	{
-		if ( entries.size() != other.entries.size() )
+		final int n = numEntries();
+		if ( n != other.numEntries() )
 			return false;
 
-		final RefIterator< LabelMultisetEntry > ai = entries.iterator();
-		final RefIterator< LabelMultisetEntry > bi = other.entries.iterator();
-
-		while ( ai.hasNext() )
-		{
-			final LabelMultisetEntry a = ai.next();
-			final LabelMultisetEntry b = bi.next();
-			if ( !( a.getId() == b.getId() && a.getCount() == b.getCount() ) )
+		for ( int j = 0; j < n; ++j )
+			if ( idAt( j ) != other.idAt( j ) || countAt( j ) != other.countAt( j ) )
 				return false;
-		}
 		return true;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package bdv.labels.labelset;
+
+import bdv.labels.labelset.Multiset.Entry;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.util.Intervals;
+
+/**
+ * Compares the per-voxel cost of reading label multisets through
+ * {@link LabelMultisetType#entrySet()} with the primitive
+ * {@link LabelMultisetType#idAt(int)}/{@link LabelMultisetType#countAt(int)},
+ * {@link LabelMultisetType#forEach(LongIntConsumer)} and
+ * {@link LabelMultisetType#argMaxId()} accessors, for regular and varint
+ * encoded lists.
+ */
+public class LabelMultisetTypeBenchmark
+{
+	static final long[] dimensions = { 256, 256, 64 };
+
+	static final int numRuns = 10;
+
+	/**
+	 * Accumulates results, such that the benchmarked loops are not optimized
+	 * away.
+	 */
+	static long sink = 0;
+
+	public static void main( final String[] args )
+	{
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > level0 = DownscaleBenchmark.createFragments( dimensions, 12 );
+		final long[] level1Dimensions = { 64, 64, 32 };
+		final VolatileLabelMultisetArray level1 = Downscale.downscale( level0, new long[] { 4, 4, 2 }, level1Dimensions, new long[ 3 ] );
+
+		System.out.println( "single entry lists" );
+		run( level0.update( null ), Intervals.numElements( dimensions ) );
+
+		final int n = ( int ) Intervals.numElements( level1Dimensions );
+		System.out.println( "multi entry lists (downscaled 4x4x2)" );
+		run( level1, n );
+
+		System.out.println( "multi entry lists (downscaled 4x4x2), varint encoded" );
+		run( VarintLabelMultisetEntryList.encode( level1 ), n );
+	}
+
+	private static void run( final VolatileLabelMultisetArray array, final long numElements )
+	{
+		final LabelMultisetType t = new LabelMultisetType( array );
+		final int n = ( int ) numElements;
+
+		long entrySetTime = Long.MAX_VALUE;
+		long indexTime = Long.MAX_VALUE;
+		long forEachTime = Long.MAX_VALUE;
+		long entrySetArgMaxTime = Long.MAX_VALUE;
+		long argMaxTime = Long.MAX_VALUE;
+		final long[] sum = new long[ 1 ];
+		final LongIntConsumer consumer = ( id, count ) -> sum[ 0 ] += id * count;
+		for ( int r = 0; r < numRuns; ++r )
+		{
+			long t0 = System.nanoTime();
+			for ( int i = 0; i < n; ++i )
+			{
+				t.updateIndex( i );
+				for ( final Entry< Label > entry : t.entrySet() )
+					sink += entry.getElement().id() * entry.getCount();
+			}
+			entrySetTime = Math.min( entrySetTime, System.nanoTime() - t0 );
+
+			t0 = System.nanoTime();
+			for ( int i = 0; i < n; ++i )
+			{
+				t.updateIndex( i );
+				final int m = t.numEntries();
+				for ( int j = 0; j < m; ++j )
+					sink += t.idAt( j ) * t.countAt( j );
+			}
+			indexTime = Math.min( indexTime, System.nanoTime() - t0 );
+
+			t0 = System.nanoTime();
+			for ( int i = 0; i < n; ++i )
+			{
+				t.updateIndex( i );
+				t.forEach( consumer );
+			}
+			sink += sum[ 0 ];
+			forEachTime = Math.min( forEachTime, System.nanoTime() - t0 );
+
+			t0 = System.nanoTime();
+			for ( int i = 0; i < n; ++i )
+			{
+				t.updateIndex( i );
+				int maxCount = 0;
+				long maxId = Label.TRANSPARENT;
+				for ( final Entry< Label > entry : t.entrySet() )
+				{
+					if ( entry.getCount() > maxCount )
+					{
+						maxCount = entry.getCount();
+						maxId = entry.getElement().id();
+					}
+				}
+				sink += maxId;
+			}
+			entrySetArgMaxTime = Math.min( entrySetArgMaxTime, System.nanoTime() - t0 );
+
+			t0 = System.nanoTime();
+			for ( int i = 0; i < n; ++i )
+			{
+				t.updateIndex( i );
+				sink += t.argMaxId();
+			}
+			argMaxTime = Math.min( argMaxTime, System.nanoTime() - t0 );
+		}
+
+		System.out.println( String.format( "  entrySet()              %6.1f ns/voxel", ( double ) entrySetTime / n ) );
+		System.out.println( String.format( "  idAt()/countAt()        %6.1f ns/voxel", ( double ) indexTime / n ) );
+		System.out.println( String.format( "  forEach()               %6.1f ns/voxel", ( double ) forEachTime / n ) );
+		System.out.println( String.format( "  argmax over entrySet()  %6.1f ns/voxel", ( double ) entrySetArgMaxTime / n ) );
+		System.out.println( String.format( "  argMaxId()              %6.1f ns/voxel", ( double ) argMaxTime / n ) );
+	}
+}
@@ -0,0 +1,11 @@
+package bdv.labels.labelset;
+
+/**
+ * Receives the (id, count) entries of a label multiset without boxing them
+ * into {@link Multiset.Entry} objects.
+ */
+@FunctionalInterface
+public interface LongIntConsumer
+{
+	public void accept( long id, int count );
+}
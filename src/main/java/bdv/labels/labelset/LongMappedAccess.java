@@ -2,7 +2,8 @@ package bdv.labels.labelset;
 
 /**
  * A {@link MappedAccess} that stores its data in a portion of a {@code long[]}
- * array.
+ * array, or in a portion of native memory if the underlying storage is an
+ * {@link OffHeapLongMappedAccessData}.
  *
  * @author Tobias Pietzsch &lt;tobias.pietzsch@gmail.com&gt;
  */
@@ -48,73 +49,73 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 	@Override
 	public void putByte( final byte value, final int offset )
 	{
-		ByteUtils.putByte( value, dataArray.data, baseOffset + offset );
+		ByteUtils.putByteAt( value, dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public byte getByte( final int offset )
 	{
-		return ByteUtils.getByte( dataArray.data, baseOffset + offset );
+		return ByteUtils.getByteAt( dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public void putBoolean( final boolean value, final int offset )
 	{
-		ByteUtils.putBoolean( value, dataArray.data, baseOffset + offset );
+		putByte( value ? ( byte ) 1 : ( byte ) 0, offset );
 	}
 
 	@Override
 	public boolean getBoolean( final int offset )
 	{
-		return ByteUtils.getBoolean( dataArray.data, baseOffset + offset );
+		return getByte( offset ) != ( byte ) 0;
 	}
 
 	@Override
 	public void putInt( final int value, final int offset )
 	{
-		ByteUtils.putInt( value, dataArray.data, baseOffset + offset );
+		ByteUtils.putIntAt( value, dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public int getInt( final int offset )
 	{
-		return ByteUtils.getInt( dataArray.data, baseOffset + offset );
+		return ByteUtils.getIntAt( dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public void putLong( final long value, final int offset )
 	{
-		ByteUtils.putLong( value, dataArray.data, baseOffset + offset );
+		ByteUtils.putLongAt( value, dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public long getLong( final int offset )
 	{
-		return ByteUtils.getLong( dataArray.data, baseOffset + offset );
+		return ByteUtils.getLongAt( dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public void putFloat( final float value, final int offset )
 	{
-		ByteUtils.putFloat( value, dataArray.data, baseOffset + offset );
+		ByteUtils.putFloatAt( value, dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public float getFloat( final int offset )
 	{
-		return ByteUtils.getFloat( dataArray.data, baseOffset + offset );
+		return ByteUtils.getFloatAt( dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public void putDouble( final double value, final int offset )
 	{
-		ByteUtils.putDouble( value, dataArray.data, baseOffset + offset );
+		ByteUtils.putDoubleAt( value, dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	@Override
 	public double getDouble( final int offset )
 	{
-		return ByteUtils.getDouble( dataArray.data, baseOffset + offset );
+		return ByteUtils.getDoubleAt( dataArray.base, dataArray.address + baseOffset + offset );
 	}
 
 	/**
@@ -142,7 +143,10 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 	@Override
 	public void copyFrom( final LongMappedAccess fromAccess, final int numBytes )
 	{
-		ByteUtils.copyBytes( fromAccess.dataArray.data, fromAccess.baseOffset, dataArray.data, baseOffset, numBytes );
+		ByteUtils.copyBytesAt(
+				fromAccess.dataArray.base, fromAccess.dataArray.address + fromAccess.baseOffset,
+				dataArray.base, dataArray.address + baseOffset,
+				numBytes );
 	}
 
 	private long[] swapTmp = new long[ 0 ];
@@ -152,8 +156,10 @@ public class LongMappedAccess implements MappedAccess< LongMappedAccess >
 	{
 		if ( ( swapTmp.length << 3 ) < numBytes )
 			swapTmp = new long[ ( numBytes >> 3 ) + 1 ];
-		ByteUtils.copyBytes( dataArray.data, baseOffset, swapTmp, 0, numBytes );
-		ByteUtils.copyBytes( access.dataArray.data, access.baseOffset, dataArray.data, baseOffset, numBytes );
-		ByteUtils.copyBytes( swapTmp, 0, access.dataArray.data, access.baseOffset, numBytes );
+		final long address = dataArray.address + baseOffset;
+		final long otherAddress = access.dataArray.address + access.baseOffset;
+		ByteUtils.copyBytesAt( dataArray.base, address, swapTmp, ByteUtils.LONG_ARRAY_OFFSET, numBytes );
+		ByteUtils.copyBytesAt( access.dataArray.base, otherAddress, dataArray.base, address, numBytes );
+		ByteUtils.copyBytesAt( swapTmp, ByteUtils.LONG_ARRAY_OFFSET, access.dataArray.base, otherAddress, numBytes );
 	}
 }
@@ -1,5 +1,6 @@
 package bdv.labels.labelset;
 
+import java.nio.ByteOrder;
 
 /**
  * A {@link MappedElementArray} that stores {@link DoubleMappedElement
@@ -15,8 +16,27 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 	 */
 	protected long[] data;
 
-	private long size;
+	/**
+	 * The object relative to which {@link #address} is interpreted by the
+	 * {@link LongMappedAccess}. This is the {@link #data} array for on-heap
+	 * storage, or {@code null} for {@link OffHeapLongMappedAccessData off-heap}
+	 * storage.
+	 */
+	Object base;
+
+	/**
+	 * The address of the first byte of storage, relative to {@link #base}.
+	 */
+	long address;
 
+	protected long size;
+
+	/**
+	 * Get the underlying {@code long[]} storage array.
+	 *
+	 * @return the storage array, or {@code null} if this container is not
+	 *         backed by a java array.
+	 */
 	public long[] getData()
 	{
 		return data;
@@ -53,8 +73,29 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 
 		this.size = size;
 		this.data = new long[ ( int ) longSize ];
+		this.base = data;
+		this.address = ByteUtils.LONG_ARRAY_OFFSET;
+	}
+
+	/**
+	 * Wrap an existing {@code long[]} array.
+	 */
+	private LongMappedAccessData( final long[] data, final long size )
+	{
+		this.size = size;
+		this.data = data;
+		this.base = data;
+		this.address = ByteUtils.LONG_ARRAY_OFFSET;
 	}
 
+	/**
+	 * Constructor for subclasses that manage their own storage. They are
+	 * responsible for setting {@link #base}, {@link #address}, and
+	 * {@link #size}.
+	 */
+	protected LongMappedAccessData()
+	{}
+
 	@Override
 	public long size()
 	{
@@ -80,9 +121,71 @@ public class LongMappedAccessData implements MappedAccessData< LongMappedAccess
 			final int copyLength = Math.min( data.length, datacopy.length );
 			System.arraycopy( data, 0, datacopy, 0, copyLength );
 		this.data = datacopy;
+		this.base = datacopy;
 		this.size = size;
 	}
 
+	private static final boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	/**
+	 * Get the first {@code numBytes} bytes of this storage packed into
+	 * {@code long}s in little-endian byte order. This is how label multiset
+	 * lists are stored in HDF5 scale levels. For on-heap storage, the storage
+	 * array itself is returned if it has exactly the required length, so the
+	 * returned array must not be modified.
+	 */
+	public long[] toPackedLongs( final long numBytes )
+	{
+		final int longSize = ( int ) longSizeFromByteSize( numBytes );
+		if ( data != null && data.length == longSize && littleEndian )
+			return data;
+		final long[] packed = new long[ longSize ];
+		ByteUtils.copyBytesAt( base, address, packed, ByteUtils.LONG_ARRAY_OFFSET, Math.min( numBytes, size ) );
+		if ( !littleEndian )
+			for ( int i = 0; i < longSize; ++i )
+				packed[ i ] = Long.reverseBytes( packed[ i ] );
+		return packed;
+	}
+
+	/**
+	 * Create storage from bytes packed into {@code long}s in little-endian
+	 * byte order, see {@link #toPackedLongs(long)}. If {@code factory} is the
+	 * default on-heap {@link #factory}, {@code packed} is used as the storage
+	 * array without copying (after byte-swapping in place on big-endian
+	 * platforms). Otherwise, it is copied into new storage in one go.
+	 */
+	public static LongMappedAccessData fromPackedLongs(
+			final long[] packed,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > factory )
+	{
+		if ( !littleEndian )
+			for ( int i = 0; i < packed.length; ++i )
+				packed[ i ] = Long.reverseBytes( packed[ i ] );
+
+		final long numBytes = ( long ) packed.length * ByteUtils.LONG_SIZE;
+		if ( factory == LongMappedAccessData.factory )
+			return new LongMappedAccessData( packed, numBytes );
+
+		final LongMappedAccessData storage = factory.createStorage( numBytes );
+		ByteUtils.copyBytesAt( packed, ByteUtils.LONG_ARRAY_OFFSET, storage.base, storage.address, numBytes );
+		return storage;
+	}
+
+	/**
+	 * Create storage from bytes packed into {@code int}s in native byte order,
+	 * the layout of the {@code uint32} lists datasets of HDF5 scale levels
+	 * written before lists were stored as packed {@code long}s.
+	 */
+	public static LongMappedAccessData fromPackedInts(
+			final int[] packed,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > factory )
+	{
+		final long numBytes = ( long ) packed.length * ByteUtils.INT_SIZE;
+		final LongMappedAccessData storage = factory.createStorage( numBytes );
+		ByteUtils.copyBytesAt( packed, ByteUtils.INT_ARRAY_OFFSET, storage.base, storage.address, numBytes );
+		return storage;
+	}
+
 	/**
 	 * A factory for {@link LongMappedAccessData}s.
 	 */
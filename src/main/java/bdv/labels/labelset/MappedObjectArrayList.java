@@ -21,7 +21,7 @@ public class MappedObjectArrayList< O extends MappedObject< O, T >, T extends Ma
 
 	private long elementBaseOffset;
 
-	private final T access;
+	protected final T access;
 
 	private final ConcurrentLinkedQueue< O > tmpObjRefs = new ConcurrentLinkedQueue< O >();
 
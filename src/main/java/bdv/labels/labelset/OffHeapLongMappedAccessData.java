@@ -0,0 +1,192 @@
+package bdv.labels.labelset;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link LongMappedAccessData} that stores its data in native memory outside
+ * of the java heap. Label multiset lists stored in this container do not
+ * contribute to garbage collection pressure.
+ *
+ * <p>
+ * Growing the storage uses {@code realloc}, which for large blocks typically
+ * remaps pages instead of copying them. The native memory is freed when the
+ * container becomes unreachable. The total amount of native memory is bounded,
+ * see {@link #setMaxTotalSize(long)}.
+ */
+public class OffHeapLongMappedAccessData extends LongMappedAccessData
+{
+	/**
+	 * Maximum number of bytes that may be allocated by all
+	 * {@link OffHeapLongMappedAccessData}s together. Defaults to the maximum
+	 * heap size.
+	 */
+	private static volatile long maxTotalSize = Runtime.getRuntime().maxMemory();
+
+	/**
+	 * Number of bytes currently allocated by all
+	 * {@link OffHeapLongMappedAccessData}s together.
+	 */
+	private static final AtomicLong totalSize = new AtomicLong();
+
+	/**
+	 * Set the maximum number of bytes that may be allocated by all
+	 * {@link OffHeapLongMappedAccessData}s together.
+	 */
+	public static void setMaxTotalSize( final long maxTotalSize )
+	{
+		OffHeapLongMappedAccessData.maxTotalSize = maxTotalSize;
+	}
+
+	/**
+	 * Get the number of bytes currently allocated by all
+	 * {@link OffHeapLongMappedAccessData}s together.
+	 */
+	public static long getTotalSize()
+	{
+		return totalSize.get();
+	}
+
+	/**
+	 * Account for {@code numBytes} more allocated bytes. If this exceeds
+	 * {@link #maxTotalSize}, trigger garbage collection to give unreachable
+	 * containers a chance to be freed, just like direct {@link ByteBuffer}s
+	 * do.
+	 *
+	 * @throws OutOfMemoryError
+	 *             if the limit is still exceeded after garbage collection.
+	 */
+	private static void reserve( final long numBytes )
+	{
+		if ( totalSize.addAndGet( numBytes ) <= maxTotalSize || numBytes <= 0 )
+			return;
+
+		System.gc();
+		long sleep = 1;
+		for ( int i = 0; i < 9; ++i )
+		{
+			if ( totalSize.get() <= maxTotalSize )
+				return;
+			try
+			{
+				Thread.sleep( sleep );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+			sleep <<= 1;
+		}
+		totalSize.addAndGet( -numBytes );
+		throw new OutOfMemoryError( "Off-heap label multiset storage exceeds " + maxTotalSize + " bytes." );
+	}
+
+	private final Deallocator deallocator;
+
+	private OffHeapLongMappedAccessData( final long size )
+	{
+		reserve( size );
+		this.base = null;
+		this.address = ByteUtils.allocateMemory( Math.max( size, 1 ) );
+		ByteUtils.setMemory( address, size, ( byte ) 0 );
+		this.size = size;
+		this.deallocator = new Deallocator( this, address, size );
+	}
+
+	/**
+	 * {@inheritDoc} The native memory is reallocated. Newly added bytes are
+	 * set to {@code 0}.
+	 */
+	@Override
+	public void resize( final long size )
+	{
+		if ( size == this.size )
+			return;
+
+		reserve( size - this.size );
+		final long newAddress = ByteUtils.reallocateMemory( address, Math.max( size, 1 ) );
+		if ( size > this.size )
+			ByteUtils.setMemory( newAddress + this.size, size - this.size, ( byte ) 0 );
+		deallocator.address = newAddress;
+		deallocator.size = size;
+		this.address = newAddress;
+		this.size = size;
+	}
+
+	/**
+	 * Frees the native memory of {@link OffHeapLongMappedAccessData} instances
+	 * after they have been garbage collected.
+	 */
+	private static final class Deallocator extends PhantomReference< OffHeapLongMappedAccessData >
+	{
+		private static final ReferenceQueue< OffHeapLongMappedAccessData > queue = new ReferenceQueue<>();
+
+		/**
+		 * Keeps the {@link Deallocator}s themselves reachable until they have
+		 * been processed.
+		 */
+		private static final Set< Deallocator > pending = Collections.synchronizedSet( Collections.newSetFromMap( new IdentityHashMap< Deallocator, Boolean >() ) );
+
+		static
+		{
+			final Thread thread = new Thread( "OffHeapLongMappedAccessData deallocator" )
+			{
+				@Override
+				public void run()
+				{
+					while ( true )
+					{
+						try
+						{
+							final Deallocator d = ( Deallocator ) queue.remove();
+							pending.remove( d );
+							ByteUtils.freeMemory( d.address );
+							totalSize.addAndGet( -d.size );
+						}
+						catch ( final InterruptedException e )
+						{}
+					}
+				}
+			};
+			thread.setDaemon( true );
+			thread.start();
+		}
+
+		private volatile long address;
+
+		private volatile long size;
+
+		Deallocator( final OffHeapLongMappedAccessData data, final long address, final long size )
+		{
+			super( data, queue );
+			this.address = address;
+			this.size = size;
+			pending.add( this );
+		}
+	}
+
+	/**
+	 * A factory for {@link OffHeapLongMappedAccessData}s.
+	 */
+	public static final MappedAccessData.Factory< OffHeapLongMappedAccessData, LongMappedAccess > factory =
+			new MappedAccessData.Factory< OffHeapLongMappedAccessData, LongMappedAccess >()
+			{
+				@Override
+				public OffHeapLongMappedAccessData createStorage( final long size )
+				{
+					return new OffHeapLongMappedAccessData( size );
+				}
+
+				@Override
+				public LongMappedAccess createAccess()
+				{
+					return new LongMappedAccess( null, 0 );
+				}
+			};
+}
@@ -0,0 +1,351 @@
+package bdv.labels.labelset;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Read-only cursor over a label multiset list stored in compact varint
+ * encoding. Compared to {@link LabelMultisetEntryList}, which uses 12 bytes
+ * per entry plus a 4 byte size field, this typically needs 2-4 bytes per entry
+ * for lists of nearby ids, such as in downsampled levels.
+ *
+ * <p>
+ * Layout, starting at the base offset:
+ * <ul>
+ * <li>varint: number of entries <em>n</em>,</li>
+ * <li><em>n</em> times: varint id delta to the previous entry (the first id is
+ * stored as is), followed by varint count.</li>
+ * </ul>
+ * Entries are sorted by id. Varints are unsigned LEB128, i.e. 7 bits per byte,
+ * least significant group first, with the high bit set on all but the last
+ * byte.
+ */
+public class VarintLabelMultisetEntryList
+{
+	private final LongMappedAccess access;
+
+	/**
+	 * number of entries in the current list.
+	 */
+	private int size;
+
+	/**
+	 * byte offset of the first entry, relative to the base offset.
+	 */
+	private int entriesOffset;
+
+	/**
+	 * byte offset of the next entry to decode, relative to the base offset.
+	 */
+	private int pos;
+
+	/**
+	 * index of the next entry to decode.
+	 */
+	private int nextIndex;
+
+	private long id;
+
+	private int count;
+
+	public VarintLabelMultisetEntryList()
+	{
+		access = LongMappedAccessData.factory.createAccess();
+	}
+
+	/**
+	 * make this object refer to a different list and {@link #reset()} the
+	 * cursor.
+	 */
+	public void referToDataAt( final MappedAccessData< LongMappedAccess > data, final long baseOffset )
+	{
+		data.updateAccess( access, baseOffset );
+		pos = 0;
+		size = ( int ) readVarint();
+		entriesOffset = pos;
+		reset();
+	}
+
+	/**
+	 * Number of distinct ids in the list.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Sum of counts of all entries in the list.
+	 */
+	public int multisetSize()
+	{
+		reset();
+		int s = 0;
+		while ( hasNext() )
+		{
+			fwd();
+			s += count;
+		}
+		return s;
+	}
+
+	/**
+	 * Move the cursor before the first entry.
+	 */
+	public void reset()
+	{
+		pos = entriesOffset;
+		nextIndex = 0;
+		id = 0;
+		count = 0;
+	}
+
+	public boolean hasNext()
+	{
+		return nextIndex < size;
+	}
+
+	/**
+	 * Decode the next entry.
+	 */
+	public void fwd()
+	{
+		id += readVarint();
+		count = ( int ) readVarint();
+		++nextIndex;
+	}
+
+	/**
+	 * id of the current entry.
+	 */
+	public long getId()
+	{
+		return id;
+	}
+
+	/**
+	 * count of the current entry.
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Move the cursor such that the current entry is the one at
+	 * {@code index}. This is cheap when moving forward, but starts decoding
+	 * from the beginning of the list when moving backward.
+	 */
+	public void seek( final int index )
+	{
+		if ( index < nextIndex - 1 )
+			reset();
+		while ( nextIndex <= index )
+			fwd();
+	}
+
+	/**
+	 * Pass the id and count of all entries, in order, to {@code consumer}.
+	 * This moves the cursor to the end of the list.
+	 */
+	public void forEach( final LongIntConsumer consumer )
+	{
+		reset();
+		while ( hasNext() )
+		{
+			fwd();
+			consumer.accept( id, count );
+		}
+	}
+
+	/**
+	 * Get the id with the largest count. If several ids have the largest
+	 * count, the smallest of them is returned. This moves the cursor to the
+	 * end of the list.
+	 *
+	 * @return id with the largest count, or {@link Label#TRANSPARENT} if the
+	 *         list is empty.
+	 */
+	public long argMaxId()
+	{
+		reset();
+		long maxId = Label.TRANSPARENT;
+		int maxCount = 0;
+		while ( hasNext() )
+		{
+			fwd();
+			if ( count > maxCount )
+			{
+				maxCount = count;
+				maxId = id;
+			}
+		}
+		return maxId;
+	}
+
+	/**
+	 * Get the count of {@code id} in the list. Scans the list from the start,
+	 * stopping as soon as a larger id is encountered.
+	 *
+	 * @return count of {@code id}, or {@code 0} if the list does not contain
+	 *         {@code id}.
+	 */
+	public int count( final long id )
+	{
+		reset();
+		while ( hasNext() )
+		{
+			fwd();
+			if ( this.id == id )
+				return count;
+			else if ( this.id > id )
+				return 0;
+		}
+		return 0;
+	}
+
+	public boolean contains( final long id )
+	{
+		return count( id ) > 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder( "[" );
+		reset();
+		while ( hasNext() )
+		{
+			fwd();
+			sb.append( id ).append( " x " ).append( count );
+			if ( hasNext() )
+				sb.append( ", " );
+		}
+		return sb.append( "]" ).toString();
+	}
+
+	private long readVarint()
+	{
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			b = access.getByte( pos++ );
+			value |= ( long ) ( b & 0x7f ) << shift;
+			shift += 7;
+		}
+		while ( b < 0 );
+		return value;
+	}
+
+	/**
+	 * Re-encode all lists of a {@link VolatileLabelMultisetArray} in varint
+	 * encoding. Lists that are shared between pixels in {@code array} remain
+	 * shared in the result.
+	 *
+	 * @param array
+	 *            array with lists in {@link LabelMultisetEntryList} encoding.
+	 * @return array with lists in varint encoding, or {@code array} itself if
+	 *         it is already varint encoded.
+	 */
+	public static VolatileLabelMultisetArray encode( final VolatileLabelMultisetArray array )
+	{
+		return encode( array, LongMappedAccessData.factory );
+	}
+
+	/**
+	 * Re-encode all lists of a {@link VolatileLabelMultisetArray} in varint
+	 * encoding. Lists that are shared between pixels in {@code array} remain
+	 * shared in the result.
+	 *
+	 * @param array
+	 *            array with lists in {@link LabelMultisetEntryList} encoding.
+	 *            Its {@link VolatileLabelMultisetArray#getContainedLabels()
+	 *            contained labels} are shared with the result if they are
+	 *            known, otherwise the result computes them on first use.
+	 * @param listDataFactory
+	 *            creates the storage for the encoded lists.
+	 * @return array with lists in varint encoding, or {@code array} itself if
+	 *         it is already varint encoded.
+	 */
+	public static VolatileLabelMultisetArray encode(
+			final VolatileLabelMultisetArray array,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory )
+	{
+		if ( array.isVarintEncoded() )
+			return array;
+
+		final int numLists = array.isConstant() ? 1 : array.getCurrentStorageArray().length;
+		final int[] encodedOffsets = new int[ numLists ];
+		final TIntIntHashMap offsetToEncodedOffset = new TIntIntHashMap(
+				Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR,
+				-1,
+				-1 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final ByteWriter out = new ByteWriter();
+		for ( int i = 0; i < numLists; ++i )
+		{
+			final int offset = array.getListOffset( i );
+			int encodedOffset = offsetToEncodedOffset.get( offset );
+			if ( encodedOffset == -1 )
+			{
+				encodedOffset = out.size;
+				offsetToEncodedOffset.put( offset, encodedOffset );
+				array.getValue( i, list );
+				final int n = list.size();
+				out.writeVarint( n );
+				long previousId = 0;
+				for ( int j = 0; j < n; ++j )
+				{
+					final long id = list.idAt( j );
+					out.writeVarint( id - previousId );
+					out.writeVarint( list.countAt( j ) & 0xffffffffL );
+					previousId = id;
+				}
+			}
+			encodedOffsets[ i ] = encodedOffset;
+		}
+
+		final LongMappedAccessData listData = listDataFactory.createStorage( out.size );
+		final LongMappedAccess access = listData.createAccess();
+		for ( int i = 0; i < out.size; ++i )
+			access.putByte( out.bytes[ i ], i );
+
+		if ( array.isConstant() )
+			return VolatileLabelMultisetArray.createConstant( listData, encodedOffsets[ 0 ], out.size, true, true, array.getContainedLabelsIfKnown() );
+		return new VolatileLabelMultisetArray( encodedOffsets, listData, out.size, true, true, array.getContainedLabelsIfKnown() );
+	}
+
+	/**
+	 * Growing byte buffer for encoding.
+	 */
+	private static final class ByteWriter
+	{
+		byte[] bytes = new byte[ 256 ];
+
+		int size = 0;
+
+		void writeVarint( long value )
+		{
+			if ( bytes.length < size + 10 )
+			{
+				final byte[] copy = new byte[ 2 * bytes.length ];
+				System.arraycopy( bytes, 0, copy, 0, size );
+				bytes = copy;
+			}
+			while ( ( value & ~0x7fL ) != 0 )
+			{
+				bytes[ size++ ] = ( byte ) ( ( value & 0x7f ) | 0x80 );
+				value >>>= 7;
+			}
+			bytes[ size++ ] = ( byte ) value;
+		}
+	}
+}
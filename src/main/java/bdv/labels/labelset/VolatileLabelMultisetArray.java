@@ -1,6 +1,12 @@
 package bdv.labels.labelset;
 
+import java.util.Arrays;
+
 import bdv.img.cache.DefaultEmptyArrayCreator;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
 import net.imglib2.img.basictypeaccess.volatiles.VolatileArrayDataAccess;
 
@@ -9,17 +15,46 @@ public class VolatileLabelMultisetArray implements VolatileAccess, VolatileArray
 {
 	private boolean isValid = false;
 
+	/**
+	 * list offset for every pixel, or {@code null} if this is a
+	 * {@link #isConstant() constant} block.
+	 */
 	private final int[] data;
 
+	/**
+	 * list offset for all pixels of a {@link #isConstant() constant} block.
+	 */
+	private final int constantListOffset;
+
 	private final MappedAccessData< LongMappedAccess > listData;
 
 	private final long listDataUsedSizeInBytes;
 
+	/**
+	 * Whether lists are stored in {@link VarintLabelMultisetEntryList}
+	 * encoding (or in {@link LabelMultisetEntryList} encoding otherwise).
+	 */
+	private final boolean varintEncoded;
+
+	/**
+	 * Sorted distinct ids occurring in any list of this block, or {@code null}
+	 * if they have not been computed yet.
+	 */
+	private volatile long[] containedLabels;
+
+	/**
+	 * Creates a {@link #isConstant() constant} block, where every pixel refers
+	 * to the same list containing a single entry with id {@code 0} and count
+	 * {@code 0}. {@code numEntities} is ignored, the block has no per-pixel
+	 * storage.
+	 */
 	public VolatileLabelMultisetArray( final int numEntities, final boolean isValid )
 	{
-		this.data = new int[ numEntities ];
+		this.data = null;
+		this.constantListOffset = 0;
 		listData = LongMappedAccessData.factory.createStorage( 16 );
 		listDataUsedSizeInBytes = 0;
+		varintEncoded = false;
 		new MappedObjectArrayList<>( LabelMultisetEntry.type, listData, 0 ).add( new LabelMultisetEntry() );
 		this.isValid = isValid;
 	}
@@ -37,16 +72,195 @@ public class VolatileLabelMultisetArray implements VolatileAccess, VolatileArray
 			final MappedAccessData< LongMappedAccess > listData,
 			final long listDataUsedSizeInBytes,
 			final boolean isValid )
+	{
+		this( data, listData, listDataUsedSizeInBytes, isValid, false );
+	}
+
+	public VolatileLabelMultisetArray(
+			final int[] data,
+			final MappedAccessData< LongMappedAccess > listData,
+			final long listDataUsedSizeInBytes,
+			final boolean isValid,
+			final boolean varintEncoded )
+	{
+		this( data, listData, listDataUsedSizeInBytes, isValid, varintEncoded, null );
+	}
+
+	/**
+	 * @param containedLabels
+	 *            sorted distinct ids occurring in the lists referenced by
+	 *            {@code data}, or {@code null} to compute them lazily when
+	 *            first needed.
+	 */
+	public VolatileLabelMultisetArray(
+			final int[] data,
+			final MappedAccessData< LongMappedAccess > listData,
+			final long listDataUsedSizeInBytes,
+			final boolean isValid,
+			final boolean varintEncoded,
+			final long[] containedLabels )
+	{
+		this( data, 0, listData, listDataUsedSizeInBytes, isValid, varintEncoded, containedLabels );
+	}
+
+	private VolatileLabelMultisetArray(
+			final int[] data,
+			final int constantListOffset,
+			final MappedAccessData< LongMappedAccess > listData,
+			final long listDataUsedSizeInBytes,
+			final boolean isValid,
+			final boolean varintEncoded,
+			final long[] containedLabels )
 	{
 		this.data = data;
+		this.constantListOffset = constantListOffset;
 		this.listData = listData;
 		this.listDataUsedSizeInBytes = listDataUsedSizeInBytes;
 		this.isValid = isValid;
+		this.varintEncoded = varintEncoded;
+		this.containedLabels = containedLabels;
+	}
+
+	/**
+	 * Create a {@link #isConstant() constant} block, where every pixel refers
+	 * to the list at {@code listOffset}.
+	 */
+	public static VolatileLabelMultisetArray createConstant(
+			final MappedAccessData< LongMappedAccess > listData,
+			final int listOffset,
+			final long listDataUsedSizeInBytes,
+			final boolean isValid,
+			final boolean varintEncoded,
+			final long[] containedLabels )
+	{
+		return new VolatileLabelMultisetArray( null, listOffset, listData, listDataUsedSizeInBytes, isValid, varintEncoded, containedLabels );
+	}
+
+	/**
+	 * Create a valid {@link #isConstant() constant} block, where every pixel
+	 * has the list {@code [id x 1]}.
+	 */
+	public static VolatileLabelMultisetArray createConstant(
+			final long id,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory )
+	{
+		final LongMappedAccessData listData = listDataFactory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		list.add( new LabelMultisetEntry( id, 1 ) );
+		return createConstant( listData, 0, list.getSizeInBytes(), true, false, new long[] { id } );
+	}
+
+	/**
+	 * Create a valid block with the lists {@code [id x 1]} of the ids of a
+	 * label block, e.g. of level 0 of a label multiset pyramid.  Each list is
+	 * stored once and shared by all pixels with its id, blocks with only one
+	 * id are {@link #isConstant() constant}.
+	 */
+	public static VolatileLabelMultisetArray createFromIds(
+			final long[] ids,
+			final MappedAccessData.Factory< ? extends LongMappedAccessData, LongMappedAccess > listDataFactory )
+	{
+		if ( isUniform( ids ) )
+			return createConstant( ids[ 0 ], listDataFactory );
+
+		final int[] offsets = new int[ ids.length ];
+		final LongMappedAccessData listData = listDataFactory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		int nextListOffset = 0;
+		final TLongIntHashMap idOffsetHash = new TLongIntHashMap(
+				Constants.DEFAULT_CAPACITY,
+				Constants.DEFAULT_LOAD_FACTOR,
+				-1,
+				-1 );
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			final long id = ids[ i ];
+			final int offset = idOffsetHash.get( id );
+			if ( offset == idOffsetHash.getNoEntryValue() )
+			{
+				list.createListAt( listData, nextListOffset );
+				entry.setId( id );
+				list.add( entry );
+				offsets[ i ] = nextListOffset;
+				idOffsetHash.put( id, nextListOffset );
+				nextListOffset += list.getSizeInBytes();
+			}
+			else
+				offsets[ i ] = offset;
+		}
+
+		final long[] containedLabels = idOffsetHash.keys();
+		Arrays.sort( containedLabels );
+
+		return new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true, false, containedLabels );
+	}
+
+	/**
+	 * Whether all elements of {@code data} are equal. Such blocks are loaded
+	 * as {@link #isConstant() constant} {@link VolatileLabelMultisetArray}s
+	 * without per-pixel storage.
+	 */
+	public static boolean isUniform( final long[] data )
+	{
+		final long first = data[ 0 ];
+		for ( int i = 1; i < data.length; ++i )
+			if ( data[ i ] != first )
+				return false;
+		return true;
+	}
+
+	public static boolean isUniform( final int[] data )
+	{
+		final int first = data[ 0 ];
+		for ( int i = 1; i < data.length; ++i )
+			if ( data[ i ] != first )
+				return false;
+		return true;
+	}
+
+	public static boolean isUniform( final short[] data )
+	{
+		final short first = data[ 0 ];
+		for ( int i = 1; i < data.length; ++i )
+			if ( data[ i ] != first )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Compares bit patterns, i.e., the label ids stored in {@code data}.
+	 */
+	public static boolean isUniform( final float[] data )
+	{
+		final int first = Float.floatToIntBits( data[ 0 ] );
+		for ( int i = 1; i < data.length; ++i )
+			if ( Float.floatToIntBits( data[ i ] ) != first )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Get the offset of the list of the pixel at {@code index} in
+	 * {@link #getListData()}.
+	 */
+	public int getListOffset( final int index )
+	{
+		return data == null ? constantListOffset : data[ index ];
 	}
 
 	public void getValue( final int index, final LabelMultisetEntryList ref )
 	{
-		ref.referToDataAt( listData, data[ index ] );
+		ref.referToDataAt( listData, getListOffset( index ) );
+	}
+
+	/**
+	 * Make {@code ref} refer to the list at {@code index}. Only valid if this
+	 * array {@link #isVarintEncoded() is varint encoded}.
+	 */
+	public void getValue( final int index, final VarintLabelMultisetEntryList ref )
+	{
+		ref.referToDataAt( listData, getListOffset( index ) );
 	}
 
 	@Override
@@ -61,6 +275,11 @@ public class VolatileLabelMultisetArray implements VolatileAccess, VolatileArray
 		return new VolatileLabelMultisetArray( numEntities, isValid );
 	}
 
+	/**
+	 * Get the list offsets of all pixels, or {@code null} if this is a
+	 * {@link #isConstant() constant} block. Use {@link #getListOffset(int)}
+	 * to handle both cases.
+	 */
 	@Override
 	public int[] getCurrentStorageArray()
 	{
@@ -77,6 +296,107 @@ public class VolatileLabelMultisetArray implements VolatileAccess, VolatileArray
 		return listDataUsedSizeInBytes;
 	}
 
+	/**
+	 * Whether all pixels refer to the same list. Constant blocks have no
+	 * per-pixel storage, {@link #getCurrentStorageArray()} returns
+	 * {@code null}.
+	 */
+	public boolean isConstant()
+	{
+		return data == null;
+	}
+
+	/**
+	 * Whether lists are stored in {@link VarintLabelMultisetEntryList}
+	 * encoding. Otherwise, they are stored in {@link LabelMultisetEntryList}
+	 * encoding.
+	 */
+	public boolean isVarintEncoded()
+	{
+		return varintEncoded;
+	}
+
+	/**
+	 * Get the sorted distinct ids occurring in this block. If the loader did
+	 * not provide them, they are computed from the lists on the first call.
+	 * The returned array must not be modified.
+	 */
+	public long[] getContainedLabels()
+	{
+		long[] labels = containedLabels;
+		if ( labels == null )
+		{
+			labels = computeContainedLabels();
+			containedLabels = labels;
+		}
+		return labels;
+	}
+
+	/**
+	 * @return the contained labels if the loader provided them or they were
+	 *         computed already, {@code null} otherwise
+	 */
+	long[] getContainedLabelsIfKnown()
+	{
+		return containedLabels;
+	}
+
+	/**
+	 * Whether any list in this block contains {@code id}. This is a binary
+	 * search in {@link #getContainedLabels()}, which allows to skip blocks
+	 * without looking at individual pixels.
+	 */
+	public boolean containsLabel( final long id )
+	{
+		return Arrays.binarySearch( getContainedLabels(), id ) >= 0;
+	}
+
+	/**
+	 * Whether any list in this block contains any of the {@code ids}, e.g.,
+	 * any fragment of a segment.
+	 */
+	public boolean containsAnyLabel( final long[] ids )
+	{
+		final long[] labels = getContainedLabels();
+		for ( final long id : ids )
+			if ( Arrays.binarySearch( labels, id ) >= 0 )
+				return true;
+		return false;
+	}
+
+	private long[] computeContainedLabels()
+	{
+		final TIntHashSet visitedOffsets = new TIntHashSet( Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1 );
+		final TLongHashSet labels = new TLongHashSet();
+		final LabelMultisetEntryList list = new LabelMultisetEntryList();
+		final VarintLabelMultisetEntryList varintList = varintEncoded ? new VarintLabelMultisetEntryList() : null;
+		final int numLists = data == null ? 1 : data.length;
+		for ( int i = 0; i < numLists; ++i )
+		{
+			if ( !visitedOffsets.add( getListOffset( i ) ) )
+				continue;
+			if ( varintEncoded )
+			{
+				getValue( i, varintList );
+				while ( varintList.hasNext() )
+				{
+					varintList.fwd();
+					labels.add( varintList.getId() );
+				}
+			}
+			else
+			{
+				getValue( i, list );
+				final int n = list.size();
+				for ( int j = 0; j < n; ++j )
+					labels.add( list.idAt( j ) );
+			}
+		}
+		final long[] sorted = labels.toArray();
+		Arrays.sort( sorted );
+		return sorted;
+	}
+
 	@Override
 	public boolean isValid()
 	{
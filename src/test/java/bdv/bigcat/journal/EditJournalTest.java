@@ -0,0 +1,227 @@
+package bdv.bigcat.journal;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import bdv.labels.labelset.Label;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class EditJournalTest
+{
+	static final long[] dimensions = { 10, 7, 5 };
+
+	static final int[] cellDimensions = { 4, 4, 4 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Records the replayed edits as strings.
+	 */
+	static class Recorder implements EditJournal.Visitor
+	{
+		final ArrayList< String > edits = new ArrayList<>();
+
+		final ArrayList< List< long[] > > cellData = new ArrayList<>();
+
+		@Override
+		public void brush( final int axis, final long[] center, final long radius, final long id )
+		{
+			edits.add( "brush " + axis + " " + Arrays.toString( center ) + " " + radius + " " + id );
+		}
+
+		@Override
+		public void cells( final long[] seed, final long id, final List< Interval > cells, final List< long[] > data )
+		{
+			final StringBuilder edit = new StringBuilder( "cells " + Arrays.toString( seed ) + " " + id );
+			for ( final Interval cell : cells )
+				edit.append( " " + Arrays.toString( Intervals.minAsLongArray( cell ) ) + Arrays.toString( Intervals.maxAsLongArray( cell ) ) );
+			edits.add( edit.toString() );
+			cellData.add( data );
+		}
+
+		@Override
+		public void mergeSegments( final long segmentId1, final long segmentId2, final long mergedSegmentId )
+		{
+			edits.add( "merge " + segmentId1 + " " + segmentId2 + " " + mergedSegmentId );
+		}
+
+		@Override
+		public void assignFragments( final long segmentId1, final long segmentId2 )
+		{
+			edits.add( "assignFragments " + segmentId1 + " " + segmentId2 );
+		}
+
+		@Override
+		public void detachFragment( final long fragmentId )
+		{
+			edits.add( "detach " + fragmentId );
+		}
+
+		@Override
+		public void assign( final long[] fragments, final long[] segments )
+		{
+			edits.add( "assign " + Arrays.toString( fragments ) + " " + Arrays.toString( segments ) );
+		}
+	}
+
+	static ArrayImg< LongType, LongArray > createCanvas()
+	{
+		final ArrayImg< LongType, LongArray > canvas = ArrayImgs.longs( dimensions );
+		long i = 0;
+		for ( final LongType t : canvas )
+			t.set( i++ % 3 == 0 ? Label.TRANSPARENT : i / 20 );
+		return canvas;
+	}
+
+	static Recorder replay( final File directory ) throws IOException
+	{
+		final Recorder recorder = new Recorder();
+		final long numRecords = EditJournal.replay( directory, recorder );
+		Assert.assertEquals( numRecords, recorder.edits.size() );
+		return recorder;
+	}
+
+	static File lastSegmentFile( final File directory )
+	{
+		final long[] segments = EditJournal.listSegments( directory );
+		return EditJournal.segmentFile( directory, segments[ segments.length - 1 ] );
+	}
+
+	/**
+	 * Appends one edit of each kind, returns the expected replay.
+	 */
+	static List< String > appendAll( final EditJournal journal, final ArrayImg< LongType, LongArray > canvas )
+	{
+		journal.brush( 2, new long[] { 1, 2, 3 }, 4, 5 );
+		journal.fill( new long[] { 6, 5, 4 }, 7, canvas, new FinalInterval( new long[] { 3, 3, 3 }, new long[] { 4, 4, 4 } ) );
+		journal.cells( canvas, new FinalInterval( new long[] { 9, 0, 0 }, new long[] { 9, 0, 0 } ) );
+		journal.mergeSegments( 1, 2, 3 );
+		journal.assignFragments( 4, 5 );
+		journal.detachFragment( 6 );
+		journal.assign( new long[] { 7, 8 }, new long[] { 9, 10 } );
+		return Arrays.asList(
+				"brush 2 [1, 2, 3] 4 5",
+				"cells [6, 5, 4] 7"
+						+ " [0, 0, 0][3, 3, 3] [4, 0, 0][7, 3, 3] [0, 4, 0][3, 6, 3] [4, 4, 0][7, 6, 3]"
+						+ " [0, 0, 4][3, 3, 4] [4, 0, 4][7, 3, 4] [0, 4, 4][3, 6, 4] [4, 4, 4][7, 6, 4]",
+				"cells null 0 [8, 0, 0][9, 3, 3]",
+				"merge 1 2 3",
+				"assignFragments 4 5",
+				"detach 6",
+				"assign [7, 8] [9, 10]" );
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final File directory = folder.newFolder();
+		final ArrayImg< LongType, LongArray > canvas = createCanvas();
+		final EditJournal journal = new EditJournal( directory, cellDimensions, 100000 );
+		final List< String > expected = appendAll( journal, canvas );
+		journal.close();
+
+		final Recorder recorder = replay( directory );
+		Assert.assertEquals( expected, recorder.edits );
+
+		/* cell contents */
+		for ( final List< long[] > data : recorder.cellData )
+			Assert.assertFalse( data.isEmpty() );
+		final long[] cell = recorder.cellData.get( 1 ).get( 0 );
+		int i = 0;
+		for ( final LongType t : Views.flatIterable( Views.interval( canvas, new FinalInterval( new long[] { 8, 0, 0 }, new long[] { 9, 3, 3 } ) ) ) )
+			Assert.assertEquals( t.get(), cell[ i++ ] );
+		Assert.assertEquals( cell.length, i );
+	}
+
+	@Test
+	public void testTruncatedTail() throws IOException
+	{
+		final File directory = folder.newFolder();
+		final EditJournal journal = new EditJournal( directory, cellDimensions, 100000 );
+		final List< String > expected = appendAll( journal, createCanvas() );
+		journal.close();
+
+		final File file = lastSegmentFile( directory );
+		final long length = file.length();
+
+		/* the last record torn in its payload, its checksum and its length */
+		for ( final long cut : new long[] { 1, 30, 40, 42 } )
+		{
+			try ( final RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+			{
+				raf.setLength( length - cut );
+			}
+			Assert.assertEquals( expected.subList( 0, expected.size() - 1 ), replay( directory ).edits );
+		}
+	}
+
+	@Test
+	public void testCorruptLength() throws IOException
+	{
+		final File directory = folder.newFolder();
+		final EditJournal journal = new EditJournal( directory, cellDimensions, 100000 );
+		final List< String > expected = appendAll( journal, createCanvas() );
+		journal.close();
+
+		final File file = lastSegmentFile( directory );
+		for ( final int length : new int[] { -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 100 } )
+		{
+			final long validLength = file.length();
+			try ( final DataOutputStream out = new DataOutputStream( new FileOutputStream( file, true ) ) )
+			{
+				out.writeInt( length );
+				out.writeInt( 0 );
+				out.writeLong( 0 );
+			}
+			Assert.assertEquals( expected, replay( directory ).edits );
+			try ( final RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+			{
+				raf.setLength( validLength );
+			}
+		}
+	}
+
+	@Test
+	public void testRotateCompact() throws IOException
+	{
+		final File directory = folder.newFolder();
+		final EditJournal journal = new EditJournal( directory, cellDimensions, 100000 );
+		journal.brush( 0, new long[] { 1, 1, 1 }, 1, 1 );
+		final long lastSegment = journal.rotate();
+		journal.brush( 0, new long[] { 2, 2, 2 }, 2, 2 );
+		Assert.assertEquals( Arrays.asList( "brush 0 [1, 1, 1] 1 1" ), replay( directory ).edits );
+
+		journal.commit();
+		Assert.assertEquals( Arrays.asList( "brush 0 [1, 1, 1] 1 1", "brush 0 [2, 2, 2] 2 2" ), replay( directory ).edits );
+
+		journal.compact( lastSegment );
+		Assert.assertEquals( Arrays.asList( "brush 0 [2, 2, 2] 2 2" ), replay( directory ).edits );
+		journal.close();
+
+		/* reopening appends to a new segment after the existing ones */
+		final EditJournal reopened = new EditJournal( directory, cellDimensions, 100000 );
+		reopened.brush( 0, new long[] { 3, 3, 3 }, 3, 3 );
+		reopened.close();
+		Assert.assertEquals( Arrays.asList( "brush 0 [2, 2, 2] 2 2", "brush 0 [3, 3, 3] 3 3" ), replay( directory ).edits );
+		Assert.assertEquals( 2, EditJournal.listSegments( directory ).length );
+	}
+}
@@ -0,0 +1,239 @@
+package bdv.bigcat.label;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import bdv.bigcat.journal.EditJournal;
+import bdv.bigcat.journal.EditJournalReplay;
+import bdv.bigcat.undo.UndoStack;
+import bdv.util.LocalIdService;
+import gnu.trove.map.hash.TLongLongHashMap;
+
+public class FragmentSegmentAssignmentTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static long[] sorted( final long[] array )
+	{
+		final long[] copy = array.clone();
+		Arrays.sort( copy );
+		return copy;
+	}
+
+	@Test
+	public void testMergeAndDetach()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+
+		for ( long fragmentId = 1; fragmentId <= 8; ++fragmentId )
+			Assert.assertEquals( fragmentId, assignment.getSegment( fragmentId ) );
+		Assert.assertEquals( 0, assignment.getLut().size() );
+		Assert.assertArrayEquals( new long[] { 5 }, assignment.getFragments( 5 ) );
+
+		assignment.mergeFragmentSegments( 1, 2 );
+		assignment.mergeFragmentSegments( 3, 4 );
+		assignment.mergeFragmentSegments( 2, 3 );
+		final long segmentId = assignment.getSegment( 1 );
+		for ( long fragmentId = 1; fragmentId <= 4; ++fragmentId )
+			Assert.assertEquals( segmentId, assignment.getSegment( fragmentId ) );
+		Assert.assertArrayEquals( new long[] { 1, 2, 3, 4 }, sorted( assignment.getFragments( segmentId ) ) );
+		Assert.assertNull( assignment.getFragments( 1 ) );
+
+		assignment.assign( new long[] { 5 }, new long[] { 5 } );
+		assignment.assignFragments( 5, segmentId );
+		Assert.assertEquals( segmentId, assignment.getSegment( 5 ) );
+		Assert.assertArrayEquals( new long[] { 1, 2, 3, 4, 5 }, sorted( assignment.getFragments( segmentId ) ) );
+
+		assignment.detachFragment( 3 );
+		Assert.assertEquals( 3, assignment.getSegment( 3 ) );
+		Assert.assertArrayEquals( new long[] { 3 }, assignment.getFragments( 3 ) );
+		Assert.assertArrayEquals( new long[] { 1, 2, 4, 5 }, sorted( assignment.getFragments( segmentId ) ) );
+
+		/* detached fragments can be merged again */
+		assignment.mergeFragmentSegments( 3, 6 );
+		Assert.assertEquals( assignment.getSegment( 3 ), assignment.getSegment( 6 ) );
+		Assert.assertArrayEquals( new long[] { 3, 6 }, sorted( assignment.getFragments( assignment.getSegment( 6 ) ) ) );
+	}
+
+	@Test
+	public void testDetachSegmentIdUndo()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment(
+				new long[] { 1, 2, 3 },
+				new long[] { 1, 1, 1 },
+				idService );
+		final UndoStack undoStack = new UndoStack( null, null, Long.MAX_VALUE );
+		assignment.setUndoStack( undoStack );
+
+		/* the remaining fragments get a new id */
+		assignment.detachFragment( 1 );
+		final long remainingSegmentId = assignment.getSegment( 2 );
+		Assert.assertEquals( 100, remainingSegmentId );
+		Assert.assertArrayEquals( new long[] { 1 }, assignment.getFragments( 1 ) );
+		Assert.assertArrayEquals( new long[] { 2, 3 }, sorted( assignment.getFragments( remainingSegmentId ) ) );
+
+		Assert.assertTrue( undoStack.undo() );
+		Assert.assertArrayEquals( new long[] { 1, 2, 3 }, sorted( assignment.getFragments( 1 ) ) );
+		Assert.assertEquals( 1, assignment.getSegment( 3 ) );
+
+		Assert.assertTrue( undoStack.redo() );
+		Assert.assertArrayEquals( new long[] { 1 }, assignment.getFragments( 1 ) );
+		Assert.assertArrayEquals( new long[] { 2, 3 }, sorted( assignment.getFragments( remainingSegmentId ) ) );
+	}
+
+	@Test
+	public void testCompaction()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 1000 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+		for ( long fragmentId = 2; fragmentId <= 100; ++fragmentId )
+			assignment.mergeFragmentSegments( 1, fragmentId );
+
+		/* moving fragments back and forth leaves indices behind */
+		final long segmentId = assignment.getSegment( 1 );
+		for ( int k = 0; k < 10000; ++k )
+		{
+			final long fragmentId = 1 + k % 100;
+			assignment.assign( new long[] { fragmentId }, new long[] { k % 2 == 0 ? 500 : segmentId } );
+		}
+		Assert.assertTrue( assignment.size <= 2 * 100 + 1 );
+
+		for ( long fragmentId = 1; fragmentId <= 100; ++fragmentId )
+			Assert.assertEquals( ( fragmentId - 1 ) % 2 == 0 ? 500 : segmentId, assignment.getSegment( fragmentId ) );
+		Assert.assertEquals( 50, assignment.getFragments( 500 ).length );
+		Assert.assertEquals( 50, assignment.getFragments( segmentId ).length );
+	}
+
+	@Test
+	public void testAssignAndLut()
+	{
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment(
+				new long[] { 1, 2, 3, 4 },
+				new long[] { 10, 10, 20, 20 },
+				new LocalIdService() );
+
+		Assert.assertArrayEquals( new long[] { 1, 2 }, sorted( assignment.getFragments( 10 ) ) );
+
+		assignment.assign( new long[] { 1, 2 }, new long[] { 20, 30 } );
+		Assert.assertEquals( 20, assignment.getSegment( 1 ) );
+		Assert.assertArrayEquals( new long[] { 1, 3, 4 }, sorted( assignment.getFragments( 20 ) ) );
+		Assert.assertArrayEquals( new long[] { 2 }, assignment.getFragments( 30 ) );
+
+		final TLongLongHashMap lut = assignment.getLut();
+		Assert.assertEquals( 4, lut.size() );
+		Assert.assertEquals( 20, lut.get( 1 ) );
+		Assert.assertEquals( 30, lut.get( 2 ) );
+
+		final FragmentSegmentAssignment copy = new FragmentSegmentAssignment( new LocalIdService() );
+		copy.initLut( lut );
+		Assert.assertArrayEquals( sorted( assignment.getFragments( 20 ) ), sorted( copy.getFragments( 20 ) ) );
+		Assert.assertEquals( 30, copy.getSegment( 2 ) );
+	}
+
+	@Test
+	public void testChangedSegments()
+	{
+		final LocalIdService idService = new LocalIdService();
+		idService.setNext( 100 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( idService );
+
+		final long version0 = assignment.getVersion();
+		assignment.getSegment( 1 );
+		Assert.assertEquals( version0, assignment.getVersion() );
+
+		assignment.mergeFragmentSegments( 1, 2 );
+		final long version1 = assignment.getVersion();
+		final long segmentId = assignment.getSegment( 1 );
+		Assert.assertArrayEquals( new long[] { 1, 2, segmentId }, sorted( assignment.getChangedSegments( version0, version1 ) ) );
+
+		assignment.detachFragment( 2 );
+		final long version2 = assignment.getVersion();
+		Assert.assertArrayEquals( new long[] { 2, segmentId }, sorted( assignment.getChangedSegments( version1, version2 ) ) );
+		Assert.assertArrayEquals( new long[] { 1, 2, segmentId }, sorted( assignment.getChangedSegments( version0, version2 ) ) );
+		Assert.assertEquals( 0, assignment.getChangedSegments( version2, version2 ).length );
+
+		/* a new lut may change everything */
+		assignment.initLut( assignment.getLut() );
+		Assert.assertNull( assignment.getChangedSegments( version2, assignment.getVersion() ) );
+	}
+
+	@Test
+	public void testSortedLut() throws IOException
+	{
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment(
+				new long[] { 1, 2, 3, 4, 5 },
+				new long[] { 20, 10, 20, 20, 30 },
+				new LocalIdService() );
+
+		final SegmentSortedLut sortedLut = assignment.getSortedLut();
+		Assert.assertEquals( 3, sortedLut.numSegments() );
+		Assert.assertEquals( 5, sortedLut.numFragments() );
+
+		final File file = File.createTempFile( "lut", ".bin" );
+		file.deleteOnExit();
+		sortedLut.write( file );
+
+		final FragmentSegmentAssignment copy = new FragmentSegmentAssignment( new LocalIdService() );
+		try ( final SegmentSortedLut.Reader reader = new SegmentSortedLut.Reader( file ) )
+		{
+			copy.initLut( reader );
+		}
+		Assert.assertEquals( assignment.getLut(), copy.getLut() );
+		Assert.assertArrayEquals( new long[] { 1, 3, 4 }, sorted( copy.getFragments( 20 ) ) );
+
+		/* fragments listed twice end up in the last segment */
+		try ( final SegmentSortedLut.Writer writer = new SegmentSortedLut.Writer( file, -1, -1 ) )
+		{
+			writer.write( 10, new long[] { 1, 2, 3 } );
+			writer.write( 20, new long[] { 3, 4, 4 } );
+		}
+		try ( final SegmentSortedLut.Reader reader = new SegmentSortedLut.Reader( file ) )
+		{
+			copy.initLut( reader );
+		}
+		Assert.assertArrayEquals( new long[] { 1, 2 }, sorted( copy.getFragments( 10 ) ) );
+		Assert.assertArrayEquals( new long[] { 3, 4 }, sorted( copy.getFragments( 20 ) ) );
+		Assert.assertEquals( 20, copy.getSegment( 3 ) );
+
+		copy.mergeSegments( 10, 20, 40 );
+		Assert.assertArrayEquals( new long[] { 1, 2, 3, 4 }, sorted( copy.getFragments( 40 ) ) );
+	}
+
+	@Test
+	public void testJournaledLut() throws IOException
+	{
+		final long[] fragments = { 1, 2, 3 };
+		final long[] segments = { 1, 1, 1 };
+		final File directory = folder.newFolder();
+		final EditJournal journal = new EditJournal( directory, new int[] { 1, 1, 1 }, 100000 );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( fragments, segments, new LocalIdService() );
+		assignment.setJournal( journal );
+
+		/* a full lookup table replaces the assignment between deltas */
+		assignment.assign( new long[] { 4 }, new long[] { 1 } );
+		final TLongLongHashMap lut = new TLongLongHashMap();
+		lut.put( 2, 10 );
+		lut.put( 5, 10 );
+		assignment.initLut( lut );
+		assignment.assign( new long[] { 6 }, new long[] { 10 } );
+		journal.close();
+
+		final FragmentSegmentAssignment replayed = new FragmentSegmentAssignment( fragments, segments, new LocalIdService() );
+		new EditJournalReplay( null, null, replayed ).replay( directory, new LocalIdService() );
+		for ( long fragmentId = 1; fragmentId <= 7; ++fragmentId )
+			Assert.assertEquals( assignment.getSegment( fragmentId ), replayed.getSegment( fragmentId ) );
+		Assert.assertArrayEquals( new long[] { 2, 5, 6 }, sorted( replayed.getFragments( 10 ) ) );
+	}
+}
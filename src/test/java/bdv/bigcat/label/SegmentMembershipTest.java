@@ -0,0 +1,138 @@
+package bdv.bigcat.label;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VarintLabelMultisetEntryList;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+
+public class SegmentMembershipTest
+{
+	/**
+	 * negative and reserved ids sort before the others as signed longs
+	 */
+	final static long[] ids = new long[] {
+		Long.MIN_VALUE,
+		Label.OUTSIDE,
+		Label.INVALID,
+		Label.TRANSPARENT,
+		Label.MAX_ID,
+		-5,
+		Label.BACKGROUND,
+		1,
+		2,
+		3,
+		4,
+		5,
+		6,
+		7,
+		8,
+		9,
+		10,
+		1l << 40,
+		( 1l << 40 ) + 1,
+		Long.MAX_VALUE
+	};
+
+	static long[] randomIds( final Random rnd, final int n )
+	{
+		final long[] shuffled = ids.clone();
+		for ( int i = shuffled.length - 1; i > 0; --i )
+		{
+			final int j = rnd.nextInt( i + 1 );
+			final long t = shuffled[ i ];
+			shuffled[ i ] = shuffled[ j ];
+			shuffled[ j ] = t;
+		}
+		final long[] randomIds = new long[ n ];
+		System.arraycopy( shuffled, 0, randomIds, 0, n );
+		return randomIds;
+	}
+
+	/**
+	 * One multiset per pixel, with {@code 0} to all {@link #ids}.
+	 */
+	static VolatileLabelMultisetArray createArray( final Random rnd, final int numPixels )
+	{
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		final int[] data = new int[ numPixels ];
+		int nextListOffset = 0;
+		for ( int i = 0; i < numPixels; ++i )
+		{
+			list.createListAt( listData, nextListOffset );
+			for ( final long id : randomIds( rnd, i % ( ids.length + 1 ) ) )
+			{
+				entry.setId( id );
+				entry.setCount( 1 + rnd.nextInt( 100 ) );
+				list.add( entry );
+			}
+			list.sortById();
+			data[ i ] = nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
+	}
+
+	static boolean contains( final long[] fragments, final long id )
+	{
+		for ( final long fragment : fragments )
+			if ( fragment == id )
+				return true;
+		return false;
+	}
+
+	static void check( final SegmentMembership membership, final long[] fragments, final LabelMultisetType labels )
+	{
+		boolean any = false;
+		boolean only = labels.numEntries() > 0;
+		for ( int i = 0; i < labels.numEntries(); ++i )
+		{
+			final boolean contains = contains( fragments, labels.idAt( i ) );
+			any |= contains;
+			only &= contains;
+		}
+		Assert.assertEquals( any, membership.containsAny( labels ) );
+		Assert.assertEquals( only, membership.containsOnly( labels ) );
+	}
+
+	@Test
+	public void testAroundMaxLookupFragments()
+	{
+		final Random rnd = new Random( 0 );
+		final int numPixels = 10 * ( ids.length + 1 );
+		final VolatileLabelMultisetArray array = createArray( rnd, numPixels );
+		final LabelMultisetType labels = new LabelMultisetType( array );
+		final LabelMultisetType varintLabels = new LabelMultisetType( VarintLabelMultisetEntryList.encode( array ) );
+
+		final int max = SegmentMembership.MAX_LOOKUP_FRAGMENTS;
+		for ( final int numFragments : new int[] { 0, 1, max - 1, max, max + 1, max + 2, ids.length } )
+		{
+			for ( int k = 0; k < 10; ++k )
+			{
+				final long[] fragments = randomIds( rnd, numFragments );
+				final SegmentMembership membership = new SegmentMembership( fragments );
+				Assert.assertEquals( numFragments, membership.numFragments() );
+				for ( final long id : ids )
+					Assert.assertEquals( contains( fragments, id ), membership.contains( id ) );
+
+				/* multisets with fewer, as many, and more entries than fragments */
+				for ( int i = 0; i < numPixels; ++i )
+				{
+					labels.updateIndex( i );
+					varintLabels.updateIndex( i );
+					check( membership, fragments, labels );
+					check( membership, fragments, varintLabels );
+				}
+			}
+		}
+	}
+}
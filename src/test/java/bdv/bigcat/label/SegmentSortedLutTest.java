@@ -0,0 +1,85 @@
+package bdv.bigcat.label;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentSortedLutTest
+{
+	/**
+	 * position of the size of the first segment
+	 */
+	static final int SIZE_POSITION = 4 + 8 + 8 + 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	byte[] write() throws IOException
+	{
+		final File file = folder.newFile();
+		new SegmentSortedLut( new long[] { 10, 20 }, new int[] { 0, 2, 3 }, new long[] { 1, 2, 3 } ).write( file );
+		return Files.readAllBytes( file.toPath() );
+	}
+
+	static int read( final SegmentSortedLut.Reader reader ) throws IOException
+	{
+		int numFragments = 0;
+		while ( reader.next() )
+			numFragments += reader.size();
+		reader.close();
+		return numFragments;
+	}
+
+	/**
+	 * Read from a file and from a stream of unknown length.
+	 */
+	void assertCorrupt( final byte[] bytes ) throws IOException
+	{
+		final File file = folder.newFile();
+		Files.write( file.toPath(), bytes );
+		try
+		{
+			read( new SegmentSortedLut.Reader( file ) );
+			Assert.fail( "Read a corrupt file." );
+		}
+		catch ( final IOException e )
+		{}
+		try
+		{
+			read( new SegmentSortedLut.Reader( Channels.newChannel( new ByteArrayInputStream( bytes ) ) ) );
+			Assert.fail( "Read a corrupt stream." );
+		}
+		catch ( final IOException e )
+		{}
+	}
+
+	@Test
+	public void testCorrupt() throws IOException
+	{
+		final byte[] bytes = write();
+		Assert.assertEquals( 3, read( new SegmentSortedLut.Reader( Channels.newChannel( new ByteArrayInputStream( bytes ) ) ) ) );
+
+		for ( final int size : new int[] { -1, Integer.MIN_VALUE, 3, Integer.MAX_VALUE } )
+		{
+			final byte[] corrupt = bytes.clone();
+			ByteBuffer.wrap( corrupt ).putInt( SIZE_POSITION, size );
+			assertCorrupt( corrupt );
+		}
+
+		/* header counts */
+		for ( final long count : new long[] { -2, 1, 4, Long.MAX_VALUE } )
+		{
+			final byte[] corrupt = bytes.clone();
+			ByteBuffer.wrap( corrupt ).putLong( 12, count );
+			assertCorrupt( corrupt );
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package bdv.bigcat.util;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+
+public class DirtyIntervalTest
+{
+	@Test
+	public void testLargeGrid()
+	{
+		/* 2^22 x 2^22 x 2^10 cells */
+		final long[] dimensions = { 1L << 24, 1L << 24, 1L << 12 };
+		final DirtyInterval dirtyInterval = new DirtyInterval();
+		dirtyInterval.setCellGrid( dimensions, new int[] { 4, 4, 4 } );
+
+		final long[] min = { 8, 4, ( 1L << 12 ) - 6 };
+		final long[] max = { 9, 5, ( 1L << 12 ) - 3 };
+		dirtyInterval.touch( new FinalInterval( min, max ) );
+		Assert.assertEquals( 2, dirtyInterval.numDirtyCells() );
+
+		final List< Interval > cells = dirtyInterval.clearDirtyCells();
+		Assert.assertEquals( 2, cells.size() );
+		Assert.assertArrayEquals( new long[] { 8, 4, ( 1L << 12 ) - 8 }, Intervals.minAsLongArray( cells.get( 0 ) ) );
+		Assert.assertArrayEquals( new long[] { 11, 7, ( 1L << 12 ) - 5 }, Intervals.maxAsLongArray( cells.get( 0 ) ) );
+		Assert.assertArrayEquals( new long[] { 8, 4, ( 1L << 12 ) - 4 }, Intervals.minAsLongArray( cells.get( 1 ) ) );
+		Assert.assertEquals( 0, dirtyInterval.numDirtyCells() );
+	}
+}
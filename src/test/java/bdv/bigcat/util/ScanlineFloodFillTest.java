@@ -0,0 +1,217 @@
+package bdv.bigcat.util;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bdv.bigcat.control.LabelFillController;
+import bdv.bigcat.control.LabelFillController.SegmentAndPaintFilter1;
+import bdv.bigcat.label.FragmentSegmentAssignment;
+import bdv.labels.labelset.Label;
+import bdv.labels.labelset.LabelMultisetEntry;
+import bdv.labels.labelset.LabelMultisetEntryList;
+import bdv.labels.labelset.LabelMultisetType;
+import bdv.labels.labelset.LongMappedAccessData;
+import bdv.labels.labelset.VolatileLabelMultisetArray;
+import bdv.util.LocalIdService;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.fill.FloodFill;
+import net.imglib2.algorithm.neighborhood.DiamondShape;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class ScanlineFloodFillTest
+{
+	static final long[] dimensions = { 23, 17, 11 };
+
+	static final long fillId = 100;
+
+	static final int[][] blockSizes = {
+			{ 64, 64, 64 },
+			{ 4, 4, 4 },
+			{ 5, 3, 7 },
+			{ 1, 2, 3 } };
+
+	/**
+	 * Fragments 1 to 6 in slanted slabs with some noise, single entry lists.
+	 */
+	static ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > createLabels( final Random rnd )
+	{
+		final int[] offsets = new int[ ( int ) Intervals.numElements( dimensions ) ];
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry( 0, 1 );
+		final int[] listOffsets = new int[ 7 ];
+		int nextListOffset = 0;
+		for ( int id = 1; id <= 6; ++id )
+		{
+			list.createListAt( listData, nextListOffset );
+			entry.setId( id );
+			list.add( entry );
+			listOffsets[ id ] = nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+		int i = 0;
+		for ( int z = 0; z < dimensions[ 2 ]; ++z )
+			for ( int y = 0; y < dimensions[ 1 ]; ++y )
+				for ( int x = 0; x < dimensions[ 0 ]; ++x, ++i )
+				{
+					final int id = rnd.nextInt( 10 ) == 0 ? 1 + rnd.nextInt( 6 ) : 1 + ( x / 5 + y / 4 + z / 3 ) % 4;
+					offsets[ i ] = listOffsets[ id ];
+				}
+
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > img = new ArrayImg<>(
+				new VolatileLabelMultisetArray( offsets, listData, nextListOffset, true ),
+				dimensions,
+				new Fraction() );
+		img.setLinkedType( new LabelMultisetType( img ) );
+		return img;
+	}
+
+	/**
+	 * Mostly transparent, with paint of fragment 2, of fragment 5, and of the
+	 * fill id.
+	 */
+	static ArrayImg< LongType, LongArray > createCanvas( final Random rnd )
+	{
+		final ArrayImg< LongType, LongArray > canvas = ArrayImgs.longs( dimensions );
+		for ( final LongType t : canvas )
+		{
+			final int r = rnd.nextInt( 20 );
+			t.set( r == 0 ? 2 : r == 1 ? 5 : r == 2 ? fillId : Label.TRANSPARENT );
+		}
+		return canvas;
+	}
+
+	static ArrayImg< LongType, LongArray > copy( final ArrayImg< LongType, LongArray > canvas )
+	{
+		return ArrayImgs.longs( canvas.update( null ).getCurrentStorageArray().clone(), dimensions );
+	}
+
+	@Test
+	public void testSameAsFloodFill()
+	{
+		final Random rnd = new Random( 0 );
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > labels = createLabels( rnd );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( new LocalIdService() );
+		assignment.mergeFragmentSegments( 1, 2 );
+
+		final ArrayImg< LongType, LongArray > canvas = createCanvas( rnd );
+		final RandomAccess< LongType > paintAccess = canvas.randomAccess();
+
+		/* seeds on paint of the merged segment, on other paint, on the fill id */
+		final long[][] paintedSeeds = { { 0, 0, 0 }, { 22, 16, 10 }, { 11, 8, 5 } };
+		final long[] seedPaints = { 2, 5, fillId };
+		for ( int i = 0; i < paintedSeeds.length; ++i )
+		{
+			paintAccess.setPosition( paintedSeeds[ i ] );
+			paintAccess.get().set( seedPaints[ i ] );
+		}
+
+		for ( int i = 0; i < 40; ++i )
+		{
+			final Point seed = new Point( 3 );
+			if ( i < paintedSeeds.length )
+				seed.setPosition( paintedSeeds[ i ] );
+			else
+				for ( int d = 0; d < 3; ++d )
+					seed.setPosition( rnd.nextInt( ( int ) dimensions[ d ] ), d );
+			paintAccess.setPosition( seed );
+			final long seedPaint = paintAccess.get().get();
+			final long seedFragmentLabel = LabelFillController.getBiggestLabel( labels, seed );
+
+			final ArrayImg< LongType, LongArray > reference = copy( canvas );
+			FloodFill.fill(
+					Views.extendValue( labels, new LabelMultisetType() ),
+					Views.extendValue( reference, new LongType( Label.TRANSPARENT ) ),
+					seed,
+					new LabelMultisetType(),
+					new LongType( fillId ),
+					new DiamondShape( 1 ),
+					new SegmentAndPaintFilter1( seedPaint, seedFragmentLabel, assignment ) );
+
+			for ( final int[] blockSize : blockSizes )
+			{
+				final ArrayImg< LongType, LongArray > result = copy( canvas );
+				final ScanlineFloodFill.Fill fill = new ScanlineFloodFill( labels, result, blockSize ).start(
+						seed,
+						fillId,
+						new SegmentAndPaintFilter1( seedPaint, seedFragmentLabel, assignment ),
+						Long.MAX_VALUE,
+						Long.MAX_VALUE,
+						null );
+				fill.await();
+
+				final List< Interval > filledBlocks = fill.getFilledBlocks();
+				final Cursor< LongType > c = canvas.localizingCursor();
+				final Cursor< LongType > r = reference.cursor();
+				final Cursor< LongType > s = result.cursor();
+				while ( c.hasNext() )
+				{
+					final long before = c.next().get();
+					final long expected = r.next().get();
+					final long actual = s.next().get();
+					Assert.assertEquals( "seed " + seed + ", blocks " + blockSize[ 0 ] + "x" + blockSize[ 1 ] + "x" + blockSize[ 2 ] + " at " + new Point( c ), expected, actual );
+					if ( actual != before )
+						Assert.assertTrue( filledBlocks.stream().anyMatch( block -> Intervals.contains( block, c ) ) );
+				}
+
+				/* undone pixels are as before */
+				fill.rollback();
+				final Cursor< LongType > b = canvas.cursor();
+				final Cursor< LongType > u = result.cursor();
+				while ( b.hasNext() )
+					Assert.assertEquals( b.next().get(), u.next().get() );
+			}
+		}
+	}
+
+	@Test
+	public void testRollbackKeepsPaintedBoxes()
+	{
+		final Random rnd = new Random( 1 );
+		final ArrayImg< LabelMultisetType, VolatileLabelMultisetArray > labels = createLabels( rnd );
+		final FragmentSegmentAssignment assignment = new FragmentSegmentAssignment( new LocalIdService() );
+		final ArrayImg< LongType, LongArray > canvas = createCanvas( rnd );
+		final ArrayImg< LongType, LongArray > result = copy( canvas );
+
+		final Point seed = new Point( 11, 8, 5 );
+		final RandomAccess< LongType > paintAccess = result.randomAccess();
+		paintAccess.setPosition( seed );
+		final long seedPaint = paintAccess.get().get();
+		final ScanlineFloodFill.Fill fill = new ScanlineFloodFill( labels, result, new int[] { 4, 4, 4 } ).start(
+				seed,
+				fillId,
+				new SegmentAndPaintFilter1( seedPaint, LabelFillController.getBiggestLabel( labels, seed ), assignment ),
+				Long.MAX_VALUE,
+				Long.MAX_VALUE,
+				null );
+		fill.await();
+
+		/* a brush stroke with the fill id over the seed */
+		final Interval painted = Intervals.createMinMax( 9, 6, 3, 13, 10, 7 );
+		for ( final LongType t : Views.interval( result, painted ) )
+			t.set( fillId );
+		fill.painted( painted );
+		fill.rollback();
+
+		final Cursor< LongType > c = canvas.localizingCursor();
+		final Cursor< LongType > r = result.cursor();
+		while ( c.hasNext() )
+		{
+			final long before = c.next().get();
+			final long actual = r.next().get();
+			Assert.assertEquals( Intervals.contains( painted, c ) ? fillId : before, actual );
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package bdv.img;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import bdv.labels.labelset.Label;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.view.Views;
+
+public class SparseLabelCanvasTest
+{
+	static final long[] dimensions = { 8, 8, 8 };
+
+	static final int[] cellDimensions = { 4, 4, 4 };
+
+	/**
+	 * bytes of one cell
+	 */
+	static final long cellBytes = 8 * 4 * 4 * 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Set every pixel of a cell, then wait for the spills this caused.
+	 */
+	static void paintCell( final SparseLabelCanvas canvas, final long cellIndex, final long value ) throws InterruptedException
+	{
+		for ( final LongType t : Views.flatIterable( Views.interval( canvas, canvas.getCellInterval( cellIndex ) ) ) )
+			t.set( value );
+		canvas.awaitSpills();
+	}
+
+	/**
+	 * Check every pixel of a cell, then wait for the spills this caused.
+	 */
+	static void checkCell( final SparseLabelCanvas canvas, final long cellIndex, final long value ) throws InterruptedException
+	{
+		for ( final LongType t : Views.flatIterable( Views.interval( canvas, canvas.getCellInterval( cellIndex ) ) ) )
+			Assert.assertEquals( value, t.get() );
+		canvas.awaitSpills();
+	}
+
+	@Test
+	public void testSpillReload() throws IOException, InterruptedException
+	{
+		final SparseLabelCanvas canvas = new SparseLabelCanvas( dimensions, cellDimensions );
+		final File scratch = folder.newFolder();
+		canvas.setMemoryBudget( cellBytes, scratch );
+
+		/* all cells but the last spilled, each written once */
+		for ( int i = 0; i < 8; ++i )
+			paintCell( canvas, i, i + 1 );
+		Assert.assertEquals( 8, canvas.numPaintedCells() );
+		Assert.assertEquals( cellBytes, canvas.getResidentBytes() );
+		Assert.assertEquals( 7, canvas.getNumSpillWrites() );
+		final File[] spillDirectories = scratch.listFiles();
+		Assert.assertEquals( 1, spillDirectories.length );
+		Assert.assertEquals( 7, spillDirectories[ 0 ].listFiles().length );
+
+		/* the last cell is written when it is spilled, reloaded unmodified cells are not written again */
+		for ( int i = 0; i < 8; ++i )
+			checkCell( canvas, i, i + 1 );
+		Assert.assertEquals( cellBytes, canvas.getResidentBytes() );
+		Assert.assertEquals( 8, canvas.getNumSpillWrites() );
+		Assert.assertEquals( 8, spillDirectories[ 0 ].listFiles().length );
+
+		/* a modified cell is written again when it is spilled */
+		final RandomAccess< LongType > access = canvas.randomAccess();
+		access.setPosition( new long[] { 1, 2, 3 } );
+		access.get().set( Label.MAX_ID );
+		canvas.awaitSpills();
+		Assert.assertEquals( 8, canvas.getNumSpillWrites() );
+		for ( int i = 1; i < 8; ++i )
+			checkCell( canvas, i, i + 1 );
+		Assert.assertEquals( 9, canvas.getNumSpillWrites() );
+		Assert.assertEquals( cellBytes, canvas.getResidentBytes() );
+
+		access.setPosition( new long[] { 1, 2, 3 } );
+		Assert.assertEquals( Label.MAX_ID, access.get().get() );
+		access.setPosition( new long[] { 0, 0, 0 } );
+		Assert.assertEquals( 1, access.get().get() );
+		Assert.assertEquals( 9, canvas.getNumSpillWrites() );
+	}
+
+	@Test
+	public void testSpillDirectoriesPerCanvas() throws IOException, InterruptedException
+	{
+		final File scratch = folder.newFolder();
+		final SparseLabelCanvas canvas1 = new SparseLabelCanvas( dimensions, cellDimensions );
+		final SparseLabelCanvas canvas2 = new SparseLabelCanvas( dimensions, cellDimensions );
+		canvas1.setMemoryBudget( cellBytes, scratch );
+		canvas2.setMemoryBudget( cellBytes, scratch );
+
+		final RandomAccess< LongType > access1 = canvas1.randomAccess();
+		final RandomAccess< LongType > access2 = canvas2.randomAccess();
+		for ( int i = 0; i < 8; ++i )
+		{
+			final long[] position = { i % 2 * 4, i / 2 % 2 * 4, i / 4 * 4 };
+			access1.setPosition( position );
+			access1.get().set( 1 );
+			access2.setPosition( position );
+			access2.get().set( 2 );
+		}
+		canvas1.awaitSpills();
+		canvas2.awaitSpills();
+		Assert.assertEquals( 2, scratch.listFiles().length );
+
+		for ( int i = 0; i < 8; ++i )
+		{
+			final long[] position = { i % 2 * 4, i / 2 % 2 * 4, i / 4 * 4 };
+			access1.setPosition( position );
+			Assert.assertEquals( 1, access1.get().get() );
+			access2.setPosition( position );
+			Assert.assertEquals( 2, access2.get().get() );
+		}
+	}
+}
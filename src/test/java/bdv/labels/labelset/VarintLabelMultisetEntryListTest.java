@@ -0,0 +1,106 @@
+package bdv.labels.labelset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import bdv.labels.labelset.Multiset.Entry;
+
+public class VarintLabelMultisetEntryListTest
+{
+	final static long[][] ids = new long[][] {
+		{ 1, 2, 3 },
+		{ Label.OUTSIDE, Label.TRANSPARENT, 0, 17, 1l << 40 },
+		{},
+		{ 5 }
+	};
+
+	final static int[][] counts = new int[][] {
+		{ 1, 200, 3 },
+		{ 4, 5, 6, 1 << 20, 8 },
+		{},
+		{ 64 }
+	};
+
+	/**
+	 * pixel to list index, some lists are shared
+	 */
+	final static int[] pixels = new int[] { 0, 1, 1, 2, 3, 0 };
+
+	private static VolatileLabelMultisetArray createArray()
+	{
+		final LongMappedAccessData listData = LongMappedAccessData.factory.createStorage( 32 );
+		final LabelMultisetEntryList list = new LabelMultisetEntryList( listData, 0 );
+		final LabelMultisetEntry entry = new LabelMultisetEntry();
+		final int[] listOffsets = new int[ ids.length ];
+		int nextListOffset = 0;
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			list.createListAt( listData, nextListOffset );
+			for ( int j = 0; j < ids[ i ].length; ++j )
+			{
+				entry.setId( ids[ i ][ j ] );
+				entry.setCount( counts[ i ][ j ] );
+				list.add( entry );
+			}
+			listOffsets[ i ] = nextListOffset;
+			nextListOffset += list.getSizeInBytes();
+		}
+		final int[] data = new int[ pixels.length ];
+		for ( int i = 0; i < pixels.length; ++i )
+			data[ i ] = listOffsets[ pixels[ i ] ];
+		return new VolatileLabelMultisetArray( data, listData, nextListOffset, true );
+	}
+
+	@Test
+	public void testEncode()
+	{
+		final VolatileLabelMultisetArray array = createArray();
+		final VolatileLabelMultisetArray encoded = VarintLabelMultisetEntryList.encode( array );
+		assertTrue( encoded.isVarintEncoded() );
+		assertTrue( encoded.getListDataUsedSizeInBytes() < array.getListDataUsedSizeInBytes() );
+
+		final LabelMultisetType a = new LabelMultisetType( array );
+		final LabelMultisetType b = new LabelMultisetType( encoded );
+		for ( int i = 0; i < pixels.length; ++i )
+		{
+			a.updateIndex( i );
+			b.updateIndex( i );
+			assertTrue( a.valueEquals( b ) );
+			assertEquals( a.size(), b.size() );
+			assertEquals( a.isEmpty(), b.isEmpty() );
+
+			final Iterator< Entry< Label > > it = b.entrySet().iterator();
+			final long[] expectedIds = ids[ pixels[ i ] ];
+			for ( int j = 0; j < expectedIds.length; ++j )
+			{
+				final Entry< Label > e = it.next();
+				assertEquals( expectedIds[ j ], e.getElement().id() );
+				assertEquals( counts[ pixels[ i ] ][ j ], e.getCount() );
+				assertTrue( b.contains( expectedIds[ j ] ) );
+				assertEquals( counts[ pixels[ i ] ][ j ], b.count( e.getElement() ) );
+			}
+			assertFalse( it.hasNext() );
+			assertFalse( b.contains( 4 ) );
+		}
+	}
+
+	@Test
+	public void testContainedLabels()
+	{
+		final long[] expected = { Label.OUTSIDE, Label.TRANSPARENT, 0, 1, 2, 3, 5, 17, 1l << 40 };
+		final VolatileLabelMultisetArray array = createArray();
+		assertArrayEquals( expected, array.getContainedLabels() );
+		assertArrayEquals( expected, VarintLabelMultisetEntryList.encode( array ).getContainedLabels() );
+		assertArrayEquals( expected, VarintLabelMultisetEntryList.encode( createArray() ).getContainedLabels() );
+		assertTrue( array.containsLabel( 17 ) );
+		assertFalse( array.containsLabel( 4 ) );
+		assertTrue( array.containsAnyLabel( new long[] { 4, 6, 5 } ) );
+		assertFalse( array.containsAnyLabel( new long[] { 4, 6 } ) );
+	}
+}